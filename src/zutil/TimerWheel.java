@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil;
+
+import zutil.log.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel for scheduling a large number of timeouts with low overhead,
+ * e.g. idle timeouts of network connections. Scheduling and cancelling a timeout is
+ * a constant time operation independently of the number of pending timeouts.
+ * <p>
+ * The wheel consists of a number of slots that are advanced by a single thread once
+ * every tick, so a timeout will expire up to one tick later than requested. The tasks
+ * are executed by the wheel thread and should therefore be short, longer tasks should
+ * be handed to a executor.
+ * <p>
+ * For timeouts that are extended on every activity it is more efficient to let the
+ * task check the time of the last activity and reschedule itself with the remaining
+ * time than to cancel and reschedule the timeout on every activity.
+ *
+ * @author Ziver
+ */
+public class TimerWheel {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final long DEFAULT_TICK_DURATION = 100; // ms
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * A handle to a scheduled task.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from being executed, has no effect if the task has already been executed.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+
+    private final long tickDuration;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    /** New timeouts that has not yet been added to the wheel **/
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final long startTime;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long tick;
+
+
+    /**
+     * Creates and starts a timer wheel with a tick of 100ms and 512 slots.
+     */
+    public TimerWheel(String name) {
+        this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates and starts a timer wheel.
+     *
+     * @param   name            the name of the wheel thread
+     * @param   tickDuration    the time in milliseconds between each tick, this is the resolution of the timer
+     * @param   wheelSize       the number of slots in the wheel, will be rounded up to a power of two
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimerWheel(String name, long tickDuration, int wheelSize) {
+        if (tickDuration < 1)
+            throw new IllegalArgumentException("Tick duration must be larger than zero.");
+        if (wheelSize < 1 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new ArrayList<>();
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    /**
+     * Schedules a task to be executed after the given delay.
+     *
+     * @param   task    the task to execute
+     * @param   delay   the delay in milliseconds
+     * @return a handle that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null)
+            throw new IllegalArgumentException("Task cannot be null.");
+        if (!running)
+            throw new IllegalStateException("Timer wheel has been stopped.");
+
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        pendingCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of scheduled tasks that has not yet been executed or cancelled,
+     *         cancelled tasks are counted until the wheel has passed their slot.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the wheel thread, pending tasks will not be executed.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickDuration;
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                continue; // Check time again as sleep can wake up early
+            }
+
+            transferNewTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)], deadline);
+            ++tick;
+        }
+        newTimeouts.clear();
+    }
+
+    /**
+     * Moves all new timeouts to the slot of their deadline.
+     */
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+                continue;
+            }
+
+            long expireTick = Math.max(tick, (timeout.deadline + tickDuration - 1) / tickDuration - 1);
+            timeout.remainingRounds = (expireTick - tick) / wheel.length;
+            wheel[(int) (expireTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(List<Timeout> slot, long deadline) {
+        for (Iterator<Timeout> it = slot.iterator(); it.hasNext();) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+                pendingCount.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                it.remove();
+                pendingCount.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Timer task threw exception.", e);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
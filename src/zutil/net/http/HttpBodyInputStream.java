@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http;
+
+import zutil.io.IOUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A InputStream that limits reading to the body of a single HTTP message,
+ * either based on a Content-Length value or on chunked transfer encoding.
+ * Closing this stream will skip any unread body data but will not close
+ * the underlying stream, which makes it possible to read the next message
+ * on a persistent connection.
+ *
+ * @author Ziver
+ */
+public class HttpBodyInputStream extends InputStream {
+
+    private InputStream in;
+    private boolean chunked;
+    private boolean firstChunk = true;
+    /** The number of bytes left in the body or in the current chunk */
+    private long remaining;
+    private boolean eof = false;
+
+
+    /**
+     * Creates a body stream with a fixed length.
+     *
+     * @param in        the underlying stream
+     * @param length    the length of the body in bytes, from the Content-Length header
+     */
+    public HttpBodyInputStream(InputStream in, long length) {
+        this.in = in;
+        this.chunked = false;
+        this.remaining = length;
+    }
+
+    /**
+     * Creates a body stream that decodes chunked transfer encoding.
+     *
+     * @param in        the underlying stream
+     */
+    public HttpBodyInputStream(InputStream in) {
+        this.in = in;
+        this.chunked = true;
+        this.remaining = 0;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!prepareData())
+            return -1;
+
+        int b = in.read();
+        if (b < 0) {
+            eof = true;
+            return -1;
+        }
+        --remaining;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!prepareData())
+            return -1;
+
+        int read = in.read(buf, off, (int) Math.min(len, remaining));
+        if (read < 0) {
+            eof = true;
+            return -1;
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (eof)
+            return 0;
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Will skip all remaining data in the body, the underlying stream will not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        byte[] buff = new byte[8192];
+        while (read(buff, 0, buff.length) >= 0);
+    }
+
+
+    /**
+     * Makes sure that there is data available to be read, if the current
+     * chunk has been read then the next chunk header will be parsed.
+     *
+     * @return true if there is more data to read, false if the end of the body has been reached.
+     */
+    private boolean prepareData() throws IOException {
+        if (eof)
+            return false;
+        if (remaining > 0)
+            return true;
+        if (!chunked) {
+            eof = true;
+            return false;
+        }
+
+        // Read next chunk header
+
+        if (!firstChunk)
+            IOUtil.readLine(in); // CRLF after previous chunk data
+        firstChunk = false;
+
+        String line = IOUtil.readLine(in);
+        if (line == null) {
+            eof = true;
+            return false;
+        }
+        int extensionIndex = line.indexOf(';');
+        if (extensionIndex >= 0)
+            line = line.substring(0, extensionIndex);
+
+        try {
+            remaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+
+        if (remaining <= 0) { // Last chunk, skip trailers
+            while ((line = IOUtil.readLine(in)) != null && !line.isEmpty());
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+}
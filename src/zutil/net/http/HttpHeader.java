@@ -27,6 +27,9 @@ package zutil.net.http;
 import zutil.converter.Converter;
 
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -35,16 +38,28 @@ import java.util.TreeMap;
 public class HttpHeader {
     // Constants
 
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_ACCEPT_RANGES  = "Accept-Ranges";
+    public static final String HEADER_ALLOW          = "Allow";
     public static final String HEADER_CACHE_CONTROL  = "Cache-Control";
+    public static final String HEADER_CONNECTION     = "Connection";
     public static final String HEADER_COOKIE         = "Cookie";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
     public static final String HEADER_CONTENT_TYPE   = "Content-Type";
     public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    public static final String HEADER_CONTENT_RANGE  = "Content-Range";
+    public static final String HEADER_ETAG           = "ETag";
+    public static final String HEADER_EXPECT         = "Expect";
     public static final String HEADER_HOST           = "Host";
     public static final String HEADER_IF_NONE_MATCH  = "If-None-Match";
+    public static final String HEADER_IF_RANGE       = "If-Range";
     public static final String HEADER_LOCATION       = "Location";
+    public static final String HEADER_RANGE          = "Range";
     public static final String HEADER_SET_COOKIE     = "Set-Cookie";
     public static final String HEADER_SERVER         = "Server";
+    public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
     public static final String HEADER_USER_AGENT     = "User-Agent";
+    public static final String HEADER_VARY           = "Vary";
 
     // Variables
 
@@ -61,6 +76,8 @@ public class HttpHeader {
     private String requestUrl = null;
     /** Map containing all the properties from the URL */
     private Map<String, String> requestUrlAttributes = new HashMap<>();
+    /** Parameters captured from the request path by the {@link HttpRouter} */
+    private Map<String, String> pathParameters = Collections.emptyMap();
 
     /** Status code specified in a HTTP response message */
     private int responseStatusCode = -1;
@@ -71,6 +88,15 @@ public class HttpHeader {
     /** An Map of all cookies */
     private Map<String, String> cookies = new HashMap<>();
 
+    /** Raw header data from the parser, values will only be decoded into the header map when requested */
+    private byte[] rawData;
+    private String[] rawNames;
+    /** start and end index pairs of the raw header values */
+    private int[] rawValueIndex;
+    private int rawCount;
+    /** true if the cookies should be parsed from the Cookie header on first access */
+    private boolean cookiesPending;
+
     private InputStream in;
 
 
@@ -204,17 +230,38 @@ public class HttpHeader {
     }
 
 
+    /**
+     * @return the value of a parameter captured from the request path by a route
+     *         e.g. "id" for the route "/users/{id}". null if there is no such parameter
+     */
+    public String getPathParameter(String name) {
+        return pathParameters.get(name);
+    }
+
+    /**
+     * @return a Iterator with all captured path parameter names
+     */
+    public Iterator<String> getPathParameterKeys() {
+        return pathParameters.keySet().iterator();
+    }
+
+    protected void setPathParameters(Map<String, String> parameters) {
+        this.pathParameters = (parameters != null ? parameters : Collections.<String, String>emptyMap());
+    }
+
+
     /**
      * @return true if the specified header has been set, false otherwise.
      */
     public boolean containsHeader(String name) {
-        return headers.containsKey(name);
+        return getHeader(name) != null;
     }
 
     /**
      * @return a Iterator with all defined headers
      */
     public Iterator<String> getHeaderKeys() {
+        decodeRawHeaders();
         return headers.keySet().iterator();
     }
 
@@ -222,10 +269,14 @@ public class HttpHeader {
      * @return the HTTP attribute value of the given name. null if there is no such attribute
      */
     public String getHeader(String name) {
-        return headers.get(name.toUpperCase());
+        String value = headers.get(name);
+        if (value == null && rawCount > 0)
+            value = decodeRawHeader(name);
+        return value;
     }
 
     protected Map<String, String> getHeaderMap() {
+        decodeRawHeaders();
         return headers;
     }
 
@@ -242,6 +293,7 @@ public class HttpHeader {
      * @return true if the specified cookie has been set, false otherwise.
      */
     public boolean containsCookie(String name) {
+        decodeCookies();
         return cookies.containsKey(name);
     }
 
@@ -249,6 +301,7 @@ public class HttpHeader {
      * @return a Iterator with all defined cookies
      */
     public Iterator<String> getCookieKeys() {
+        decodeCookies();
         return cookies.keySet().iterator();
     }
 
@@ -256,22 +309,114 @@ public class HttpHeader {
      * @return the cookie value of the given name. null if there is no such attribute.
      */
     public String getCookie(String name) {
+        decodeCookies();
         return cookies.get(name);
     }
 
     protected Map<String, String> getCookieMap() {
+        decodeCookies();
         return cookies;
     }
 
     public void setCookie(String key, String value) {
+        decodeCookies();
         this.cookies.put(key, value);
     }
 
     public void setCookies(Map cookieSrc) {
+        decodeCookies();
         this.cookies.putAll(cookieSrc);
     }
 
 
+    /**
+     * Sets the raw data that will be referenced by {@link #addRawHeader(String, int, int)}.
+     */
+    protected void setRawHeaderData(byte[] data) {
+        this.rawData = data;
+    }
+
+    /**
+     * Registers a header whose value has not yet been decoded, the value
+     * will be decoded from the raw data when it is first requested.
+     *
+     * @param name          the header name
+     * @param valueStart    the start index of the value in the raw data
+     * @param valueEnd      the end index of the value in the raw data, exclusive
+     */
+    protected void addRawHeader(String name, int valueStart, int valueEnd) {
+        if (rawNames == null) {
+            rawNames = new String[16];
+            rawValueIndex = new int[32];
+        } else if (rawCount >= rawNames.length) {
+            rawNames = Arrays.copyOf(rawNames, rawNames.length * 2);
+            rawValueIndex = Arrays.copyOf(rawValueIndex, rawValueIndex.length * 2);
+        }
+        rawNames[rawCount] = name;
+        rawValueIndex[rawCount * 2] = valueStart;
+        rawValueIndex[rawCount * 2 + 1] = valueEnd;
+        ++rawCount;
+    }
+
+    /**
+     * Indicates that cookies should be parsed from the Cookie header on first access.
+     */
+    protected void setCookiesPending() {
+        this.cookiesPending = true;
+    }
+
+    /**
+     * Decodes the last raw header with the given name, the last header
+     * is used as duplicate headers will override the previous value.
+     *
+     * @return the decoded value or null if there is no such raw header.
+     */
+    private String decodeRawHeader(String name) {
+        for (int i = rawCount - 1; i >= 0; --i) {
+            if (rawNames[i] != null && rawNames[i].equalsIgnoreCase(name)) {
+                String value = decodeRawValue(i);
+                headers.put(rawNames[i], value);
+
+                // Remove all raw headers with the same name as they have been overridden
+                String rawName = rawNames[i];
+                for (int j = i; j >= 0; --j) {
+                    if (rawName.equalsIgnoreCase(rawNames[j]))
+                        rawNames[j] = null;
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes all remaining raw headers into the header map.
+     */
+    private void decodeRawHeaders() {
+        for (int i = rawCount - 1; i >= 0; --i) {
+            if (rawNames[i] != null)
+                headers.putIfAbsent(rawNames[i], decodeRawValue(i));
+        }
+        rawCount = 0;
+        rawNames = null;
+        rawValueIndex = null;
+        rawData = null;
+    }
+
+    private String decodeRawValue(int index) {
+        int start = rawValueIndex[index * 2];
+        int end = rawValueIndex[index * 2 + 1];
+        return new String(rawData, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private void decodeCookies() {
+        if (cookiesPending) {
+            cookiesPending = false;
+            HttpHeaderParser.parseCookieValues(cookies, getHeader(HEADER_COOKIE));
+        }
+    }
+
+
     /**
      * @return a Reader that contains the body of the http request.
      */
@@ -306,9 +451,11 @@ public class HttpHeader {
         return tmp.toString();
     }
     public String toStringHeaders() {
+        decodeRawHeaders();
         return Converter.toString(headers);
     }
     public String toStringCookies() {
+        decodeCookies();
         return Converter.toString(cookies);
     }
     public String toStringAttributes() {
@@ -321,6 +468,8 @@ public class HttpHeader {
             case 100: return "Continue";
             case 200: return "OK";
             case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
             case 250: return "Low on Storage Space";
             case 300: return "Multiple Choices";
             case 301: return "Moved Permanently";
@@ -343,6 +492,7 @@ public class HttpHeader {
             case 413: return "Request Entity Too Large";
             case 414: return "Request-URI Too Large";
             case 415: return "Unsupported Media Type";
+            case 416: return "Range Not Satisfiable";
             case 451: return "Parameter Not Understood";
             case 452: return "Conference Not Found";
             case 453: return "Not Enough Bandwidth";
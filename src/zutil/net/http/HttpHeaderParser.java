@@ -25,24 +25,67 @@
 package zutil.net.http;
 
 import zutil.StringUtil;
-import zutil.io.IOUtil;
 import zutil.io.StringInputStream;
 import zutil.parser.URLDecoder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 
+/**
+ * A HTTP header parser that scans the raw header bytes directly. Well known
+ * header names and request methods are mapped to shared String instances and
+ * header values and cookies are only decoded when they are requested from the
+ * resulting {@link HttpHeader}.
+ */
 public class HttpHeaderParser {
-    private static final Pattern PATTERN_COLON = Pattern.compile(":");
-    private static final Pattern PATTERN_EQUAL = Pattern.compile("=");
-    private static final Pattern PATTERN_AND = Pattern.compile("&");
+    /** Header names that will not be allocated as new Strings for every request */
+    private static final String[] KNOWN_HEADERS = {
+            HttpHeader.HEADER_ACCEPT_ENCODING,
+            HttpHeader.HEADER_CACHE_CONTROL,
+            HttpHeader.HEADER_CONNECTION,
+            HttpHeader.HEADER_COOKIE,
+            HttpHeader.HEADER_CONTENT_ENCODING,
+            HttpHeader.HEADER_CONTENT_LENGTH,
+            HttpHeader.HEADER_CONTENT_RANGE,
+            HttpHeader.HEADER_CONTENT_TYPE,
+            HttpHeader.HEADER_EXPECT,
+            HttpHeader.HEADER_HOST,
+            HttpHeader.HEADER_IF_NONE_MATCH,
+            HttpHeader.HEADER_IF_RANGE,
+            HttpHeader.HEADER_LOCATION,
+            HttpHeader.HEADER_RANGE,
+            HttpHeader.HEADER_SERVER,
+            HttpHeader.HEADER_SET_COOKIE,
+            HttpHeader.HEADER_TRANSFER_ENCODING,
+            HttpHeader.HEADER_USER_AGENT,
+            "Accept",
+            "Accept-Language",
+            "Authorization",
+            "Date",
+            "If-Modified-Since",
+            "Origin",
+            "Pragma",
+            "Referer",
+            "Upgrade",
+            "Upgrade-Insecure-Requests",
+    };
+    private static final String[] KNOWN_REQUEST_TYPES = {
+            "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "NOTIFY", "M-SEARCH"
+    };
+    /** Known header names in uppercase, indexed by name length */
+    private static final String[][] knownHeaderLookup = createLookupTable(KNOWN_HEADERS);
+    /** Known request types, indexed by name length */
+    private static final String[][] knownRequestTypeLookup = createLookupTable(KNOWN_REQUEST_TYPES);
 
 
     private InputStream in;
     private boolean skipStatusLine;
+    /** Reusable buffer for reading the header from the stream */
+    private byte[] buffer = new byte[512];
 
 
     /**
@@ -65,24 +108,44 @@ public class HttpHeaderParser {
     }
 
 
+    /**
+     * Reads the next header from the stream, the stream will be
+     * positioned at the start of the message body when this method returns.
+     *
+     * @return a HttpHeader object or null if the end of the stream was reached or the first line is empty.
+     */
     public HttpHeader read() throws IOException {
-        HttpHeader header = new HttpHeader();
-        String line;
+        int length = 0;
+        int lineStart = 0;
+        int c = 0;
 
-        // First line
-        if (!skipStatusLine) {
-            if ((line = IOUtil.readLine(in)) != null && !line.isEmpty())
-                parseStatusLine(header, line);
-            else
-                return null;
-        }
-        // Read header body
-        while ((line = IOUtil.readLine(in)) != null && !line.isEmpty()) {
-            parseHeaderLine(header.getHeaderMap(), line);
+        // Read the header lines into the buffer, all lines are stored with '\n' as line terminator
+        while (true) {
+            c = in.read();
+            if (c < 0 || c == '\n' || c == '\r') {
+                if (c == '\r')
+                    in.read(); // if the last char is carriage return we assume the next char in the stream will be new line so skip it
+
+                if (length == lineStart) { // Empty line or end of stream
+                    if (length == 0 && !skipStatusLine)
+                        return null;
+                    break;
+                }
+                if (length >= buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[length++] = '\n';
+                lineStart = length;
+
+                if (c < 0)
+                    break;
+            } else {
+                if (length >= buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[length++] = (byte) c;
+            }
         }
 
-        // Post processing
-        parseCookieValues(header.getCookieMap(), header.getHeader(HttpHeader.HEADER_COOKIE));
+        HttpHeader header = parse(buffer, 0, length, skipStatusLine);
         header.setInputStream(in);
         return header;
     }
@@ -94,42 +157,114 @@ public class HttpHeaderParser {
         this.skipStatusLine = skipStatusLine;
     }
 
+
     /**
-     * Parses the first line of a http request/response and stores the values in a HttpHeader object
+     * Parses a complete HTTP header from a byte array, the data should
+     * contain the status line followed by the header lines. Data after
+     * a empty line will be ignored.
      *
-     * @param header     the header object where the cookies will be stored.
-     * @param statusLine the status line String
+     * @param data      the raw header data
+     * @param offset    the start of the header in the array
+     * @param length    the length of the header data
+     * @return a HttpHeader object or null if the first line is empty.
      */
-    private static void parseStatusLine(HttpHeader header, String statusLine) {
-        String[] lineArr = statusLine.split(" ", 3);
+    public static HttpHeader parse(byte[] data, int offset, int length) {
+        if (length <= 0 || data[offset] == '\r' || data[offset] == '\n')
+            return null;
+        return parse(data, offset, length, false);
+    }
 
-        if (lineArr.length != 3)
+    private static HttpHeader parse(byte[] src, int offset, int length, boolean skipStatusLine) {
+        // The header will keep a reference to the data for lazy decoding so we need our own copy
+        byte[] data = Arrays.copyOfRange(src, offset, offset + length);
+        HttpHeader header = new HttpHeader();
+        header.setRawHeaderData(data);
+
+        int lineStart = 0;
+        if (!skipStatusLine) {
+            int lineEnd = lineEnd(data, lineStart);
+            parseStatusLine(header, data, lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+        }
+
+        while (lineStart < data.length) {
+            int lineEnd = lineEnd(data, lineStart);
+            int end = trimEnd(data, lineStart, lineEnd);
+            if (end <= lineStart) // Empty line, end of header
+                break;
+
+            parseHeaderLine(header, data, lineStart, end);
+            lineStart = lineEnd + 1;
+        }
+
+        header.setCookiesPending();
+        return header;
+    }
+
+    /**
+     * Parses the first line of a http request/response and stores the values in a HttpHeader object
+     *
+     * @param header    the header object where the values will be stored.
+     * @param data      the data containing the status line
+     * @param start     the start index of the line
+     * @param end       the end index of the line, exclusive
+     */
+    private static void parseStatusLine(HttpHeader header, byte[] data, int start, int end) {
+        end = trimEnd(data, start, end);
+        int space1 = indexOf(data, start, end, ' ');
+        int space2 = (space1 < 0 ? -1 : indexOf(data, space1 + 1, end, ' '));
+        if (space2 < 0)
             return;
 
+        int slash = indexOf(data, start, space1, '/');
+
         // Server Response
-        if (lineArr[0].contains("/")) {
+        if (slash >= 0) {
             header.setIsRequest(false);
-            header.setProtocol(lineArr[0].substring(0, lineArr[0].indexOf('/')));
-            header.setProtocolVersion(Float.parseFloat(lineArr[0].substring(lineArr[0].indexOf('/')+1)));
-            header.setResponseStatusCode(Integer.parseInt(lineArr[1]));
-            header.getResponseStatusString(lineArr[2]);
+            header.setProtocol(toProtocolString(data, start, slash));
+            header.setProtocolVersion(parseVersion(data, slash + 1, space1));
+            header.setResponseStatusCode(parseInt(data, space1 + 1, space2));
+            header.getResponseStatusString(new String(data, space2 + 1, end - space2 - 1, StandardCharsets.ISO_8859_1));
         }
         // Client Request
         else {
             header.setIsRequest(true);
-            header.setRequestType(lineArr[0]);
-            header.setProtocol(lineArr[2].substring(0, lineArr[2].indexOf('/')));
-            header.setProtocolVersion(Float.parseFloat(lineArr[2].substring(lineArr[2].indexOf('/')+1)));
-            String url = lineArr[1];
+            header.setRequestType(lookup(knownRequestTypeLookup, data, start, space1));
+
+            slash = indexOf(data, space2 + 1, end, '/');
+            if (slash >= 0) {
+                header.setProtocol(toProtocolString(data, space2 + 1, slash));
+                header.setProtocolVersion(parseVersion(data, slash + 1, end));
+            }
 
             // parse URL and attributes
-            int paramStartIndex = url.indexOf('?');
+            int urlEnd = space2;
+            int paramStartIndex = indexOf(data, space1 + 1, space2, '?');
             if (paramStartIndex >= 0) {
-                parseURLParameters(header.getURLAttributeMap(), url.substring(paramStartIndex + 1));
-                url = url.substring(0, paramStartIndex);
+                parseURLParameters(header.getURLAttributeMap(), data, paramStartIndex + 1, space2);
+                urlEnd = paramStartIndex;
             }
-            header.setRequestURL(url.trim());
+            int urlStart = trimStart(data, space1 + 1, urlEnd);
+            urlEnd = trimEnd(data, urlStart, urlEnd);
+            header.setRequestURL(new String(data, urlStart, urlEnd - urlStart, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Parses a header line and registers the raw value in the header object,
+     * the header name will be converted to uppercase in the data array.
+     */
+    private static void parseHeaderLine(HttpHeader header, byte[] data, int start, int end) {
+        int colon = indexOf(data, start, end, ':');
+        int nameEnd = trimEnd(data, start, (colon < 0 ? end : colon));
+        int nameStart = trimStart(data, start, nameEnd);
+        int valueStart = (colon < 0 ? end : trimStart(data, colon + 1, end));
+
+        for (int i = nameStart; i < nameEnd; ++i) {
+            if ('a' <= data[i] && data[i] <= 'z')
+                data[i] -= 'a' - 'A';
         }
+        header.addRawHeader(lookup(knownHeaderLookup, data, nameStart, nameEnd), valueStart, end);
     }
 
     /**
@@ -141,10 +276,10 @@ public class HttpHeaderParser {
      * @param line is the next line in the header
      */
     public static void parseHeaderLine(Map<String, String> map, String line) {
-        String[] data = PATTERN_COLON.split(line, 2);
+        int colon = line.indexOf(':');
         map.put(
-                data[0].trim().toUpperCase(),                    // Key
-                (data.length > 1 ? data[1] : "").trim());        //Value
+                (colon < 0 ? line : line.substring(0, colon)).trim().toUpperCase(),   // Key
+                (colon < 0 ? "" : line.substring(colon + 1)).trim());                // Value
     }
 
     /**
@@ -187,12 +322,20 @@ public class HttpHeaderParser {
      */
     public static void parseHeaderValues(Map<String, String> map, String headerValue, String delimiter) {
         if (headerValue != null && !headerValue.isEmpty()) {
-            String[] tmpArr = headerValue.split(delimiter);
-            for (String cookie : tmpArr) {
-                String[] tmpStr = PATTERN_EQUAL.split(cookie, 2);
+            int start = 0;
+            while (start <= headerValue.length()) {
+                int end = headerValue.indexOf(delimiter, start);
+                if (end < 0)
+                    end = headerValue.length();
+
+                int equal = headerValue.indexOf('=', start);
+                if (equal < 0 || equal > end)
+                    equal = end;
                 map.put(
-                        tmpStr[0].trim(), // Key
-                        StringUtil.trim((tmpStr.length > 1 ? tmpStr[1] : "").trim(), '\"')); //Value
+                        headerValue.substring(start, equal).trim(), // Key
+                        StringUtil.trim((equal < end ? headerValue.substring(equal + 1, end) : "").trim(), '\"')); //Value
+
+                start = end + delimiter.length();
             }
         }
     }
@@ -215,15 +358,177 @@ public class HttpHeaderParser {
      * @param urlAttributes is the String containing all the attributes
      */
     public static void parseURLParameters(Map<String, String> map, String urlAttributes) {
-        String[] tmp;
-        urlAttributes = URLDecoder.decode(urlAttributes);
-        // get the variables
-        String[] data = PATTERN_AND.split(urlAttributes);
-        for (String element : data) {
-            tmp = PATTERN_EQUAL.split(element, 2);
-            map.put(
-                    tmp[0].trim(),                                // Key
-                    (tmp.length > 1 ? tmp[1] : "").trim());       //Value
+        int start = 0;
+        while (start <= urlAttributes.length()) {
+            int end = urlAttributes.indexOf('&', start);
+            if (end < 0)
+                end = urlAttributes.length();
+
+            if (start < end) {
+                int equal = urlAttributes.indexOf('=', start);
+                if (equal < 0 || equal > end)
+                    equal = end;
+                map.put(
+                        URLDecoder.decode(urlAttributes.substring(start, equal)).trim(),                        // Key
+                        (equal < end ? URLDecoder.decode(urlAttributes.substring(equal + 1, end)).trim() : "")); // Value
+            }
+
+            start = end + 1;
         }
     }
+
+    /**
+     * Parses url parameters directly from a byte array, the data will be url decoded in place.
+     */
+    private static void parseURLParameters(Map<String, String> map, byte[] data, int start, int end) {
+        while (start <= end) {
+            int elementEnd = indexOf(data, start, end, '&');
+            if (elementEnd < 0)
+                elementEnd = end;
+
+            if (start < elementEnd) {
+                int equal = indexOf(data, start, elementEnd, '=');
+                if (equal < 0)
+                    equal = elementEnd;
+                map.put(
+                        decodeURL(data, start, equal),                                       // Key
+                        (equal < elementEnd ? decodeURL(data, equal + 1, elementEnd) : "")); // Value
+            }
+
+            start = elementEnd + 1;
+        }
+    }
+
+    /**
+     * Url decodes the given range in place and returns the trimmed result as a String.
+     */
+    private static String decodeURL(byte[] data, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; ++i) {
+            byte b = data[i];
+            if (b == '+')
+                b = ' ';
+            else if (b == '%' && i + 2 < end && hexValue(data[i+1]) >= 0 && hexValue(data[i+2]) >= 0) {
+                b = (byte) ((hexValue(data[i+1]) << 4) | hexValue(data[i+2]));
+                i += 2;
+            }
+            data[start + length++] = b;
+        }
+
+        int trimmedStart = trimStart(data, start, start + length);
+        int trimmedEnd = trimEnd(data, trimmedStart, start + length);
+        return new String(data, trimmedStart, trimmedEnd - trimmedStart, StandardCharsets.UTF_8);
+    }
+
+
+    // ----------------------------------------------------
+    // Byte utility methods
+    // ----------------------------------------------------
+
+    private static String[][] createLookupTable(String[] values) {
+        int maxLength = 0;
+        for (String value : values)
+            maxLength = Math.max(maxLength, value.length());
+
+        String[][] table = new String[maxLength + 1][0];
+        for (String value : values) {
+            String[] bucket = table[value.length()];
+            bucket = Arrays.copyOf(bucket, bucket.length + 1);
+            bucket[bucket.length - 1] = value.toUpperCase();
+            table[value.length()] = bucket;
+        }
+        return table;
+    }
+
+    /**
+     * @return a shared String instance from the lookup table if the data matches a entry, otherwise a new String.
+     */
+    private static String lookup(String[][] table, byte[] data, int start, int end) {
+        int length = end - start;
+        if (length < table.length) {
+            for (String value : table[length]) {
+                if (equals(value, data, start))
+                    return value;
+            }
+        }
+        return new String(data, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean equals(String str, byte[] data, int start) {
+        for (int i = 0; i < str.length(); ++i) {
+            if (str.charAt(i) != data[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static String toProtocolString(byte[] data, int start, int end) {
+        if (end - start == 4 && equals("HTTP", data, start))
+            return "HTTP";
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a version number in the format of major[.minor] e.g. 1.1
+     */
+    private static float parseVersion(byte[] data, int start, int end) {
+        int major = 0;
+        int minor = 0;
+        int minorDivider = 1;
+        int i = start;
+        for (; i < end && '0' <= data[i] && data[i] <= '9'; ++i)
+            major = major * 10 + (data[i] - '0');
+        if (i < end && data[i] == '.') {
+            for (++i; i < end && '0' <= data[i] && data[i] <= '9'; ++i) {
+                minor = minor * 10 + (data[i] - '0');
+                minorDivider *= 10;
+            }
+        }
+
+        if (i != end || i == start) // Unknown format, fallback to the slow path
+            return Float.parseFloat(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+        return major + (float) minor / minorDivider;
+    }
+
+    private static int parseInt(byte[] data, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; ++i) {
+            if (data[i] < '0' || '9' < data[i] || end - start > 9)
+                return Integer.parseInt(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+            value = value * 10 + (data[i] - '0');
+        }
+        return value;
+    }
+
+    private static int hexValue(byte b) {
+        if ('0' <= b && b <= '9') return b - '0';
+        if ('a' <= b && b <= 'f') return b - 'a' + 10;
+        if ('A' <= b && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, char c) {
+        for (int i = start; i < end; ++i) {
+            if (data[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int lineEnd(byte[] data, int start) {
+        int end = indexOf(data, start, data.length, '\n');
+        return (end < 0 ? data.length : end);
+    }
+
+    private static int trimStart(byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xFF) <= ' ')
+            ++start;
+        return start;
+    }
+
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] & 0xFF) <= ' ')
+            --end;
+        return end;
+    }
 }
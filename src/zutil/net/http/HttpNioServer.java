@@ -0,0 +1,403 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http;
+
+import zutil.log.LogUtil;
+import zutil.net.nio.NioServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static zutil.net.http.HttpHeader.HEADER_CONTENT_LENGTH;
+
+
+/**
+ * A non-blocking HTTP engine that serves the pages of a {@link HttpServer}
+ * on top of the selector loop in {@link zutil.net.nio.NioNetwork}.
+ * Request headers and bodies are buffered from the network thread and only
+ * complete requests are dispatched to a worker pool, so an idle connection
+ * will only cost a buffer and not a thread.
+ * <p>
+ * NOTE: Responses are buffered in memory before being sent, so this engine is
+ * not suited for very large responses. Request bodies with chunked transfer
+ * encoding are not supported and will be rejected with status 411.
+ * <p>
+ * Example:
+ * <pre>
+ *     HttpServer http = new HttpServer(8080);
+ *     http.setPage("/", page);
+ *     new HttpNioServer(http); // Used instead of http.start()
+ * </pre>
+ *
+ * @author Ziver
+ */
+public class HttpNioServer {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final int MAX_HEADER_SIZE      = 64 * 1024;        // in bytes
+    public static final int DEFAULT_MAX_BODY_SIZE = 8 * 1024 * 1024; // in bytes
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService idleTimer;
+    private final Map<SocketAddress, HttpConnection> connections = new ConcurrentHashMap<>();
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private final HttpNioNetwork network;
+
+
+    /**
+     * Creates a new non-blocking engine with a worker pool of two threads per available processor.
+     *
+     * @param   server      the server containing the pages and configuration, the port of
+     *                      the server will be used but the server thread should not be started.
+     */
+    public HttpNioServer(HttpServer server) throws IOException {
+        this(server, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a new non-blocking engine.
+     *
+     * @param   server          the server containing the pages and configuration, the port of
+     *                          the server will be used but the server thread should not be started.
+     * @param   workerThreads   the number of threads that will handle requests
+     */
+    public HttpNioServer(HttpServer server, int workerThreads) throws IOException {
+        this.server = server;
+        this.executor = Executors.newFixedThreadPool(workerThreads);
+        this.idleTimer = Executors.newSingleThreadScheduledExecutor();
+        this.idleTimer.scheduleWithFixedDelay(new IdleConnectionCollector(), 1000, 1000, TimeUnit.MILLISECONDS);
+        this.network = new HttpNioNetwork(server.getPort());
+    }
+
+
+    /**
+     * @param   maxBodySize     the max size in bytes of a request body, larger requests will be rejected with status 413
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Stops the engine and closes all connections.
+     */
+    public void close() throws IOException {
+        idleTimer.shutdown();
+        executor.shutdown();
+        network.close();
+        connections.clear();
+    }
+
+
+    /**
+     * Will parse the next complete request from the connection buffer and hand it to
+     * the worker pool, only one request per connection will be processed at a time.
+     */
+    private void dispatchNextRequest(HttpConnection conn) {
+        final HttpHeader header;
+        synchronized (conn) {
+            try {
+                header = conn.parseRequest();
+            } catch (HttpRequestException e) {
+                conn.closed = true;
+                sendError(conn, e.statusCode, e.getMessage());
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Malformed request lines can also fail with e.g. NumberFormatException
+                logger.log(Level.FINE, "Unable to parse request", e);
+                conn.closed = true;
+                sendError(conn, 400, e.getMessage());
+                return;
+            }
+
+            conn.busy = (header != null);
+            if (!conn.busy)
+                return;
+        }
+
+        executor.execute(() -> handleRequest(conn, header));
+    }
+
+    /**
+     * Called by a worker thread with a complete request.
+     */
+    private void handleRequest(HttpConnection conn, HttpHeader header) {
+        ++conn.requestCount;
+        boolean keepAlive = HttpServer.isKeepAlive(header) && conn.requestCount < server.getMaxKeepAliveRequests();
+
+        ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        keepAlive = server.handleRequest(header, new HttpPrintStream(buff), keepAlive);
+
+        try {
+            network.sendRaw(conn.address, buff.toByteArray());
+            conn.lastActivity = System.currentTimeMillis();
+
+            if (keepAlive) {
+                dispatchNextRequest(conn);
+            } else {
+                conn.closed = true;
+                network.closeConnectionAfterSend(conn.address);
+            }
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to send response to: " + conn.address, e);
+        }
+    }
+
+    private void sendError(HttpConnection conn, int statusCode, String msg) {
+        logger.fine("Rejecting request from " + conn.address + ": " + statusCode + " " + msg);
+
+        ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        HttpPrintStream out = new HttpPrintStream(buff);
+        out.setResponseStatusCode(statusCode);
+        out.setHeader(HttpHeader.HEADER_SERVER, HttpServer.SERVER_NAME);
+        out.setHeader(HttpHeader.HEADER_CONNECTION, "close");
+        out.println(statusCode + " " + HttpHeader.getResponseStatusString(statusCode));
+        out.close();
+
+        try {
+            network.sendRaw(conn.address, buff.toByteArray());
+            network.closeConnectionAfterSend(conn.address);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to send response to: " + conn.address, e);
+        }
+    }
+
+
+    /**
+     * The network layer that forwards data to the correct connection buffer.
+     */
+    private class HttpNioNetwork extends NioServer {
+        public HttpNioNetwork(int port) throws IOException {
+            super(port);
+        }
+
+        @Override
+        protected void processReceivedData(SocketAddress remoteAddress, ByteBuffer data) {
+            HttpConnection conn = connections.computeIfAbsent(remoteAddress, HttpConnection::new);
+            synchronized (conn) {
+                if (conn.closed)
+                    return;
+                conn.append(data);
+                if (conn.busy)
+                    return;  // The worker will continue with the next request when done
+            }
+            dispatchNextRequest(conn);
+        }
+
+        @Override
+        protected void connectionClosed(SocketAddress remoteAddress) {
+            connections.remove(remoteAddress);
+        }
+
+        @Override
+        protected void sendRaw(SocketAddress address, byte[] data) {
+            super.sendRaw(address, data);
+        }
+
+        @Override
+        protected void closeConnectionAfterSend(SocketAddress address) {
+            super.closeConnectionAfterSend(address);
+        }
+
+        @Override
+        protected void closeConnection(InetSocketAddress address) throws IOException {
+            super.closeConnection(address);
+        }
+    }
+
+    /**
+     * Closes connections that have been idle for longer than the keep-alive timeout.
+     */
+    private class IdleConnectionCollector implements Runnable {
+        public void run() {
+            long timeout = System.currentTimeMillis() - server.getKeepAliveTimeout();
+            for (HttpConnection conn : connections.values()) {
+                if (!conn.busy && conn.lastActivity < timeout) {
+                    try {
+                        logger.finest("Closing idle connection: " + conn.address);
+                        network.closeConnection((InetSocketAddress) conn.address);
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, "Unable to close connection", e);
+                    }
+                    connections.remove(conn.address);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Contains the buffered data and state of a single connection.
+     */
+    private class HttpConnection {
+        private final SocketAddress address;
+        private byte[] buffer = new byte[2048];
+        private int start = 0;
+        private int end = 0;
+        /** The position where the search for the end of the header should continue */
+        private int scanIndex = 0;
+
+        /** A parsed header that is waiting for the body data */
+        private HttpHeader header;
+        private int headerEnd;
+        private int bodyLength;
+
+        private volatile boolean busy = false;
+        private volatile boolean closed = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private int requestCount = 0;
+
+
+        public HttpConnection(SocketAddress address) {
+            this.address = address;
+        }
+
+
+        public void append(ByteBuffer data) {
+            int length = data.remaining();
+            if (end + length > buffer.length) {
+                // Compact or grow buffer
+                int used = end - start;
+                byte[] newBuffer = (used + length > buffer.length ?
+                        new byte[Math.max(buffer.length * 2, used + length)] : buffer);
+                System.arraycopy(buffer, start, newBuffer, 0, used);
+                buffer = newBuffer;
+                scanIndex -= start;
+                headerEnd -= start;
+                start = 0;
+                end = used;
+            }
+            data.get(buffer, end, length);
+            end += length;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the next complete request or null if more data is needed.
+         */
+        public HttpHeader parseRequest() throws IOException {
+            if (header == null) {
+                // Skip any empty lines before the request line
+                while (start < end && (buffer[start] == '\r' || buffer[start] == '\n'))
+                    ++start;
+                if (scanIndex < start)
+                    scanIndex = start;
+
+                headerEnd = findHeaderEnd();
+                if (headerEnd < 0) {
+                    if (end - start > MAX_HEADER_SIZE)
+                        throw new HttpRequestException(431, "Request Header Fields Too Large");
+                    return null;
+                }
+
+                header = HttpHeaderParser.parse(buffer, start, headerEnd - start);
+                if (header == null)
+                    throw new HttpRequestException(400, "Invalid request");
+
+                String transferEncoding = header.getHeader(HttpHeader.HEADER_TRANSFER_ENCODING);
+                if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.trim()))
+                    throw new HttpRequestException(411, "Length Required");
+
+                bodyLength = 0;
+                if (header.containsHeader(HEADER_CONTENT_LENGTH)) {
+                    try {
+                        bodyLength = Integer.parseInt(header.getHeader(HEADER_CONTENT_LENGTH).trim());
+                    } catch (NumberFormatException e) {
+                        throw new HttpRequestException(400, "Invalid Content-Length");
+                    }
+                    if (bodyLength < 0)
+                        throw new HttpRequestException(400, "Invalid Content-Length");
+                    if (bodyLength > maxBodySize)
+                        throw new HttpRequestException(413, "Request Entity Too Large");
+                }
+
+                if (bodyLength > end - headerEnd &&
+                        header.getProtocolVersion() >= 1.1f &&
+                        "100-continue".equalsIgnoreCase(header.getHeader(HttpHeader.HEADER_EXPECT))) {
+                    network.sendRaw(address, HttpServer.RESPONSE_100_CONTINUE);
+                }
+            }
+
+            // Wait for the body
+            if (end - headerEnd < bodyLength)
+                return null;
+
+            HttpHeader request = header;
+            request.setInputStream(new ByteArrayInputStream(
+                    Arrays.copyOfRange(buffer, headerEnd, headerEnd + bodyLength)));
+
+            header = null;
+            start = headerEnd + bodyLength;
+            scanIndex = start;
+            if (start == end) // Reset buffer if all data has been consumed
+                start = end = scanIndex = 0;
+            return request;
+        }
+
+        /**
+         * @return the index after the empty line that ends the header, -1 if the header is not complete
+         */
+        private int findHeaderEnd() {
+            for (; scanIndex < end; ++scanIndex) {
+                if (buffer[scanIndex] == '\n') {
+                    if (scanIndex + 1 < end && buffer[scanIndex + 1] == '\n')
+                        return scanIndex + 2;
+                    if (scanIndex + 2 < end && buffer[scanIndex + 1] == '\r' && buffer[scanIndex + 2] == '\n')
+                        return scanIndex + 3;
+                    if (scanIndex + 2 >= end)
+                        return -1; // Wait for more data before deciding
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Indicates a request that should be rejected with the given status code.
+     */
+    private static class HttpRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public HttpRequestException(int statusCode, String msg) {
+            super(msg);
+            this.statusCode = statusCode;
+        }
+    }
+}
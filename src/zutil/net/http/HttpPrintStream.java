@@ -26,9 +26,17 @@ package zutil.net.http;
 
 import zutil.converter.Converter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This PrintStream is written for HTTP use
@@ -45,6 +53,16 @@ public class HttpPrintStream extends OutputStream {
         RESPONSE
     }
 
+    /** The default minimum body size in bytes for compression to be used */
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+    /** The default MIME types that will be compressed, a trailing '*' matches any subtype */
+    public static final List<String> DEFAULT_COMPRESSION_MIME_TYPES = Collections.unmodifiableList(Arrays.asList(
+            "text/*",
+            "application/json",
+            "application/javascript",
+            "application/xml",
+            "image/svg+xml"));
+
 
     private HttpHeader header = new HttpHeader();
 
@@ -58,6 +76,39 @@ public class HttpPrintStream extends OutputStream {
      */
     private PrintStream out;
 
+    /**
+     * A channel to the same destination as the output stream used for zero-copy transfers, may be null
+     */
+    private WritableByteChannel channel;
+
+    /**
+     * If chunked transfer encoding should be used when no content length has been provided
+     */
+    private boolean chunkedEncodingEnabled = false;
+    /**
+     * Indicates that the body is currently being sent with chunked transfer encoding
+     */
+    private boolean chunked = false;
+
+    /**
+     * The content encoding that will be used if the body is compressible, null if compression is disabled
+     */
+    private String compressionEncoding;
+    private int compressionMinSize;
+    private Collection<String> compressionMimeTypes;
+    /**
+     * The stream compressing the body, null if the body is not being compressed
+     */
+    private DeflaterOutputStream compressor;
+    /**
+     * Body data buffered until it is known if the body is large enough to be compressed, null if not buffering
+     */
+    private ByteArrayOutputStream compressionBuffer;
+    /**
+     * If the message is a response to a HEAD request, the body will then be discarded
+     */
+    private boolean headResponse = false;
+
 
     /**
      * Creates an new instance of HttpPrintStream with
@@ -77,7 +128,24 @@ public class HttpPrintStream extends OutputStream {
      * @param type is the type of message
      */
     public HttpPrintStream(OutputStream out, HttpMessageType type) {
+        this(out, null, type);
+    }
+
+    /**
+     * Creates an new instance of HttpPrintStream with
+     * message type of RESPONSE and buffering disabled.
+     *
+     * @param out       is the OutputStream where the data will be written to
+     * @param channel   is a channel that writes to the same destination as the OutputStream,
+     *                  used by {@link #transferFrom(FileChannel, long, long)}. Can be null.
+     */
+    public HttpPrintStream(OutputStream out, WritableByteChannel channel) {
+        this(out, channel, HttpMessageType.RESPONSE);
+    }
+
+    private HttpPrintStream(OutputStream out, WritableByteChannel channel, HttpMessageType type) {
         this.out = new PrintStream(out);
+        this.channel = channel;
 
         // Set defaults
 
@@ -111,6 +179,53 @@ public class HttpPrintStream extends OutputStream {
         }
     }
 
+    /**
+     * Enable chunked transfer encoding of the body. If enabled and no
+     * Content-Length header has been set when the header is sent then
+     * the body will be sent as chunks and terminated when the stream is
+     * closed. This makes it possible to reuse the connection for
+     * additional messages. NOTE: requires HTTP/1.1 and a RESPONSE message type.
+     */
+    public void enableChunkedEncoding(boolean enable) {
+        headerSentCheck();
+        this.chunkedEncodingEnabled = enable;
+    }
+
+    /**
+     * Enable compression of the body if the client supports gzip or deflate encoding.
+     * The body will only be compressed if the response has a Content-Type matching the
+     * given MIME types, no Content-Encoding has been set and the body is at least the
+     * given min size. If no Content-Length has been set then the body will be buffered
+     * until the min size has been reached, the stream is flushed or closed.
+     * Only available in HTTP RESPONSE.
+     *
+     * @param acceptEncoding    the Accept-Encoding header value from the request
+     * @param minSize           the min Content-Length in bytes for the body to be compressed
+     * @param mimeTypes         the MIME types that should be compressed, a trailing '*' matches any subtype
+     */
+    public void enableCompression(String acceptEncoding, int minSize, Collection<String> mimeTypes) {
+        headerSentCheck();
+        this.compressionEncoding = selectContentEncoding(acceptEncoding);
+        this.compressionMinSize = minSize;
+        this.compressionMimeTypes = mimeTypes;
+    }
+
+    /**
+     * Sets the method of the request that this message is a response to. The headers of
+     * a response to a HEAD request will be sent as normal but any body data will be
+     * discarded. Only available in HTTP RESPONSE.
+     *
+     * @param method    the request method, e.g. GET, HEAD...
+     * @throws IllegalStateException if the header has already been sent or the message type is wrong
+     */
+    public void setRequestMethod(String method) {
+        if (!header.isResponse())
+            throw new IllegalStateException("Request method is only available with HTTP responses");
+        headerSentCheck();
+
+        this.headResponse = "HEAD".equalsIgnoreCase(method);
+    }
+
     /**
      * Set the protocol name that should be provided in the HTTP header.
      */
@@ -238,51 +353,279 @@ public class HttpPrintStream extends OutputStream {
      * Method will directly print the provided String, if any headers are set then they will firstly be sent and cleared proceeded by the given String.
      */
     private void printForced(String s) {
-        if (header != null) {
-            if (header.isRequest()) {
-                out.print(header.getRequestType() + " " +
-                        header.getRequestURL() + " " +
-                        header.getProtocol() + "/" + header.getProtocolVersion());
+        if (header != null && compressionBuffer == null) {
+            if (compressionEncoding != null && header.isResponse() && hasResponseBody() && isCompressible()) {
+                if (compressionMinSize > 0 && !header.containsHeader(HttpHeader.HEADER_CONTENT_LENGTH))
+                    compressionBuffer = new ByteArrayOutputStream(); // Wait until we know the body is large enough
+                else
+                    printHeader(true);
             } else {
-                out.print(header.getProtocol() + "/" + header.getProtocolVersion() + " " +
-                        header.getResponseStatusCode() + " " +
-                        header.getResponseStatusString());
+                printHeader(false);
             }
-            out.println();
+        }
 
-            // Send headers
+        if (compressionBuffer != null || headResponse || compressor != null || chunked) {
+            byte[] data = s.getBytes();
+            writeBody(data, 0, data.length);
+        } else {
+            out.print(s);
+        }
+    }
 
-            for (String key : header.getHeaderMap().keySet()) {
-                out.println(key + ": " + header.getHeader(key));
+    /**
+     * Sends the headers and clears them.
+     *
+     * @param compress  if the body should be compressed
+     */
+    private void printHeader(boolean compress) {
+        if (compress) {
+            header.getHeaderMap().remove(HttpHeader.HEADER_CONTENT_LENGTH);
+            header.setHeader(HttpHeader.HEADER_CONTENT_ENCODING, compressionEncoding);
+
+            // The compressed body is a different representation so it can not share a ETag with the uncompressed body
+            String eTag = header.getHeader(HttpHeader.HEADER_ETAG);
+            if (eTag != null) {
+                if (eTag.endsWith("\""))
+                    eTag = eTag.substring(0, eTag.length() - 1) + "-" + compressionEncoding + "\"";
+                else
+                    eTag = eTag + "-" + compressionEncoding;
+                header.setHeader(HttpHeader.HEADER_ETAG, eTag);
             }
 
-            // Send cookies
+            String vary = header.getHeader(HttpHeader.HEADER_VARY);
+            if (vary == null || vary.trim().isEmpty())
+                header.setHeader(HttpHeader.HEADER_VARY, HttpHeader.HEADER_ACCEPT_ENCODING);
+            else if (!containsToken(vary, HttpHeader.HEADER_ACCEPT_ENCODING) && !containsToken(vary, "*"))
+                header.setHeader(HttpHeader.HEADER_VARY, vary + ", " + HttpHeader.HEADER_ACCEPT_ENCODING);
+        }
 
-            if (!header.getCookieMap().isEmpty()) {
-                if (header.isRequest()) {
-                    out.print(HttpHeader.HEADER_COOKIE + ":");
-                    for (String key : header.getCookieMap().keySet()) {
-                        out.print(" " + key + "=" + header.getCookie(key) + ";");
-                    }
+        if (chunkedEncodingEnabled && header.isResponse() && hasResponseBody() &&
+                !header.containsHeader(HttpHeader.HEADER_CONTENT_LENGTH)) {
+            header.setHeader(HttpHeader.HEADER_TRANSFER_ENCODING, "chunked");
+            chunked = true;
+        }
+
+        if (header.isRequest()) {
+            out.print(header.getRequestType() + " " +
+                    header.getRequestURL() + " " +
+                    header.getProtocol() + "/" + header.getProtocolVersion());
+        } else {
+            out.print(header.getProtocol() + "/" + header.getProtocolVersion() + " " +
+                    header.getResponseStatusCode() + " " +
+                    header.getResponseStatusString());
+        }
+        out.println();
+
+        // Send headers
+
+        for (String key : header.getHeaderMap().keySet()) {
+            out.println(key + ": " + header.getHeader(key));
+        }
+
+        // Send cookies
+
+        if (!header.getCookieMap().isEmpty()) {
+            if (header.isRequest()) {
+                out.print(HttpHeader.HEADER_COOKIE + ":");
+                for (String key : header.getCookieMap().keySet()) {
+                    out.print(" " + key + "=" + header.getCookie(key) + ";");
+                }
+                out.println();
+            } else {
+                for (String key : header.getCookieMap().keySet()) {
+                    out.print(HttpHeader.HEADER_SET_COOKIE + ": " + key + "=" + header.getCookie(key) + ";");
                     out.println();
-                } else {
-                    for (String key : header.getCookieMap().keySet()) {
-                        out.print(HttpHeader.HEADER_SET_COOKIE + ": " + key + "=" + header.getCookie(key) + ";");
-                        out.println();
-                    }
                 }
             }
+        }
+
+        out.println();
+        header = null;
 
-            out.println();
-            header = null;
+        // Check for errors
 
-            // Check for errors
+        if (out.checkError())
+            throw new RuntimeException("Underlying stream has thrown a error.");
 
-            if (out.checkError())
-                throw new RuntimeException("Underlying stream has thrown a error.");
+        if (headResponse) {
+            // The headers describe the body of a GET request but no body is sent
+            chunked = false;
+            compress = false;
         }
+        if (compress) {
+            try {
+                if ("gzip".equals(compressionEncoding))
+                    compressor = new GZIPOutputStream(new BodyOutputStream(), 8192, true);
+                else
+                    compressor = new DeflaterOutputStream(new BodyOutputStream(), true);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to initialize compression.", e);
+            }
+        }
+    }
 
-        out.print(s);
+    /**
+     * Sends the headers and the body data buffered while waiting for the compression min size.
+     *
+     * @param compress  if the body should be compressed
+     */
+    private void printCompressionBuffer(boolean compress) {
+        byte[] data = compressionBuffer.toByteArray();
+        compressionBuffer = null;
+        printHeader(compress);
+        writeBody(data, 0, data.length);
+    }
+
+    /**
+     * @return true if the given comma separated header value contains the given token, ignoring case
+     */
+    private static boolean containsToken(String value, String token) {
+        for (String valueToken : value.split(",")) {
+            if (token.equalsIgnoreCase(valueToken.trim()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes body data, the data will be compressed and/or chunked if enabled.
+     */
+    private void writeBody(byte[] buf, int off, int len) {
+        if (compressionBuffer != null) {
+            compressionBuffer.write(buf, off, len);
+            if (compressionBuffer.size() >= compressionMinSize)
+                printCompressionBuffer(true);
+        } else if (headResponse) {
+            return;
+        } else if (compressor != null) {
+            try {
+                compressor.write(buf, off, len);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to compress body data.", e);
+            }
+        } else if (chunked) {
+            writeChunk(buf, off, len);
+        } else {
+            out.write(buf, off, len);
+        }
+    }
+
+    /**
+     * @return true if the body of the current response should be compressed
+     */
+    private boolean isCompressible() {
+        if (header.getResponseStatusCode() == 206)
+            return false;
+
+        String encoding = header.getHeader(HttpHeader.HEADER_CONTENT_ENCODING);
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding.trim()))
+            return false;
+
+        String contentLength = header.getHeader(HttpHeader.HEADER_CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) < compressionMinSize)
+                    return false;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        return isMimeTypeMatching(header.getHeader(HttpHeader.HEADER_CONTENT_TYPE), compressionMimeTypes);
+    }
+
+    /**
+     * @param contentType   a Content-Type header value, e.g. "text/html; charset=utf-8"
+     * @param mimeTypes     a list of MIME types, a trailing '*' matches any subtype
+     * @return true if the content type matches any of the given MIME types
+     */
+    public static boolean isMimeTypeMatching(String contentType, Collection<String> mimeTypes) {
+        if (contentType == null || mimeTypes == null)
+            return false;
+
+        int paramIndex = contentType.indexOf(';');
+        if (paramIndex >= 0)
+            contentType = contentType.substring(0, paramIndex);
+        contentType = contentType.trim().toLowerCase();
+
+        for (String mimeType : mimeTypes) {
+            if (mimeType.endsWith("*")) {
+                if (contentType.startsWith(mimeType.substring(0, mimeType.length() - 1)))
+                    return true;
+            } else if (contentType.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Selects the preferred supported content encoding based on a Accept-Encoding header value.
+     *
+     * @param acceptEncoding    the Accept-Encoding header value from a request
+     * @return "gzip", "deflate" or null if none of the encodings are accepted by the client
+     */
+    public static String selectContentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+
+        float gzipQuality = -1;
+        float deflateQuality = -1;
+        float wildcardQuality = 0;
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] params = encoding.split(";");
+            String name = params[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            switch (name) {
+                case "gzip":
+                case "x-gzip": gzipQuality = quality; break;
+                case "deflate": deflateQuality = quality; break;
+                case "*": wildcardQuality = quality; break;
+            }
+        }
+
+        if (gzipQuality < 0)
+            gzipQuality = wildcardQuality;
+        if (deflateQuality < 0)
+            deflateQuality = wildcardQuality;
+
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality)
+            return "gzip";
+        if (deflateQuality > 0)
+            return "deflate";
+        return null;
+    }
+
+    /**
+     * Writes the given data as a single chunk, empty data will be ignored
+     * as a zero length chunk indicates the end of the body.
+     */
+    private void writeChunk(byte[] buf, int off, int len) {
+        if (len <= 0)
+            return;
+        out.print(Integer.toHexString(len));
+        out.print("\r\n");
+        out.write(buf, off, len);
+        out.print("\r\n");
+    }
+
+    /**
+     * @return true if the current response status code allows a message body
+     */
+    private boolean hasResponseBody() {
+        int code = header.getResponseStatusCode();
+        return code >= 200 && code != 204 && code != 304;
     }
 
     /**
@@ -296,7 +639,7 @@ public class HttpPrintStream extends OutputStream {
      * @return true if headers has been sent. The setHeader, setResponseStatusCode, setCookie method will throw IllegalStateException
      */
     public boolean isHeaderSent() {
-        return header == null;
+        return header == null || compressionBuffer != null; // Headers are final while body data is buffered for compression
     }
 
     public void headerSentCheck() {
@@ -311,12 +654,40 @@ public class HttpPrintStream extends OutputStream {
     @Override
     public void flush() {
         flushBuffer();
+        if (compressionBuffer != null)
+            printCompressionBuffer(false);
+        if (compressor != null) {
+            try {
+                compressor.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to compress body data.", e);
+            }
+        }
         out.flush();
     }
 
     @Override
     public void close() {
-        flush();
+        flushBuffer();
+        if (compressionBuffer != null) {
+            // The body was too small to be compressed, but now we know its length
+            header.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "" + compressionBuffer.size());
+            printCompressionBuffer(false);
+        }
+        if (compressor != null) {
+            try {
+                compressor.close(); // Will write the compression trailer
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to compress body data.", e);
+            }
+            compressor = null;
+        }
+        out.flush();
+        if (chunked) {
+            out.print("0\r\n\r\n"); // last chunk
+            out.flush();
+            chunked = false;
+        }
         out.close();
     }
 
@@ -335,7 +706,10 @@ public class HttpPrintStream extends OutputStream {
     @Override
     public void write(int b) {
         flushBuffer();
-        out.write(b);
+        if (compressionBuffer != null || headResponse || compressor != null || chunked)
+            writeBody(new byte[]{(byte) b}, 0, 1);
+        else
+            out.write(b);
     }
 
     /**
@@ -344,7 +718,64 @@ public class HttpPrintStream extends OutputStream {
     @Override
     public void write(byte[] buf, int off, int len) {
         flushBuffer();
-        out.write(buf, off, len);
+        writeBody(buf, off, len);
+    }
+
+
+    /**
+     * Will flush all buffers and write a region of the given file to the stream.
+     * If a channel has been provided and the body is not compressed then the data
+     * will be transferred directly from the file to the channel without being copied
+     * through the JVM (zero-copy), otherwise the data will be copied through the output stream.
+     *
+     * @param file      the file to read from
+     * @param position  the position in the file where the transfer will start
+     * @param count     the number of bytes to transfer
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flushBuffer();
+        if (count <= 0 || (headResponse && compressionBuffer == null))
+            return;
+
+        if (channel != null && compressor == null && compressionBuffer == null) {
+            if (chunked) {
+                out.print(Long.toHexString(count));
+                out.print("\r\n");
+            }
+            out.flush();
+
+            while (count > 0) {
+                long transferred = file.transferTo(position, count, channel);
+                if (transferred <= 0) {
+                    if (position >= file.size())
+                        throw new EOFException("Reached end of file before all data was transferred.");
+                    continue;
+                }
+                position += transferred;
+                count -= transferred;
+            }
+
+            if (chunked)
+                out.print("\r\n");
+        } else {
+            ByteBuffer buff = ByteBuffer.allocate((int) Math.min(count, 8192));
+            while (count > 0) {
+                buff.clear();
+                buff.limit((int) Math.min(buff.capacity(), count));
+                int read = file.read(buff, position);
+                if (read < 0)
+                    throw new EOFException("Reached end of file before all data was transferred.");
+                writeBody(buff.array(), 0, read);
+                position += read;
+                count -= read;
+
+                if (headResponse && compressionBuffer == null)
+                    break; // The headers have been sent and the rest of the body would be discarded
+            }
+        }
+
+        if (out.checkError())
+            throw new IOException("Underlying stream has thrown a error.");
     }
 
 
@@ -357,4 +788,23 @@ public class HttpPrintStream extends OutputStream {
 
         return str.toString();
     }
+
+
+    /**
+     * Stream receiving the compressed body data, the data will be chunked if enabled.
+     */
+    private class BodyOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            if (chunked)
+                writeChunk(buf, off, len);
+            else
+                out.write(buf, off, len);
+        }
+    }
 }
@@ -0,0 +1,342 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A request router that resolves a HttpPage from a request method and path.
+ * The routes are stored in a tree with one node per path segment so a lookup
+ * will only walk the segments of the requested path, independently of the
+ * number of registered routes.
+ * <p>
+ * A route path can contain the following segment types:
+ * <ul>
+ *     <li><b>static</b>: e.g. <code>/users</code>, will only match the exact segment.</li>
+ *     <li><b>parameter</b>: e.g. <code>/users/{id}</code>, will match any single segment
+ *         and capture its value with the given name.</li>
+ *     <li><b>wildcard</b>: e.g. <code>/static/*</code> or <code>/static/{path*}</code>, can only
+ *         be the last segment and will match the rest of the path. The value is captured with the
+ *         name {@link #WILDCARD_PARAM} or the given name.</li>
+ * </ul>
+ * Static segments have precedence over parameters which have precedence over wildcards.
+ *
+ * @author Ziver
+ */
+public class HttpRouter {
+    /** The parameter name of a unnamed wildcard capture **/
+    public static final String WILDCARD_PARAM = "*";
+    /** Internal method key used for routes that accepts any request method **/
+    private static final String METHOD_ANY = "*";
+
+    private static class RouteNode {
+        /** child nodes for static path segments **/
+        public final Map<String, RouteNode> staticChildren = new ConcurrentHashMap<>();
+        /** child node for a parameter segment **/
+        public volatile RouteNode paramChild;
+        public String paramName;
+        /** pages matching the rest of the path from this node **/
+        public final Map<String, HttpPage> wildcardPages = new ConcurrentHashMap<>();
+        public String wildcardName;
+        /** pages for paths ending in this node, mapped by request method **/
+        public final Map<String, HttpPage> pages = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The result of a successful route lookup.
+     */
+    public static class RouteMatch {
+        private HttpPage page;
+        private Map<String, String> parameters = Collections.emptyMap();
+        private Set<String> allowedMethods = new TreeSet<>();
+
+        /**
+         * @return the page matching the request or null if the path exists but not for the requested method.
+         */
+        public HttpPage getPage() {
+            return page;
+        }
+        /**
+         * @return a map of all captured path parameters, never null.
+         */
+        public Map<String, String> getPathParameters() {
+            return parameters;
+        }
+        /**
+         * @return the methods available for the matching path, only set if no page matched the request method.
+         */
+        public Set<String> getAllowedMethods() {
+            return allowedMethods;
+        }
+    }
+
+
+    private final RouteNode root = new RouteNode();
+
+
+    /**
+     * Adds a route that will match any request method.
+     *
+     * @param   path    the route path, see class description for format
+     * @param   page    the page that will handle matching requests
+     */
+    public void addRoute(String path, HttpPage page) {
+        addRoute(null, path, page);
+    }
+
+    /**
+     * Adds a route for a specific request method, any previous
+     * page registered to the same method and path will be replaced.
+     *
+     * @param   method  the request method (GET, POST etc.) or null for any method
+     * @param   path    the route path, see class description for format
+     * @param   page    the page that will handle matching requests
+     */
+    public synchronized void addRoute(String method, String path, HttpPage page) {
+        if (page == null)
+            throw new IllegalArgumentException("Page cannot be null.");
+
+        RouteNode node = root;
+        int start = startIndex(path);
+        while (true) {
+            int end = segmentEnd(path, start);
+            String segment = path.substring(start, end);
+            boolean last = (end >= path.length());
+
+            if (isWildcard(segment)) {
+                if (!last)
+                    throw new IllegalArgumentException("Wildcard must be the last segment of the path: " + path);
+                String name = (segment.equals(WILDCARD_PARAM) ? WILDCARD_PARAM : segment.substring(1, segment.length() - 2));
+                if (node.wildcardName != null && !node.wildcardName.equals(name))
+                    throw new IllegalArgumentException("Conflicting wildcard name '" + name + "' with existing name '" + node.wildcardName + "': " + path);
+                node.wildcardName = name;
+                node.wildcardPages.put(methodKey(method), page);
+                return;
+            }
+
+            if (isParameter(segment)) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.paramChild == null) {
+                    RouteNode child = new RouteNode();
+                    child.paramName = name;
+                    node.paramChild = child;
+                } else if (!node.paramChild.paramName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting parameter name '" + name + "' with existing name '" + node.paramChild.paramName + "': " + path);
+                }
+                node = node.paramChild;
+            } else {
+                node = node.staticChildren.computeIfAbsent(segment, k -> new RouteNode());
+            }
+
+            if (last) {
+                node.pages.put(methodKey(method), page);
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Adds all routes from the given router to this router.
+     */
+    public void addRoutes(HttpRouter router) {
+        copyRoutes(router.root, "", this);
+    }
+
+    private static void copyRoutes(RouteNode node, String path, HttpRouter target) {
+        for (Map.Entry<String, HttpPage> entry : node.pages.entrySet())
+            target.addRoute(methodFromKey(entry.getKey()), path, entry.getValue());
+        for (Map.Entry<String, HttpPage> entry : node.wildcardPages.entrySet())
+            target.addRoute(methodFromKey(entry.getKey()), path + "/" + wildcardPattern(node.wildcardName), entry.getValue());
+
+        for (Map.Entry<String, RouteNode> entry : node.staticChildren.entrySet())
+            copyRoutes(entry.getValue(), path + "/" + entry.getKey(), target);
+        RouteNode paramChild = node.paramChild;
+        if (paramChild != null)
+            copyRoutes(paramChild, path + "/{" + paramChild.paramName + "}", target);
+    }
+
+    /**
+     * Removes the route matching any request method from the router.
+     *
+     * @param   path    the exact path that was used when adding the route
+     */
+    public void removeRoute(String path) {
+        removeRoute(null, path);
+    }
+
+    /**
+     * Removes a route from the router.
+     *
+     * @param   method  the request method or null for the route matching any method
+     * @param   path    the exact path that was used when adding the route
+     */
+    public synchronized void removeRoute(String method, String path) {
+        RouteNode node = root;
+        int start = startIndex(path);
+        while (node != null) {
+            int end = segmentEnd(path, start);
+            String segment = path.substring(start, end);
+
+            if (isWildcard(segment)) {
+                node.wildcardPages.remove(methodKey(method));
+                return;
+            }
+
+            node = (isParameter(segment) ? node.paramChild : node.staticChildren.get(segment));
+            if (end >= path.length()) {
+                if (node != null)
+                    node.pages.remove(methodKey(method));
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+
+    /**
+     * Finds the page matching the given request.
+     *
+     * @param   method  the request method
+     * @param   path    the request path without any query string
+     * @return a RouteMatch object or null if no route matches the path.
+     *         The page in the returned object will be null if the path
+     *         matches a route but not with the requested method.
+     */
+    public RouteMatch route(String method, String path) {
+        if (path == null)
+            return null;
+
+        RouteMatch match = new RouteMatch();
+        String methodKey = (method == null ? METHOD_ANY : method.toUpperCase());
+        if (!route(root, path, startIndex(path), methodKey, match, null) &&
+                match.allowedMethods.isEmpty())
+            return null;
+        return match;
+    }
+
+    /**
+     * Recursively searches the tree for a match, static segments are
+     * tried first then parameters and lastly wildcards.
+     *
+     * @param   params  the parameters captured so far, will be null until the first capture
+     * @return true if a page was found, the match object will then contain the result.
+     */
+    private static boolean route(RouteNode node, String path, int start, String method, RouteMatch match, Map<String, String> params) {
+        int end = segmentEnd(path, start);
+        boolean last = (end >= path.length());
+
+        // Static segment
+        RouteNode child = node.staticChildren.get(path.substring(start, end));
+        if (child != null && routeChild(child, path, end, last, method, match, params))
+            return true;
+
+        // Parameter segment
+        child = node.paramChild;
+        if (child != null && start < end) {
+            Map<String, String> childParams = (params == null ? new HashMap<>() : new HashMap<>(params));
+            childParams.put(child.paramName, path.substring(start, end));
+            if (routeChild(child, path, end, last, method, match, childParams))
+                return true;
+        }
+
+        // Wildcard
+        if (!node.wildcardPages.isEmpty()) {
+            HttpPage page = selectPage(node.wildcardPages, method, match);
+            if (page != null) {
+                Map<String, String> childParams = (params == null ? new HashMap<>() : new HashMap<>(params));
+                childParams.put(node.wildcardName, path.substring(start));
+                match.page = page;
+                match.parameters = childParams;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean routeChild(RouteNode child, String path, int end, boolean last, String method, RouteMatch match, Map<String, String> params) {
+        if (!last)
+            return route(child, path, end + 1, method, match, params);
+
+        HttpPage page = selectPage(child.pages, method, match);
+        if (page == null)
+            return false;
+        match.page = page;
+        match.parameters = (params == null ? Collections.<String, String>emptyMap() : params);
+        return true;
+    }
+
+    /**
+     * @return the page for the given method, or null if there is none in
+     *         which case the available methods will be added to the match.
+     */
+    private static HttpPage selectPage(Map<String, HttpPage> pages, String method, RouteMatch match) {
+        if (pages.isEmpty())
+            return null;
+
+        HttpPage page = pages.get(method);
+        if (page == null)
+            page = pages.get(METHOD_ANY);
+        if (page == null && "HEAD".equals(method))
+            page = pages.get("GET");
+        if (page == null) {
+            for (String key : pages.keySet())
+                match.allowedMethods.add(methodFromKey(key));
+        }
+        return page;
+    }
+
+
+    private static int startIndex(String path) {
+        return (!path.isEmpty() && path.charAt(0) == '/' ? 1 : 0);
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return (end < 0 ? path.length() : end);
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static boolean isWildcard(String segment) {
+        return segment.equals(WILDCARD_PARAM) ||
+                (isParameter(segment) && segment.charAt(segment.length() - 2) == '*' && segment.length() > 3);
+    }
+
+    private static String wildcardPattern(String name) {
+        return (WILDCARD_PARAM.equals(name) ? WILDCARD_PARAM : "{" + name + "*}");
+    }
+
+    private static String methodKey(String method) {
+        return (method == null ? METHOD_ANY : method.toUpperCase());
+    }
+
+    private static String methodFromKey(String key) {
+        return (METHOD_ANY.equals(key) ? null : key);
+    }
+}
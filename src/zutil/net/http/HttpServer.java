@@ -25,21 +25,30 @@
 package zutil.net.http;
 
 import zutil.StringUtil;
-import zutil.Timer;
 import zutil.log.LogUtil;
+import zutil.net.http.session.HttpSession;
+import zutil.net.http.session.HttpSessionManager;
 import zutil.net.threaded.ThreadedTCPNetworkServer;
 import zutil.net.threaded.ThreadedTCPNetworkServerThread;
 
+import javax.net.ssl.SSLSocket;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -59,16 +68,26 @@ import static zutil.net.http.HttpHeader.HEADER_CONTENT_TYPE;
 public class HttpServer extends ThreadedTCPNetworkServer{
     private static final Logger logger = LogUtil.getLogger();
 
-    public static final String SESSION_KEY_ID  = "session_id";
+    public static final String SESSION_KEY_ID  = HttpSessionManager.SESSION_COOKIE;
+    /** @deprecated the session TTL is no longer stored in the session map */
+    @Deprecated
     public static final String SESSION_KEY_TTL = "session_ttl";
     public static final String SERVER_NAME     = "Zutil HttpServer";
-    public static final int SESSION_TTL        = 10*60*1000; // in milliseconds
+    public static final int SESSION_TTL        = (int) HttpSessionManager.DEFAULT_SESSION_TIMEOUT; // in milliseconds
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT  = 10*1000; // in milliseconds
+    public static final int DEFAULT_KEEP_ALIVE_REQUESTS = 100;
 
+    protected static final byte[] RESPONSE_100_CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
-    private Map<String,HttpPage> pages = new ConcurrentHashMap<>();;
-    private Map<String,Map<String,Object>> sessions = new ConcurrentHashMap<>();;
-    private int nextSessionId = 0;
+
+    private HttpRouter router = new HttpRouter();
+    private volatile HttpSessionManager sessionManager = new HttpSessionManager();
     private HttpPage defaultPage = null;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int maxKeepAliveRequests = DEFAULT_KEEP_ALIVE_REQUESTS;
+    private boolean compressionEnabled = false;
+    private int compressionMinSize = HttpPrintStream.DEFAULT_COMPRESSION_MIN_SIZE;
+    private List<String> compressionMimeTypes = new ArrayList<>(HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
 
 
     /**
@@ -78,6 +97,7 @@ public class HttpServer extends ThreadedTCPNetworkServer{
      */
     public HttpServer(int port) throws IOException {
         super(port);
+        enableSocketChannels(true); // Connections are read and written by the same thread
         initialize("HTTP");
     }
     /**
@@ -116,7 +136,7 @@ public class HttpServer extends ThreadedTCPNetworkServer{
 
     private void initialize(String httpType) {
         ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
-        exec.scheduleWithFixedDelay(new SessionGarbageCollector(), 10000, SESSION_TTL / 2, TimeUnit.MILLISECONDS);
+        exec.scheduleWithFixedDelay(new SessionGarbageCollector(), 10000, SESSION_TTL / 10, TimeUnit.MILLISECONDS);
 
         logger.info(httpType + " Server ready and listening to port: " + httpType.toLowerCase() + "://localhost:" + getPort());
     }
@@ -124,37 +144,42 @@ public class HttpServer extends ThreadedTCPNetworkServer{
 
     /**
      * This class acts as a garbage collector that
-     * removes old sessions from the session HashMap
+     * removes expired sessions from the session manager
      */
     private class SessionGarbageCollector implements Runnable {
         public void run() {
-            Object[] keys = sessions.keySet().toArray();
-            int count = 0;
-            for (Object key : keys) {
-                Map<String,Object> session = sessions.get(key);
-
-                // Check if session is still valid
-                if (((Timer) session.get(SESSION_KEY_TTL)).hasTimedOut()) {
-                    sessions.remove(key);
-                    ++count;
-                }
+            try {
+                sessionManager.garbageCollect();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Session garbage collection failed", e);
             }
-            if (count > 0)
-                logger.fine("Removed " + count + " old sessions");
         }
     }
 
 
     /**
-     * Add a HttpPage to a specific URL.
+     * Add a HttpPage to a specific URL, the URL can contain path parameters
+     * and wildcards as described in {@link HttpRouter}.
      *
      * @param   url    The URL or name of the page
      * @param   page    The page itself
      */
     public void setPage(String url, HttpPage page) {
+        setPage(null, url, page);
+    }
+
+    /**
+     * Add a HttpPage to a specific request method and URL, the URL can
+     * contain path parameters and wildcards as described in {@link HttpRouter}.
+     *
+     * @param   method  The request method e.g. GET or POST, null will match any method
+     * @param   url     The URL or name of the page
+     * @param   page    The page itself
+     */
+    public void setPage(String method, String url, HttpPage page) {
         if (url.charAt(0) != '/')
             url = "/" + url;
-        pages.put(url, page);
+        router.addRoute(method, url, page);
     }
 
     /**
@@ -163,7 +188,7 @@ public class HttpServer extends ThreadedTCPNetworkServer{
      * @param   server  is the HttpServer object that pages will be copied from.
      */
     public void setPages(HttpServer server) {
-        pages.putAll(server.pages);
+        router.addRoutes(server.router);
     }
 
     /**
@@ -172,9 +197,19 @@ public class HttpServer extends ThreadedTCPNetworkServer{
      * @param   url    The URL or name of the page
      */
     public void removePage(String url) {
+        removePage(null, url);
+    }
+
+    /**
+     * Removes a page based on the request method and URL.
+     *
+     * @param   method  The request method or null for the page matching any method
+     * @param   url     The URL or name of the page
+     */
+    public void removePage(String method, String url) {
         if (url.charAt(0) != '/')
             url = "/" + url;
-        pages.remove(url);
+        router.removeRoute(method, url);
     }
 
     /**
@@ -187,6 +222,103 @@ public class HttpServer extends ThreadedTCPNetworkServer{
         defaultPage = page;
     }
 
+    /**
+     * Sets the session manager that will handle the client sessions, can be used to
+     * configure a persistent {@link zutil.net.http.session.SessionStore} or session timeout.
+     * NOTE: existing sessions will not be transferred to the new manager.
+     *
+     * @param   manager     the new session manager
+     */
+    public void setSessionManager(HttpSessionManager manager) {
+        if (manager == null)
+            throw new IllegalArgumentException("Session manager cannot be null.");
+        this.sessionManager = manager;
+    }
+
+    /**
+     * @return the session manager handling the client sessions.
+     */
+    public HttpSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * Sets the time a persistent connection will wait for the next
+     * request before the connection is closed.
+     *
+     * @param   timeout     the idle timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(int timeout) {
+        this.keepAliveTimeout = timeout;
+    }
+
+    /**
+     * @return the idle timeout in milliseconds for persistent connections
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets the max number of requests that will be handled on a single
+     * connection before it is closed by the server.
+     *
+     * @param   maxRequests     the max number of requests, 1 will disable persistent connections
+     */
+    public void setMaxKeepAliveRequests(int maxRequests) {
+        this.maxKeepAliveRequests = maxRequests;
+    }
+
+    /**
+     * @return the max number of requests that will be handled on a single connection
+     */
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * Enables gzip or deflate compression of responses for clients that support it.
+     * Pages will not need to be changed as the compression is done by the HttpPrintStream.
+     *
+     * @param   enabled     true to enable compression, default is false
+     */
+    public void enableCompression(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * @param   minSize     the min Content-Length in bytes for a response to be compressed.
+     *                      Responses without a Content-Length will always be compressed.
+     */
+    public void setCompressionMinSize(int minSize) {
+        this.compressionMinSize = minSize;
+    }
+
+    /**
+     * @param   mimeTypes   a list of MIME types that should be compressed, a trailing '*' matches any subtype.
+     */
+    public void setCompressionMimeTypes(List<String> mimeTypes) {
+        this.compressionMimeTypes = new ArrayList<>(mimeTypes);
+    }
+
+    /**
+     * Sends a 503 Service Unavailable response to connections rejected because the server is overloaded.
+     * SSL connections will only be closed as a handshake would block the accepting thread.
+     */
+    @Override
+    protected void rejectConnection(Socket socket) throws IOException {
+        if (socket instanceof SSLSocket)
+            return;
+
+        HttpPrintStream out = new HttpPrintStream(socket.getOutputStream());
+        out.setResponseStatusCode(503);
+        out.setHeader(HttpHeader.HEADER_SERVER, SERVER_NAME);
+        out.setHeader(HttpHeader.HEADER_CONNECTION, "close");
+        out.setHeader("Retry-After", "1");
+        out.setHeader(HEADER_CONTENT_LENGTH, "0");
+        out.close();
+    }
+
     protected ThreadedTCPNetworkServerThread getThreadInstance(Socket s) {
         try {
             return new HttpServerThread(s);
@@ -197,117 +329,160 @@ public class HttpServer extends ThreadedTCPNetworkServer{
     }
 
     /**
-     * Internal class that handles all the requests
+     * Handles a single parsed request and writes the response to the given stream.
+     * The request body is expected to be available through {@link HttpHeader#getInputStream()}
+     * and the given stream will be closed when the response has been written.
+     *
+     * @param   header      the parsed request header
+     * @param   out         the stream where the response will be written
+     * @param   keepAlive   true if the connection will be kept open after this request
+     * @return true if the connection can be used for additional requests, false if it should be closed.
+     */
+    protected boolean handleRequest(HttpHeader header, HttpPrintStream out, boolean keepAlive) {
+        long time = System.currentTimeMillis();
+        HttpSessionManager sessionManager = this.sessionManager;
+        HttpSession session = null;
+
+        try {
+            // ----------------------------------------------------------------
+            // PARSE REQUEST
+            // ----------------------------------------------------------------
+
+            // Read in the post data if available
+
+            if (header.containsHeader(HEADER_CONTENT_LENGTH) &&
+                    header.containsHeader(HEADER_CONTENT_TYPE) &&
+                    header.getHeader(HEADER_CONTENT_TYPE).contains("application/x-www-form-urlencoded")) {
+                // Reads the post data size
+                int postDataLength = Integer.parseInt(header.getHeader(HEADER_CONTENT_LENGTH));
+                // read the data
+                InputStream in = header.getInputStream();
+                StringBuilder tmpBuff = new StringBuilder();
+                for (int i = 0; i < postDataLength; i++) {
+                    tmpBuff.append((char) in.read());
+                }
+                // get the variables
+                HttpHeaderParser.parseURLParameters(header, tmpBuff.toString());
+            }
+
+            // ----------------------------------------------------------------
+            // HANDLE REQUEST
+            // ----------------------------------------------------------------
+
+            // Get the client session, a new session will only be created if the page stores something in it
+            session = sessionManager.getSession(header.getCookie(SESSION_KEY_ID), out);
+
+            // ----------------------------------------------------------------
+            // RESPONSE
+            // ----------------------------------------------------------------
+
+            if (header.getProtocolVersion() >= 1.1f) {
+                out.setProtocolVersion(1.1f);
+                if (keepAlive)
+                    out.enableChunkedEncoding(true);
+                else
+                    out.setHeader(HttpHeader.HEADER_CONNECTION, "close");
+            } else {
+                out.setProtocolVersion(1.0f);
+            }
+            if (compressionEnabled)
+                out.enableCompression(header.getHeader(HttpHeader.HEADER_ACCEPT_ENCODING), compressionMinSize, compressionMimeTypes);
+            out.setRequestMethod(header.getRequestType());
+            out.setResponseStatusCode(200);
+            out.setHeader(HttpHeader.HEADER_SERVER, SERVER_NAME);
+            out.setHeader(HEADER_CONTENT_TYPE, "text/html");
+
+            HttpRouter.RouteMatch route = router.route(header.getRequestType(), header.getRequestURL());
+            if (route != null && route.getPage() != null) {
+                HttpPage page = route.getPage();
+                header.setPathParameters(route.getPathParameters());
+                for (Map.Entry<String, String> param : route.getPathParameters().entrySet())
+                    header.getURLAttributeMap().putIfAbsent(param.getKey(), param.getValue());
+
+                page.respond(out, header, session, header.getCookieMap(), header.getURLAttributeMap());
+
+                if (LogUtil.isLoggable(page.getClass(), Level.FINER))
+                    logRequest(header, session, time);
+            } else if (route != null) {
+                out.setResponseStatusCode(405);
+                out.setHeader(HttpHeader.HEADER_ALLOW, StringUtil.join(", ", route.getAllowedMethods()));
+                out.println("405 Method Not Allowed: " + header.getRequestType());
+            } else if (header.getRequestURL() != null && defaultPage != null) {
+                defaultPage.respond(out, header, session, header.getCookieMap(), header.getURLAttributeMap());
+
+                if (LogUtil.isLoggable(defaultPage.getClass(), Level.FINER))
+                    logRequest(header, session, time);
+            } else {
+                out.setResponseStatusCode(404);
+                out.println("404 Page Not Found: " + header.getRequestURL());
+                logger.warning("Page not defined: " + header.getRequestURL());
+            }
+        } catch (Exception e) {
+            logRequest(header, session, time);
+            logger.log(Level.SEVERE, "500 Internal Server Error", e);
+            keepAlive = false; // We do not know the state of the connection so close it
+
+            if (!out.isHeaderSent())
+                out.setResponseStatusCode(500);
+            if (e.getMessage() != null)
+                out.println("500 Internal Server Error: " + e.getMessage());
+            else if (e.getCause() != null) {
+                out.println("500 Internal Server Error: " + e.getCause().getMessage());
+            } else {
+                out.println("500 Internal Server Error: " + e);
+            }
+        } finally {
+            sessionManager.release(session);
+            out.close();
+        }
+
+        return keepAlive;
+    }
+
+    /**
+     * Internal class that handles all the requests on a single connection.
+     * HTTP/1.1 connections are kept open for additional requests until the
+     * client closes it, the connection has been idle for the keep-alive
+     * timeout or the max number of requests per connection has been reached.
      */
     protected class HttpServerThread implements ThreadedTCPNetworkServerThread {
-        private HttpPrintStream out;
+        private OutputStream out;
         private BufferedInputStream in;
         private Socket socket;
 
         public HttpServerThread(Socket socket) throws IOException{
-            out = new HttpPrintStream(socket.getOutputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
             in = new BufferedInputStream(socket.getInputStream());
             this.socket = socket;
         }
 
         public void run() {
-            long time = System.currentTimeMillis();
-            HttpHeaderParser headerParser;
-            HttpHeader header = null;
-            Map<String, Object> session = null;
-            try {
-                // ----------------------------------------------------------------
-                // PARSE REQUEST
-                // ----------------------------------------------------------------
+            HttpHeaderParser headerParser = new HttpHeaderParser(in);
 
-                headerParser = new HttpHeaderParser(in);
-                header = headerParser.read();
-
-                if (header == null) {
-                    logger.finer("No header received");
-                    return;
-                }
-
-                // Read in the post data if available
-
-                if (header.containsHeader(HEADER_CONTENT_LENGTH) &&
-                        header.containsHeader(HEADER_CONTENT_TYPE) &&
-                        header.getHeader(HEADER_CONTENT_TYPE).contains("application/x-www-form-urlencoded")) {
-                    // Reads the post data size
-                    int postDataLength = Integer.parseInt(header.getHeader(HEADER_CONTENT_LENGTH));
-                    // read the data
-                    StringBuilder tmpBuff = new StringBuilder();
-                    for (int i = 0; i < postDataLength; i++) {
-                        tmpBuff.append((char) in.read());
+            try {
+                for (int requestCount = 1; ; ++requestCount) {
+                    socket.setSoTimeout(keepAliveTimeout);
+                    HttpHeader header;
+                    try {
+                        header = headerParser.read();
+                    } catch (SocketTimeoutException e) {
+                        logger.finest("Connection idle timeout reached");
+                        break;
                     }
-                    // get the variables
-                    HttpHeaderParser.parseURLParameters(header, tmpBuff.toString());
-                }
-
-                // ----------------------------------------------------------------
-                // HANDLE REQUEST
-                // ----------------------------------------------------------------
-
-                // Get the client session or create one
-                String sessionCookie = header.getCookie(SESSION_KEY_ID);
-                if (sessionCookie != null && sessions.containsKey(sessionCookie) &&
-                        !((Timer) sessions.get(sessionCookie).get(SESSION_KEY_TTL)).hasTimedOut()) { // Check if session is still valid
-
-                    session = sessions.get(sessionCookie);
-                    ((Timer) sessions.get(sessionCookie).get(SESSION_KEY_TTL)).start(); // renew the session TTL
-                } else {
-                    synchronized (sessions) {
-                        session = new ConcurrentHashMap<>();
-                        session.put(SESSION_KEY_ID, "" + nextSessionId);
-                        session.put(SESSION_KEY_TTL, new Timer(SESSION_TTL).start());
-
-                        sessions.put("" + nextSessionId, session);
-                        out.setCookie(SESSION_KEY_ID, "" + nextSessionId);
-                        ++nextSessionId;
+                    if (header == null) {
+                        if (requestCount == 1)
+                            logger.finer("No header received");
+                        break;
                     }
-                }
+                    socket.setSoTimeout(0);
 
-                // ----------------------------------------------------------------
-                // RESPONSE
-                // ----------------------------------------------------------------
-
-                out.setProtocolVersion(1.0f);
-                out.setResponseStatusCode(200);
-                out.setHeader(HttpHeader.HEADER_SERVER, SERVER_NAME);
-                out.setHeader(HEADER_CONTENT_TYPE, "text/html");
-
-                if (header.getRequestURL() != null && pages.containsKey(header.getRequestURL())) {
-                    HttpPage page = pages.get(header.getRequestURL());
-                    page.respond(out, header, session, header.getCookieMap(), header.getURLAttributeMap());
-
-                    if (LogUtil.isLoggable(page.getClass(), Level.FINER))
-                        logRequest(header, session, time);
-                } else if (header.getRequestURL() != null && defaultPage != null) {
-                    defaultPage.respond(out, header, session, header.getCookieMap(), header.getURLAttributeMap());
-
-                    if (LogUtil.isLoggable(defaultPage.getClass(), Level.FINER))
-                        logRequest(header, session, time);
-                } else {
-                    out.setResponseStatusCode(404);
-                    out.println("404 Page Not Found: " + header.getRequestURL());
-                    logger.warning("Page not defined: " + header.getRequestURL());
+                    boolean keepAlive = isKeepAlive(header) && requestCount < maxKeepAliveRequests;
+                    if (!handleRequest(header, keepAlive))
+                        break;
                 }
-
             } catch (Exception e) {
-                logRequest(header, session, time);
-                logger.log(Level.SEVERE, "500 Internal Server Error", e);
-
-                if (!out.isHeaderSent())
-                    out.setResponseStatusCode(500);
-                if (e.getMessage() != null)
-                    out.println("500 Internal Server Error: " + e.getMessage());
-                else if (e.getCause() != null) {
-                    out.println("500 Internal Server Error: " + e.getCause().getMessage());
-                } else {
-                    out.println("500 Internal Server Error: " + e);
-                }
-            }
-            finally {
+                logger.log(Level.FINE, "Connection error", e);
+            } finally {
                 try {
                     out.close();
                     in.close();
@@ -317,6 +492,77 @@ public class HttpServer extends ThreadedTCPNetworkServer{
                 }
             }
         }
+
+        /**
+         * Handles a single request and writes the response to the client.
+         *
+         * @return true if the connection can be used for additional requests, false if it should be closed.
+         */
+        private boolean handleRequest(HttpHeader header, boolean keepAlive) throws IOException {
+            // Limit the body to this request so that pipelined requests are left untouched
+
+            HttpBodyInputStream body;
+            String transferEncoding = header.getHeader(HttpHeader.HEADER_TRANSFER_ENCODING);
+            if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+                body = new HttpBodyInputStream(in);
+            else if (header.containsHeader(HEADER_CONTENT_LENGTH))
+                body = new HttpBodyInputStream(in, Long.parseLong(header.getHeader(HEADER_CONTENT_LENGTH).trim()));
+            else
+                body = new HttpBodyInputStream(in, 0);
+            header.setInputStream(body);
+
+            if (header.getProtocolVersion() >= 1.1f &&
+                    "100-continue".equalsIgnoreCase(header.getHeader(HttpHeader.HEADER_EXPECT))) {
+                out.write(RESPONSE_100_CONTINUE);
+                out.flush();
+            }
+
+            keepAlive = HttpServer.this.handleRequest(header,
+                    new HttpPrintStream(new NonClosingOutputStream(out), socket.getChannel()),
+                    keepAlive);
+
+            // Skip any body data not read by the page
+            if (keepAlive)
+                body.close();
+            return keepAlive;
+        }
+    }
+
+    /**
+     * @return true if the client supports persistent connections for the given request.
+     */
+    protected static boolean isKeepAlive(HttpHeader header) {
+        if (header.getProtocolVersion() < 1.1f)
+            return false;
+
+        String connection = header.getHeader(HttpHeader.HEADER_CONNECTION);
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                if ("close".equalsIgnoreCase(token.trim()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A stream wrapper that will only flush the underlying stream on close,
+     * used so that one response does not close the whole connection.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
     }
 
 
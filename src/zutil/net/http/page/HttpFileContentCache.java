@@ -0,0 +1,280 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.page;
+
+import zutil.log.CounterManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A size bounded in-memory cache of file contents. When the total size of
+ * the cached content exceeds the configured byte budget the least recently
+ * used files will be evicted. A cached file is invalidated and reloaded if
+ * its last modified timestamp or length has changed.
+ * <p>
+ * A gzip compressed variant of a file can be cached together with the plain
+ * content, both variants are counted against the same byte budget.
+ * <p>
+ * Hit and miss statistics are published through {@link CounterManager}.
+ *
+ * @author Ziver
+ */
+public class HttpFileContentCache {
+    public static final long DEFAULT_MAX_FILE_SIZE = 512 * 1024; // in bytes
+
+    private static class CacheEntry {
+        public long lastModified;
+        public long length;
+        /** The plain file content, null if only the compressed variant has been requested */
+        public byte[] content;
+        public byte[] gzipContent;
+
+        public long getSize() {
+            return (content != null ? content.length : 0) +
+                    (gzipContent != null ? gzipContent.length : 0);
+        }
+    }
+
+    /** LinkedHashMap in access order, the first entry is the least recently used */
+    private final LinkedHashMap<File, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxSize;
+    private final long maxFileSize;
+    private long size;
+
+    private final CounterManager.Counter hitCounter = CounterManager.getCounter(HttpFileContentCache.class, "CacheHits");
+    private final CounterManager.Counter missCounter = CounterManager.getCounter(HttpFileContentCache.class, "CacheMisses");
+    private final CounterManager.Counter sizeCounter = CounterManager.getCounter(HttpFileContentCache.class, "CacheSize");
+
+
+    /**
+     * @param maxSize   the maximum total size in bytes of all cached content.
+     */
+    public HttpFileContentCache(long maxSize) {
+        this(maxSize, Math.min(maxSize, DEFAULT_MAX_FILE_SIZE));
+    }
+    /**
+     * @param maxSize       the maximum total size in bytes of all cached content.
+     * @param maxFileSize   the maximum size in bytes of a single file, larger files will not be cached.
+     */
+    public HttpFileContentCache(long maxSize, long maxFileSize) {
+        if (maxSize < 0 || maxFileSize < 0)
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxSize, maxFileSize);
+    }
+
+
+    /**
+     * Returns the content of the given file, the content will be read from the
+     * cache if it is available and still valid, otherwise it will be read from
+     * disk and added to the cache.
+     *
+     * @param   file    the file to read.
+     * @return the content of the file or null if the file is too large to be cached.
+     *         NOTE: the returned array is shared and must not be modified.
+     */
+    public byte[] get(File file) throws IOException {
+        return get(file, false);
+    }
+
+    /**
+     * Returns the gzip compressed content of the given file, the file will only
+     * be compressed if there is no valid compressed variant in the cache.
+     *
+     * @param   file    the file to read.
+     * @return the compressed content of the file or null if the file is too large to be cached.
+     *         NOTE: the returned array is shared and must not be modified.
+     */
+    public byte[] getGzip(File file) throws IOException {
+        return get(file, true);
+    }
+
+    private byte[] get(File file, boolean gzip) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (cache) {
+            CacheEntry entry = cache.get(file);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.length == length) {
+                    byte[] content = (gzip ? entry.gzipContent : entry.content);
+                    if (content != null) {
+                        hitCounter.increment();
+                        return content;
+                    }
+                } else {
+                    removeEntry(file);
+                }
+            }
+        }
+
+        missCounter.increment();
+        if (length > maxFileSize)
+            return null;
+
+        // Read the file outside of the lock so that hits are not blocked by disk IO
+        byte[] content = readFile(file, (int) length);
+        if (content == null) // File changed while reading
+            return null;
+        if (gzip)
+            content = compress(content);
+
+        synchronized (cache) {
+            CacheEntry entry = cache.get(file);
+            if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+                removeEntry(file);
+                entry = new CacheEntry();
+                entry.lastModified = lastModified;
+                entry.length = length;
+                cache.put(file, entry);
+            }
+            size -= entry.getSize();
+            if (gzip)
+                entry.gzipContent = content;
+            else
+                entry.content = content;
+            size += entry.getSize();
+            evict();
+            sizeCounter.set((int) size);
+        }
+        return content;
+    }
+
+    /**
+     * Removes the given file from the cache.
+     */
+    public void invalidate(File file) {
+        synchronized (cache) {
+            removeEntry(file);
+            sizeCounter.set((int) size);
+        }
+    }
+
+    /**
+     * Removes all files from the cache.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            size = 0;
+            sizeCounter.set(0);
+        }
+    }
+
+
+    /**
+     * @return the total number of bytes currently cached.
+     */
+    public long getSize() {
+        synchronized (cache) {
+            return size;
+        }
+    }
+
+    /**
+     * @return the maximum size in bytes of a single file that will be cached.
+     */
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * @return the maximum number of bytes that will be cached.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of cached files.
+     */
+    public int getEntryCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return true if the given file is currently cached, will not affect the LRU order.
+     */
+    public boolean contains(File file) {
+        synchronized (cache) {
+            return cache.containsKey(file);
+        }
+    }
+
+
+    private void removeEntry(File file) {
+        CacheEntry entry = cache.remove(file);
+        if (entry != null)
+            size -= entry.getSize();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within its budget.
+     */
+    private void evict() {
+        for (Iterator<Map.Entry<File, CacheEntry>> it = cache.entrySet().iterator(); size > maxSize && it.hasNext();) {
+            size -= it.next().getValue().getSize();
+            it.remove();
+        }
+    }
+
+    private static byte[] compress(byte[] content) throws IOException {
+        ByteArrayOutputStream buff = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buff)) {
+            gzip.write(content);
+        }
+        return buff.toByteArray();
+    }
+
+    /**
+     * @return the file content or null if the file length differs from the expected length.
+     */
+    private static byte[] readFile(File file, int length) throws IOException {
+        byte[] content = new byte[length];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < length) {
+                int read = in.read(content, offset, length - offset);
+                if (read < 0)
+                    return null;
+                offset += read;
+            }
+            if (in.read() >= 0)
+                return null;
+        }
+        return content;
+    }
+}
@@ -27,19 +27,20 @@ package zutil.net.http.page;
 import zutil.Hasher;
 import zutil.MimeTypeUtil;
 import zutil.StringUtil;
-import zutil.io.IOUtil;
 import zutil.io.file.FileUtil;
 import zutil.log.LogUtil;
 import zutil.net.http.HttpHeader;
 import zutil.net.http.HttpPage;
 import zutil.net.http.HttpPrintStream;
+import zutil.net.http.HttpRouter;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -52,6 +53,8 @@ import java.util.regex.Pattern;
 public class HttpFilePage implements HttpPage{
     private static final Logger logger = LogUtil.getLogger();
     private static final int MAX_CACHE_AGE_SECONDS = 120;
+    private static final int MAX_COMPRESSED_FILE_SIZE = 2 * 1024 * 1024; // in bytes
+    private static final int COMPRESSION_CACHE_SIZE = 16 * 1024 * 1024; // in bytes
 
     private final File resourceRoot;
     private boolean showFolders = true;
@@ -60,7 +63,13 @@ public class HttpFilePage implements HttpPage{
     private boolean cacheEnabled = true;
     private List<Pattern> cacheDisableRegex = new ArrayList<>();
 
-    private final HashMap<File,FileCache> cache = new HashMap<>();
+    private boolean compressionEnabled = false;
+    private List<String> compressionMimeTypes = new ArrayList<>(HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+
+    private final Map<File,FileCache> cache = new ConcurrentHashMap<>();
+    private HttpFileContentCache contentCache;
+    /** Cache of compressed content used when the content cache is disabled */
+    private HttpFileContentCache compressionCache;
 
     private static class FileCache{
         public long lastModified;
@@ -97,6 +106,51 @@ public class HttpFilePage implements HttpPage{
     }
 
 
+    /**
+     * Enables an in-memory cache of file contents so that frequently requested
+     * files do not need to be read from disk on every request. The least
+     * recently used files will be evicted when the cache exceeds the given size.
+     *
+     * @param maxSize   the maximum total size of cached content in bytes, 0 will disable the cache.
+     */
+    public void enableContentCache(long maxSize) {
+        this.contentCache = (maxSize > 0 ? new HttpFileContentCache(maxSize) : null);
+    }
+
+    /**
+     * Enables an in-memory cache of file contents, see {@link #enableContentCache(long)}.
+     *
+     * @param maxSize       the maximum total size of cached content in bytes, 0 will disable the cache.
+     * @param maxFileSize   the maximum size of a single file in bytes, larger files are always read from disk.
+     */
+    public void enableContentCache(long maxSize, long maxFileSize) {
+        this.contentCache = (maxSize > 0 ? new HttpFileContentCache(maxSize, maxFileSize) : null);
+    }
+
+
+    /**
+     * Enables gzip compression of files for clients that support it. The compressed
+     * content is cached in memory and only recompressed when the file has changed.
+     * If the content cache is enabled the compressed content will share its size
+     * budget, otherwise a separate cache of 16 MB is used.
+     * NOTE: only files with caching enabled will be compressed.
+     *
+     * @param enabled   True to enable compression, default is false.
+     */
+    public void enableCompression(boolean enabled) {
+        this.compressionEnabled = enabled;
+        if (enabled && compressionCache == null)
+            compressionCache = new HttpFileContentCache(COMPRESSION_CACHE_SIZE, MAX_COMPRESSED_FILE_SIZE);
+    }
+
+    /**
+     * @param mimeTypes     a list of MIME types that should be compressed, a trailing '*' matches any subtype.
+     */
+    public void setCompressionMimeTypes(List<String> mimeTypes) {
+        this.compressionMimeTypes = new ArrayList<>(mimeTypes);
+    }
+
+
     @Override
     public void respond(HttpPrintStream out,
                         HttpHeader headers,
@@ -110,17 +164,19 @@ public class HttpFilePage implements HttpPage{
                 if (isCacheEnabled(resourceRoot))
                     deliverFileWithCache(headers, resourceRoot, out);
                 else
-                    deliverFile(resourceRoot, out);
+                    deliverFile(headers, resourceRoot, null, out);
             } else { // Resource root is a folder
+                // If the page has been mounted on a wildcard route then only use the wildcard part of the path
+                String path = headers.getPathParameter(HttpRouter.WILDCARD_PARAM);
                 File file = new File(resourceRoot,
-                        headers.getRequestURL());
+                        (path != null ? path : headers.getRequestURL()));
                 if (file.getCanonicalPath().startsWith(resourceRoot.getCanonicalPath())) {
                     // Web Gui
                     if (file.isDirectory() && showFolders) {
                         File indexFile = new File(file, "index.html");
                         // Redirect to index.html
                         if (redirectToIndex && indexFile.isFile()) {
-                            deliverFile(indexFile, out);
+                            deliverFile(headers, indexFile, null, out);
                         }
                         // Show folder contents
                         else if (showFolders) {
@@ -149,7 +205,7 @@ public class HttpFilePage implements HttpPage{
                         if (isCacheEnabled(file))
                             deliverFileWithCache(headers, file, out);
                         else
-                            deliverFile(file, out);
+                            deliverFile(headers, file, null, out);
                     }
                 } else {
                     throw new SecurityException("File is outside of root directory: root=" + resourceRoot.getAbsolutePath() + " file=" + file.getAbsolutePath());
@@ -182,48 +238,177 @@ public class HttpFilePage implements HttpPage{
     }
 
     private void deliverFileWithCache(HttpHeader headers, File file, HttpPrintStream out) throws IOException {
-        String eTag = getFileHash(file);
+        FileCache fileCache = getFileCache(file);
+        String eTag = fileCache.hash;
         out.setHeader(HttpHeader.HEADER_CACHE_CONTROL, "max-age=" + MAX_CACHE_AGE_SECONDS);
 
+        boolean compressible = compressionEnabled && isCompressible(file);
+        boolean compress = compressible &&
+                headers.getHeader(HttpHeader.HEADER_RANGE) == null &&
+                "gzip".equals(HttpPrintStream.selectContentEncoding(headers.getHeader(HttpHeader.HEADER_ACCEPT_ENCODING)));
+        if (compressible)
+            out.setHeader(HttpHeader.HEADER_VARY, HttpHeader.HEADER_ACCEPT_ENCODING);
+
         if (eTag != null) {
-            out.setHeader("ETag", "\"" + eTag + "\"");
+            String responseETag = (compress ? eTag + "-gzip" : eTag);
+            out.setHeader("ETag", "\"" + responseETag + "\"");
 
             if (headers.getHeader(HttpHeader.HEADER_IF_NONE_MATCH) != null &&
-                    eTag.equals(StringUtil.trimQuotes(headers.getHeader(HttpHeader.HEADER_IF_NONE_MATCH)))) { // File has not changed
+                    responseETag.equals(StringUtil.trimQuotes(headers.getHeader(HttpHeader.HEADER_IF_NONE_MATCH)))) { // File has not changed
                 out.setResponseStatusCode(304);
+            } else if (compress) {
+                deliverCompressedFile(headers, file, eTag, out);
             } else {
-                deliverFile(file, out);
+                deliverFile(headers, file, eTag, out);
             }
         }
     }
-    private void deliverFile(File file, HttpPrintStream out) throws IOException {
+
+    private boolean isCompressible(File file) {
+        long length = file.length();
+        if (length < HttpPrintStream.DEFAULT_COMPRESSION_MIN_SIZE || length > getCompressionCache().getMaxFileSize())
+            return false;
+
+        MimeTypeUtil.MimeType mimeType = MimeTypeUtil.getMimeByExtension(FileUtil.getFileExtension(file));
+        return mimeType != null && HttpPrintStream.isMimeTypeMatching(mimeType.toString(), compressionMimeTypes);
+    }
+
+    private HttpFileContentCache getCompressionCache() {
+        HttpFileContentCache contentCache = this.contentCache;
+        return (contentCache != null ? contentCache : compressionCache);
+    }
+
+    /**
+     * Sends the gzip compressed file contents, the compressed data will be cached until the file changes.
+     */
+    private void deliverCompressedFile(HttpHeader headers, File file, String eTag, HttpPrintStream out) throws IOException {
+        byte[] content = getCompressionCache().getGzip(file);
+        if (content == null) { // File has grown since the compression check
+            out.setHeader("ETag", "\"" + eTag + "\"");
+            deliverFile(headers, file, eTag, out);
+            return;
+        }
+
+        setContentType(file, out);
+        out.setHeader(HttpHeader.HEADER_CONTENT_ENCODING, "gzip");
+        out.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "" + content.length);
+        out.write(content);
+    }
+
+    private static void setContentType(File file, HttpPrintStream out) {
         String fileExt = FileUtil.getFileExtension(file);
 
         if (MimeTypeUtil.getMimeByExtension(fileExt) != null)
             out.setHeader(HttpHeader.HEADER_CONTENT_TYPE, MimeTypeUtil.getMimeByExtension(fileExt).toString());
-        out.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "" + file.length());
-        out.flush();
+    }
+
+    /**
+     * Sends the file contents, or the requested range of the file, to the client.
+     * The data will be read from the content cache if enabled, otherwise it
+     * will be sent with zero-copy if supported by the connection.
+     *
+     * @param eTag      the current ETag of the file, used to validate If-Range headers, can be null.
+     */
+    private void deliverFile(HttpHeader headers, File file, String eTag, HttpPrintStream out) throws IOException {
+        setContentType(file, out);
+        out.setHeader(HttpHeader.HEADER_ACCEPT_RANGES, "bytes");
+
+        HttpFileContentCache contentCache = this.contentCache;
+        byte[] content = (contentCache != null ? contentCache.get(file) : null);
+
+        try (FileChannel in = (content == null ? new FileInputStream(file).getChannel() : null)) {
+            long fileLength = (content == null ? in.size() : content.length);
+            long start = 0;
+            long end = fileLength - 1;
+
+            // Check for partial content request
+            String ifRange = headers.getHeader(HttpHeader.HEADER_IF_RANGE);
+            long[] range = null;
+            if (ifRange == null || (eTag != null && eTag.equals(StringUtil.trimQuotes(ifRange.trim()))))
+                range = parseRange(headers.getHeader(HttpHeader.HEADER_RANGE), fileLength);
+
+            if (range != null) {
+                if (range[0] >= fileLength) {
+                    out.setResponseStatusCode(416);
+                    out.setHeader(HttpHeader.HEADER_CONTENT_RANGE, "bytes */" + fileLength);
+                    out.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "0");
+                    out.flush();
+                    return;
+                }
 
-        InputStream in = new FileInputStream(file);
-        IOUtil.copyStream(in, out);
-        in.close();
+                start = range[0];
+                end = range[1];
+                out.setResponseStatusCode(206);
+                out.setHeader(HttpHeader.HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileLength);
+            }
+
+            out.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "" + (end - start + 1));
+            if (content != null)
+                out.write(content, (int) start, (int) (end - start + 1));
+            else
+                out.transferFrom(in, start, end - start + 1);
+        }
     }
 
+    /**
+     * Parses a Range header value, only single byte ranges are supported.
+     *
+     * @param rangeHeader   the header value, e.g. "bytes=0-499", "bytes=500-" or "bytes=-500"
+     * @param fileLength    the total length of the file
+     * @return a array containing the first and last byte position of the range,
+     *         a first position equal or larger than the file length indicates a unsatisfiable range.
+     *         null if the header is not set, malformed or not supported, then the whole file should be sent.
+     */
+    protected static long[] parseRange(String rangeHeader, long fileLength) {
+        if (rangeHeader == null)
+            return null;
+        rangeHeader = rangeHeader.trim();
+        if (!rangeHeader.regionMatches(true, 0, "bytes=", 0, 6) || rangeHeader.indexOf(',') >= 0)
+            return null;
+
+        String range = rangeHeader.substring(6).trim();
+        int separator = range.indexOf('-');
+        if (separator < 0)
+            return null;
 
-    private String getFileHash(File file) throws IOException {
         try {
-            FileCache fileCache = cache.get(file);
-            if (fileCache == null)
-                cache.put(file, fileCache = new FileCache());
-            if (fileCache.lastModified != file.lastModified()) {
-                fileCache.hash = Hasher.hash(file, "SHA-1");
-                fileCache.lastModified = file.lastModified();
+            String startStr = range.substring(0, separator).trim();
+            String endStr = range.substring(separator + 1).trim();
+
+            if (startStr.isEmpty()) { // Suffix range, the last N bytes
+                long suffixLength = Long.parseLong(endStr);
+                if (suffixLength <= 0)
+                    return new long[]{fileLength, fileLength};
+                return new long[]{Math.max(0, fileLength - suffixLength), fileLength - 1};
+            }
+
+            long start = Long.parseLong(startStr);
+            if (start >= fileLength)
+                return new long[]{fileLength, fileLength};
+            long end = (endStr.isEmpty() ? fileLength - 1 : Long.parseLong(endStr));
+            if (start < 0 || end < start)
+                return null;
+            return new long[]{start, Math.min(end, fileLength - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    private FileCache getFileCache(File file) throws IOException {
+        FileCache fileCache = cache.computeIfAbsent(file, k -> new FileCache());
+        synchronized (fileCache) {
+            try {
+                if (fileCache.lastModified != file.lastModified()) {
+                    fileCache.hash = Hasher.hash(file, "SHA-1");
+                    fileCache.lastModified = file.lastModified();
+                }
+            } catch (NoSuchAlgorithmException e) {
+                logger.log(Level.WARNING, "Unable to generate hash", e);
+                fileCache.hash = "";
             }
-            return fileCache.hash;
-        } catch (NoSuchAlgorithmException e) {
-            logger.log(Level.WARNING, "Unable to generate hash", e);
         }
-        return "";
+        return fileCache;
     }
 
     /**
@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+import zutil.db.DBConnection;
+import zutil.log.LogUtil;
+
+import java.io.*;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A session store that persists sessions in a database table so that
+ * sessions will survive a server restart. Active sessions are also kept
+ * in memory so the database is only read the first time a session is
+ * requested and only written when a session has been modified.
+ * <p>
+ * Session attributes are stored with Java serialization, attributes
+ * that are not serializable will only be available in memory.
+ *
+ * @author Ziver
+ */
+public class DBSessionStore implements SessionStore {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final String DEFAULT_TABLE_NAME = "http_session";
+
+    private final DBConnection db;
+    private final String table;
+    private final Map<String, HttpSession> cache = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a store using the default table name, the table will be created if it does not exist.
+     *
+     * @param   db      the database connection, e.g. a SQLite database
+     */
+    public DBSessionStore(DBConnection db) throws SQLException {
+        this(db, DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * @param   db      the database connection, e.g. a SQLite database
+     * @param   table   the name of the table where the sessions will be stored, will be created if it does not exist
+     */
+    public DBSessionStore(DBConnection db, String table) throws SQLException {
+        this.db = db;
+        this.table = table;
+
+        db.exec("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                "id VARCHAR(64) NOT NULL PRIMARY KEY, " +
+                "creation_time BIGINT NOT NULL, " +
+                "last_access_time BIGINT NOT NULL, " +
+                "data BLOB)");
+    }
+
+
+    @Override
+    public HttpSession load(String id) {
+        HttpSession session = cache.get(id);
+        if (session != null)
+            return session;
+
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement(
+                        "SELECT creation_time, last_access_time, data FROM " + table + " WHERE id = ?");
+                stmt.setString(1, id);
+                session = DBConnection.exec(stmt, (statement, result) -> {
+                    if (!result.next())
+                        return null;
+                    return new HttpSession(id,
+                            deserialize(result.getBytes(3)),
+                            result.getLong(1),
+                            result.getLong(2));
+                });
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to load session from database.", e);
+        }
+
+        if (session == null)
+            return null;
+        HttpSession prev = cache.putIfAbsent(id, session);
+        return (prev != null ? prev : session);
+    }
+
+    @Override
+    public void save(HttpSession session) {
+        cache.put(session.getId(), session);
+
+        try {
+            byte[] data = serialize(session.getAttributes());
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement(
+                        "REPLACE INTO " + table + " (id, creation_time, last_access_time, data) VALUES (?, ?, ?, ?)");
+                stmt.setString(1, session.getId());
+                stmt.setLong(2, session.getCreationTime());
+                stmt.setLong(3, session.getLastAccessTime());
+                stmt.setBytes(4, data);
+                DBConnection.exec(stmt);
+            }
+        } catch (SQLException | IOException e) {
+            logger.log(Level.WARNING, "Unable to save session to database.", e);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        cache.remove(id);
+
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement("DELETE FROM " + table + " WHERE id = ?");
+                stmt.setString(1, id);
+                DBConnection.exec(stmt);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to remove session from database.", e);
+        }
+    }
+
+    @Override
+    public void removeExpired(long lastAccessTime) {
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement("DELETE FROM " + table + " WHERE last_access_time < ?");
+                stmt.setLong(1, lastAccessTime);
+                DBConnection.exec(stmt);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to remove expired sessions from database.", e);
+        }
+    }
+
+
+    private static byte[] serialize(Map<String, Object> attributes) throws IOException {
+        HashMap<String, Object> serializable = new HashMap<>();
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            if (entry.getValue() instanceof Serializable)
+                serializable.put(entry.getKey(), entry.getValue());
+            else
+                logger.finest("Skipping non serializable session attribute: " + entry.getKey());
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(serializable);
+        }
+        return buffer.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> deserialize(byte[] data) {
+        if (data == null)
+            return new HashMap<>();
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Map<String, Object>) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Unable to deserialize session data, session will be empty.", e);
+            return new HashMap<>();
+        }
+    }
+}
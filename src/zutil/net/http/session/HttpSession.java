@@ -0,0 +1,196 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+import zutil.net.http.HttpPrintStream;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A HTTP session containing key value attributes. A session is created lazily,
+ * a new session will not be registered or assigned a id until the first time
+ * a attribute is added to it. The session cookie can only be sent to the
+ * client if the first attribute is added before the response header has been sent.
+ * <p>
+ * NOTE: persistent stores will only save the session when it has been modified
+ * through this map, changes to mutable attribute values will not be detected.
+ *
+ * @author Ziver
+ */
+public class HttpSession extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> attributes;
+    private volatile String id;
+    private final long creationTime;
+    private volatile long lastAccessTime;
+
+    private HttpSessionManager manager;
+    /** the response that the session cookie will be set on if the session is created */
+    private HttpPrintStream out;
+    /** The expiry bucket that the session is currently registered in */
+    volatile long expiryBucket = -1;
+    volatile boolean dirty;
+
+
+    /**
+     * Creates a new unbound session
+     */
+    HttpSession(HttpSessionManager manager, HttpPrintStream out) {
+        this.manager = manager;
+        this.out = out;
+        this.attributes = new ConcurrentHashMap<>();
+        this.creationTime = System.currentTimeMillis();
+        this.lastAccessTime = creationTime;
+    }
+
+    /**
+     * Creates a existing session, e.g. loaded from a persistent store.
+     *
+     * @param   id              the session id
+     * @param   attributes      the session attributes
+     * @param   creationTime    the time the session was created in milliseconds since epoch
+     * @param   lastAccessTime  the last time the session was accessed in milliseconds since epoch
+     */
+    public HttpSession(String id, Map<String, Object> attributes, long creationTime, long lastAccessTime) {
+        this.id = id;
+        this.attributes = new ConcurrentHashMap<>(attributes);
+        this.creationTime = creationTime;
+        this.lastAccessTime = lastAccessTime;
+    }
+
+
+    /**
+     * @return the id of the session or null if the session has not yet been created.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return true if the session has been registered in the session store.
+     */
+    public boolean isBound() {
+        return id != null;
+    }
+
+    /**
+     * @return the time the session was created in milliseconds since epoch
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return the last time the session was accessed by a request in milliseconds since epoch
+     */
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    /**
+     * @return a copy of all session attributes.
+     */
+    public Map<String, Object> getAttributes() {
+        return new HashMap<>(attributes);
+    }
+
+
+    @Override
+    public Object get(Object key) {
+        return attributes.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return attributes.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        bind();
+        Object prev = attributes.put(key, value);
+        dirty = true;
+        return prev;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object prev = attributes.remove(key);
+        if (prev != null)
+            dirty = true;
+        return prev;
+    }
+
+    @Override
+    public void clear() {
+        attributes.clear();
+        dirty = true;
+    }
+
+    @Override
+    public int size() {
+        return attributes.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(attributes).entrySet();
+    }
+
+
+    void setManager(HttpSessionManager manager) {
+        this.manager = manager;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the response stream of the request that created the session, the reference will be cleared.
+     */
+    HttpPrintStream takeOutputStream() {
+        HttpPrintStream tmp = out;
+        out = null;
+        return tmp;
+    }
+
+    void setLastAccessTime(long time) {
+        this.lastAccessTime = time;
+    }
+
+    /**
+     * Registers the session in the manager if it has not already been done.
+     */
+    private void bind() {
+        if (id == null) {
+            synchronized (this) {
+                if (id == null && manager != null)
+                    manager.bind(this);
+            }
+        }
+    }
+}
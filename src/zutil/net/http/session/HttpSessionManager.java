@@ -0,0 +1,243 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+import zutil.log.LogUtil;
+import zutil.net.http.HttpPrintStream;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+/**
+ * Manages the life cycle of HTTP sessions, i.e. lookup, lazy
+ * creation and expiry of sessions stored in a {@link SessionStore}.
+ * <p>
+ * Sessions are grouped into buckets based on their expiry time so the
+ * garbage collection only needs to look at sessions in expired buckets
+ * instead of all active sessions.
+ *
+ * @author Ziver
+ */
+public class HttpSessionManager {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final String SESSION_COOKIE = "session_id";
+    public static final long DEFAULT_SESSION_TIMEOUT = 10*60*1000; // in milliseconds
+    /** The number of buckets a timeout period is divided into */
+    private static final int EXPIRY_BUCKETS_PER_TIMEOUT = 10;
+    private static final int SESSION_ID_BYTES = 16;
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final SessionStore store;
+    private final long timeout;
+    private final long bucketSize;
+    /** Session ids mapped by expiry bucket, a bucket index is the expiry time divided by the bucket size */
+    private final ConcurrentSkipListMap<Long, Set<String>> expiryBuckets = new ConcurrentSkipListMap<>();
+
+
+    /**
+     * Creates a session manager with in memory storage and default timeout.
+     */
+    public HttpSessionManager() {
+        this(new InMemorySessionStore(), DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * @param   store       the storage for the sessions
+     * @param   timeout     the time in milliseconds a session is valid after its last access
+     */
+    public HttpSessionManager(SessionStore store, long timeout) {
+        if (store == null)
+            throw new IllegalArgumentException("Session store cannot be null.");
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Session timeout must be positive.");
+
+        this.store = store;
+        this.timeout = timeout;
+        this.bucketSize = Math.max(1, timeout / EXPIRY_BUCKETS_PER_TIMEOUT);
+    }
+
+
+    /**
+     * Returns the session with the given id, a new unbound session will be returned
+     * if the id is null or the session does not exist or has expired. The new session
+     * will be registered and its cookie set on the given response when the first
+     * attribute is added to it.
+     *
+     * @param   id      the session id from the client cookie, can be null
+     * @param   out     the response for the current request
+     * @return a valid session object, never null.
+     */
+    public HttpSession getSession(String id, HttpPrintStream out) {
+        long now = System.currentTimeMillis();
+
+        if (id != null && !id.isEmpty()) {
+            HttpSession session = store.load(id);
+            if (session != null) {
+                if (session.getLastAccessTime() + timeout > now) {
+                    session.setManager(this);
+                    session.setLastAccessTime(now);
+                    updateExpiryBucket(session);
+                    return session;
+                }
+
+                removeSession(session);
+            }
+        }
+
+        return new HttpSession(this, out);
+    }
+
+    /**
+     * Should be called when a request has been handled, will persist the session if it has been modified.
+     */
+    public void release(HttpSession session) {
+        if (session != null && session.isBound() && session.dirty) {
+            session.dirty = false;
+            store.save(session);
+        }
+    }
+
+    /**
+     * Removes the given session.
+     */
+    public void invalidate(HttpSession session) {
+        if (session.isBound())
+            removeSession(session);
+    }
+
+    /**
+     * @return the timeout in milliseconds for sessions
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the store containing the sessions
+     */
+    public SessionStore getStore() {
+        return store;
+    }
+
+
+    /**
+     * Removes all sessions in expired buckets.
+     *
+     * @return the number of removed sessions
+     */
+    public int garbageCollect() {
+        long now = System.currentTimeMillis();
+        long currentBucket = now / bucketSize;
+        int count = 0;
+
+        Map.Entry<Long, Set<String>> bucket;
+        while ((bucket = expiryBuckets.firstEntry()) != null && bucket.getKey() < currentBucket) {
+            expiryBuckets.remove(bucket.getKey(), bucket.getValue());
+
+            for (String id : bucket.getValue()) {
+                HttpSession session = store.load(id);
+                if (session == null)
+                    continue;
+
+                if (session.getLastAccessTime() + timeout <= now) {
+                    store.remove(id);
+                    ++count;
+                } else { // Session has been accessed concurrently, make sure it is still tracked
+                    session.expiryBucket = -1;
+                    updateExpiryBucket(session);
+                }
+            }
+        }
+
+        store.removeExpired(now - timeout);
+
+        if (count > 0)
+            logger.fine("Removed " + count + " expired sessions");
+        return count;
+    }
+
+
+    /**
+     * Assigns a new id to the given session and registers it in the store.
+     */
+    void bind(HttpSession session) {
+        session.setId(generateId());
+        updateExpiryBucket(session);
+        store.save(session);
+
+        HttpPrintStream out = session.takeOutputStream();
+        if (out != null) {
+            if (!out.isHeaderSent())
+                out.setCookie(SESSION_COOKIE, session.getId());
+            else
+                logger.warning("Unable to set session cookie, response header has already been sent.");
+        }
+    }
+
+    private void updateExpiryBucket(HttpSession session) {
+        long bucketIndex = (session.getLastAccessTime() + timeout) / bucketSize;
+        long prevBucketIndex = session.expiryBucket;
+        if (bucketIndex == prevBucketIndex)
+            return;
+
+        session.expiryBucket = bucketIndex;
+        expiryBuckets.computeIfAbsent(bucketIndex, k -> ConcurrentHashMap.newKeySet()).add(session.getId());
+        if (prevBucketIndex >= 0) {
+            Set<String> prevBucket = expiryBuckets.get(prevBucketIndex);
+            if (prevBucket != null)
+                prevBucket.remove(session.getId());
+            session.dirty = true; // persist the new access time
+        }
+    }
+
+    private void removeSession(HttpSession session) {
+        Set<String> bucket = expiryBuckets.get(session.expiryBucket);
+        if (bucket != null)
+            bucket.remove(session.getId());
+        store.remove(session.getId());
+    }
+
+    /**
+     * @return a new random session id generated by a cryptographically strong random generator.
+     */
+    protected static String generateId() {
+        byte[] bytes = new byte[SESSION_ID_BYTES];
+        random.get().nextBytes(bytes);
+
+        char[] id = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            id[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0x0F];
+            id[i * 2 + 1] = HEX_CHARS[bytes[i] & 0x0F];
+        }
+        return new String(id);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+/**
+ * A interface for storage of HTTP sessions. The store is the authoritative
+ * owner of all sessions, a session returned from {@link #load(String)} should
+ * be the same instance as long as it is in use so that concurrent requests
+ * will see each others changes.
+ *
+ * @author Ziver
+ */
+public interface SessionStore {
+
+    /**
+     * @param   id      the session id
+     * @return the session with the given id or null if there is no such session.
+     */
+    HttpSession load(String id);
+
+    /**
+     * Stores or updates the given session. Called when a new session has
+     * been created and after a request has modified the session.
+     */
+    void save(HttpSession session);
+
+    /**
+     * Removes the session with the given id from the store.
+     */
+    void remove(String id);
+
+    /**
+     * Removes all sessions that have not been accessed since the given time.
+     * Sessions loaded from the store are expired by the {@link HttpSessionManager},
+     * this method is only needed for stores that can contain sessions that have
+     * not been loaded, e.g. sessions persisted by a previous instance.
+     *
+     * @param   lastAccessTime  the time in milliseconds since epoch
+     */
+    void removeExpired(long lastAccessTime);
+}
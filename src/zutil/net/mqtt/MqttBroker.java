@@ -35,11 +35,23 @@ import zutil.parser.binary.BinaryStructInputStream;
 import zutil.parser.binary.BinaryStructOutputStream;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,9 +66,46 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
     public static final int MQTT_PORT = 1883;
     public static final int MQTT_PORT_TLS = 8883;
     public static final int MQTT_PROTOCOL_VERSION = 0x04; // MQTT 3.1.1
+    public static final int DEFAULT_OUTBOUND_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 20;
+    public static final long DEFAULT_RETRY_INTERVAL = 20 * 1000; // 20 sec
+    public static final long DEFAULT_SYS_INTERVAL = 10 * 1000; // 10 sec
 
-    private List<MqttSubscriptionListener> globalListeners = new ArrayList<>();
-    private Map<String, List<MqttSubscriptionListener>> subscriptionListeners = new HashMap<>();
+    /**
+     * Defines what should happen when a client is not able to keep up
+     * with the published messages and its outbound queue is full.
+     */
+    public enum SlowConsumerPolicy {
+        /** The new message will be dropped **/
+        DROP_NEWEST,
+        /** The oldest queued message will be dropped to make room for the new message **/
+        DROP_OLDEST,
+        /** The client will be disconnected **/
+        DISCONNECT
+    }
+
+    private final List<MqttSubscriptionListener> globalListeners = new CopyOnWriteArrayList<>();
+    private final MqttTopicTree<MqttSubscriptionListener> subscriptions = new MqttTopicTree<>();
+
+    private Executor deliveryExecutor = Executors.newCachedThreadPool();
+    private int outboundQueueSize = DEFAULT_OUTBOUND_QUEUE_SIZE;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+
+    private final Map<String, MqttSession> sessions = new ConcurrentHashMap<>();
+    private MqttMessageStore messageStore = new MqttMemoryMessageStore();
+    private MqttRetainedMessageStore retainedMessages = new MqttRetainedMessageStore();
+    private int maxInFlightMessages = DEFAULT_MAX_IN_FLIGHT_MESSAGES;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    private final MqttBrokerMetrics metrics = new MqttBrokerMetrics(this);
+    private long sysInterval = DEFAULT_SYS_INTERVAL;
+    /** The last published value of each $SYS topic **/
+    private final Map<String, String> sysValues = new HashMap<>();
+
+    /** Timer for in-flight retries and $SYS publishing, created when first needed **/
+    private ScheduledExecutorService timer;
+    private boolean retryScheduled;
+    private boolean metricsStarted;
 
 
     public MqttBroker() throws IOException {
@@ -68,6 +117,12 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
     }
 
 
+    @Override
+    public void run() {
+        startMetrics();
+        super.run();
+    }
+
     @Override
     protected ThreadedTCPNetworkServerThread getThreadInstance(Socket s) throws IOException {
         return new MqttConnectionThread(this, s);
@@ -75,15 +130,278 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
 
 
     /**
-     * @return the subscriber count for the specific topic, -1 if
+     * Sets the executor that will write queued messages to the clients. Each client will
+     * at most have one task running at the same time, so a blocked client will only block
+     * its own task. The default executor is a cached thread pool.
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor cannot be null.");
+        this.deliveryExecutor = executor;
+    }
+
+    /**
+     * Sets the max number of messages that can be queued for a single client,
+     * the size will only be applied on new connections.
+     */
+    public void setOutboundQueueSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("Queue size must be larger than zero.");
+        this.outboundQueueSize = size;
+    }
+
+    /**
+     * Sets the policy for clients that are not able to receive messages as fast as they are published.
+     * The default policy is {@link SlowConsumerPolicy#DROP_NEWEST}.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("Policy cannot be null.");
+        this.slowConsumerPolicy = policy;
+    }
+
+    /**
+     * @return the total number of messages that has been dropped because of full client queues.
+     */
+    public long getDroppedMessageCount() {
+        return metrics.getPublishDropped();
+    }
+
+    /**
+     * @return the runtime statistics of this broker.
+     */
+    public MqttBrokerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets how often the broker statistics are published on the <code>$SYS/broker/...</code> topics.
+     * NOTE: needs to be set before the broker is started.
+     *
+     * @param   interval    the interval in milliseconds, 0 disables the $SYS topics
+     */
+    public void setSysInterval(long interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Interval cannot be negative.");
+        this.sysInterval = interval;
+    }
+
+    /**
+     * Sets the store used for messages queued for offline clients with persistent sessions
+     * and for messages waiting for a free in-flight slot. The default is a in-memory store.
+     * NOTE: needs to be set before any client connects.
+     */
+    public void setMessageStore(MqttMessageStore store) {
+        if (store == null)
+            throw new IllegalArgumentException("Message store cannot be null.");
+        this.messageStore = store;
+    }
+
+    public MqttMessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Sets the store for retained messages, e.g. a store with other size limits or a
+     * persistent store. The default is a in-memory store with the default limits.
+     */
+    public void setRetainedMessageStore(MqttRetainedMessageStore store) {
+        if (store == null)
+            throw new IllegalArgumentException("Retained message store cannot be null.");
+        this.retainedMessages = store;
+    }
+
+    public MqttRetainedMessageStore getRetainedMessageStore() {
+        return retainedMessages;
+    }
+
+    /**
+     * Sets the max number of unacknowledged QoS 1 and 2 messages per client,
+     * limited to the 65535 available packet ids.
+     */
+    public void setMaxInFlightMessages(int count) {
+        if (count < 1 || count > 0xFFFF)
+            throw new IllegalArgumentException("In-flight count must be between 1 and 65535.");
+        this.maxInFlightMessages = count;
+    }
+
+    public int getMaxInFlightMessages() {
+        return maxInFlightMessages;
+    }
+
+    /**
+     * Sets the time after which a unacknowledged QoS 1 or 2 message will be resent.
+     * NOTE: needs to be set before any client connects.
+     *
+     * @param   interval    the interval in milliseconds
+     */
+    public void setRetryInterval(long interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Retry interval must be larger than zero.");
+        this.retryInterval = interval;
+    }
+
+    /**
+     * @return the session for the given client identifier or null if there is no such session.
+     */
+    public MqttSession getSession(String clientId) {
+        return sessions.get(clientId);
+    }
+
+    /**
+     * Creates or resumes a session for a connecting client. Any other
+     * connection currently attached to the session will be closed.
+     *
+     * @param   clientId        the client identifier
+     * @param   cleanSession    true if any existing session should be discarded
+     * @param   connection      the connection of the client
+     * @return the session of the client
+     */
+    protected MqttSession connectSession(String clientId, boolean cleanSession, MqttConnectionThread connection) {
+        MqttSession session = sessions.compute(clientId, (id, existing) -> {
+            if (existing != null) {
+                MqttConnectionThread previous = existing.getConnection();
+                if (previous != null && previous != connection) {
+                    logger.info("Client " + clientId + " reconnected, closing previous connection.");
+                    existing.disconnect(previous);
+                    previous.close();
+                }
+                if (!cleanSession && !existing.isCleanSession())
+                    return existing;
+                removeSession(existing);
+            }
+            return new MqttSession(this, clientId, cleanSession);
+        });
+        startRetryTimer();
+        return session;
+    }
+
+    /**
+     * Detaches the connection from its session, clean sessions will be removed.
+     */
+    protected void disconnectSession(MqttSession session, MqttConnectionThread connection) {
+        session.disconnect(connection);
+        if (session.isCleanSession()) {
+            if (session.getClientId() != null)
+                sessions.remove(session.getClientId(), session);
+            removeSession(session);
+        }
+    }
+
+    private void removeSession(MqttSession session) {
+        unsubscribe(session);
+        session.clear();
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "MqttBroker-Timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    private synchronized void startRetryTimer() {
+        if (retryScheduled)
+            return;
+        retryScheduled = true;
+        long period = Math.max(1, retryInterval / 2);
+        getTimer().scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            for (MqttSession session : sessions.values())
+                session.retryInFlight(now, retryInterval);
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the broker statistics in JMX and starts publishing the $SYS topics,
+     * called when the broker starts serving clients.
+     */
+    protected synchronized void startMetrics() {
+        if (metricsStarted)
+            return;
+        metricsStarted = true;
+        metrics.registerMBean("port-" + getPort());
+        if (sysInterval > 0) {
+            getTimer().scheduleWithFixedDelay(() -> {
+                try {
+                    publishSysTopics();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Unable to publish $SYS topics.", e);
+                }
+            }, 0, sysInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Updates the load averages and publishes all changed statistics
+     * as retained messages on the $SYS topics.
+     */
+    protected void publishSysTopics() {
+        synchronized (sysValues) {
+            metrics.updateLoad();
+            for (Map.Entry<String, String> entry : metrics.getSysValues().entrySet()) {
+                if (entry.getValue().equals(sysValues.get(entry.getKey())))
+                    continue;
+                sysValues.put(entry.getKey(), entry.getValue());
+                publish(new MqttMessage(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8), 0, true));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (this) {
+            if (timer != null)
+                timer.shutdown();
+            timer = null;
+            retryScheduled = false;
+            metricsStarted = false;
+        }
+        metrics.unregisterMBean();
+    }
+
+    /**
+     * @return the number of sessions, including disconnected persistent sessions.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of packets waiting in the outbound queues of all connected clients with a session.
+     */
+    public int getQueuedMessageCount() {
+        int count = 0;
+        for (MqttSession session : sessions.values()) {
+            MqttConnectionThread connection = session.getConnection();
+            if (connection != null)
+                count += connection.getOutboundQueueSize();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of unacknowledged QoS 1 and 2 messages of all sessions.
+     */
+    public int getInFlightMessageCount() {
+        int count = 0;
+        for (MqttSession session : sessions.values())
+            count += session.getInFlightCount();
+        return count;
+    }
+
+
+    /**
+     * @return the subscriber count for the specific topic filter, -1 if
      *         topic does not exist or has not been created yet.
      */
     public int getSubscriberCount(String topic) {
-        List<MqttSubscriptionListener> topicSubscriptions = subscriptionListeners.get(topic);
-
-        if (topicSubscriptions != null)
-            return topicSubscriptions.size();
-        return -1;
+        return subscriptions.getSubscriberCount(topic);
     }
 
     /**
@@ -107,24 +425,23 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
     /**
      * Add the listener as a subscriber of the specific topic.
      *
-     * @param topic    the topic that will be subscribed to.
+     * @param topic    the topic filter that will be subscribed to, can contain the wildcards '+' and '#'.
      * @param listener the listener that will be called.
+     * @return false if the topic filter is not valid, true otherwise.
      */
-    public synchronized void subscribe(String topic, MqttSubscriptionListener listener) {
+    public boolean subscribe(String topic, MqttSubscriptionListener listener) {
         if (topic == null || topic.isEmpty() || listener == null)
-            return;
-
-        if (!subscriptionListeners.containsKey(topic)) {
-            logger.finest("Creating new topic: " + topic);
-            subscriptionListeners.put(topic, new ArrayList<>());
+            return true;
+        if (!MqttTopicTree.isValidTopicFilter(topic)) {
+            logger.fine("Invalid topic filter: " + topic);
+            return false;
         }
 
-        List<MqttSubscriptionListener> topicSubscriptions = subscriptionListeners.get(topic);
-
-        if (!topicSubscriptions.contains(listener)) {
-            topicSubscriptions.add(listener);
-            logger.finer("New subscriber on topic: " + topic + " (subscriber count: " + topicSubscriptions.size() + ")");
+        if (subscriptions.add(topic, listener)) {
+            metrics.subscriptionsAdded(1);
+            logger.finer("New subscriber on topic: " + topic + " (subscriber count: " + subscriptions.getSubscriberCount(topic) + ")");
         }
+        return true;
     }
 
     /**
@@ -138,20 +455,41 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
     }
 
     /**
-     * Publish data to the specific topic.
+     * Publish data to the specific topic with QoS 0.
      *
      * @param topic the topic where the data should be published to.
      * @param data  the data that should be published.
      */
     public void publish(String topic, byte[] data) {
+        publish(new MqttMessage(topic, data));
+    }
+
+    /**
+     * Publish a message to its topic. Connected clients will have the message added to their
+     * outbound queue, other listeners will be called directly from the publishing thread.
+     * If the message has the retain flag set it will also replace the retained message of the
+     * topic, or remove it if the payload is empty.
+     *
+     * @param message the message that should be published.
+     */
+    public void publish(MqttMessage message) {
+        String topic = message.getTopic();
         logger.finer("Data has been published to topic: " + topic);
+        metrics.topicPublished(topic);
 
-        if (globalListeners != null)
-            globalListeners.forEach(listener -> listener.dataPublished(topic, data));
+        if (message.isRetain()) {
+            retainedMessages.put(message);
+            // Retain flag is only set when delivering to new subscriptions
+            message = message.withRetain(false);
+        }
 
-        List<MqttSubscriptionListener> topicSubscriptions = subscriptionListeners.get(topic);
-        if (topicSubscriptions != null) {
-            topicSubscriptions.forEach(subscriber -> subscriber.dataPublished(topic, data));
+        for (MqttSubscriptionListener listener : globalListeners)
+            listener.dataPublished(topic, message.getPayload());
+        for (MqttSubscriptionListener subscriber : subscriptions.match(topic)) {
+            if (subscriber instanceof MqttSession)
+                ((MqttSession) subscriber).deliver(message);
+            else
+                subscriber.dataPublished(topic, message.getPayload());
         }
     }
 
@@ -160,12 +498,14 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
      *
      * @param listener the listener that should be unsubscribed.
      */
-    public synchronized void unsubscribe(MqttSubscriptionListener listener) {
+    public void unsubscribe(MqttSubscriptionListener listener) {
         if (listener == null)
             return;
 
-        for (String topic : subscriptionListeners.keySet()) {
-            unsubscribe(topic, listener);
+        List<String> topics = subscriptions.removeAll(listener);
+        if (!topics.isEmpty()) {
+            metrics.subscriptionsAdded(-topics.size());
+            logger.finer("Subscriber unsubscribed from topics: " + topics);
         }
     }
 
@@ -175,43 +515,45 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
      * @param topic    the specific topic that should be unsubscribed from.
      * @param listener the target listener that should be unsubscribed.
      */
-    public synchronized void unsubscribe(String topic, MqttSubscriptionListener listener) {
+    public void unsubscribe(String topic, MqttSubscriptionListener listener) {
         if (topic == null || topic.isEmpty() || listener == null)
             return;
 
-        if (!subscriptionListeners.containsKey(topic))
-            return;
-
-        List<MqttSubscriptionListener> topicSubscriptions = subscriptionListeners.get(topic);
-
-        if (topicSubscriptions.remove(listener)) {
-            logger.finer("Subscriber unsubscribed from topic " + topic + " (subscriber count: " + topicSubscriptions.size() + ")");
-
-            if (topicSubscriptions.isEmpty()) {
-                logger.finest("Removing empty topic: " + topic);
-                subscriptionListeners.remove(topic);
-            }
+        if (subscriptions.remove(topic, listener)) {
+            metrics.subscriptionsAdded(-1);
+            logger.finer("Subscriber unsubscribed from topic " + topic + " (subscriber count: " + subscriptions.getSubscriberCount(topic) + ")");
         }
     }
 
 
-    protected static class MqttConnectionThread implements ThreadedTCPNetworkServerThread, MqttSubscriptionListener {
+    protected static class MqttConnectionThread implements ThreadedTCPNetworkServerThread {
+        /** The max number of packets written before the output is flushed **/
+        private static final int MAX_WRITE_BATCH = 64;
+
         private final MqttBroker broker;
         private Socket socket;
         private BinaryStructInputStream in;
         private BinaryStructOutputStream out;
 
-        private boolean disconnected = false;
+        private final BlockingQueue<MqttPacketHeader> outboundQueue;
+        /** Is set while a delivery task is draining the outbound queue **/
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private MqttSession session;
+        private volatile boolean disconnected = false;
+        /** Is set while the client is counted as connected in the broker metrics **/
+        private final AtomicBoolean clientCounted = new AtomicBoolean();
         /** A message that should be sent in case the connection to client is abnormally disconnected */
-        private MqttPacketPublish willPacket = null;
+        private MqttMessage willMessage = null;
         /** The maximum amount of time(seconds) to wait for activity from client, 0 means no timeout */
         private int connectionTimeoutTime = 0;
 
         /**
-         * Test constructor
+         * Creates a connection without a socket, used for tests and by other transports
          */
         protected MqttConnectionThread(MqttBroker b) {
             broker = b;
+            outboundQueue = new ArrayBlockingQueue<>(b.outboundQueueSize);
         }
 
         public MqttConnectionThread(MqttBroker b, Socket s) throws IOException {
@@ -223,7 +565,7 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
                 baseInputstream = new BufferedInputStream(baseInputstream);
 
             in = new BinaryStructInputStream(baseInputstream);
-            out = new BinaryStructOutputStream(socket.getOutputStream());
+            out = new BinaryStructOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         }
 
 
@@ -232,7 +574,7 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
             try {
                 // Setup connection
 
-                logger.fine("[" + socket.getInetAddress() + "] New MQTT client connected.");
+                logger.fine("[" + getRemoteAddress() + "] New MQTT client connected.");
                 MqttPacketHeader connectPacket = MqttPacket.read(in);
                 handleConnect(connectPacket);
 
@@ -246,22 +588,38 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
                     handlePacket(packet);
                 }
 
+            } catch (SocketTimeoutException e) {
+                logger.fine("[" + getRemoteAddress() + "] Client keep-alive timeout, closing connection.");
             } catch (IOException e) {
-                logger.log(Level.WARNING, "[" + socket.getInetAddress() + "] There was a issue with the client connection.", e);
+                logger.log(Level.WARNING, "[" + getRemoteAddress() + "] There was a issue with the client connection.", e);
             } finally {
+                connectionClosed();
                 try {
-                    sendWillPacket();
-
-                    logger.fine("[" + socket.getInetAddress() + "] MQTT client disconnected.");
                     socket.close();
-                    broker.unsubscribe(this);
                 } catch (IOException e) {
                     logger.log(Level.SEVERE, null, e);
                 }
             }
         }
 
-        private void handleConnect(MqttPacketHeader connectPacket) throws IOException {
+        /**
+         * Releases the session and publishes any will message, should be
+         * called once when the connection to the client has been lost.
+         */
+        protected void connectionClosed() {
+            if (session != null)
+                broker.disconnectSession(session, this);
+            if (clientCounted.compareAndSet(true, false))
+                broker.metrics.clientDisconnected();
+            sendWillPacket();
+
+            logger.fine("[" + getRemoteAddress() + "] MQTT client disconnected.");
+            disconnected = true;
+            outboundQueue.clear();
+        }
+
+        protected void handleConnect(MqttPacketHeader connectPacket) throws IOException {
+            packetReceived(connectPacket);
             // Unexpected packet?
             if (!(connectPacket instanceof MqttPacketConnect))
                 throw new IOException("Expected MqttPacketConnect but received " + connectPacket.getClass());
@@ -290,22 +648,33 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
             }
 
             // Handle Session
-            if (conn.flagCleanSession) {
-                // TODO: Remove session
-                connectAck.flagSessionPresent = false;
+            String clientId = conn.clientIdentifier;
+            if (clientId == null || clientId.isEmpty()) {
+                if (!conn.flagCleanSession) {
+                    // A persistent session requires a client identifier
+                    connectAck.returnCode = MqttPacketConnectAck.RETCODE_IDENTIFIER_REJECT;
+                    sendPacket(connectAck);
+                    disconnected = true;
+                    return;
+                }
+                clientId = null;
+            }
+
+            if (clientId != null) {
+                MqttSession existing = broker.getSession(clientId);
+                connectAck.flagSessionPresent = !conn.flagCleanSession && existing != null && !existing.isCleanSession();
+                session = broker.connectSession(clientId, conn.flagCleanSession, this);
             } else {
-                // TODO: Restore or create new session
-                throw new UnsupportedOperationException("Sessions currently not supported.");
+                connectAck.flagSessionPresent = false;
+                session = new MqttSession(broker, null, true);
             }
 
             // Handle will message
             if (conn.flagWillFlag) {
-                logger.fine("[" + socket.getInetAddress() + "] Registered will packet for topic: " + conn.willTopic);
-                willPacket = new MqttPacketPublish();
-                willPacket.topicName = conn.willTopic;
-                willPacket.payload = conn.willPayload;
+                logger.fine("[" + getRemoteAddress() + "] Registered will packet for topic: " + conn.willTopic);
+                willMessage = new MqttMessage(conn.willTopic, conn.willPayload, Math.min(conn.flagWillQoS, 2), conn.flagWillRetain);
             } else {
-                willPacket = null;
+                willMessage = null;
             }
 
             // TODO: authenticate
@@ -318,25 +687,61 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
             }
 
             connectionTimeoutTime = conn.keepAlive;
+            if (socket != null && connectionTimeoutTime > 0) {
+                // The client is allowed one and a half keep-alive period before being disconnected
+                socket.setSoTimeout(getKeepAliveTimeout());
+            }
 
-            // ----------------------------------
-            // Handling Payload
-            // ----------------------------------
+            sendPacket(connectAck);
+            if (clientCounted.compareAndSet(false, true))
+                broker.metrics.clientConnected();
 
+            // Resend unacknowledged and queued messages
+            session.connect(this);
+        }
 
-            sendPacket(connectAck);
+        /**
+         * @return the session of this connection, a anonymous clean session is created if the client has not connected.
+         */
+        protected MqttSession getSession() {
+            if (session == null) {
+                session = new MqttSession(broker, null, true);
+                session.connect(this);
+            }
+            return session;
         }
 
-        protected void handlePacket(MqttPacketHeader packet) throws IOException {
-            // TODO: QOS 1
-            // TODO: QOS 2
-            // TODO: handle connection timeout
+        /**
+         * @return the time in milliseconds that the connection can be inactive
+         *         before the client is disconnected, 0 means no timeout.
+         */
+        protected int getKeepAliveTimeout() {
+            return connectionTimeoutTime * 1500;
+        }
 
+        protected void handlePacket(MqttPacketHeader packet) throws IOException {
+            packetReceived(packet);
             switch (packet.type) {
                 case MqttPacketHeader.PACKET_TYPE_PUBLISH:
                     handlePublish((MqttPacketPublish) packet);
                     break;
 
+                // QoS acknowledgements of messages sent to the client
+                case MqttPacketHeader.PACKET_TYPE_PUBACK:
+                    getSession().handlePublishAck(((MqttPacketPublishAck) packet).packetId);
+                    break;
+                case MqttPacketHeader.PACKET_TYPE_PUBREC:
+                    getSession().handlePublishRec(((MqttPacketPublishRec) packet).packetId);
+                    break;
+                case MqttPacketHeader.PACKET_TYPE_PUBCOMP:
+                    getSession().handlePublishComp(((MqttPacketPublishComp) packet).packetId);
+                    break;
+
+                // QoS 2 release of a message received from the client
+                case MqttPacketHeader.PACKET_TYPE_PUBREL:
+                    handlePublishRel((MqttPacketPublishRel) packet);
+                    break;
+
                 case MqttPacketHeader.PACKET_TYPE_SUBSCRIBE:
                     handleSubscribe((MqttPacketSubscribe) packet);
                     break;
@@ -352,46 +757,103 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
 
                 // Close connection
                 default:
-                    logger.warning("[" + socket.getInetAddress() + "] Received unknown packet type: " + packet.type + " (" + packet.getClass() + ")");
+                    logger.warning("[" + getRemoteAddress() + "] Received unknown packet type: " + packet.type + " (" + packet.getClass() + ")");
                     sendWillPacket();
                     /* FALLTHROUGH */
                 case MqttPacketHeader.PACKET_TYPE_DISCONNECT:
-                    willPacket = null;
+                    willMessage = null;
                     disconnected = true;
                     break;
             }
         }
 
 
-        private void handlePublish(MqttPacketPublish publishPacket) {
-            if (publishPacket.getFlagQoS() != 0)
-                throw new UnsupportedOperationException("QoS larger then 0 not supported.");
+        private void handlePublish(MqttPacketPublish publishPacket) throws IOException {
+            int qos = publishPacket.getFlagQoS();
+            logger.finer("[" + getRemoteAddress() + "] Publishing to topic: " + publishPacket.topicName + " (QoS " + qos + ")");
+
+            switch (qos) {
+                case 0:
+                    broker.publish(createMessage(publishPacket));
+                    break;
+
+                case 1:
+                    broker.publish(createMessage(publishPacket));
+                    MqttPacketPublishAck publishAck = new MqttPacketPublishAck();
+                    publishAck.packetId = publishPacket.packetId;
+                    sendPacket(publishAck);
+                    break;
 
-            logger.finer("[" + socket.getInetAddress() + "] Publishing to topic: " + publishPacket.topicName);
-            broker.publish(publishPacket.topicName, publishPacket.payload);
+                case 2:
+                    // Only publish the first time we receive the packet id, a duplicate
+                    // is sent if our PUBREC was lost.
+                    if (getSession().addReceivedPacketId(publishPacket.packetId))
+                        broker.publish(createMessage(publishPacket));
+                    MqttPacketPublishRec publishRec = new MqttPacketPublishRec();
+                    publishRec.packetId = publishPacket.packetId;
+                    sendPacket(publishRec);
+                    break;
+
+                default:
+                    logger.warning("[" + getRemoteAddress() + "] Received invalid QoS level: " + qos);
+                    disconnected = true;
+                    break;
+            }
+        }
+
+        private void handlePublishRel(MqttPacketPublishRel publishRel) throws IOException {
+            getSession().removeReceivedPacketId(publishRel.packetId);
+
+            MqttPacketPublishComp publishComp = new MqttPacketPublishComp();
+            publishComp.packetId = publishRel.packetId;
+            sendPacket(publishComp);
+        }
+
+        private static MqttMessage createMessage(MqttPacketPublish publishPacket) {
+            return new MqttMessage(publishPacket.topicName, publishPacket.payload,
+                    publishPacket.getFlagQoS(), publishPacket.getFlagRetain());
         }
 
         private void handleSubscribe(MqttPacketSubscribe subscribePacket) throws IOException {
             MqttPacketSubscribeAck subscribeAckPacket = new MqttPacketSubscribeAck();
             subscribeAckPacket.packetId = subscribePacket.packetId;
+            Map<String, MqttMessage> retained = new LinkedHashMap<>();
 
             for (MqttSubscribePayload payload : subscribePacket.payloads) {
-                logger.finer("[" + socket.getInetAddress() + "] Subscribing to topic: " + payload.topicFilter);
-                broker.subscribe(payload.topicFilter, this);
+                logger.finer("[" + getRemoteAddress() + "] Subscribing to topic: " + payload.topicFilter);
+                int qos = Math.min(payload.qos, 2);
+                boolean success = MqttTopicTree.isValidTopicFilter(payload.topicFilter);
+                if (success) {
+                    getSession().addSubscription(payload.topicFilter, qos);
+                    broker.subscribe(payload.topicFilter, getSession());
+
+                    for (MqttMessage message : broker.retainedMessages.match(payload.topicFilter))
+                        retained.put(message.getTopic(), message);
+                }
 
                 // Prepare response
                 MqttSubscribeAckPayload ackPayload = new MqttSubscribeAckPayload();
-                ackPayload.returnCode = MqttSubscribeAckPayload.RETCODE_SUCESS_MAX_QOS_0;
+                ackPayload.returnCode = (success ? qos : MqttSubscribeAckPayload.RETCODE_FAILURE);
                 subscribeAckPacket.payloads.add(ackPayload);
             }
 
-            sendPacket(subscribeAckPacket);
+            if (retained.isEmpty()) {
+                sendPacket(subscribeAckPacket);
+            } else {
+                // Send the ack and all matching retained messages in a single write
+                List<MqttPacketHeader> packets = new ArrayList<>(retained.size() + 1);
+                packets.add(subscribeAckPacket);
+                packets.addAll(getSession().createRetainedPackets(retained.values()));
+                logger.finer("[" + getRemoteAddress() + "] Sending " + (packets.size() - 1) + " retained messages.");
+                sendPackets(packets);
+            }
         }
 
         private void handleUnsubscribe(MqttPacketUnsubscribe unsubscribePacket) throws IOException {
             for (MqttUnsubscribePayload payload : unsubscribePacket.payloads) {
-                logger.finer("[" + socket.getInetAddress() + "] Unsubscribing from topic: " + payload.topicFilter);
-                broker.unsubscribe(payload.topicFilter, this);
+                logger.finer("[" + getRemoteAddress() + "] Unsubscribing from topic: " + payload.topicFilter);
+                broker.unsubscribe(payload.topicFilter, getSession());
+                getSession().removeSubscription(payload.topicFilter);
             }
 
             // Prepare response
@@ -401,26 +863,135 @@ public class MqttBroker extends ThreadedTCPNetworkServer {
         }
 
 
-        @Override
-        public void dataPublished(String topic, byte[] data) {
-            // Data has been published to a subscribed topic.
+        /**
+         * Adds the packet to the outbound queue of this client, the packet will be
+         * sent asynchronously by the delivery executor. If the queue is full the
+         * packet will be handled according to the brokers {@link SlowConsumerPolicy}.
+         */
+        protected void queuePacket(MqttPacketHeader packet) {
+            if (disconnected)
+                return;
+
+            if (!outboundQueue.offer(packet)) {
+                switch (broker.slowConsumerPolicy) {
+                    case DROP_OLDEST:
+                        do {
+                            if (outboundQueue.poll() != null)
+                                broker.metrics.publishDropped();
+                        } while (!outboundQueue.offer(packet));
+                        break;
+                    case DISCONNECT:
+                        logger.info("[" + getRemoteAddress() + "] Outbound queue full, disconnecting slow client.");
+                        broker.metrics.publishDropped();
+                        close();
+                        return;
+                    case DROP_NEWEST:
+                    default:
+                        logger.finest("[" + getRemoteAddress() + "] Outbound queue full, dropping message.");
+                        broker.metrics.publishDropped();
+                        return;
+                }
+            }
+
+            if (draining.compareAndSet(false, true))
+                broker.deliveryExecutor.execute(this::drainOutboundQueue);
+        }
+
+        /**
+         * Writes all queued packets to the client in batches.
+         */
+        private void drainOutboundQueue() {
+            List<MqttPacketHeader> batch = new ArrayList<>(MAX_WRITE_BATCH);
+            try {
+                do {
+                    while (outboundQueue.drainTo(batch, MAX_WRITE_BATCH) > 0) {
+                        sendPackets(batch);
+                        batch.clear();
+                    }
+                    draining.set(false);
+                    // Check for packets added after the queue was drained but before the flag was cleared
+                } while (!outboundQueue.isEmpty() && draining.compareAndSet(false, true));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "[" + getRemoteAddress() + "] Unable to deliver messages to client.", e);
+                outboundQueue.clear();
+                draining.set(false);
+                close();
+            }
         }
 
-        private void sendWillPacket() throws IOException {
-            if (willPacket != null) {
-                logger.fine("[" + socket.getInetAddress() + "] Publishing will packet.");
-                sendPacket(willPacket);
-                willPacket = null;
+        private void sendWillPacket() {
+            if (willMessage != null) {
+                logger.fine("[" + getRemoteAddress() + "] Publishing will message.");
+                broker.publish(willMessage);
+                willMessage = null;
             }
         }
 
+        /**
+         * Writes a packet directly to the client.
+         */
         public synchronized void sendPacket(MqttPacketHeader packet) throws IOException {
             MqttPacket.write(out, packet);
+            out.flush();
+            packetSent(packet);
+        }
+
+        /**
+         * Writes multiple packets to the client with a single flush.
+         */
+        protected synchronized void sendPackets(List<MqttPacketHeader> packets) throws IOException {
+            for (MqttPacketHeader packet : packets)
+                MqttPacket.write(out, packet);
+            out.flush();
+            for (MqttPacketHeader packet : packets)
+                packetSent(packet);
+        }
+
+        /**
+         * Updates the broker metrics with a packet received from the client.
+         */
+        protected void packetReceived(MqttPacketHeader packet) {
+            if (packet != null)
+                broker.metrics.packetReceived(packet.type == MqttPacketHeader.PACKET_TYPE_PUBLISH, MqttPacket.getPacketLength(packet));
+        }
+
+        /**
+         * Updates the broker metrics with a packet that has been written to the client.
+         */
+        protected void packetSent(MqttPacketHeader packet) {
+            broker.metrics.packetSent(packet.type == MqttPacketHeader.PACKET_TYPE_PUBLISH, MqttPacket.getPacketLength(packet));
+        }
+
+        /**
+         * @return the number of packets waiting in the outbound queue of this client.
+         */
+        protected int getOutboundQueueSize() {
+            return outboundQueue.size();
+        }
+
+        /**
+         * Closes the client connection, the reading thread will do the rest of the cleanup.
+         */
+        protected void close() {
+            disconnected = true;
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
         }
 
 
         public boolean isDisconnected() {
             return disconnected;
         }
+
+        /**
+         * @return the address of the connected client or null if there is no socket.
+         */
+        public InetAddress getRemoteAddress() {
+            return (socket != null ? socket.getInetAddress() : null);
+        }
     }
 }
@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.log.LogUtil;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Runtime statistics of a {@link MqttBroker}. The counters on the message path are
+ * striped {@link LongAdder}s so that they can be updated by many connections concurrently
+ * without contention, gauges such as queue depths are calculated when read.
+ * <p>
+ * The statistics are exposed through JMX and published by the broker on the standard
+ * <code>$SYS/broker/...</code> topics, see {@link #getSysValues()}. Load values are exponential
+ * moving averages in messages or bytes per minute, calculated every time the values are published.
+ * <p>
+ * Message rates for individual topics are tracked for up to a max number of topics, topics
+ * published after the limit has been reached will not be tracked.
+ *
+ * @author Ziver
+ */
+public class MqttBrokerMetrics implements MqttBrokerMetricsMXBean {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final String SYS_TOPIC_PREFIX = "$SYS/broker/";
+    public static final int DEFAULT_MAX_TRACKED_TOPICS = 1000;
+
+
+    private final MqttBroker broker;
+    private ObjectName objectName;
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicInteger connectedClients = new AtomicInteger();
+    private final AtomicInteger maxConnectedClients = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder publishReceived = new LongAdder();
+    private final LongAdder publishSent = new LongAdder();
+    private final LongAdder publishDropped = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final Map<String, LongAdder> topicCounters = new ConcurrentHashMap<>();
+    private volatile int maxTrackedTopics = DEFAULT_MAX_TRACKED_TOPICS;
+
+    // Load calculation state, only accessed by the thread calling updateLoad()
+    private final LoadAverage[] loads = {
+            new LoadAverage("messages/received", messagesReceived),
+            new LoadAverage("messages/sent", messagesSent),
+            new LoadAverage("publish/received", publishReceived),
+            new LoadAverage("publish/sent", publishSent),
+            new LoadAverage("bytes/received", bytesReceived),
+            new LoadAverage("bytes/sent", bytesSent),
+    };
+    private Map<String, Long> lastTopicCounts = new HashMap<>();
+    private volatile Map<String, Double> topicRates = Collections.emptyMap();
+    private long lastUpdate = System.nanoTime();
+
+
+    protected MqttBrokerMetrics(MqttBroker broker) {
+        this.broker = broker;
+    }
+
+
+    /**
+     * @param   maxTopics   the max number of topics that message rates will be tracked for, 0 disables the tracking
+     */
+    public void setMaxTrackedTopics(int maxTopics) {
+        this.maxTrackedTopics = maxTopics;
+        if (maxTopics == 0)
+            topicCounters.clear();
+    }
+
+    /**
+     * Registers the metrics in the platform MBeanServer, a failed registration will only be logged.
+     *
+     * @param   name    a unique name of the broker, e.g. the port number
+     */
+    protected synchronized void registerMBean(String name) {
+        if (objectName != null)
+            return;
+        try {
+            ObjectName objectName = new ObjectName(MqttBroker.class.getName() + ":type=Metrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (Exception e) {
+            logger.warning("Unable to register broker metrics in JMX: " + e.getMessage());
+        }
+    }
+
+    protected synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.warning("Unable to unregister broker metrics from JMX: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    // ------------------------------------------
+    // Update methods
+    // ------------------------------------------
+
+    protected void clientConnected() {
+        int count = connectedClients.incrementAndGet();
+        maxConnectedClients.accumulateAndGet(count, Math::max);
+        totalConnections.increment();
+    }
+
+    protected void clientDisconnected() {
+        connectedClients.decrementAndGet();
+    }
+
+    protected void subscriptionsAdded(int count) {
+        subscriptionCount.addAndGet(count);
+    }
+
+    protected void packetReceived(boolean publish, int bytes) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+        if (publish)
+            publishReceived.increment();
+    }
+
+    protected void packetSent(boolean publish, int bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+        if (publish)
+            publishSent.increment();
+    }
+
+    protected void publishDropped() {
+        publishDropped.increment();
+    }
+
+    protected void topicPublished(String topic) {
+        if (maxTrackedTopics <= 0 || topic.startsWith("$"))
+            return;
+
+        LongAdder counter = topicCounters.get(topic);
+        if (counter == null) {
+            if (topicCounters.size() >= maxTrackedTopics)
+                return;
+            counter = topicCounters.computeIfAbsent(topic, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    // ------------------------------------------
+    // Getters
+    // ------------------------------------------
+
+    @Override
+    public long getUptime() {
+        return (System.currentTimeMillis() - startTime) / 1000;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return connectedClients.get();
+    }
+
+    @Override
+    public int getMaxConnectedClients() {
+        return maxConnectedClients.get();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return broker.getSessionCount();
+    }
+
+    @Override
+    public int getSubscriptionCount() {
+        return subscriptionCount.get();
+    }
+
+    @Override
+    public int getRetainedMessageCount() {
+        return broker.getRetainedMessageStore().getMessageCount();
+    }
+
+    @Override
+    public int getQueuedMessageCount() {
+        return broker.getQueuedMessageCount();
+    }
+
+    @Override
+    public int getInFlightMessageCount() {
+        return broker.getInFlightMessageCount();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getPublishReceived() {
+        return publishReceived.sum();
+    }
+
+    @Override
+    public long getPublishSent() {
+        return publishSent.sum();
+    }
+
+    @Override
+    public long getPublishDropped() {
+        return publishDropped.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public Map<String, Double> getTopicMessageRates() {
+        return topicRates;
+    }
+
+    // ------------------------------------------
+    // $SYS topics
+    // ------------------------------------------
+
+    /**
+     * Recalculates the load averages and topic rates, should be called periodically.
+     */
+    protected synchronized void updateLoad() {
+        long now = System.nanoTime();
+        double interval = (now - lastUpdate) / 1_000_000_000.0;
+        lastUpdate = now;
+        if (interval <= 0)
+            return;
+
+        for (LoadAverage load : loads)
+            load.update(interval);
+
+        Map<String, Long> topicCounts = new HashMap<>();
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : topicCounters.entrySet()) {
+            long count = entry.getValue().sum();
+            Long previous = lastTopicCounts.get(entry.getKey());
+            topicCounts.put(entry.getKey(), count);
+            rates.put(entry.getKey(), (count - (previous != null ? previous : 0)) / interval);
+        }
+        lastTopicCounts = topicCounts;
+        topicRates = Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * @return a map of all $SYS topics and their current values
+     */
+    public synchronized Map<String, String> getSysValues() {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(SYS_TOPIC_PREFIX + "uptime", getUptime() + " seconds");
+        values.put(SYS_TOPIC_PREFIX + "clients/connected", String.valueOf(getConnectedClients()));
+        values.put(SYS_TOPIC_PREFIX + "clients/maximum", String.valueOf(getMaxConnectedClients()));
+        values.put(SYS_TOPIC_PREFIX + "clients/total", String.valueOf(getSessionCount()));
+        values.put(SYS_TOPIC_PREFIX + "messages/received", String.valueOf(getMessagesReceived()));
+        values.put(SYS_TOPIC_PREFIX + "messages/sent", String.valueOf(getMessagesSent()));
+        values.put(SYS_TOPIC_PREFIX + "messages/inflight", String.valueOf(getInFlightMessageCount()));
+        values.put(SYS_TOPIC_PREFIX + "messages/queued", String.valueOf(getQueuedMessageCount()));
+        values.put(SYS_TOPIC_PREFIX + "publish/messages/received", String.valueOf(getPublishReceived()));
+        values.put(SYS_TOPIC_PREFIX + "publish/messages/sent", String.valueOf(getPublishSent()));
+        values.put(SYS_TOPIC_PREFIX + "publish/messages/dropped", String.valueOf(getPublishDropped()));
+        values.put(SYS_TOPIC_PREFIX + "bytes/received", String.valueOf(getBytesReceived()));
+        values.put(SYS_TOPIC_PREFIX + "bytes/sent", String.valueOf(getBytesSent()));
+        values.put(SYS_TOPIC_PREFIX + "subscriptions/count", String.valueOf(getSubscriptionCount()));
+        values.put(SYS_TOPIC_PREFIX + "retained messages/count", String.valueOf(getRetainedMessageCount()));
+        for (LoadAverage load : loads) {
+            for (int i = 0; i < LoadAverage.PERIODS.length; i++) {
+                values.put(SYS_TOPIC_PREFIX + "load/" + load.name + "/" + LoadAverage.PERIODS[i] + "min",
+                        String.format(Locale.ROOT, "%.2f", load.averages[i]));
+            }
+        }
+        return values;
+    }
+
+
+    /**
+     * Exponential moving averages of the rate of a counter over 1, 5 and 15 minutes.
+     */
+    private static class LoadAverage {
+        private static final int[] PERIODS = {1, 5, 15}; // minutes
+
+        private final String name;
+        private final LongAdder counter;
+        private final double[] averages = new double[PERIODS.length];
+        private long lastCount;
+
+        public LoadAverage(String name, LongAdder counter) {
+            this.name = name;
+            this.counter = counter;
+            this.lastCount = counter.sum();
+        }
+
+        /**
+         * @param   interval    the time in seconds since the last update
+         */
+        public void update(double interval) {
+            long count = counter.sum();
+            double ratePerMinute = (count - lastCount) / interval * 60;
+            lastCount = count;
+
+            for (int i = 0; i < PERIODS.length; i++) {
+                double factor = 1 - Math.exp(-interval / (PERIODS[i] * 60.0));
+                averages[i] += factor * (ratePerMinute - averages[i]);
+            }
+        }
+    }
+}
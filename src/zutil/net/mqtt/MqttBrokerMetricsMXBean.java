@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import java.util.Map;
+
+/**
+ * JMX definition of the broker statistics, see {@link MqttBrokerMetrics}.
+ *
+ * @author Ziver
+ */
+public interface MqttBrokerMetricsMXBean {
+    /** @return the number of seconds since the broker was created */
+    long getUptime();
+
+    int getConnectedClients();
+    int getMaxConnectedClients();
+    long getTotalConnections();
+    /** @return the number of sessions, including disconnected persistent sessions */
+    int getSessionCount();
+    int getSubscriptionCount();
+    int getRetainedMessageCount();
+    /** @return the number of packets in the outbound queues of all connected clients */
+    int getQueuedMessageCount();
+    /** @return the number of unacknowledged QoS 1 and 2 messages of all sessions */
+    int getInFlightMessageCount();
+
+    long getMessagesReceived();
+    long getMessagesSent();
+    long getPublishReceived();
+    long getPublishSent();
+    long getPublishDropped();
+    long getBytesReceived();
+    long getBytesSent();
+
+    /** @return the number of messages published per second on each tracked topic, since the last load update */
+    Map<String, Double> getTopicMessageRates();
+}
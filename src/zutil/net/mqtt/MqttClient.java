@@ -24,10 +24,927 @@
 
 package zutil.net.mqtt;
 
+import zutil.log.LogUtil;
+import zutil.net.mqtt.packet.*;
+import zutil.net.mqtt.packet.MqttPacketSubscribe.MqttSubscribePayload;
+import zutil.net.mqtt.packet.MqttPacketSubscribeAck.MqttSubscribeAckPayload;
+import zutil.net.mqtt.packet.MqttPacketUnsubscribe.MqttUnsubscribePayload;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
- * TODO:
+ * A asynchronous MQTT client. Publish, subscribe and unsubscribe requests return
+ * futures and are pipelined to the broker without waiting for the acknowledgements
+ * of earlier requests, up to a configurable number of unacknowledged requests.
+ * <p>
+ * Packets are written by a dedicated writer thread that writes all queued packets
+ * before flushing, so many small packets will be coalesced into a single socket write.
+ * Received messages are dispatched to the subscription listeners from the reader thread,
+ * so listeners should not block.
+ * <p>
+ * If the connection is lost the client will reconnect with a exponential back-off, resend
+ * all unacknowledged requests and restore the subscriptions if the broker did not keep the
+ * session. Requests made while disconnected, or while the in-flight window is full, are
+ * buffered up to a configurable size, the futures of requests that do not fit will fail.
+ * <p>
+ * Example:
+ * <pre>
+ *     MqttClient client = new MqttClient("localhost");
+ *     client.connect();
+ *     client.subscribe("sensors/#", 1, (topic, data) -> ...);
+ *     client.publish("sensors/temp", "21.5".getBytes(), 1, false).thenRun(() -> ...);
+ * </pre>
  *
  * @see <a href="http://docs.oasis-open.org/mqtt/mqtt/v3.1.1/mqtt-v3.1.1.html">MQTT v3.1.1 Spec</a>
+ * @author Ziver
  */
 public class MqttClient {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final int DEFAULT_KEEP_ALIVE = 60; // sec
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000; // 10 sec
+    public static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 100;
+    public static final int DEFAULT_BUFFER_SIZE = 10_000;
+    public static final long DEFAULT_RECONNECT_DELAY = 1000; // 1 sec
+    public static final long DEFAULT_MAX_RECONNECT_DELAY = 60 * 1000; // 1 min
+    /** The max number of packets written before the output is flushed **/
+    private static final int MAX_WRITE_BATCH = 256;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * A packet queued for writing, and for publish, subscribe and unsubscribe
+     * requests also the future that is completed by the acknowledgement.
+     */
+    private static class Request {
+        /** The packet to write, replaced by a PUBREL when a QoS 2 message has been received by the broker **/
+        public MqttPacketHeader packet;
+        public final CompletableFuture<?> future;
+        public final MqttSubscriptionListener listener;
+        /** If the request is completed by a acknowledgement instead of when it has been written **/
+        public final boolean needsAck;
+
+        public Request(MqttPacketHeader packet, CompletableFuture<?> future) {
+            this(packet, future, null);
+        }
+        public Request(MqttPacketHeader packet, CompletableFuture<?> future, MqttSubscriptionListener listener) {
+            this.packet = packet;
+            this.future = future;
+            this.listener = listener;
+            this.needsAck = requiresAck(packet);
+        }
+    }
+
+    /**
+     * The socket and streams of a single connection to the broker.
+     */
+    private static class Connection {
+        public final Socket socket;
+        public final InputStream in;
+        public final BinaryStructOutputStream out;
+        public final MqttPacketDecoder decoder = new MqttPacketDecoder(MqttPacketDecoder.MAX_PACKET_SIZE);
+        /** Data received after the CONNACK packet while connecting **/
+        public ByteBuffer remaining;
+
+        public Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = new BinaryStructOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+
+    private final String host;
+    private final int port;
+    private final String clientId;
+
+    // Configuration
+    private int keepAlive = DEFAULT_KEEP_ALIVE;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private boolean cleanSession = true;
+    private String username;
+    private String password;
+    private MqttMessage willMessage;
+    private int maxInFlightMessages = DEFAULT_MAX_IN_FLIGHT_MESSAGES;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean autoReconnect = true;
+    private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+
+    // State, guarded by this object
+    private Connection connection;
+    private boolean connected;
+    private boolean closed;
+    /** Requests waiting for a acknowledgement, in the order they were sent **/
+    private final Map<Integer, Request> inFlight = new LinkedHashMap<>();
+    /** Requests waiting for a connection or a free in-flight slot **/
+    private final Deque<Request> buffered = new ArrayDeque<>();
+    /** Subscriptions acknowledged by the broker, topic filter mapped to QoS **/
+    private final Map<String, Integer> subscriptions = new LinkedHashMap<>();
+    private int lastPacketId;
+
+    private final MqttTopicTree<MqttSubscriptionListener> listeners = new MqttTopicTree<>();
+    /** The listeners of each topic filter, used when unsubscribing **/
+    private final Map<String, Set<MqttSubscriptionListener>> filterListeners = new ConcurrentHashMap<>();
+    /** Packet ids of received QoS 2 messages that have not been released yet **/
+    private final Set<Integer> receivedPacketIds = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<Request> outbound = new LinkedBlockingQueue<>();
+    private volatile long lastWrite;
+    private Thread readerThread;
+    private Thread writerThread;
+
+
+    /**
+     * Creates a client connecting to the default MQTT port with a random client identifier.
+     */
+    public MqttClient(String host) {
+        this(host, MqttBroker.MQTT_PORT, null);
+    }
+
+    /**
+     * @param   host        the hostname of the broker
+     * @param   port        the port of the broker
+     * @param   clientId    the client identifier, a random identifier will be generated if null
+     */
+    public MqttClient(String host, int port, String clientId) {
+        this.host = host;
+        this.port = port;
+        this.clientId = (clientId != null && !clientId.isEmpty() ? clientId :
+                "zutil-" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE));
+    }
+
+
+    /**
+     * @param   seconds     the max time between packets sent to the broker, a ping will be sent if there is no other traffic.
+     *                      0 disables the keep-alive. NOTE: needs to be set before connecting.
+     */
+    public void setKeepAlive(int seconds) {
+        if (seconds < 0 || seconds > 0xFFFF)
+            throw new IllegalArgumentException("Keep-alive must be between 0 and 65535 seconds.");
+        this.keepAlive = seconds;
+    }
+
+    /**
+     * @param   timeout     the time in milliseconds to wait for a connection and its CONNACK packet
+     */
+    public void setConnectTimeout(int timeout) {
+        this.connectTimeout = timeout;
+    }
+
+    /**
+     * @param   cleanSession    false if the broker should keep the subscriptions and queued messages
+     *                          of this client between connections, the default is true.
+     */
+    public void setCleanSession(boolean cleanSession) {
+        this.cleanSession = cleanSession;
+    }
+
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @param   message     a message that the broker should publish if the connection is lost, null for no message
+     */
+    public void setWillMessage(MqttMessage message) {
+        this.willMessage = message;
+    }
+
+    /**
+     * @param   count   the max number of unacknowledged requests, further QoS 1 and 2 messages and
+     *                  subscription requests will be buffered until a acknowledgement is received.
+     *                  Limited to the 65535 available packet ids.
+     */
+    public void setMaxInFlightMessages(int count) {
+        if (count < 1 || count > 0xFFFF)
+            throw new IllegalArgumentException("In-flight count must be between 1 and 65535.");
+        this.maxInFlightMessages = count;
+    }
+
+    /**
+     * @param   size    the max number of requests buffered while disconnected or while
+     *                  the in-flight window is full, further requests will fail.
+     */
+    public void setBufferSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Buffer size cannot be negative.");
+        this.bufferSize = size;
+    }
+
+    /**
+     * @param   autoReconnect   true if the client should reconnect when the connection is lost, the default is true.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * @param   delay       the time in milliseconds before the first reconnect attempt
+     * @param   maxDelay    the max time between reconnect attempts, the delay is doubled after each failed attempt
+     */
+    public void setReconnectDelay(long delay, long maxDelay) {
+        if (delay < 1 || maxDelay < delay)
+            throw new IllegalArgumentException("Invalid reconnect delay.");
+        this.reconnectDelay = delay;
+        this.maxReconnectDelay = maxDelay;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the number of requests waiting for a acknowledgement.
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection or a free in-flight slot.
+     */
+    public synchronized int getBufferedCount() {
+        return buffered.size();
+    }
+
+    // ------------------------------------------
+    // Connection
+    // ------------------------------------------
+
+    /**
+     * Connects to the broker and waits for its acknowledgement. The client will
+     * reconnect by itself after this method has succeeded once.
+     *
+     * @throws IOException if the connection fails or is refused by the broker
+     */
+    public void connect() throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Client has been closed.");
+            if (readerThread != null)
+                return;
+        }
+
+        openConnection();
+
+        synchronized (this) {
+            readerThread = new Thread(this::readLoop, "MqttClient-Reader-" + clientId);
+            readerThread.setDaemon(true);
+            readerThread.start();
+            writerThread = new Thread(this::writeLoop, "MqttClient-Writer-" + clientId);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    private void openConnection() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(connectTimeout);
+            Connection conn = new Connection(socket);
+
+            MqttPacket.write(conn.out, createConnectPacket());
+            conn.out.flush();
+
+            // Wait for CONNACK
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            MqttPacketHeader packet = null;
+            ByteBuffer data = ByteBuffer.allocate(0);
+            while (packet == null) {
+                int length = conn.in.read(buffer);
+                if (length < 0)
+                    throw new EOFException("Connection closed by broker.");
+                data = ByteBuffer.wrap(buffer, 0, length);
+                packet = conn.decoder.decode(data);
+            }
+            if (!(packet instanceof MqttPacketConnectAck))
+                throw new IOException("Expected MqttPacketConnectAck but received " + packet.getClass());
+            MqttPacketConnectAck connectAck = (MqttPacketConnectAck) packet;
+            if (connectAck.returnCode != MqttPacketConnectAck.RETCODE_OK)
+                throw new IOException("Connection refused by broker, return code: " + connectAck.returnCode);
+
+            if (data.hasRemaining())
+                conn.remaining = ByteBuffer.wrap(Arrays.copyOfRange(buffer, data.position(), data.limit()));
+            // Allow one and a half keep-alive period before the connection is considered lost
+            socket.setSoTimeout(keepAlive * 1500);
+
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Client has been closed.");
+                connection = conn;
+                lastWrite = System.currentTimeMillis();
+                resume(connectAck.flagSessionPresent);
+                connected = true;
+                sendBuffered();
+            }
+            logger.fine("Connected to MQTT broker " + host + ":" + port + " (session present: " + connectAck.flagSessionPresent + ")");
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private MqttPacketConnect createConnectPacket() {
+        MqttPacketConnect connect = new MqttPacketConnect();
+        connect.protocolLevel = MqttBroker.MQTT_PROTOCOL_VERSION;
+        connect.clientIdentifier = clientId;
+        connect.flagCleanSession = cleanSession;
+        connect.keepAlive = keepAlive;
+        if (willMessage != null) {
+            connect.flagWillFlag = true;
+            connect.willTopic = willMessage.getTopic();
+            connect.willPayload = willMessage.getPayload();
+            connect.flagWillQoS = willMessage.getQoS();
+            connect.flagWillRetain = willMessage.isRetain();
+        }
+        if (username != null) {
+            connect.flagUsername = true;
+            connect.username = username;
+        }
+        if (password != null) {
+            connect.flagPassword = true;
+            connect.password = password;
+        }
+        return connect;
+    }
+
+    /**
+     * Queues all unacknowledged requests for resending and restores the
+     * subscriptions if the broker did not have a session for this client.
+     */
+    private void resume(boolean sessionPresent) {
+        if (!sessionPresent)
+            receivedPacketIds.clear();
+
+        for (Request request : inFlight.values()) {
+            if (request.packet instanceof MqttPacketPublish)
+                ((MqttPacketPublish) request.packet).setFlagDup(true);
+            outbound.add(request);
+        }
+
+        if (!sessionPresent && !subscriptions.isEmpty()) {
+            MqttPacketSubscribe subscribe = createSubscribePacket();
+            for (Map.Entry<String, Integer> entry : subscriptions.entrySet())
+                subscribe.payloads.add(createSubscribePayload(entry.getKey(), entry.getValue()));
+            send(new Request(subscribe, null));
+        }
+    }
+
+    /**
+     * Reads packets from the broker and reconnects when the connection is lost.
+     */
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long delay = reconnectDelay;
+
+        while (true) {
+            Connection conn;
+            synchronized (this) {
+                conn = connection;
+            }
+
+            try {
+                if (conn.remaining != null)
+                    handleData(conn, conn.remaining);
+                conn.remaining = null;
+
+                while (true) {
+                    int length = conn.in.read(buffer);
+                    if (length < 0)
+                        throw new EOFException("Connection closed by broker.");
+                    handleData(conn, ByteBuffer.wrap(buffer, 0, length));
+                }
+            } catch (IOException e) {
+                if (isClosed())
+                    return;
+                logger.log(Level.WARNING, "Connection to MQTT broker " + host + ":" + port + " lost: " + e.getMessage());
+            }
+
+            connectionLost(conn);
+            if (!autoReconnect) {
+                close();
+                return;
+            }
+
+            // Reconnect
+            while (true) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (isClosed())
+                    return;
+
+                try {
+                    openConnection();
+                    delay = reconnectDelay;
+                    break;
+                } catch (IOException e) {
+                    delay = Math.min(delay * 2, maxReconnectDelay);
+                    logger.fine("Unable to reconnect to MQTT broker, retrying in " + delay + "ms: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleData(Connection conn, ByteBuffer data) throws IOException {
+        MqttPacketHeader packet;
+        while ((packet = conn.decoder.decode(data)) != null)
+            handlePacket(packet);
+    }
+
+    private synchronized void connectionLost(Connection conn) {
+        if (connection != conn)
+            return;
+        connected = false;
+        conn.close();
+
+        // Unacknowledged requests are resent, other queued packets are discarded
+        for (Request request; (request = outbound.poll()) != null;) {
+            if (request.future != null && !request.needsAck)
+                request.future.completeExceptionally(new IOException("Connection to broker lost."));
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Sends a DISCONNECT packet after any queued packets and closes the connection.
+     * Requests that have not been acknowledged will fail.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (connected)
+                outbound.add(new Request(new MqttPacketDisconnect(), null));
+            writer = writerThread;
+        }
+
+        // Let the writer finish the queued packets
+        if (writer != null && writer != Thread.currentThread()) {
+            try {
+                writer.join(connectTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            connected = false;
+            if (connection != null)
+                connection.close();
+            if (readerThread != null)
+                readerThread.interrupt();
+            if (writerThread != null)
+                writerThread.interrupt();
+
+            IOException e = new IOException("Client has been closed.");
+            for (Request request : inFlight.values())
+                fail(request, e);
+            for (Request request : buffered)
+                fail(request, e);
+            for (Request request : outbound)
+                fail(request, e);
+            inFlight.clear();
+            buffered.clear();
+            outbound.clear();
+        }
+    }
+
+    // ------------------------------------------
+    // Requests
+    // ------------------------------------------
+
+    /**
+     * Publish a UTF-8 string with QoS 0.
+     */
+    public CompletableFuture<Void> publish(String topic, String data) {
+        return publish(topic, data.getBytes(StandardCharsets.UTF_8), 0, false);
+    }
+
+    public CompletableFuture<Void> publish(MqttMessage message) {
+        return publish(message.getTopic(), message.getPayload(), message.getQoS(), message.isRetain());
+    }
+
+    /**
+     * Publish a message to the broker.
+     *
+     * @param   topic   the topic name, can not contain wildcards
+     * @param   payload the message data
+     * @param   qos     the quality of service level 0, 1 or 2
+     * @param   retain  true if the broker should retain the message for future subscribers
+     * @return a future that completes when a QoS 0 message has been written to the socket, or
+     *         when a QoS 1 or 2 message has been acknowledged by the broker.
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos, boolean retain) {
+        if (topic == null || topic.isEmpty() || topic.contains("+") || topic.contains("#"))
+            throw new IllegalArgumentException("Invalid topic name: " + topic);
+        if (qos < 0 || qos > 2)
+            throw new IllegalArgumentException("Invalid QoS level: " + qos);
+
+        MqttPacketPublish publish = new MqttPacketPublish();
+        publish.topicName = topic;
+        publish.payload = (payload != null ? payload : new byte[0]);
+        publish.setFlagQoS(qos);
+        publish.setFlagRetain(retain);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        submit(new Request(publish, future));
+        return future;
+    }
+
+    /**
+     * Subscribe to a topic filter, the listener will be called from the reader
+     * thread for every matching message received from the broker.
+     *
+     * @param   topicFilter the topic filter, can contain the wildcards '+' and '#'
+     * @param   qos         the max QoS level that messages should be delivered with
+     * @param   listener    the listener of the received messages
+     * @return a future that completes with the granted QoS level when the broker has acknowledged the subscription.
+     */
+    public CompletableFuture<Integer> subscribe(String topicFilter, int qos, MqttSubscriptionListener listener) {
+        if (!MqttTopicTree.isValidTopicFilter(topicFilter))
+            throw new IllegalArgumentException("Invalid topic filter: " + topicFilter);
+        if (qos < 0 || qos > 2)
+            throw new IllegalArgumentException("Invalid QoS level: " + qos);
+        if (listener == null)
+            throw new IllegalArgumentException("Listener cannot be null.");
+
+        MqttPacketSubscribe subscribe = createSubscribePacket();
+        subscribe.payloads.add(createSubscribePayload(topicFilter, qos));
+
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        listeners.add(topicFilter, listener);
+        filterListeners.computeIfAbsent(topicFilter, k -> ConcurrentHashMap.newKeySet()).add(listener);
+        submit(new Request(subscribe, future, listener));
+        return future;
+    }
+
+    /**
+     * Removes the subscription and all listeners of the given topic filter.
+     *
+     * @return a future that completes when the broker has acknowledged the request.
+     */
+    public CompletableFuture<Void> unsubscribe(String topicFilter) {
+        MqttPacketUnsubscribe unsubscribe = new MqttPacketUnsubscribe();
+        unsubscribe.flags = 0b0010; // Reserved bits required by the spec
+        MqttUnsubscribePayload payload = new MqttUnsubscribePayload();
+        payload.topicFilter = topicFilter;
+        unsubscribe.payloads.add(payload);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            subscriptions.remove(topicFilter);
+        }
+        Set<MqttSubscriptionListener> removed = filterListeners.remove(topicFilter);
+        if (removed != null) {
+            for (MqttSubscriptionListener listener : removed)
+                listeners.remove(topicFilter, listener);
+        }
+        submit(new Request(unsubscribe, future));
+        return future;
+    }
+
+    private static MqttPacketSubscribe createSubscribePacket() {
+        MqttPacketSubscribe subscribe = new MqttPacketSubscribe();
+        subscribe.flags = 0b0010; // Reserved bits required by the spec
+        return subscribe;
+    }
+
+    private static MqttSubscribePayload createSubscribePayload(String topicFilter, int qos) {
+        MqttSubscribePayload payload = new MqttSubscribePayload();
+        payload.topicFilter = topicFilter;
+        payload.qos = qos;
+        return payload;
+    }
+
+    /**
+     * Sends the request directly if possible, otherwise adds it to the buffer.
+     */
+    private synchronized void submit(Request request) {
+        if (closed) {
+            fail(request, new IOException("Client has been closed."));
+        } else if (connected && (!request.needsAck ||
+                (buffered.isEmpty() && inFlight.size() < maxInFlightMessages))) {
+            send(request);
+        } else if (buffered.size() < bufferSize) {
+            buffered.add(request);
+        } else {
+            fail(request, new IOException("Request buffer is full (" + bufferSize + " requests)."));
+        }
+    }
+
+    /**
+     * Sends buffered requests until the in-flight window is full.
+     */
+    private synchronized void sendBuffered() {
+        while (connected && !buffered.isEmpty()) {
+            if (buffered.peek().needsAck && inFlight.size() >= maxInFlightMessages)
+                break;
+            send(buffered.poll());
+        }
+    }
+
+    /**
+     * Assigns a packet id if the request needs to be acknowledged and queues it for writing.
+     */
+    private synchronized void send(Request request) {
+        if (request.needsAck) {
+            int packetId = nextPacketId();
+            setPacketId(request.packet, packetId);
+            inFlight.put(packetId, request);
+        }
+        outbound.add(request);
+    }
+
+    private int nextPacketId() {
+        do {
+            lastPacketId = (lastPacketId % 0xFFFF) + 1;
+        } while (inFlight.containsKey(lastPacketId));
+        return lastPacketId;
+    }
+
+    private static boolean requiresAck(MqttPacketHeader packet) {
+        switch (packet.type) {
+            case MqttPacketHeader.PACKET_TYPE_PUBLISH:
+                return ((MqttPacketPublish) packet).getFlagQoS() > 0;
+            case MqttPacketHeader.PACKET_TYPE_SUBSCRIBE:
+            case MqttPacketHeader.PACKET_TYPE_UNSUBSCRIBE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void setPacketId(MqttPacketHeader packet, int packetId) {
+        if (packet instanceof MqttPacketPublish)
+            ((MqttPacketPublish) packet).packetId = packetId;
+        else if (packet instanceof MqttPacketSubscribe)
+            ((MqttPacketSubscribe) packet).packetId = packetId;
+        else if (packet instanceof MqttPacketUnsubscribe)
+            ((MqttPacketUnsubscribe) packet).packetId = packetId;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void complete(Request request, Object value) {
+        if (request.future != null)
+            ((CompletableFuture<Object>) request.future).complete(value);
+    }
+
+    private static void fail(Request request, Throwable e) {
+        if (request.future != null)
+            request.future.completeExceptionally(e);
+    }
+
+    // ------------------------------------------
+    // Packet handling
+    // ------------------------------------------
+
+    private void handlePacket(MqttPacketHeader packet) {
+        switch (packet.type) {
+            case MqttPacketHeader.PACKET_TYPE_PUBLISH:
+                handlePublish((MqttPacketPublish) packet);
+                break;
+            case MqttPacketHeader.PACKET_TYPE_PUBREL:
+                receivedPacketIds.remove(((MqttPacketPublishRel) packet).packetId);
+                MqttPacketPublishComp publishComp = new MqttPacketPublishComp();
+                publishComp.packetId = ((MqttPacketPublishRel) packet).packetId;
+                queue(publishComp);
+                break;
+
+            case MqttPacketHeader.PACKET_TYPE_PUBACK:
+                acknowledged(((MqttPacketPublishAck) packet).packetId, null);
+                break;
+            case MqttPacketHeader.PACKET_TYPE_PUBREC:
+                handlePublishRec((MqttPacketPublishRec) packet);
+                break;
+            case MqttPacketHeader.PACKET_TYPE_PUBCOMP:
+                acknowledged(((MqttPacketPublishComp) packet).packetId, null);
+                break;
+
+            case MqttPacketHeader.PACKET_TYPE_SUBACK:
+                handleSubscribeAck((MqttPacketSubscribeAck) packet);
+                break;
+            case MqttPacketHeader.PACKET_TYPE_UNSUBACK:
+                acknowledged(((MqttPacketUnsubscribeAck) packet).packetId, null);
+                break;
+
+            case MqttPacketHeader.PACKET_TYPE_PINGRESP:
+                break;
+            default:
+                logger.warning("Received unexpected packet type from broker: " + packet.type + " (" + packet.getClass() + ")");
+                break;
+        }
+    }
+
+    private void handlePublish(MqttPacketPublish publish) {
+        switch (publish.getFlagQoS()) {
+            case 0:
+                dispatch(publish);
+                break;
+            case 1:
+                dispatch(publish);
+                MqttPacketPublishAck publishAck = new MqttPacketPublishAck();
+                publishAck.packetId = publish.packetId;
+                queue(publishAck);
+                break;
+            case 2:
+                // Only dispatch the first time, a duplicate is sent if our PUBREC was lost
+                if (receivedPacketIds.add(publish.packetId))
+                    dispatch(publish);
+                MqttPacketPublishRec publishRec = new MqttPacketPublishRec();
+                publishRec.packetId = publish.packetId;
+                queue(publishRec);
+                break;
+            default:
+                logger.warning("Received invalid QoS level: " + publish.getFlagQoS());
+                break;
+        }
+    }
+
+    private void dispatch(MqttPacketPublish publish) {
+        for (MqttSubscriptionListener listener : listeners.match(publish.topicName)) {
+            try {
+                listener.dataPublished(publish.topicName, publish.payload);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Subscription listener failed for topic: " + publish.topicName, e);
+            }
+        }
+    }
+
+    private synchronized void handlePublishRec(MqttPacketPublishRec publishRec) {
+        Request request = inFlight.get(publishRec.packetId);
+        if (request == null || !(request.packet instanceof MqttPacketPublish)) {
+            logger.fine("Received PUBREC for unknown packet id: " + publishRec.packetId);
+            return;
+        }
+
+        // The PUBREL replaces the message so that it is resent instead after a reconnect
+        MqttPacketPublishRel publishRel = new MqttPacketPublishRel();
+        publishRel.packetId = publishRec.packetId;
+        request.packet = publishRel;
+        outbound.add(request);
+    }
+
+    private void handleSubscribeAck(MqttPacketSubscribeAck subscribeAck) {
+        Request request;
+        synchronized (this) {
+            request = inFlight.get(subscribeAck.packetId);
+            if (request == null || !(request.packet instanceof MqttPacketSubscribe)) {
+                logger.fine("Received SUBACK for unknown packet id: " + subscribeAck.packetId);
+                return;
+            }
+
+            List<MqttSubscribePayload> requested = ((MqttPacketSubscribe) request.packet).payloads;
+            for (int i = 0; i < requested.size() && i < subscribeAck.payloads.size(); i++) {
+                String topicFilter = requested.get(i).topicFilter;
+                if (subscribeAck.payloads.get(i).returnCode == MqttSubscribeAckPayload.RETCODE_FAILURE) {
+                    logger.warning("Subscription rejected by broker: " + topicFilter);
+                    subscriptions.remove(topicFilter);
+                    if (request.listener != null) {
+                        listeners.remove(topicFilter, request.listener);
+                        Set<MqttSubscriptionListener> filterSet = filterListeners.get(topicFilter);
+                        if (filterSet != null)
+                            filterSet.remove(request.listener);
+                    }
+                } else {
+                    subscriptions.put(topicFilter, requested.get(i).qos);
+                }
+            }
+        }
+
+        int returnCode = (subscribeAck.payloads.isEmpty() ?
+                MqttSubscribeAckPayload.RETCODE_FAILURE : subscribeAck.payloads.get(0).returnCode);
+        if (returnCode == MqttSubscribeAckPayload.RETCODE_FAILURE)
+            fail(request, new IOException("Subscription rejected by broker."));
+        acknowledged(subscribeAck.packetId, returnCode);
+    }
+
+    /**
+     * Completes the request of the given packet id and sends buffered requests to the free in-flight slot.
+     */
+    private void acknowledged(int packetId, Object value) {
+        Request request;
+        synchronized (this) {
+            request = inFlight.remove(packetId);
+            sendBuffered();
+        }
+        if (request != null)
+            complete(request, value);
+        else
+            logger.fine("Received acknowledgement for unknown packet id: " + packetId);
+    }
+
+    /**
+     * Queues a packet that does not need to be acknowledged, the packet is discarded if the client is not connected.
+     */
+    private synchronized void queue(MqttPacketHeader packet) {
+        if (connected)
+            outbound.add(new Request(packet, null));
+    }
+
+    // ------------------------------------------
+    // Writer
+    // ------------------------------------------
+
+    /**
+     * Writes queued packets in batches with a single flush per batch and
+     * sends a ping if nothing has been written within the keep-alive time.
+     */
+    private void writeLoop() {
+        List<Request> batch = new ArrayList<>(MAX_WRITE_BATCH);
+        long pingInterval = (keepAlive > 0 ? keepAlive * 1000L / 2 : Long.MAX_VALUE);
+
+        while (true) {
+            Connection conn;
+            try {
+                Request request = outbound.poll(Math.min(pingInterval, 1000), TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    if (closed && request == null && outbound.isEmpty())
+                        return;
+                    conn = (connected ? connection : null);
+                }
+
+                if (request == null) {
+                    if (conn == null || System.currentTimeMillis() - lastWrite < pingInterval)
+                        continue;
+                    request = new Request(new MqttPacketPingReq(), null);
+                }
+                batch.add(request);
+                outbound.drainTo(batch, MAX_WRITE_BATCH - 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (conn == null) {
+                for (Request request : batch) {
+                    if (!request.needsAck)
+                        fail(request, new IOException("Not connected to broker."));
+                }
+                batch.clear();
+                continue;
+            }
+
+            try {
+                boolean disconnect = false;
+                for (Request request : batch) {
+                    MqttPacket.write(conn.out, request.packet);
+                    disconnect |= request.packet.type == MqttPacketHeader.PACKET_TYPE_DISCONNECT;
+                }
+                conn.out.flush();
+                lastWrite = System.currentTimeMillis();
+
+                for (Request request : batch) {
+                    if (!request.needsAck)
+                        complete(request, null);
+                }
+                if (disconnect) {
+                    conn.close();
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Unable to write to MQTT broker.", e);
+                for (Request request : batch) {
+                    if (!request.needsAck)
+                        fail(request, e);
+                }
+                // The reader will notice the closed socket and reconnect
+                conn.close();
+            }
+            batch.clear();
+        }
+    }
 }
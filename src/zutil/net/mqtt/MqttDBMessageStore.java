@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.db.DBConnection;
+import zutil.log.LogUtil;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A message store that persists queued messages in a database table,
+ * e.g. a SQLite database, so that queued messages survive a broker restart.
+ *
+ * @author Ziver
+ */
+public class MqttDBMessageStore implements MqttMessageStore {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final String DEFAULT_TABLE_NAME = "mqtt_message";
+
+    private final DBConnection db;
+    private final String table;
+
+
+    /**
+     * Creates a store using the default table name, the table will be created if it does not exist.
+     *
+     * @param   db      the database connection, e.g. a SQLite database
+     */
+    public MqttDBMessageStore(DBConnection db) throws SQLException {
+        this(db, DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * @param   db      the database connection, e.g. a SQLite database
+     * @param   table   the name of the table where the messages will be stored, will be created if it does not exist
+     */
+    public MqttDBMessageStore(DBConnection db, String table) throws SQLException {
+        this.db = db;
+        this.table = table;
+
+        db.exec("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                "id INTEGER PRIMARY KEY, " +
+                "client_id VARCHAR(256) NOT NULL, " +
+                "topic VARCHAR(65535) NOT NULL, " +
+                "qos INTEGER NOT NULL, " +
+                "retain INTEGER NOT NULL, " +
+                "payload BLOB)");
+        db.exec("CREATE INDEX IF NOT EXISTS " + table + "_client ON " + table + " (client_id, id)");
+    }
+
+
+    @Override
+    public void add(String clientId, MqttMessage message) {
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement(
+                        "INSERT INTO " + table + " (client_id, topic, qos, retain, payload) VALUES (?, ?, ?, ?, ?)");
+                stmt.setString(1, clientId);
+                stmt.setString(2, message.getTopic());
+                stmt.setInt(3, message.getQoS());
+                stmt.setInt(4, message.isRetain() ? 1 : 0);
+                stmt.setBytes(5, message.getPayload());
+                DBConnection.exec(stmt);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to store message for client: " + clientId, e);
+        }
+    }
+
+    @Override
+    public List<MqttMessage> poll(String clientId, int maxCount) {
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement(
+                        "SELECT id, topic, qos, retain, payload FROM " + table + " WHERE client_id = ? ORDER BY id LIMIT ?");
+                stmt.setString(1, clientId);
+                stmt.setInt(2, maxCount);
+                long[] lastId = new long[1];
+                List<MqttMessage> messages = DBConnection.exec(stmt, (statement, result) -> {
+                    List<MqttMessage> list = new ArrayList<>();
+                    while (result.next()) {
+                        lastId[0] = result.getLong(1);
+                        list.add(new MqttMessage(
+                                result.getString(2),
+                                result.getBytes(5),
+                                result.getInt(3),
+                                result.getInt(4) != 0));
+                    }
+                    return list;
+                });
+
+                if (!messages.isEmpty()) {
+                    stmt = db.getPreparedStatement("DELETE FROM " + table + " WHERE client_id = ? AND id <= ?");
+                    stmt.setString(1, clientId);
+                    stmt.setLong(2, lastId[0]);
+                    DBConnection.exec(stmt);
+                }
+                return messages;
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to read stored messages for client: " + clientId, e);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public int size(String clientId) {
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement("SELECT COUNT(*) FROM " + table + " WHERE client_id = ?");
+                stmt.setString(1, clientId);
+                Integer count = DBConnection.exec(stmt, (statement, result) -> (result.next() ? result.getInt(1) : 0));
+                return (count != null ? count : 0);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to count stored messages for client: " + clientId, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void remove(String clientId) {
+        try {
+            synchronized (db) {
+                PreparedStatement stmt = db.getPreparedStatement("DELETE FROM " + table + " WHERE client_id = ?");
+                stmt.setString(1, clientId);
+                DBConnection.exec(stmt);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to remove stored messages for client: " + clientId, e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.log.LogUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A in-memory message store with a bounded queue per client,
+ * the oldest message is dropped when a queue is full.
+ *
+ * @author Ziver
+ */
+public class MqttMemoryMessageStore implements MqttMessageStore {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final int DEFAULT_MAX_CLIENT_MESSAGES = 10_000;
+
+    private final Map<String, Deque<MqttMessage>> queues = new ConcurrentHashMap<>();
+    private final int maxClientMessages;
+
+
+    public MqttMemoryMessageStore() {
+        this(DEFAULT_MAX_CLIENT_MESSAGES);
+    }
+
+    /**
+     * @param   maxClientMessages   the max number of messages stored per client
+     */
+    public MqttMemoryMessageStore(int maxClientMessages) {
+        this.maxClientMessages = maxClientMessages;
+    }
+
+
+    @Override
+    public void add(String clientId, MqttMessage message) {
+        Deque<MqttMessage> queue = queues.computeIfAbsent(clientId, k -> new ArrayDeque<>());
+        synchronized (queue) {
+            if (queue.size() >= maxClientMessages) {
+                logger.fine("Message queue full for client: " + clientId + ", dropping oldest message.");
+                queue.poll();
+            }
+            queue.add(message);
+        }
+    }
+
+    @Override
+    public List<MqttMessage> poll(String clientId, int maxCount) {
+        Deque<MqttMessage> queue = queues.get(clientId);
+        if (queue == null)
+            return Collections.emptyList();
+
+        List<MqttMessage> messages = new ArrayList<>();
+        synchronized (queue) {
+            while (messages.size() < maxCount && !queue.isEmpty())
+                messages.add(queue.poll());
+        }
+        return messages;
+    }
+
+    @Override
+    public int size(String clientId) {
+        Deque<MqttMessage> queue = queues.get(clientId);
+        if (queue == null)
+            return 0;
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    @Override
+    public void remove(String clientId) {
+        queues.remove(clientId);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.net.mqtt.packet.MqttPublishFrame;
+
+/**
+ * A application message published to a topic. The message and all copies
+ * with other QoS or retain values share a single encoded PUBLISH frame so
+ * that a message delivered to many clients is only serialized once.
+ *
+ * @author Ziver
+ */
+public class MqttMessage {
+    private final String topic;
+    private final byte[] payload;
+    private final int qos;
+    private final boolean retain;
+    private final MqttPublishFrame frame;
+
+
+    public MqttMessage(String topic, byte[] payload) {
+        this(topic, payload, 0, false);
+    }
+
+    /**
+     * @param   topic   the topic name the message is published to
+     * @param   payload the application data
+     * @param   qos     the quality of service level, 0-2
+     * @param   retain  true if the message should be retained by the broker
+     */
+    public MqttMessage(String topic, byte[] payload, int qos, boolean retain) {
+        if (qos < 0 || qos > 2)
+            throw new IllegalArgumentException("Invalid QoS level: " + qos);
+        this.topic = topic;
+        this.payload = (payload != null ? payload : new byte[0]);
+        this.qos = qos;
+        this.retain = retain;
+        this.frame = new MqttPublishFrame(topic, this.payload);
+    }
+
+    private MqttMessage(MqttMessage message, int qos, boolean retain) {
+        this.topic = message.topic;
+        this.payload = message.payload;
+        this.qos = qos;
+        this.retain = retain;
+        this.frame = message.frame;
+    }
+
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return the payload data. NOTE: the array is shared between all receivers and must not be modified.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getQoS() {
+        return qos;
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+
+    /**
+     * @return the encoded PUBLISH frame shared by all copies of this message.
+     */
+    public MqttPublishFrame getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return a copy of this message with a different QoS level, or this object if the level is the same.
+     */
+    public MqttMessage withQoS(int qos) {
+        return (this.qos == qos ? this : new MqttMessage(this, qos, retain));
+    }
+
+    /**
+     * @return a copy of this message with a different retain flag, or this object if the flag is the same.
+     */
+    public MqttMessage withRetain(boolean retain) {
+        return (this.retain == retain ? this : new MqttMessage(this, qos, retain));
+    }
+}
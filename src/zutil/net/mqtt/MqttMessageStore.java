@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import java.util.List;
+
+/**
+ * A store of messages waiting to be delivered to a client with a persistent
+ * session. Messages are added when the client is offline or when the client
+ * has reached its max number of in-flight messages, and are polled in the
+ * same order as they were added.
+ *
+ * @author Ziver
+ */
+public interface MqttMessageStore {
+
+    /**
+     * Adds a message to the end of the clients queue.
+     */
+    void add(String clientId, MqttMessage message);
+
+    /**
+     * Removes and returns the oldest messages in the clients queue.
+     *
+     * @param   clientId    the client identifier
+     * @param   maxCount    the max number of messages to return
+     * @return a list of messages, empty if there are no queued messages.
+     */
+    List<MqttMessage> poll(String clientId, int maxCount);
+
+    /**
+     * @return the number of messages queued for the client.
+     */
+    int size(String clientId);
+
+    /**
+     * Removes all messages queued for the client.
+     */
+    void remove(String clientId);
+}
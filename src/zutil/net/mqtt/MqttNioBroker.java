@@ -0,0 +1,412 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.TimerWheel;
+import zutil.log.LogUtil;
+import zutil.net.mqtt.MqttBroker.MqttConnectionThread;
+import zutil.net.mqtt.packet.MqttPacket;
+import zutil.net.mqtt.packet.MqttPacketDecoder;
+import zutil.net.mqtt.packet.MqttPacketHeader;
+import zutil.net.mqtt.packet.MqttPacketPublish;
+import zutil.net.mqtt.packet.MqttPublishFrame;
+import zutil.net.nio.NioServer;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A non-blocking transport for a {@link MqttBroker} on top of the selector loop in
+ * {@link zutil.net.nio.NioNetwork}. Packets are decoded incrementally by the network
+ * thread and handed to a small worker pool, each connection will only have one packet
+ * handled at a time so packets are still processed in order. An idle connection will
+ * therefore only cost its buffers and not a thread.
+ * <p>
+ * The keep-alive of the clients and the time allowed between connecting and sending
+ * the CONNECT packet is enforced with a {@link TimerWheel} instead of socket timeouts.
+ * <p>
+ * Large PUBLISH packets are not copied per client, the frame shared by all deliveries of
+ * a message is queued directly to every socket after a small client specific header.
+ * <p>
+ * NOTE: The worker pool is also used as the delivery executor of the broker, as writes
+ * will not block. The slow consumer policy of the broker is applied to the outbound
+ * queue, the network write queue is not bounded.
+ * <p>
+ * Example:
+ * <pre>
+ *     MqttBroker broker = new MqttBroker();
+ *     new MqttNioBroker(broker); // Used instead of broker.start()
+ * </pre>
+ *
+ * @author Ziver
+ */
+public class MqttNioBroker {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10 * 1000; // 10 sec
+    private static final long TIMER_TICK = 250; // ms
+    /** Shared PUBLISH frames of at least this size will be queued without being copied **/
+    private static final int ZERO_COPY_THRESHOLD = 1024; // bytes
+
+    private final MqttBroker broker;
+    private final ExecutorService executor;
+    private final TimerWheel timer;
+    private final Map<SocketAddress, MqttNioConnection> connections = new ConcurrentHashMap<>();
+    private int maxPacketSize = MqttPacketDecoder.DEFAULT_MAX_PACKET_SIZE;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private final MqttNioNetwork network;
+
+
+    /**
+     * Creates a new non-blocking transport with a worker pool of one thread per available processor.
+     *
+     * @param   broker      the broker containing subscriptions and configuration, the port of
+     *                      the broker will be used but the broker thread should not be started.
+     */
+    public MqttNioBroker(MqttBroker broker) throws IOException {
+        this(broker, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new non-blocking transport.
+     *
+     * @param   broker          the broker containing subscriptions and configuration, the port of
+     *                          the broker will be used but the broker thread should not be started.
+     * @param   workerThreads   the number of threads that will handle packets
+     */
+    public MqttNioBroker(MqttBroker broker, int workerThreads) throws IOException {
+        this.broker = broker;
+        this.executor = Executors.newFixedThreadPool(workerThreads);
+        this.timer = new TimerWheel("MqttNioBroker-Timer", TIMER_TICK, TimerWheel.DEFAULT_WHEEL_SIZE);
+        this.broker.setDeliveryExecutor(executor);
+        this.network = new MqttNioNetwork(broker.getPort());
+        this.broker.startMetrics();
+    }
+
+
+    /**
+     * @param   maxPacketSize   the max size in bytes of a received packet, clients sending
+     *                          larger packets will be disconnected. Only applies to new connections.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * @param   timeout     the time in milliseconds a new connection has to send
+     *                      the CONNECT packet before it is closed, 0 disables the timeout.
+     */
+    public void setConnectTimeout(long timeout) {
+        this.connectTimeout = timeout;
+    }
+
+    /**
+     * @return the number of open client connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Stops the transport and closes all connections.
+     */
+    public void close() throws IOException {
+        timer.stop();
+        network.close();
+        for (MqttNioConnection conn : connections.values())
+            conn.handleClosed();
+        connections.clear();
+        executor.shutdown();
+        broker.close();
+    }
+
+
+    /**
+     * The network layer that forwards data to the correct connection.
+     */
+    private class MqttNioNetwork extends NioServer {
+        public MqttNioNetwork(int port) throws IOException {
+            super(port);
+        }
+
+        @Override
+        protected void connectionOpened(SocketAddress remoteAddress) {
+            connections.put(remoteAddress, new MqttNioConnection((InetSocketAddress) remoteAddress));
+        }
+
+        @Override
+        protected void processReceivedData(SocketAddress remoteAddress, ByteBuffer data) {
+            MqttNioConnection conn = connections.get(remoteAddress);
+            if (conn != null)
+                conn.received(data);
+        }
+
+        @Override
+        protected void connectionClosed(SocketAddress remoteAddress) {
+            MqttNioConnection conn = connections.remove(remoteAddress);
+            if (conn != null)
+                conn.handleClosed();
+        }
+
+        @Override
+        protected void sendRaw(SocketAddress address, byte[] data) {
+            super.sendRaw(address, data);
+        }
+
+        @Override
+        protected void sendRaw(SocketAddress address, byte[] data, int offset, int length) {
+            super.sendRaw(address, data, offset, length);
+        }
+
+        @Override
+        protected void closeConnectionAfterSend(SocketAddress address) {
+            super.closeConnectionAfterSend(address);
+        }
+
+        @Override
+        protected void closeConnection(InetSocketAddress address) throws IOException {
+            super.closeConnection(address);
+        }
+    }
+
+
+    /**
+     * A client connection that receives its packets from the network thread
+     * and writes its packets to the network write queue.
+     */
+    private class MqttNioConnection extends MqttConnectionThread {
+        /** Marker in the inbound queue indicating that the connection has been closed **/
+        private final MqttPacketHeader CLOSED_MARKER = new MqttPacketHeader();
+
+        private final InetSocketAddress address;
+        private final MqttPacketDecoder decoder = new MqttPacketDecoder(maxPacketSize);
+        private final Queue<MqttPacketHeader> inboundQueue = new ConcurrentLinkedQueue<>();
+        /** Is set while a worker is handling packets from the inbound queue **/
+        private final AtomicBoolean processing = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean connectReceived = false;
+        private TimerWheel.Timeout timeoutCheck;
+
+        private final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        private final BinaryStructOutputStream out = new BinaryStructOutputStream(outBuffer);
+
+
+        public MqttNioConnection(InetSocketAddress address) {
+            super(broker);
+            this.address = address;
+            if (connectTimeout > 0)
+                scheduleTimeoutCheck(connectTimeout);
+        }
+
+
+        /**
+         * Called by the network thread with received data.
+         */
+        public void received(ByteBuffer data) {
+            lastActivity = System.currentTimeMillis();
+            try {
+                MqttPacketHeader packet;
+                while ((packet = decoder.decode(data)) != null)
+                    inboundQueue.add(packet);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "[" + address + "] Invalid packet received, closing connection.", e);
+                close();
+                return;
+            }
+            scheduleProcessing();
+        }
+
+        /**
+         * Called when the network connection has been closed, the cleanup will
+         * be done by the worker after any previously received packets.
+         */
+        public void handleClosed() {
+            if (closed.compareAndSet(false, true)) {
+                inboundQueue.add(CLOSED_MARKER);
+                scheduleProcessing();
+            }
+        }
+
+        private void scheduleProcessing() {
+            if (!inboundQueue.isEmpty() && processing.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::processInboundQueue);
+                } catch (Exception e) {
+                    // Executor has been shutdown
+                    processing.set(false);
+                }
+            }
+        }
+
+        /**
+         * Handles all queued packets, executed by a worker thread.
+         */
+        private void processInboundQueue() {
+            do {
+                MqttPacketHeader packet;
+                while ((packet = inboundQueue.poll()) != null) {
+                    if (packet == CLOSED_MARKER) {
+                        inboundQueue.clear();
+                        connectionClosed();
+                        return; // Leave processing flag set as the connection is done
+                    }
+                    if (isDisconnected())
+                        continue; // Discard any packets received after a disconnect
+
+                    try {
+                        if (!connectReceived) {
+                            logger.fine("[" + address + "] New MQTT client connected.");
+                            connectReceived = true;
+                            handleConnect(packet);
+                        } else {
+                            handlePacket(packet);
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "[" + address + "] There was a issue with the client connection.", e);
+                        close();
+                    }
+
+                    if (isDisconnected()) {
+                        // Let any response be written before closing
+                        network.closeConnectionAfterSend(address);
+                    }
+                }
+                processing.set(false);
+                // Check for packets added after the queue was emptied but before the flag was cleared
+            } while (!inboundQueue.isEmpty() && processing.compareAndSet(false, true));
+        }
+
+        /**
+         * Closes the connection if the client has not sent anything within the
+         * connect timeout or keep-alive time, otherwise reschedules the check.
+         */
+        private void checkTimeout() {
+            if (closed.get())
+                return;
+
+            long timeout = (connectReceived ? getKeepAliveTimeout() : connectTimeout);
+            if (timeout <= 0)
+                return;
+
+            long idle = System.currentTimeMillis() - lastActivity;
+            if (idle >= timeout) {
+                logger.fine("[" + address + "] Client " + (connectReceived ? "keep-alive" : "connect") + " timeout, closing connection.");
+                close();
+            } else {
+                scheduleTimeoutCheck(timeout - idle);
+            }
+        }
+
+        /**
+         * Replaces any previously scheduled timeout check.
+         */
+        private synchronized void scheduleTimeoutCheck(long delay) {
+            if (timeoutCheck != null)
+                timeoutCheck.cancel();
+            timeoutCheck = timer.schedule(this::checkTimeout, delay);
+        }
+
+
+        @Override
+        protected void handleConnect(MqttPacketHeader connectPacket) throws IOException {
+            super.handleConnect(connectPacket);
+            // Restart the timeout with the keep-alive of the client
+            if (!isDisconnected() && getKeepAliveTimeout() > 0)
+                scheduleTimeoutCheck(getKeepAliveTimeout());
+        }
+
+        @Override
+        public void sendPacket(MqttPacketHeader packet) throws IOException {
+            sendPackets(Collections.singletonList(packet));
+        }
+
+        @Override
+        protected synchronized void sendPackets(List<MqttPacketHeader> packets) throws IOException {
+            if (closed.get())
+                throw new IOException("Connection has been closed.");
+
+            for (MqttPacketHeader packet : packets) {
+                if (packet instanceof MqttPacketPublish && ((MqttPacketPublish) packet).encodedFrame != null) {
+                    MqttPacketPublish publish = (MqttPacketPublish) packet;
+                    MqttPublishFrame frame = publish.encodedFrame;
+                    byte[] data = frame.getFrame(publish.getFlagQoS());
+                    if (data.length >= ZERO_COPY_THRESHOLD) {
+                        // Queue the shared frame directly after the delivery specific header
+                        int offset = frame.writeHeader(out, publish.flags, publish.packetId);
+                        flushOutBuffer();
+                        network.sendRaw(address, data, offset, data.length - offset);
+                        packetSent(packet);
+                        continue;
+                    }
+                }
+                MqttPacket.write(out, packet);
+                packetSent(packet);
+            }
+            flushOutBuffer();
+        }
+
+        private void flushOutBuffer() throws IOException {
+            out.flush();
+            if (outBuffer.size() > 0) {
+                network.sendRaw(address, outBuffer.toByteArray());
+                outBuffer.reset();
+            }
+        }
+
+        @Override
+        protected void close() {
+            super.close();
+            try {
+                network.closeConnection(address);
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+            handleClosed();
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return address.getAddress();
+        }
+    }
+}
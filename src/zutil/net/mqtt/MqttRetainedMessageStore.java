@@ -0,0 +1,430 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.db.DBConnection;
+import zutil.log.LogUtil;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A store for the last retained message of each topic. The messages are indexed
+ * in a tree with one node per topic level so that all retained messages matching
+ * a subscription filter, including the '+' and '#' wildcards, can be found without
+ * scanning all stored topics.
+ * <p>
+ * The memory footprint is bounded by a max number of messages and a max total size,
+ * when a limit is exceeded the messages that has not been updated for the longest
+ * time will be evicted. The store can optionally persist the messages in a database
+ * table so that they survive a broker restart, the database is then only read when
+ * the store is created.
+ * <p>
+ * Database writes are done behind the memory updates by a separate thread so that
+ * neither publishers nor lookups wait on database IO. Updates of a topic that has not
+ * yet been written are coalesced so only the latest message of each topic is written.
+ *
+ * @author Ziver
+ */
+public class MqttRetainedMessageStore {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final int DEFAULT_MAX_MESSAGES = 100_000;
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024; // 64MB
+    public static final String DEFAULT_TABLE_NAME = "mqtt_retained";
+
+    private static class TopicNode {
+        public final Map<String, TopicNode> children = new HashMap<>();
+        public MqttMessage message;
+    }
+
+    private final TopicNode root = new TopicNode();
+    /** All messages in update order, the first entry is the least recently updated */
+    private final LinkedHashMap<String, MqttMessage> messages = new LinkedHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int maxMessages;
+    private final long maxSize;
+    private long size;
+
+    private DBConnection db;
+    private String table;
+    private ExecutorService writer;
+    /** Topics not yet written to the database, mapped to the latest message or null if removed */
+    private final Map<String, MqttMessage> pendingWrites = new LinkedHashMap<>();
+    private boolean writeScheduled;
+
+
+    public MqttRetainedMessageStore() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param   maxMessages     the max number of retained topics
+     * @param   maxSize         the max total size in bytes of all retained messages
+     */
+    public MqttRetainedMessageStore(int maxMessages, long maxSize) {
+        this.maxMessages = maxMessages;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates a persistent store, all previously stored messages will be loaded from the database.
+     *
+     * @param   db              the database connection, e.g. a SQLite database
+     * @param   maxMessages     the max number of retained topics
+     * @param   maxSize         the max total size in bytes of all retained messages
+     */
+    public MqttRetainedMessageStore(DBConnection db, int maxMessages, long maxSize) throws SQLException {
+        this(db, DEFAULT_TABLE_NAME, maxMessages, maxSize);
+    }
+
+    /**
+     * Creates a persistent store, all previously stored messages will be loaded from the database.
+     *
+     * @param   db              the database connection, e.g. a SQLite database
+     * @param   table           the name of the table where the messages will be stored, will be created if it does not exist
+     * @param   maxMessages     the max number of retained topics
+     * @param   maxSize         the max total size in bytes of all retained messages
+     */
+    public MqttRetainedMessageStore(DBConnection db, String table, int maxMessages, long maxSize) throws SQLException {
+        this(maxMessages, maxSize);
+
+        db.exec("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                "topic VARCHAR(65535) NOT NULL PRIMARY KEY, " +
+                "qos INTEGER NOT NULL, " +
+                "payload BLOB)");
+
+        List<MqttMessage> stored;
+        synchronized (db) {
+            PreparedStatement stmt = db.getPreparedStatement("SELECT topic, qos, payload FROM " + table);
+            stored = DBConnection.exec(stmt, (statement, result) -> {
+                List<MqttMessage> list = new ArrayList<>();
+                while (result.next())
+                    list.add(new MqttMessage(result.getString(1), result.getBytes(3), result.getInt(2), true));
+                return list;
+            });
+        }
+        for (MqttMessage message : stored)
+            put(message);
+        logger.fine("Loaded " + messages.size() + " retained messages from database.");
+
+        // Enable persistence after loading
+        this.db = db;
+        this.table = table;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MqttRetainedMessageStore-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Stores the message as the retained message of its topic, a message
+     * with a empty payload will remove the retained message of the topic.
+     */
+    public void put(MqttMessage message) {
+        if (message.getPayload().length == 0) {
+            remove(message.getTopic());
+            return;
+        }
+
+        long messageSize = sizeOf(message);
+        if (messageSize > maxSize) {
+            logger.warning("Retained message for topic " + message.getTopic() + " is larger than the store size, ignoring message.");
+            return;
+        }
+
+        List<String> evicted = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            MqttMessage previous = messages.remove(message.getTopic());
+            if (previous != null)
+                size -= sizeOf(previous);
+
+            TopicNode node = root;
+            for (String level : splitLevels(message.getTopic()))
+                node = node.children.computeIfAbsent(level, k -> new TopicNode());
+            node.message = message;
+            messages.put(message.getTopic(), message);
+            size += messageSize;
+
+            // Evict least recently updated messages
+            Iterator<MqttMessage> it = messages.values().iterator();
+            while ((messages.size() > maxMessages || size > maxSize) && it.hasNext()) {
+                MqttMessage eldest = it.next();
+                it.remove();
+                size -= sizeOf(eldest);
+                removeNode(eldest.getTopic());
+                evicted.add(eldest.getTopic());
+            }
+
+            if (!evicted.isEmpty())
+                logger.fine("Retained message store full, evicted " + evicted.size() + " messages.");
+            persist(evicted.contains(message.getTopic()) ? null : message, evicted);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the retained message for the given topic.
+     */
+    public void remove(String topic) {
+        lock.writeLock().lock();
+        try {
+            MqttMessage previous = messages.remove(topic);
+            if (previous == null)
+                return;
+            size -= sizeOf(previous);
+            removeNode(topic);
+            persist(null, Collections.singletonList(topic));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Blocks until all updates made before this call have been written to the database.
+     */
+    public void flush() {
+        if (writer == null)
+            return;
+        try {
+            writer.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, null, e);
+        }
+    }
+
+    /**
+     * Removes all retained messages.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            persist(null, new ArrayList<>(messages.keySet()));
+            messages.clear();
+            root.children.clear();
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return the retained message for the exact topic or null if there is no retained message.
+     */
+    public MqttMessage get(String topic) {
+        lock.readLock().lock();
+        try {
+            return messages.get(topic);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds all retained messages with a topic matching the given filter.
+     *
+     * @param   filter  a topic filter, may contain wildcards.
+     * @return a list of matching messages, never null.
+     */
+    public List<MqttMessage> match(String filter) {
+        List<MqttMessage> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            match(root, splitLevels(filter), 0, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private static void match(TopicNode node, String[] levels, int index, List<MqttMessage> result) {
+        if (index == levels.length) {
+            if (node.message != null)
+                result.add(node.message);
+            return;
+        }
+
+        String level = levels[index];
+        switch (level) {
+            case "#":
+                // Matches the parent level and all sub levels
+                if (node.message != null)
+                    result.add(node.message);
+                for (Map.Entry<String, TopicNode> entry : node.children.entrySet()) {
+                    if (index == 0 && entry.getKey().startsWith("$"))
+                        continue;
+                    collectAll(entry.getValue(), result);
+                }
+                break;
+
+            case "+":
+                for (Map.Entry<String, TopicNode> entry : node.children.entrySet()) {
+                    if (index == 0 && entry.getKey().startsWith("$"))
+                        continue;
+                    match(entry.getValue(), levels, index + 1, result);
+                }
+                break;
+
+            default:
+                TopicNode child = node.children.get(level);
+                if (child != null)
+                    match(child, levels, index + 1, result);
+                break;
+        }
+    }
+
+    private static void collectAll(TopicNode node, List<MqttMessage> result) {
+        if (node.message != null)
+            result.add(node.message);
+        for (TopicNode child : node.children.values())
+            collectAll(child, result);
+    }
+
+
+    /**
+     * @return the number of retained messages.
+     */
+    public int getMessageCount() {
+        lock.readLock().lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the estimated size in bytes of all retained messages.
+     */
+    public long getSize() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the message from the tree and prunes empty nodes, the write lock must be held.
+     */
+    private void removeNode(String topic) {
+        String[] levels = splitLevels(topic);
+        TopicNode[] path = new TopicNode[levels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].children.get(levels[i]);
+            if (path[i + 1] == null)
+                return;
+        }
+
+        path[levels.length].message = null;
+        for (int i = levels.length; i > 0; --i) {
+            if (path[i].message != null || !path[i].children.isEmpty())
+                break;
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+    }
+
+    /**
+     * Queues the updated and removed messages to be written to the database if persistence
+     * is enabled, the write lock must be held so that the changes are queued in the same
+     * order as the memory is updated.
+     */
+    private void persist(MqttMessage updated, List<String> removed) {
+        if (db == null)
+            return;
+
+        synchronized (pendingWrites) {
+            for (String topic : removed)
+                pendingWrites.put(topic, null);
+            if (updated != null)
+                pendingWrites.put(updated.getTopic(), updated);
+
+            if (!writeScheduled) {
+                writeScheduled = true;
+                writer.execute(this::writePending);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued changes to the database, executed by the writer thread.
+     */
+    private void writePending() {
+        List<Map.Entry<String, MqttMessage>> writes;
+        synchronized (pendingWrites) {
+            writes = new ArrayList<>(pendingWrites.entrySet());
+            pendingWrites.clear();
+            writeScheduled = false;
+        }
+
+        try {
+            synchronized (db) {
+                for (Map.Entry<String, MqttMessage> write : writes) {
+                    MqttMessage message = write.getValue();
+                    if (message == null) {
+                        PreparedStatement stmt = db.getPreparedStatement("DELETE FROM " + table + " WHERE topic = ?");
+                        stmt.setString(1, write.getKey());
+                        DBConnection.exec(stmt);
+                    } else {
+                        PreparedStatement stmt = db.getPreparedStatement(
+                                "REPLACE INTO " + table + " (topic, qos, payload) VALUES (?, ?, ?)");
+                        stmt.setString(1, message.getTopic());
+                        stmt.setInt(2, message.getQoS());
+                        stmt.setBytes(3, message.getPayload());
+                        DBConnection.exec(stmt);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to persist retained messages.", e);
+        }
+    }
+
+    private static long sizeOf(MqttMessage message) {
+        return 2L * message.getTopic().length() + message.getPayload().length;
+    }
+
+    private static String[] splitLevels(String topic) {
+        return topic.split("/", -1);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import zutil.net.mqtt.MqttBroker.MqttConnectionThread;
+import zutil.net.mqtt.packet.MqttPacketHeader;
+import zutil.net.mqtt.packet.MqttPacketPublish;
+import zutil.net.mqtt.packet.MqttPacketPublishRel;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The broker side state of a client. A session outlives the connection if the
+ * client connected with the clean session flag set to false, messages published
+ * to the subscriptions of the session while the client is offline will then be
+ * queued in the brokers {@link MqttMessageStore} until the client reconnects.
+ * <p>
+ * Messages with QoS 1 and 2 are tracked as in-flight until they have been
+ * acknowledged by the client. The number of in-flight messages is limited by the
+ * broker, any additional messages are queued in the message store. Unacknowledged
+ * messages are resent when the client reconnects or after the retry interval.
+ *
+ * @author Ziver
+ */
+public class MqttSession implements MqttSubscriptionListener {
+
+    private enum InFlightState {
+        /** QoS 1 message waiting for PUBACK **/
+        AWAITING_PUBACK,
+        /** QoS 2 message waiting for PUBREC **/
+        AWAITING_PUBREC,
+        /** QoS 2 message waiting for PUBCOMP **/
+        AWAITING_PUBCOMP
+    }
+
+    private static class InFlightMessage {
+        public MqttMessage message;
+        public InFlightState state;
+        public long sentTime;
+    }
+
+
+    private final MqttBroker broker;
+    private final String clientId;
+    private final boolean cleanSession;
+
+    /** Subscribed topic filters mapped to the granted QoS level **/
+    private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+    private volatile int maxGrantedQoS;
+    /** Outgoing QoS 1 and 2 messages in packet id order **/
+    private final LinkedHashMap<Integer, InFlightMessage> inFlight = new LinkedHashMap<>();
+    /** Packet ids of incoming QoS 2 messages waiting for PUBREL **/
+    private final Set<Integer> receivedPacketIds = new HashSet<>();
+    /** The number of messages queued in the message store **/
+    private int storedMessageCount;
+    private int nextPacketId = 1;
+
+    private volatile MqttConnectionThread connection;
+
+
+    /**
+     * @param   broker          the broker owning the session
+     * @param   clientId        the client identifier
+     * @param   cleanSession    true if the session should be discarded when the client disconnects
+     */
+    protected MqttSession(MqttBroker broker, String clientId, boolean cleanSession) {
+        this.broker = broker;
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
+        if (!cleanSession && clientId != null)
+            this.storedMessageCount = broker.getMessageStore().size(clientId);
+    }
+
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    /**
+     * @return true if there is a client currently connected to this session.
+     */
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * @return a map of all subscribed topic filters and their granted QoS.
+     */
+    public Map<String, Integer> getSubscriptions() {
+        return Collections.unmodifiableMap(subscriptions);
+    }
+
+    /**
+     * @return the number of QoS 1 and 2 messages that has been sent but not yet acknowledged.
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    // ------------------------------------------
+    // Connection
+    // ------------------------------------------
+
+    /**
+     * Attaches a connection to the session, all unacknowledged messages
+     * will be resent and queued messages will be delivered.
+     */
+    protected synchronized void connect(MqttConnectionThread connection) {
+        this.connection = connection;
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, InFlightMessage> entry : inFlight.entrySet())
+            resend(entry.getKey(), entry.getValue(), now);
+        fillInFlightWindow();
+    }
+
+    /**
+     * Detaches the connection from the session if it is still the active connection.
+     */
+    protected synchronized void disconnect(MqttConnectionThread connection) {
+        if (this.connection == connection)
+            this.connection = null;
+    }
+
+    protected MqttConnectionThread getConnection() {
+        return connection;
+    }
+
+    // ------------------------------------------
+    // Subscriptions
+    // ------------------------------------------
+
+    protected void addSubscription(String topicFilter, int qos) {
+        subscriptions.put(topicFilter, qos);
+        updateMaxGrantedQoS();
+    }
+
+    protected void removeSubscription(String topicFilter) {
+        subscriptions.remove(topicFilter);
+        updateMaxGrantedQoS();
+    }
+
+    private void updateMaxGrantedQoS() {
+        int max = 0;
+        for (int qos : subscriptions.values())
+            max = Math.max(max, qos);
+        maxGrantedQoS = max;
+    }
+
+    /**
+     * @return the highest granted QoS of all subscriptions matching the topic.
+     */
+    private int getGrantedQoS(String topic) {
+        if (maxGrantedQoS == 0)
+            return 0;
+
+        int granted = 0;
+        for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+            if (entry.getValue() > granted && MqttTopicTree.matches(entry.getKey(), topic))
+                granted = entry.getValue();
+        }
+        return granted;
+    }
+
+    // ------------------------------------------
+    // Outgoing messages
+    // ------------------------------------------
+
+    @Override
+    public void dataPublished(String topic, byte[] data) {
+        deliver(new MqttMessage(topic, data));
+    }
+
+    /**
+     * Delivers a message to the client with the lowest of the published
+     * QoS and the QoS granted by the matching subscriptions.
+     */
+    public void deliver(MqttMessage message) {
+        int qos = (message.getQoS() == 0 ? 0 : Math.min(message.getQoS(), getGrantedQoS(message.getTopic())));
+        message = message.withQoS(qos);
+
+        if (qos == 0) {
+            // QoS 0 messages are not stored for offline clients
+            MqttConnectionThread conn = connection;
+            if (conn != null)
+                conn.queuePacket(createPublishPacket(message, 0, false));
+            return;
+        }
+
+        synchronized (this) {
+            if (connection == null || storedMessageCount > 0 || inFlight.size() >= broker.getMaxInFlightMessages()) {
+                if (!cleanSession || connection != null) {
+                    broker.getMessageStore().add(storeKey(), message);
+                    storedMessageCount++;
+                }
+                return;
+            }
+            send(message);
+        }
+    }
+
+    /**
+     * Creates the packets for retained messages matching a new subscription. The packets
+     * should be written directly by the caller, this way the client will receive all
+     * retained messages in one write and they will not be affected by the outbound queue
+     * limit. QoS 1 and 2 messages that do not fit in the in-flight window will be stored
+     * and delivered later.
+     *
+     * @return a list of packets that should be sent to the client.
+     */
+    protected synchronized List<MqttPacketHeader> createRetainedPackets(Collection<MqttMessage> messages) {
+        List<MqttPacketHeader> packets = new ArrayList<>(messages.size());
+        for (MqttMessage message : messages) {
+            int qos = (message.getQoS() == 0 ? 0 : Math.min(message.getQoS(), getGrantedQoS(message.getTopic())));
+            message = message.withQoS(qos);
+
+            if (qos == 0) {
+                packets.add(createPublishPacket(message, 0, false));
+            } else if (connection == null || storedMessageCount > 0 || inFlight.size() >= broker.getMaxInFlightMessages()) {
+                broker.getMessageStore().add(storeKey(), message);
+                storedMessageCount++;
+            } else {
+                packets.add(createInFlightPacket(message));
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Called when a PUBACK has been received for a QoS 1 message.
+     */
+    protected synchronized void handlePublishAck(int packetId) {
+        InFlightMessage msg = inFlight.get(packetId);
+        if (msg != null && msg.state == InFlightState.AWAITING_PUBACK) {
+            inFlight.remove(packetId);
+            fillInFlightWindow();
+        }
+    }
+
+    /**
+     * Called when a PUBREC has been received for a QoS 2 message.
+     */
+    protected synchronized void handlePublishRec(int packetId) {
+        InFlightMessage msg = inFlight.get(packetId);
+        if (msg != null && msg.state == InFlightState.AWAITING_PUBREC) {
+            msg.state = InFlightState.AWAITING_PUBCOMP;
+            msg.sentTime = System.currentTimeMillis();
+        }
+
+        MqttConnectionThread conn = connection;
+        if (conn != null)
+            conn.queuePacket(createPublishRelPacket(packetId));
+    }
+
+    /**
+     * Called when a PUBCOMP has been received for a QoS 2 message.
+     */
+    protected synchronized void handlePublishComp(int packetId) {
+        InFlightMessage msg = inFlight.get(packetId);
+        if (msg != null && msg.state == InFlightState.AWAITING_PUBCOMP) {
+            inFlight.remove(packetId);
+            fillInFlightWindow();
+        }
+    }
+
+    /**
+     * Resends all in-flight messages that has not been acknowledged within the retry interval.
+     */
+    protected synchronized void retryInFlight(long now, long retryInterval) {
+        if (connection == null)
+            return;
+        for (Map.Entry<Integer, InFlightMessage> entry : inFlight.entrySet()) {
+            if (now - entry.getValue().sentTime >= retryInterval)
+                resend(entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    /**
+     * Moves messages from the message store to the in-flight window until the window is full.
+     */
+    private void fillInFlightWindow() {
+        while (connection != null && storedMessageCount > 0) {
+            int count = broker.getMaxInFlightMessages() - inFlight.size();
+            if (count <= 0)
+                break;
+
+            List<MqttMessage> messages = broker.getMessageStore().poll(storeKey(), count);
+            if (messages.isEmpty()) {
+                storedMessageCount = 0;
+                break;
+            }
+            storedMessageCount -= Math.min(storedMessageCount, messages.size());
+            for (MqttMessage message : messages) {
+                if (message.getQoS() == 0)
+                    connection.queuePacket(createPublishPacket(message, 0, false));
+                else
+                    send(message);
+            }
+        }
+    }
+
+    private void send(MqttMessage message) {
+        connection.queuePacket(createInFlightPacket(message));
+    }
+
+    /**
+     * Adds the message to the in-flight window and creates its PUBLISH packet.
+     */
+    private MqttPacketPublish createInFlightPacket(MqttMessage message) {
+        InFlightMessage msg = new InFlightMessage();
+        msg.message = message;
+        msg.state = (message.getQoS() == 1 ? InFlightState.AWAITING_PUBACK : InFlightState.AWAITING_PUBREC);
+        msg.sentTime = System.currentTimeMillis();
+
+        int packetId = nextPacketId();
+        inFlight.put(packetId, msg);
+        return createPublishPacket(message, packetId, false);
+    }
+
+    private void resend(int packetId, InFlightMessage msg, long now) {
+        msg.sentTime = now;
+        if (msg.state == InFlightState.AWAITING_PUBCOMP)
+            connection.queuePacket(createPublishRelPacket(packetId));
+        else
+            connection.queuePacket(createPublishPacket(msg.message, packetId, true));
+    }
+
+    /**
+     * @return a unused packet id between 1 and 65535
+     */
+    private int nextPacketId() {
+        do {
+            int id = nextPacketId;
+            nextPacketId = (nextPacketId >= 0xFFFF ? 1 : nextPacketId + 1);
+            if (!inFlight.containsKey(id))
+                return id;
+        } while (true);
+    }
+
+    /**
+     * @return the key used in the message store, anonymous sessions use a key unique to the session object.
+     */
+    private String storeKey() {
+        return (clientId != null ? clientId : "$anonymous-" + System.identityHashCode(this));
+    }
+
+    // ------------------------------------------
+    // Incoming messages
+    // ------------------------------------------
+
+    /**
+     * Registers the packet id of a received QoS 2 message.
+     *
+     * @return true if the packet id is new, false if the message is a duplicate that has already been published.
+     */
+    protected synchronized boolean addReceivedPacketId(int packetId) {
+        return receivedPacketIds.add(packetId);
+    }
+
+    /**
+     * Called when a PUBREL has been received, the message is then fully received.
+     */
+    protected synchronized void removeReceivedPacketId(int packetId) {
+        receivedPacketIds.remove(packetId);
+    }
+
+    /**
+     * Releases all resources used by the session.
+     */
+    protected synchronized void clear() {
+        inFlight.clear();
+        receivedPacketIds.clear();
+        subscriptions.clear();
+        maxGrantedQoS = 0;
+        if (storedMessageCount > 0 || !cleanSession)
+            broker.getMessageStore().remove(storeKey());
+        storedMessageCount = 0;
+    }
+
+    // ------------------------------------------
+    // Packet utilities
+    // ------------------------------------------
+
+    private static MqttPacketPublish createPublishPacket(MqttMessage message, int packetId, boolean dup) {
+        MqttPacketPublish packet = new MqttPacketPublish();
+        packet.topicName = message.getTopic();
+        packet.payload = message.getPayload();
+        packet.encodedFrame = message.getFrame();
+        packet.packetId = packetId;
+        packet.setFlagQoS(message.getQoS());
+        packet.setFlagDup(dup);
+        packet.setFlagRetain(message.isRetain());
+        return packet;
+    }
+
+    private static MqttPacketPublishRel createPublishRelPacket(int packetId) {
+        MqttPacketPublishRel packet = new MqttPacketPublishRel();
+        packet.packetId = packetId;
+        return packet;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A index of MQTT topic filters that can efficiently find all subscribers
+ * matching a published topic. The filters are stored in a tree with one node
+ * per topic level, so a lookup only depends on the depth of the topic and not
+ * on the number of subscriptions.
+ * <p>
+ * The MQTT wildcards are supported:
+ * <ul>
+ *     <li><b>+</b>: matches exactly one topic level, e.g. <code>home/+/temp</code></li>
+ *     <li><b>#</b>: matches the parent level and any number of sub levels, must be
+ *         the last level in the filter, e.g. <code>home/#</code></li>
+ * </ul>
+ * Topics starting with '$' will not be matched by filters starting with a wildcard.
+ * <p>
+ * The matched subscribers are cached per topic. A change of a filter without wildcards
+ * only invalidates the cache entry of that topic, while a change of a wildcard filter
+ * increments a version that invalidates all cached entries without scanning the cache.
+ * <p>
+ * The tree is thread safe without any locking. Lookups only read concurrent maps and
+ * copy-on-write sets, and a cached lookup is a single map read. Modifications attach and
+ * prune nodes atomically through the parent node map. A pruned node is flagged as removed
+ * so that a concurrent add into a detached node is detected and retried. A reverse index
+ * of the filters of each subscriber makes {@link #removeAll(Object)} proportional to the
+ * number of subscriptions of that subscriber.
+ *
+ * @param <T>   the subscriber type
+ * @author Ziver
+ */
+public class MqttTopicTree<T> {
+    public static final int DEFAULT_MAX_CACHE_SIZE = 10_000;
+
+    private static final String LEVEL_SEPARATOR = "/";
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private static class TopicNode<T> {
+        public final Map<String, TopicNode<T>> children = new ConcurrentHashMap<>();
+        /** subscribers of the filter ending in this node **/
+        public final Set<T> subscribers = new CopyOnWriteArraySet<>();
+        /** set when the node has been pruned from the tree **/
+        public volatile boolean removed;
+
+        public boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+
+    private final TopicNode<T> root = new TopicNode<>();
+    /** Reverse index of all filters subscribed by a subscriber */
+    private final Map<T, Set<String>> subscriberFilters = new ConcurrentHashMap<>();
+    private final Map<String, CachedMatch<T>> matchCache = new ConcurrentHashMap<>();
+    private final int maxCacheSize;
+    /** Incremented on every modification, used to detect stale lookups */
+    private final AtomicLong version = new AtomicLong();
+    /** Incremented on every modification of a wildcard filter, cache entries with an older version are stale */
+    private final AtomicLong wildcardVersion = new AtomicLong();
+
+    private static class CachedMatch<T> {
+        public final long wildcardVersion;
+        public final Set<T> subscribers;
+
+        public CachedMatch(long wildcardVersion, Set<T> subscribers) {
+            this.wildcardVersion = wildcardVersion;
+            this.subscribers = subscribers;
+        }
+    }
+
+
+    public MqttTopicTree() {
+        this(DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    /**
+     * @param   maxCacheSize    the max number of topics that will have their matched subscribers cached
+     */
+    public MqttTopicTree(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+
+    /**
+     * Adds a subscriber to the given topic filter.
+     *
+     * @param   filter      a valid topic filter, may contain wildcards.
+     * @param   subscriber  the subscriber object.
+     * @return true if the subscriber was added, false if it was already subscribed to the filter.
+     * @throws IllegalArgumentException if the topic filter is invalid.
+     */
+    public boolean add(String filter, T subscriber) {
+        if (!isValidTopicFilter(filter))
+            throw new IllegalArgumentException("Invalid topic filter: " + filter);
+
+        String[] levels = splitLevels(filter);
+        List<TopicNode<T>> path = new ArrayList<>(levels.length);
+        boolean added;
+        while (true) {
+            path.clear();
+            TopicNode<T> node = root;
+            for (String level : levels) {
+                node = node.children.computeIfAbsent(level, k -> new TopicNode<>());
+                path.add(node);
+            }
+            added = node.subscribers.add(subscriber);
+
+            // Retry if any node was pruned by a concurrent remove before we added to it
+            if (!isDetached(path))
+                break;
+            if (added)
+                node.subscribers.remove(subscriber);
+        }
+
+        subscriberFilters.compute(subscriber, (k, filters) -> {
+            if (filters == null)
+                filters = ConcurrentHashMap.newKeySet();
+            filters.add(filter);
+            return filters;
+        });
+
+        if (added)
+            invalidateCache(filter);
+        return added;
+    }
+
+    private static <T> boolean isDetached(List<TopicNode<T>> path) {
+        for (TopicNode<T> node : path) {
+            if (node.removed)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a subscriber from the given topic filter.
+     *
+     * @param   filter      the exact filter used when subscribing.
+     * @param   subscriber  the subscriber object.
+     * @return true if the subscriber was removed, false if it was not subscribed to the filter.
+     */
+    public boolean remove(String filter, T subscriber) {
+        if (filter == null || filter.isEmpty())
+            return false;
+
+        subscriberFilters.computeIfPresent(subscriber, (k, filters) -> {
+            filters.remove(filter);
+            return (filters.isEmpty() ? null : filters);
+        });
+
+        String[] levels = splitLevels(filter);
+        List<TopicNode<T>> path = new ArrayList<>(levels.length + 1);
+        TopicNode<T> node = root;
+        path.add(node);
+        for (String level : levels) {
+            node = node.children.get(level);
+            if (node == null)
+                return false;
+            path.add(node);
+        }
+
+        if (!node.subscribers.remove(subscriber))
+            return false;
+
+        // Prune empty nodes from the leaf and upwards
+        for (int i = levels.length; i > 0; --i) {
+            boolean[] pruned = new boolean[1];
+            path.get(i - 1).children.computeIfPresent(levels[i - 1], (k, child) -> {
+                if (!child.isEmpty())
+                    return child;
+                child.removed = true;
+                pruned[0] = true;
+                return null;
+            });
+            if (!pruned[0])
+                break;
+        }
+
+        invalidateCache(filter);
+        return true;
+    }
+
+    /**
+     * Removes the subscriber from all topic filters.
+     *
+     * @return a list of all the filters the subscriber was removed from.
+     */
+    public List<String> removeAll(T subscriber) {
+        Set<String> filters = subscriberFilters.remove(subscriber);
+        if (filters == null)
+            return Collections.emptyList();
+
+        List<String> removed = new ArrayList<>(filters.size());
+        for (String filter : filters) {
+            if (remove(filter, subscriber))
+                removed.add(filter);
+        }
+        return removed;
+    }
+
+    /**
+     * @return a set of all filters the subscriber is subscribed to, never null.
+     */
+    public Set<String> getSubscriptions(T subscriber) {
+        Set<String> filters = subscriberFilters.get(subscriber);
+        return (filters == null ? Collections.<String>emptySet() : new HashSet<>(filters));
+    }
+
+    /**
+     * Removes all subscribers.
+     */
+    public void clear() {
+        for (String level : root.children.keySet()) {
+            root.children.computeIfPresent(level, (k, child) -> {
+                child.removed = true;
+                return null;
+            });
+        }
+        subscriberFilters.clear();
+        version.incrementAndGet();
+        matchCache.clear();
+    }
+
+
+    /**
+     * Finds all subscribers that has a filter matching the given topic,
+     * a subscriber that has multiple matching filters will only be included once.
+     *
+     * @param   topic   a topic name without wildcards.
+     * @return a unmodifiable set of subscribers, never null.
+     */
+    public Set<T> match(String topic) {
+        long startWildcardVersion = wildcardVersion.get();
+        CachedMatch<T> cached = matchCache.get(topic);
+        if (cached != null && cached.wildcardVersion == startWildcardVersion)
+            return cached.subscribers;
+
+        long startVersion = version.get();
+        Set<T> subscribers = new LinkedHashSet<>();
+        String[] levels = splitLevels(topic);
+        match(root, levels, 0, !topic.startsWith("$"), subscribers);
+        Set<T> result = (subscribers.isEmpty() ?
+                Collections.<T>emptySet() : Collections.unmodifiableSet(subscribers));
+
+        if (matchCache.size() >= maxCacheSize)
+            matchCache.clear();
+        cached = new CachedMatch<>(startWildcardVersion, result);
+        matchCache.put(topic, cached);
+        // Tree was modified during lookup, the result might be stale
+        if (version.get() != startVersion)
+            matchCache.remove(topic, cached);
+        return result;
+    }
+
+    private static <T> void match(TopicNode<T> node, String[] levels, int index, boolean allowWildcard, Set<T> result) {
+        if (allowWildcard) {
+            // '#' also matches the parent level
+            TopicNode<T> multiLevel = node.children.get(MULTI_LEVEL_WILDCARD);
+            if (multiLevel != null)
+                result.addAll(multiLevel.subscribers);
+        }
+
+        if (index == levels.length) {
+            result.addAll(node.subscribers);
+            return;
+        }
+
+        TopicNode<T> child = node.children.get(levels[index]);
+        if (child != null)
+            match(child, levels, index + 1, true, result);
+        if (allowWildcard) {
+            child = node.children.get(SINGLE_LEVEL_WILDCARD);
+            if (child != null)
+                match(child, levels, index + 1, true, result);
+        }
+    }
+
+    /**
+     * @return the number of subscribers of the exact given filter, -1 if there are no subscribers.
+     */
+    public int getSubscriberCount(String filter) {
+        TopicNode<T> node = root;
+        for (String level : splitLevels(filter)) {
+            node = node.children.get(level);
+            if (node == null)
+                return -1;
+        }
+        return (node.subscribers.isEmpty() ? -1 : node.subscribers.size());
+    }
+
+
+    /**
+     * Invalidates all cached lookups for topics that could match the given filter.
+     */
+    private void invalidateCache(String filter) {
+        // Versions need to be incremented before the entry is removed, a concurrent lookup that
+        // started before the modification will then either see the new version or have its entry removed
+        version.incrementAndGet();
+        if (filter.contains(SINGLE_LEVEL_WILDCARD) || filter.contains(MULTI_LEVEL_WILDCARD))
+            wildcardVersion.incrementAndGet();
+        else
+            matchCache.remove(filter);
+    }
+
+
+    /**
+     * @return true if the given topic name matches the filter.
+     */
+    public static boolean matches(String filter, String topic) {
+        String[] filterLevels = splitLevels(filter);
+        String[] topicLevels = splitLevels(topic);
+        if (topic.startsWith("$") && (filter.startsWith(SINGLE_LEVEL_WILDCARD) || filter.startsWith(MULTI_LEVEL_WILDCARD)))
+            return false;
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (MULTI_LEVEL_WILDCARD.equals(filterLevels[i]))
+                return true;
+            if (i >= topicLevels.length)
+                return false;
+            if (!SINGLE_LEVEL_WILDCARD.equals(filterLevels[i]) && !filterLevels[i].equals(topicLevels[i]))
+                return false;
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * @return true if the filter is a valid MQTT topic filter.
+     */
+    public static boolean isValidTopicFilter(String filter) {
+        if (filter == null || filter.isEmpty())
+            return false;
+
+        String[] levels = splitLevels(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.contains(MULTI_LEVEL_WILDCARD) &&
+                    (!level.equals(MULTI_LEVEL_WILDCARD) || i != levels.length - 1))
+                return false;
+            if (level.contains(SINGLE_LEVEL_WILDCARD) && !level.equals(SINGLE_LEVEL_WILDCARD))
+                return false;
+        }
+        return true;
+    }
+
+    private static String[] splitLevels(String topic) {
+        return topic.split(LEVEL_SEPARATOR, -1);
+    }
+}
@@ -52,8 +52,8 @@ public class MqttPacket {
             case PACKET_TYPE_CONNACK:     packet = new MqttPacketConnectAck(); break;     // no payload
             case PACKET_TYPE_PUBLISH:     packet = new MqttPacketPublish(); break;
             case PACKET_TYPE_PUBACK:      packet = new MqttPacketPublishAck(); break;     // no payload
-            case PACKET_TYPE_PUBREC:      /* FALLTHROUGH */
-            case PACKET_TYPE_PUBREL:      packet = new MqttPacketPublishRec(); break;     // no payload
+            case PACKET_TYPE_PUBREC:      packet = new MqttPacketPublishRec(); break;     // no payload
+            case PACKET_TYPE_PUBREL:      packet = new MqttPacketPublishRel(); break;     // no payload
             case PACKET_TYPE_PUBCOMP:     packet = new MqttPacketPublishComp(); break;    // no payload
             case PACKET_TYPE_SUBSCRIBE:   packet = new MqttPacketSubscribe(); break;
             case PACKET_TYPE_SUBACK:      packet = new MqttPacketSubscribeAck(); break;
@@ -73,7 +73,28 @@ public class MqttPacket {
     }
 
     public static void write(BinaryStructOutputStream out, MqttPacketHeader header) throws IOException{
+        if (header instanceof MqttPacketPublish && ((MqttPacketPublish) header).encodedFrame != null) {
+            MqttPacketPublish publish = (MqttPacketPublish) header;
+            publish.encodedFrame.write(out, publish.flags, publish.packetId);
+            return;
+        }
+
         header.variableHeaderAndPayloadLength = header.calculateVariableHeaderLength() + header.calculatePayloadLength();
         out.write(header);
     }
+
+    /**
+     * @return the total size in bytes of the given packet on the wire, the length
+     *         fields of the packet need to have been set by reading or writing it.
+     */
+    public static int getPacketLength(MqttPacketHeader header) {
+        if (header instanceof MqttPacketPublish && ((MqttPacketPublish) header).encodedFrame != null) {
+            MqttPacketPublish publish = (MqttPacketPublish) header;
+            return publish.encodedFrame.getFrame(publish.getFlagQoS()).length;
+        }
+
+        int length = header.variableHeaderAndPayloadLength;
+        int lengthBytes = (length < 128 ? 1 : length < 16_384 ? 2 : length < 2_097_152 ? 3 : 4);
+        return 1 + lengthBytes + length;
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt.packet;
+
+import zutil.parser.binary.BinaryStructInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A incremental decoder of MQTT packets from a non-blocking stream of data.
+ * The fixed header, including the variable length remaining length field, is
+ * parsed as the bytes arrive so the data can be split at any position between
+ * calls. The packet is only parsed when all of its bytes has been received.
+ * <p>
+ * Note that the class is not thread safe, each connection needs its own decoder.
+ *
+ * @author Ziver
+ */
+public class MqttPacketDecoder {
+    /** The max size of a packet allowed by the MQTT specification (256MB) **/
+    public static final int MAX_PACKET_SIZE = 268_435_455 + 5;
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1024 * 1024; // 1MB
+
+    private final int maxPacketSize;
+
+    /** The fixed header, packet type, flags and up to four bytes of remaining length **/
+    private final byte[] header = new byte[5];
+    private int headerLength;
+    /** The complete packet including the fixed header, null while the header is being read **/
+    private byte[] packet;
+    private int packetLength;
+
+
+    public MqttPacketDecoder() {
+        this(DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    /**
+     * @param   maxPacketSize   the max size in bytes of a single packet including its fixed header
+     */
+    public MqttPacketDecoder(int maxPacketSize) {
+        if (maxPacketSize < 2)
+            throw new IllegalArgumentException("Packet size must be at least two bytes.");
+        this.maxPacketSize = Math.min(maxPacketSize, MAX_PACKET_SIZE);
+    }
+
+
+    /**
+     * Reads data from the buffer until a complete packet has been decoded or the buffer is empty.
+     * The method should be called repeatedly until it returns null to decode all packets in the buffer.
+     *
+     * @param   data    the received data, the position will be moved past the consumed bytes.
+     * @return the next packet or null if more data is needed.
+     * @throws IOException if the data is malformed or the packet is too large, the
+     *                     decoder state is then undefined and the connection should be closed.
+     */
+    public MqttPacketHeader decode(ByteBuffer data) throws IOException {
+        while (packet == null) {
+            if (!data.hasRemaining())
+                return null;
+
+            byte b = data.get();
+            header[headerLength++] = b;
+            if (headerLength == 1 || (b & 0x80) != 0) {
+                if (headerLength == header.length)
+                    throw new IOException("Malformed Remaining Length");
+                continue;
+            }
+
+            int remainingLength = decodeRemainingLength(header, 1, headerLength - 1);
+            if (remainingLength > maxPacketSize - headerLength)
+                throw new IOException("Packet size (" + (headerLength + remainingLength) + " bytes) exceeds max allowed size: " + maxPacketSize);
+
+            packet = new byte[headerLength + remainingLength];
+            System.arraycopy(header, 0, packet, 0, headerLength);
+            packetLength = headerLength;
+        }
+
+        int length = Math.min(data.remaining(), packet.length - packetLength);
+        data.get(packet, packetLength, length);
+        packetLength += length;
+        if (packetLength < packet.length)
+            return null;
+
+        byte[] complete = packet;
+        reset();
+        return MqttPacket.read(new BinaryStructInputStream(new ByteArrayInputStream(complete)));
+    }
+
+    /**
+     * @return true if the decoder contains data of a partially received packet.
+     */
+    public boolean hasPartialPacket() {
+        return headerLength > 0;
+    }
+
+    /**
+     * Discards any partially received packet.
+     */
+    public void reset() {
+        headerLength = 0;
+        packet = null;
+        packetLength = 0;
+    }
+
+
+    /**
+     * Decodes a variable length integer as defined by the MQTT specification.
+     *
+     * @param   data    the buffer containing the encoded integer
+     * @param   offset  the index of the first byte
+     * @param   length  the number of encoded bytes
+     * @return the decoded value
+     */
+    private static int decodeRemainingLength(byte[] data, int offset, int length) {
+        int value = 0;
+        int multiplier = 1;
+        for (int i = 0; i < length; i++) {
+            value += (data[offset + i] & 0x7F) * multiplier;
+            multiplier *= 128;
+        }
+        return value;
+    }
+}
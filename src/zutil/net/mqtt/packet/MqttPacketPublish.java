@@ -34,6 +34,7 @@ import zutil.parser.binary.serializer.TwoByteLengthPrefixedDataSerializer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A PUBLISH Control Packet is sent from a Client to a Server
@@ -50,7 +51,7 @@ public class MqttPacketPublish extends MqttPacketHeader {
 
 
     private static final byte FLAG_DUP_BITMASK = ByteUtil.getBitMask(3, 1);
-    private static final byte FLAG_QOS_BITMASK = ByteUtil.getBitMask(1, 2);
+    private static final byte FLAG_QOS_BITMASK = ByteUtil.getBitMask(2, 2);
     private static final byte FLAG_RETAIN_BITMASK = ByteUtil.getBitMask(0, 1);
 
     // ------------------------------------------
@@ -74,7 +75,7 @@ public class MqttPacketPublish extends MqttPacketHeader {
 
     @Override
     public int calculateVariableHeaderLength() {
-        return 2 + (topicName != null ? topicName.length() : 0) + (getFlagQoS() > 0 ? 2 : 0);
+        return 2 + (topicName != null ? topicName.getBytes(StandardCharsets.UTF_8).length : 0) + (getFlagQoS() > 0 ? 2 : 0);
     }
 
     // ------------------------------------------
@@ -91,6 +92,13 @@ public class MqttPacketPublish extends MqttPacketHeader {
         return payload == null ? 0 : payload.length;
     }
 
+    /**
+     * A pre-encoded frame of the topic and payload shared with other deliveries of the same
+     * message. If set it will be used by {@link MqttPacket#write} instead of serializing
+     * the topic and payload fields, only the flags and packet id of this object will be used.
+     */
+    public MqttPublishFrame encodedFrame;
+
     // ------------------------------------------
     // Util methods
     // ------------------------------------------
@@ -107,6 +115,18 @@ public class MqttPacketPublish extends MqttPacketHeader {
         return (flags & FLAG_RETAIN_BITMASK) != 0;
     }
 
+    public void setFlagDup(boolean dup) {
+        flags = (byte) (dup ? flags | FLAG_DUP_BITMASK : flags & ~FLAG_DUP_BITMASK);
+    }
+
+    public void setFlagQoS(int qos) {
+        flags = (byte) ((flags & ~FLAG_QOS_BITMASK) | ((qos << 1) & FLAG_QOS_BITMASK));
+    }
+
+    public void setFlagRetain(boolean retain) {
+        flags = (byte) (retain ? flags | FLAG_RETAIN_BITMASK : flags & ~FLAG_RETAIN_BITMASK);
+    }
+
 
     private static class MqttPacketPublishPayloadSerializer implements BinaryFieldSerializer<byte[]> {
 
@@ -144,7 +164,7 @@ public class MqttPacketPublish extends MqttPacketHeader {
             if (0 < publish.getFlagQoS()) {
                 byte[] b = new byte[2];
                 in.read(b);
-                return Converter.toInt(b);
+                return ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
             }
 
             return 0;
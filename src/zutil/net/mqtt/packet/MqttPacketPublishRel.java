@@ -38,6 +38,7 @@ public class MqttPacketPublishRel extends MqttPacketHeader{
 
     {
         type = MqttPacketHeader.PACKET_TYPE_PUBREL;
+        flags = 0b0010; // Reserved bits required by the spec
     }
 
     // ------------------------------------------
@@ -47,6 +48,12 @@ public class MqttPacketPublishRel extends MqttPacketHeader{
     @BinaryField(index = 2000, length = 16)
     public int packetId;
 
+
+    @Override
+    public int calculateVariableHeaderLength() {
+        return 2;
+    }
+
     // No Payload
 
 }
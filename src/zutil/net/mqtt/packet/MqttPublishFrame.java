@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt.packet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A PUBLISH packet encoded once and shared between all deliveries of the same message.
+ * The encoded bytes are never modified, the parts that differ between subscribers, the
+ * flags and the packet identifier, are written separately by {@link #writeHeader(OutputStream, int, int)}
+ * after which the rest of the shared frame can be written as is.
+ * <p>
+ * Two frames are encoded lazily, one without a packet identifier for QoS 0 and one with a
+ * placeholder identifier for QoS 1 and 2, as the remaining length differs between the two.
+ * The class is thread safe, concurrent first use might encode a frame twice but the result is
+ * identical.
+ *
+ * @author Ziver
+ */
+public class MqttPublishFrame {
+    private static final int PUBLISH_HEADER = MqttPacketHeader.PACKET_TYPE_PUBLISH << 4;
+
+    private final String topic;
+    private final byte[] payload;
+    private volatile byte[] frameQoS0;
+    private volatile byte[] frameQoS;
+    /** Index of the packet identifier in the QoS 1 and 2 frame **/
+    private volatile int packetIdOffset;
+
+
+    public MqttPublishFrame(String topic, byte[] payload) {
+        this.topic = topic;
+        this.payload = (payload != null ? payload : new byte[0]);
+    }
+
+
+    /**
+     * @param   qos     the QoS level of the delivery
+     * @return the shared encoded frame with all flags cleared and, for QoS 1 and 2, a zero packet identifier.
+     *         NOTE: the returned array must not be modified.
+     */
+    public byte[] getFrame(int qos) {
+        if (qos == 0) {
+            if (frameQoS0 == null)
+                frameQoS0 = encode(false);
+            return frameQoS0;
+        } else {
+            if (frameQoS == null)
+                frameQoS = encode(true);
+            return frameQoS;
+        }
+    }
+
+    /**
+     * Writes the part of the frame that is specific to a single delivery. The rest of the frame,
+     * from the returned offset until the end of {@link #getFrame(int)}, should be written after this.
+     *
+     * @param   out         the stream to write to
+     * @param   flags       the flags of the fixed header, i.e. DUP, QoS and RETAIN
+     * @param   packetId    the packet identifier, ignored for QoS 0
+     * @return the offset in the shared frame where the rest of the data starts.
+     */
+    public int writeHeader(OutputStream out, int flags, int packetId) throws IOException {
+        int qos = (flags >> 1) & 0x03;
+        byte[] frame = getFrame(qos);
+
+        if (qos == 0) {
+            if ((flags & 0x0F) == 0)
+                return 0; // The whole frame can be shared
+            out.write(PUBLISH_HEADER | (flags & 0x0F));
+            return 1;
+        }
+
+        int offset = packetIdOffset;
+        out.write(PUBLISH_HEADER | (flags & 0x0F));
+        out.write(frame, 1, offset - 1);
+        out.write((packetId >> 8) & 0xFF);
+        out.write(packetId & 0xFF);
+        return offset + 2;
+    }
+
+    /**
+     * Writes the whole frame for a single delivery.
+     */
+    public void write(OutputStream out, int flags, int packetId) throws IOException {
+        int offset = writeHeader(out, flags, packetId);
+        byte[] frame = getFrame((flags >> 1) & 0x03);
+        out.write(frame, offset, frame.length - offset);
+    }
+
+
+    private byte[] encode(boolean withPacketId) {
+        byte[] topicBytes = (topic != null ? topic.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        int remainingLength = 2 + topicBytes.length + (withPacketId ? 2 : 0) + payload.length;
+        int lengthBytes = (remainingLength < 128 ? 1 : remainingLength < 16_384 ? 2 : remainingLength < 2_097_152 ? 3 : 4);
+
+        byte[] frame = new byte[1 + lengthBytes + remainingLength];
+        int index = 0;
+        frame[index++] = (byte) PUBLISH_HEADER;
+        int x = remainingLength;
+        do {
+            int encodedByte = x % 128;
+            x /= 128;
+            frame[index++] = (byte) (x > 0 ? encodedByte | 128 : encodedByte);
+        } while (x > 0);
+
+        frame[index++] = (byte) ((topicBytes.length >> 8) & 0xFF);
+        frame[index++] = (byte) (topicBytes.length & 0xFF);
+        System.arraycopy(topicBytes, 0, frame, index, topicBytes.length);
+        index += topicBytes.length;
+
+        if (withPacketId) {
+            packetIdOffset = index;
+            index += 2;
+        }
+        System.arraycopy(payload, 0, frame, index, payload.length);
+        return frame;
+    }
+}
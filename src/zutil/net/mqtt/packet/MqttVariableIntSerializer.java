@@ -60,7 +60,7 @@ public class MqttVariableIntSerializer implements BinaryFieldSerializer<Integer>
             x = x / 128;
             // if there are more data to encode, set the top bit of this byte
             if (x > 0)
-                encodedByte = encodedByte & 128;
+                encodedByte = encodedByte | 128;
             out.write(encodedByte);
         } while (x > 0);
     }
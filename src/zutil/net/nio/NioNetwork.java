@@ -24,10 +24,13 @@
 
 package zutil.net.nio;
 
-import zutil.converter.Converter;
 import zutil.log.LogUtil;
+import zutil.net.nio.codec.JavaSerializationCodec;
+import zutil.net.nio.codec.MessageCodec;
+import zutil.net.nio.server.ByteBufferPool;
 import zutil.net.nio.server.ChangeRequest;
 import zutil.net.nio.server.ClientData;
+import zutil.net.nio.server.WriteQueue;
 import zutil.net.nio.worker.Worker;
 
 import java.io.IOException;
@@ -38,29 +41,86 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * A non-blocking network layer based on one or more selector threads.
+ * <p>
+ * By default all IO is handled by a single thread. With more than one reactor the main
+ * thread will only accept new connections and each connection is assigned to one of the reactor
+ * threads, which handles all reads and writes of that connection. All callbacks for a connection
+ * are therefore made from the same thread but different connections are handled concurrently.
+ * <p>
+ * Messages sent through {@link #send(SocketAddress, Object)} or {@link #send(SocketAddress, byte[])}
+ * are framed with a 4 byte big endian length prefix so that the receiving side can reassemble messages
+ * that are split or merged by TCP. Incomplete messages are buffered per connection and complete
+ * messages are decoded with the configured {@link MessageCodec} and handed to the worker.
+ * <p>
+ * If the worker is overloaded the network will stop reading from connections with received
+ * data until the worker has free capacity again, leaving the data in the socket buffers
+ * so that TCP flow control slows down the senders.
+ * <p>
+ * Outbound data is queued per connection, small messages are coalesced into shared buffers
+ * and the queue is flushed by the network thread with gathering writes. Write interest is
+ * only registered when the socket buffer is full. If more data than the high water mark is
+ * queued for a connection, reading from it is paused until the queue has been drained.
+ *
+ * @author Ziver
+ */
 public abstract class NioNetwork implements Runnable {
     private static Logger logger = LogUtil.getLogger();
 
+    /** The size of the pooled network buffers **/
+    public static final int BUFFER_SIZE = 8192;
+    /** The default max allowed size of a single message **/
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    /** The default number of queued outbound bytes after which a connection is considered to be full **/
+    public static final long DEFAULT_WRITE_HIGH_WATER_MARK = 4 * 1024 * 1024;
+    private static final int FRAME_HEADER_SIZE = 4;
+    /** The max number of buffers written by a single gathering write **/
+    private static final int MAX_GATHER_BUFFERS = 64;
+
+    /**
+     * Strategies for assigning new connections to reactors.
+     */
+    public enum ReactorSelection {
+        /** Connections are assigned to each reactor in turn **/
+        ROUND_ROBIN,
+        /** Connections are assigned to the reactor with fewest connections **/
+        LEAST_LOADED
+    }
+
     protected SocketAddress localAddress;
     // The channel on which we'll accept connections
     protected ServerSocketChannel serverChannel;
-    // The selector we will be monitoring
-    private Selector selector;
-    // The buffer into which we'll read data when it's available
-    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    // Pool of direct buffers used for reading and sending data
+    private ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, 256);
+    // The reactor accepting new connections
+    private Reactor mainReactor;
+    // The reactors handling the IO of the connections
+    private Reactor[] reactors;
+    private AtomicInteger nextReactor = new AtomicInteger();
+    private volatile ReactorSelection reactorSelection = ReactorSelection.ROUND_ROBIN;
     protected Worker worker;
+    private MessageCodec codec = new JavaSerializationCodec();
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private volatile long writeHighWaterMark = DEFAULT_WRITE_HIGH_WATER_MARK;
 
     // This map contains all the clients that are connected
-    protected Map<InetSocketAddress, ClientData> clients = new HashMap<>();
+    protected Map<InetSocketAddress, ClientData> clients = new ConcurrentHashMap<>();
 
-    // A list of PendingChange instances
-    private List<ChangeRequest> pendingChanges = new LinkedList<>();
-    // Maps a SocketChannel to a list of ByteBuffer instances
-    private Map<SocketChannel, List<ByteBuffer>> pendingWriteData = new HashMap<>();
+    private final Runnable capacityListener = () -> {
+        for (Reactor reactor : reactors)
+            reactor.resumeReading();
+    };
 
 
 
@@ -77,9 +137,30 @@ public abstract class NioNetwork implements Runnable {
      * @param   localAddress    the address the server will listen on
      */
     public NioNetwork(SocketAddress localAddress) throws IOException {
+        this(localAddress, 1);
+    }
+
+    /**
+     * Create a Network object with multiple IO threads
+     *
+     * @param   localAddress    the address the server will listen on or null for a client
+     * @param   reactorCount    the number of threads handling the IO of the connections
+     */
+    public NioNetwork(SocketAddress localAddress, int reactorCount) throws IOException {
+        if (reactorCount < 1)
+            throw new IllegalArgumentException("Reactor count must be larger than zero.");
         this.localAddress = localAddress;
         // init selector
-        this.selector = initSelector();
+        this.mainReactor = new Reactor(initSelector());
+        if (reactorCount == 1) {
+            reactors = new Reactor[]{ mainReactor };
+        } else {
+            reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                reactors[i] = new Reactor(SelectorProvider.provider().openSelector());
+                new Thread(reactors[i], getClass().getSimpleName() + "-Reactor-" + i).start();
+            }
+        }
         // init traffic thread
         new Thread(this).start();
     }
@@ -94,12 +175,83 @@ public abstract class NioNetwork implements Runnable {
      * @param   worker  the worker that should handle incoming messages
      */
     public void setDefaultWorker(Worker worker) {
+        if (this.worker != null)
+            this.worker.removeCapacityListener(capacityListener);
         this.worker = worker;
+        if (worker != null)
+            worker.addCapacityListener(capacityListener);
+    }
+
+    /**
+     * Sets how new connections are assigned to the reactors, the default is round robin.
+     */
+    public void setReactorSelection(ReactorSelection selection) {
+        this.reactorSelection = selection;
     }
 
+    /**
+     * @return the number of threads handling the IO of the connections
+     */
+    public int getReactorCount() {
+        return reactors.length;
+    }
 
     /**
-     * Connect to a remote Server.
+     * Sets the codec that will be used to encode and decode message objects,
+     * both sides of a connection needs to use the same codec.
+     * The default codec is {@link JavaSerializationCodec}.
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the max size of a received message, connections
+     * sending larger messages will be closed.
+     *
+     * @param   size    the size in bytes
+     */
+    public void setMaxMessageSize(int size) {
+        this.maxMessageSize = size;
+    }
+
+    /**
+     * Sets the number of queued outbound bytes after which the network will stop reading
+     * from the connection, reading is resumed when the queue is below half of the mark.
+     *
+     * @param   bytes   the high water mark in bytes
+     */
+    public void setWriteHighWaterMark(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("High water mark must be larger than zero.");
+        this.writeHighWaterMark = bytes;
+    }
+
+    /**
+     * @return the number of bytes queued for the connection that has not yet been written to the socket.
+     */
+    public long getQueuedWriteBytes(SocketAddress address) {
+        ClientData client = clients.get(address);
+        return (client != null ? client.getWriteQueue().size() : 0);
+    }
+
+    /**
+     * @return true if the connection exists and its outbound queue is below the high water mark.
+     *         Data can still be sent to a full connection but it will be buffered in memory.
+     */
+    public boolean isWritable(SocketAddress address) {
+        ClientData client = clients.get(address);
+        return client != null && client.getWriteQueue().size() < writeHighWaterMark;
+    }
+
+
+    /**
+     * Connect to a remote Server. Data sent to the address before the connection
+     * has been established is queued and written when the connection is ready.
      */
     protected void connect(SocketAddress address) throws IOException {
         logger.fine("Connecting to: " +address);
@@ -110,267 +262,623 @@ public abstract class NioNetwork implements Runnable {
         // Establish the Connection
         socketChannel.connect(address);
 
+        // Add the connection directly so that sent data is queued while connecting
+        Reactor reactor = selectReactor();
+        registerSocketChannel(socketChannel, reactor);
         // Queue a channel registration
-        synchronized(this.pendingChanges) {
-            pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
+        reactor.register(socketChannel, SelectionKey.OP_CONNECT);
+    }
+
+    /**
+     * @return the reactor that should handle a new connection, the connection
+     *         count of the returned reactor has already been incremented.
+     */
+    private Reactor selectReactor() {
+        Reactor reactor = reactors[0];
+        if (reactors.length > 1) {
+            if (reactorSelection == ReactorSelection.LEAST_LOADED) {
+                for (Reactor r : reactors) {
+                    if (r.connectionCount.get() < reactor.connectionCount.get())
+                        reactor = r;
+                }
+            } else {
+                reactor = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+            }
         }
-        selector.wakeup();
+        reactor.connectionCount.incrementAndGet();
+        return reactor;
     }
 
 
+    /**
+     * Encodes the message with the current codec and queues it to be sent
+     *
+     * @param   address the target address where the message should be sent
+     * @param   data    the message object to send
+     */
     public void send(SocketAddress address, Object data) throws IOException{
-        send(address, Converter.toBytes(data));
+        send(address, codec.encode(data));
     }
 
     /**
-     * Queues a message to be sent
+     * Queues a message to be sent, the data will be sent as a single length prefixed frame.
+     * Large arrays are not copied and must not be modified after this method has been called.
      *
      * @param   address the target address where the message should be sent
      * @param   data    the data to send
      */
     public void send(SocketAddress address, byte[] data) {
         logger.finest("Sending Queue...");
-        SocketChannel socket = getSocketChannel(address);
-
-        // And queue the data we want written
-        synchronized (pendingWriteData) {
-            List<ByteBuffer> queue = pendingWriteData.get(socket);
-            if (queue == null) {
-                queue = new ArrayList<>();
-                pendingWriteData.put(socket, queue);
-            }
-            queue.add(ByteBuffer.wrap(data));
-        }
-        // Changing the key state to write
-        synchronized (pendingChanges) {
-            // Indicate we want the interest ops set changed
-            pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-        }
-        // Finally, wake up our selecting thread so it can make the required changes
-        selector.wakeup();
+        ClientData client = getClient(address);
+        if (client != null && client.getWriteQueue().addFrame(data, 0, data.length))
+            scheduleFlush(client);
     }
 
+    /**
+     * Queues data to be sent as is without any framing, this
+     * is used by protocols that handle their own message boundaries.
+     *
+     * @param   address the target address where the data should be sent
+     * @param   data    the data to send
+     */
+    protected void sendRaw(SocketAddress address, byte[] data) {
+        sendRaw(address, data, 0, data.length);
+    }
 
+    /**
+     * Queues a part of a array to be sent as is without any framing. The array is not copied
+     * so it can be shared between multiple connections but must not be modified until sent.
+     *
+     * @param   address the target address where the data should be sent
+     * @param   data    the array containing the data to send
+     * @param   offset  the index of the first byte to send
+     * @param   length  the number of bytes to send
+     */
+    protected void sendRaw(SocketAddress address, byte[] data, int offset, int length) {
+        ClientData client = getClient(address);
+        if (client != null && client.getWriteQueue().add(data, offset, length))
+            scheduleFlush(client);
+    }
 
+    /**
+     * Queues the connection to be closed after all pending data has been sent.
+     *
+     * @param   address the address of the connection
+     */
+    protected void closeConnectionAfterSend(SocketAddress address) {
+        ClientData client = getClient(address);
+        if (client != null && client.getWriteQueue().addCloseMarker())
+            scheduleFlush(client);
+    }
+
+    private ClientData getClient(SocketAddress address) {
+        ClientData client = clients.get(address);
+        if (client == null)
+            logger.fine("No connection to " + address + ", discarding data.");
+        return client;
+    }
+
+    private void scheduleFlush(ClientData client) {
+        ((Connection) client).reactor.scheduleFlush(client);
+    }
 
 
+
+
+
+    /**
+     * Runs the main reactor, accepting new connections and handling
+     * the IO of all connections if there is only a single reactor.
+     */
     public void run() {
-        logger.info("NioNetwork Started.");
-        while (selector.isOpen()) {
-            try {
-                // Handle any pending changes
-                synchronized (pendingChanges) {
-                    for (ChangeRequest change : pendingChanges) {
+        mainReactor.run();
+    }
+
+
+    /**
+     * A selector thread handling the IO of a part of the connections. All state in a
+     * reactor, except the queues, is only accessed by the reactor thread so no lock
+     * is shared between reactors.
+     */
+    private class Reactor implements Runnable {
+        // The selector we will be monitoring
+        private final Selector selector;
+        // A list of PendingChange instances
+        private final Queue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<>();
+        // Connections with queued data that should be written by the reactor thread
+        private final Queue<ClientData> pendingFlushes = new ConcurrentLinkedQueue<>();
+        // The buffer into which we'll read data when it's available
+        private final ByteBuffer readBuffer = bufferPool.acquire(BUFFER_SIZE);
+        // Array used for gathering writes
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+        // Keys that are not read from while the worker is overloaded
+        private final Set<SelectionKey> pausedKeys = new HashSet<>();
+        private final AtomicBoolean resumeReading = new AtomicBoolean();
+        /** The number of connections assigned to this reactor **/
+        private final AtomicInteger connectionCount = new AtomicInteger();
+
+
+        public Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+
+        /**
+         * Queues a channel to be registered with this reactor, channels
+         * registered for reading are considered to be accepted connections.
+         */
+        public void register(SocketChannel socketChannel, int ops) {
+            pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, ops));
+            selector.wakeup();
+        }
+
+        public void scheduleFlush(ClientData client) {
+            pendingFlushes.add(client);
+            // Wake up our selecting thread so it can write the data
+            selector.wakeup();
+        }
+
+        public void resumeReading() {
+            resumeReading.set(true);
+            selector.wakeup();
+        }
+
+        /**
+         * Queues a connection to be closed by the reactor thread, the buffers of a connection
+         * may only be released by the reactor thread as it could be reading into them.
+         */
+        public void requestClose(SocketChannel socketChannel) {
+            pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.CLOSE, 0));
+            selector.wakeup();
+        }
+
+        public void close() throws IOException {
+            selector.close();
+        }
+
+
+        public void run() {
+            logger.info("NioNetwork Started.");
+            while (selector.isOpen()) {
+                try {
+                    // Handle any pending changes
+                    ChangeRequest change;
+                    while ((change = pendingChanges.poll()) != null) {
                         switch (change.type) {
                             case ChangeRequest.CHANGEOPS:
                                 SelectionKey key = change.socket.keyFor(selector);
+                                if (key == null || !key.isValid())
+                                    break; // Connection has been closed
                                 key.interestOps(change.ops);
                                 logger.finest("change.ops " + change.ops);
                                 break;
                             case ChangeRequest.REGISTER:
-                                change.socket.register(selector, change.ops);
+                                registerChannel(change.socket, change.ops);
                                 logger.finest("register socket ");
                                 break;
+                            case ChangeRequest.CLOSE:
+                                closeConnection(change.socket);
+                                logger.finest("close socket ");
+                                break;
                         }
                     }
-                    pendingChanges.clear();
-                }
-
-                // Wait for an event from one of the channels
-                selector.select();
-                logger.finest("selector is awake");
-
-                // Iterate over the set of keys for which events are available
-                if (selector.isOpen()) {
-                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
-                    while (selectedKeys.hasNext()) {
-                        SelectionKey key = selectedKeys.next();
-                        selectedKeys.remove();
-                        logger.finest("KeyOP: " + key.interestOps() + "	isAcceptable: " + SelectionKey.OP_ACCEPT + " isConnectible: " + SelectionKey.OP_CONNECT + " isWritable: " + SelectionKey.OP_WRITE + " isReadable: " + SelectionKey.OP_READ);
-
-                        if (key.isValid()) {
-                            // Check what event is available and deal with it
-                            if (key.isAcceptable()) {
-                                logger.finest("Accepting Connection!!");
-                                accept(key);
-                            } else if (key.isConnectable()) {
-                                logger.finest("Establishing Connection!!");
-                                establishConnection(key);
-                            } else if (key.isWritable()) {
-                                logger.finest("Writing");
-                                write(key);
-                            } else if (key.isReadable()) {
-                                logger.finest("Reading");
-                                read(key);
+                    // Write queued data directly, write interest is only registered if the socket buffer gets full
+                    ClientData client;
+                    while ((client = pendingFlushes.poll()) != null)
+                        flush(client);
+                    if (resumeReading.getAndSet(false))
+                        resumePausedKeys();
+
+                    // Wait for an event from one of the channels
+                    selector.select();
+                    logger.finest("selector is awake");
+
+                    // Iterate over the set of keys for which events are available
+                    if (selector.isOpen()) {
+                        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                        while (selectedKeys.hasNext()) {
+                            SelectionKey key = selectedKeys.next();
+                            selectedKeys.remove();
+                            logger.finest("KeyOP: " + key.interestOps() + "	isAcceptable: " + SelectionKey.OP_ACCEPT + " isConnectible: " + SelectionKey.OP_CONNECT + " isWritable: " + SelectionKey.OP_WRITE + " isReadable: " + SelectionKey.OP_READ);
+
+                            if (key.isValid()) {
+                                // Check what event is available and deal with it
+                                if (key.isAcceptable()) {
+                                    logger.finest("Accepting Connection!!");
+                                    accept(key);
+                                } else if (key.isConnectable()) {
+                                    logger.finest("Establishing Connection!!");
+                                    establishConnection(key);
+                                } else {
+                                    if (key.isWritable()) {
+                                        logger.finest("Writing");
+                                        flush((ClientData) key.attachment());
+                                    }
+                                    if (key.isValid() && key.isReadable()) {
+                                        logger.finest("Reading");
+                                        read(key);
+                                    }
+                                }
                             }
                         }
                     }
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            logger.info("Shutting down NioNetwork");
         }
-        logger.info("Shutting down NioNetwork");
-    }
 
-    /**
-     * Handle an accept event from a remote host. Channel can only be a server socket.
-     */
-    private void accept(SelectionKey key) throws IOException {
-        // For an accept to be pending the channel must be a server socket channel.
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        /**
+         * Handle an accept event from a remote host. Channel can only be a server socket.
+         */
+        private void accept(SelectionKey key) throws IOException {
+            // For an accept to be pending the channel must be a server socket channel.
+            ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+
+            // Accept the connection and make it non-blocking
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            if (socketChannel == null)
+                return;
+            socketChannel.socket().setReuseAddress(true);
+            socketChannel.configureBlocking(false);
+
+            // Hand the connection to a reactor
+            Reactor reactor = selectReactor();
+            if (reactor == this)
+                registerChannel(socketChannel, SelectionKey.OP_READ);
+            else
+                reactor.register(socketChannel, SelectionKey.OP_READ);
+        }
 
-        // Accept the connection and make it non-blocking
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.socket().setReuseAddress(true);
-        socketChannel.configureBlocking(false);
+        private void registerChannel(SocketChannel socketChannel, int ops) {
+            SocketAddress remoteAdr = socketChannel.socket().getRemoteSocketAddress();
+            try {
+                // Register the new SocketChannel with our Selector
+                SelectionKey key = socketChannel.register(selector, ops);
+                if (ops == SelectionKey.OP_READ) {
+                    // adds the client to the clients list
+                    key.attach(registerSocketChannel(socketChannel, this));
+                    logger.fine("New Connection(" + socketChannel.getRemoteAddress() + ")!!! Count: " + clients.size());
+                    connectionOpened(remoteAdr);
+                } else {
+                    // The client was added when the connection was initiated
+                    key.attach(clients.get(remoteAdr));
+                    if (socketChannel.isConnected()) // Connected immediately, no connect event will be received
+                        establishConnection(key);
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Unable to register connection", e);
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {}
+                if (remoteAdr != null && clients.containsKey(remoteAdr))
+                    removeConnection(socketChannel, remoteAdr);
+                else
+                    connectionCount.decrementAndGet();
+            }
+        }
 
-        // Register the new SocketChannel with our Selector, indicating
-        // we'd like to be notified when there's data waiting to be read
-        socketChannel.register(selector, SelectionKey.OP_READ);
+        /**
+         * Finnish an ongoing remote connection establishment procedure
+         */
+        private void establishConnection(SelectionKey key) {
+            SocketChannel socketChannel = (SocketChannel) key.channel();
+            SocketAddress remoteAdr = socketChannel.socket().getRemoteSocketAddress();
 
-        // adds the client to the clients list
-        registerSocketChannel(socketChannel);
-        logger.fine("New Connection(" + socketChannel.getRemoteAddress() + ")!!! Count: " + clients.size());
-    }
+            try {
+                // Finalize/Finish the connection.
+                socketChannel.finishConnect();
 
-    /**
-     * Finnish an ongoing remote connection establishment procedure
-     */
-    private void establishConnection(SelectionKey key) {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+                // Register an interest in reading on this channel
+                key.interestOps(SelectionKey.OP_READ);
 
-        try {
-            // Finalize/Finish the connection.
-            socketChannel.finishConnect();
+                ClientData client = registerSocketChannel(socketChannel, this);
+                key.attach(client);
+                logger.fine("Connection established(" + remoteAdr + ")");
+
+                // Write any data queued while connecting
+                flush(client);
+            } catch (IOException e) {
+                logger.warning("Unable to connect to " + remoteAdr + ": " + e.getMessage());
+                // Cancel the channel's registration with our selector
+                key.cancel();
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {}
+                removeConnection(socketChannel, remoteAdr);
+            }
+        }
 
-            // Register an interest in writing on this channel
-            key.interestOps(SelectionKey.OP_WRITE);
 
-            registerSocketChannel(socketChannel);
-            logger.fine("Connection established(" + socketChannel.getRemoteAddress() + ")");
-        } catch (IOException e) {
-            // Cancel the channel's registration with our selector
-            e.printStackTrace();
-            key.cancel();
+        /**
+         * Writes as much queued data as possible to the connection and
+         * registers write interest if the socket buffer is full.
+         */
+        private void flush(ClientData client) throws IOException {
+            SocketChannel socketChannel = client.getSocketChannel();
+            SelectionKey key = socketChannel.keyFor(selector);
+            if (key == null || !key.isValid())
+                return; // Connection has been closed
+            if (socketChannel.isConnectionPending())
+                return; // Queued data is written when the connection has been established
+
+            WriteQueue queue = client.getWriteQueue();
+            try {
+                if (queue.write(socketChannel, gatherBuffers) && queue.isCloseRequested()) {
+                    logger.finest("All data written, closing connection.");
+                    closeConnection(socketChannel);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.fine("Unable to write to connection(" + client.getAddress() + "): " + e.getMessage());
+                closeConnection(socketChannel);
+                return;
+            }
+
+            if (client.isReadPaused() && queue.size() <= writeHighWaterMark / 2) {
+                logger.finest("Write queue drained, resuming reads from " + client.getAddress());
+                client.setReadPaused(false);
+            }
+            updateInterestOps(key);
         }
-    }
 
+        /**
+         * Sets the interest of the key based on the paused state and write queue of the connection.
+         */
+        private void updateInterestOps(SelectionKey key) {
+            ClientData client = (ClientData) key.attachment();
+            int ops = 0;
+            if (!pausedKeys.contains(key) && (client == null || !client.isReadPaused()))
+                ops |= SelectionKey.OP_READ;
+            if (client != null && client.getWriteQueue().isWriteBlocked())
+                ops |= SelectionKey.OP_WRITE;
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        }
 
-    /**
-     * Writes data pending message into a specific socket defined by the key
-     */
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        synchronized (pendingWriteData) {
-            List<ByteBuffer> queue = pendingWriteData.get(socketChannel);
-            if (queue == null) {
-                queue = new ArrayList<>();
-                pendingWriteData.put(socketChannel, queue);
+        /**
+         * Handle a read event from a socket specified by the key.
+         */
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel socketChannel = (SocketChannel) key.channel();
+            SocketAddress remoteAdr = socketChannel.socket().getRemoteSocketAddress();
+
+            // Clear out our read buffer so it's ready for new data
+            readBuffer.clear();
+
+            // Attempt to read off the channel
+            int numRead;
+            try {
+                numRead = socketChannel.read(readBuffer);
+            } catch (IOException e) {
+                // The remote forcibly closed the connection, cancel
+                // the selection key and close the channel.
+                key.cancel();
+                socketChannel.close();
+                removeConnection(socketChannel, remoteAdr);
+                logger.fine("Connection forcibly closed(" + remoteAdr + ")! Remaining connections: " + clients.size());
+                return;
             }
 
-            // Write until there's no more data ...
-            while (!queue.isEmpty()) {
-                ByteBuffer buf = queue.get(0);
-                socketChannel.write(buf);
-                if (buf.remaining() > 0) {
-                    logger.finest("Write Buffer Full!");
-                    break;
-                }
-                queue.remove(0);
+            if (numRead == -1) {
+                // Remote entity shut the socket down cleanly. Do the
+                // same from our end and cancel the channel.
+                key.channel().close();
+                key.cancel();
+                removeConnection(socketChannel, remoteAdr);
+                logger.fine("Connection Closed(" + remoteAdr + ")! Remaining connections: " + clients.size());
+                return;
             }
 
-            if (queue.isEmpty()) {
-                // All data written, change selector interest
-                logger.finest("No more Data to write!");
-                key.interestOps(SelectionKey.OP_READ);
+            ClientData client = clients.get(remoteAdr);
+            if (client != null)
+                client.setLastMessageReceived(System.currentTimeMillis());
+
+            readBuffer.flip();
+            processReceivedData(remoteAdr, readBuffer);
+
+            if (worker != null && worker.isOverloaded() && key.isValid()) {
+                logger.finest("Worker overloaded, pausing reads from " + remoteAdr);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                pausedKeys.add(key);
             }
+            if (client != null && key.isValid() && client.getWriteQueue().size() > writeHighWaterMark) {
+                logger.finest("Write queue full, pausing reads from " + remoteAdr);
+                client.setReadPaused(true);
+                updateInterestOps(key);
+            }
+        }
+
+        /**
+         * Restores the read interest of all connections paused because of a overloaded worker.
+         */
+        private void resumePausedKeys() {
+            List<SelectionKey> keys = new ArrayList<>(pausedKeys);
+            pausedKeys.clear();
+            for (SelectionKey key : keys) {
+                if (key.isValid())
+                    updateInterestOps(key);
+            }
+            logger.finest("Resumed reading from " + keys.size() + " connections.");
         }
     }
 
     /**
-     * Handle a read event from a socket specified by the key.
+     * A connection and the reactor handling its IO.
      */
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        SocketAddress remoteAdr = socketChannel.socket().getRemoteSocketAddress();
+    private static class Connection extends ClientData {
+        public final Reactor reactor;
 
-        // Clear out our read buffer so it's ready for new data
-        readBuffer.clear();
+        public Connection(SocketChannel socketChannel, ByteBufferPool bufferPool, Reactor reactor) {
+            super(socketChannel, bufferPool);
+            this.reactor = reactor;
+        }
+    }
 
-        // Attempt to read off the channel
-        int numRead;
-        try {
-            numRead = socketChannel.read(readBuffer);
-        } catch (IOException e) {
-            // The remote forcibly closed the connection, cancel
-            // the selection key and close the channel.
-            key.cancel();
-            socketChannel.close();
-            clients.remove(remoteAdr);
-            pendingWriteData.remove(socketChannel);
-            logger.fine("Connection forcibly closed(" + remoteAdr + ")! Remaining connections: " + clients.size());
-            throw new IOException("Remote forcibly closed the connection");
+    /**
+     * Called by the network thread when data has been read from a connection.
+     * The default implementation will split the data into length prefixed frames,
+     * decode each complete frame with the codec and hand the message to the default worker.
+     * Incomplete frames are buffered until the rest of the data has been received.
+     * Note that the buffer will be reused after this method returns so any data
+     * that is needed later needs to be copied.
+     *
+     * @param   remoteAddress   the address of the connection that the data was read from
+     * @param   data            a buffer containing the read data
+     */
+    protected void processReceivedData(SocketAddress remoteAddress, ByteBuffer data) {
+        ClientData client = clients.get(remoteAddress);
+        if (client == null)
+            return;
+
+        // Append data to any previously received partial frame
+        ByteBuffer buffer = client.getReadBuffer();
+        ByteBuffer src = data;
+        if (buffer != null) {
+            if (buffer.remaining() < data.remaining()) {
+                ByteBuffer newBuffer = bufferPool.acquire(
+                        Math.max(buffer.position() + data.remaining(), buffer.capacity() * 2));
+                buffer.flip();
+                newBuffer.put(buffer);
+                bufferPool.release(buffer);
+                buffer = newBuffer;
+                client.setReadBuffer(buffer);
+            }
+            buffer.put(data);
+            buffer.flip();
+            src = buffer;
         }
 
-        if (numRead == -1) {
-            // Remote entity shut the socket down cleanly. Do the
-            // same from our end and cancel the channel.
-            key.channel().close();
-            key.cancel();
-            clients.remove(remoteAdr);
-            pendingWriteData.remove(socketChannel);
-            logger.fine("Connection Closed(" + remoteAdr + ")! Remaining connections: " + clients.size());
-            throw new IOException("Remote closed the connection");
+        // Process all complete frames
+        while (src.remaining() >= FRAME_HEADER_SIZE) {
+            int frameLength = src.getInt(src.position());
+            if (frameLength < 0 || frameLength > maxMessageSize) {
+                logger.warning("Invalid message size(" + frameLength + ") received from " + remoteAddress + ", closing connection.");
+                closeInvalidConnection(client);
+                return;
+            }
+            if (src.remaining() < FRAME_HEADER_SIZE + frameLength)
+                break;
+
+            src.position(src.position() + FRAME_HEADER_SIZE);
+            handleMessage(remoteAddress, src, frameLength);
         }
 
-        // Make a correctly sized copy of the data before handing it to the client
-        //byte[] rspByteData = new byte[numRead];
-        //System.arraycopy(readBuffer.array(), 0, rspByteData, 0, numRead);
+        // Store the remaining partial frame
+        if (src == buffer) {
+            buffer.compact();
+            if (buffer.position() == 0) {
+                bufferPool.release(buffer);
+                client.setReadBuffer(null);
+            }
+        } else if (src.hasRemaining()) {
+            // Only size the buffer by the received data, the buffer will grow as the rest of the frame arrives
+            buffer = bufferPool.acquire(src.remaining());
+            buffer.put(src);
+            client.setReadBuffer(buffer);
+        }
+    }
 
+    /**
+     * Decodes a single message from the buffer and hands it to the worker,
+     * the buffer position will be moved to the end of the message.
+     */
+    private void handleMessage(SocketAddress remoteAddress, ByteBuffer src, int length) {
         try {
-            Object rspData = Converter.toObject(readBuffer.array());
+            Object message;
+            if (src.hasArray()) {
+                message = codec.decode(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.position() + length);
+            } else {
+                byte[] payload = new byte[length];
+                src.get(payload);
+                message = codec.decode(payload, 0, length);
+            }
 
             // Hand the data off to our worker thread
             if (worker != null) {
                 logger.finer("Handling incoming message...");
-                worker.processData(this, socketChannel.getRemoteAddress(), rspData);
+                worker.processData(this, remoteAddress, message);
             } else {
                 logger.fine("No worker set, message unhandled!");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Unable to decode message from " + remoteAddress, e);
         }
     }
 
+    private void closeInvalidConnection(ClientData client) {
+        try {
+            closeConnection(client.getSocketChannel());
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Unable to close connection", e);
+        }
+    }
+
+    /**
+     * Called by the network thread when a new connection has been accepted.
+     *
+     * @param   remoteAddress   the address of the new connection
+     */
+    protected void connectionOpened(SocketAddress remoteAddress) { }
 
+    /**
+     * Called when a connection has been closed, either by the remote host or locally.
+     * The default worker is notified after this method has returned.
+     *
+     * @param   remoteAddress   the address of the closed connection
+     */
+    protected void connectionClosed(SocketAddress remoteAddress) { }
 
-    private ClientData registerSocketChannel(SocketChannel socket) {
+
+
+    private ClientData registerSocketChannel(SocketChannel socket, Reactor reactor) {
         InetSocketAddress remoteAdr = (InetSocketAddress) socket.socket().getRemoteSocketAddress();
-        if (!clients.containsKey(remoteAdr)) {
-            ClientData clientData = new ClientData(socket);
-            clients.put(remoteAdr, clientData);
-        }
-        return clients.get(remoteAdr);
+        return clients.computeIfAbsent(remoteAdr, k -> new Connection(socket, bufferPool, reactor));
     }
-    private SocketChannel getSocketChannel(SocketAddress address) {
-        return clients.get(address).getSocketChannel();
+
+    private void removeConnection(SocketChannel socketChannel, SocketAddress remoteAdr) {
+        ClientData client = clients.remove(remoteAdr);
+        if (client != null && client.getReadBuffer() != null) {
+            bufferPool.release(client.getReadBuffer());
+            client.setReadBuffer(null);
+        }
+        if (client != null) {
+            client.getWriteQueue().clear();
+            ((Connection) client).reactor.connectionCount.decrementAndGet();
+            connectionClosed(remoteAdr);
+            if (worker != null)
+                worker.connectionClosed(this, remoteAdr);
+        }
     }
 
 
 
 
     /**
-     * Close a specific ongoing connection
+     * Close a specific ongoing connection, the connection is closed asynchronously
+     * by the network thread handling it and any queued data is discarded.
      */
     protected void closeConnection(InetSocketAddress address) throws IOException{
-        closeConnection(getSocketChannel(address));
+        ClientData client = clients.get(address);
+        if (client != null)
+            ((Connection) client).reactor.requestClose(client.getSocketChannel());
     }
 
+    /**
+     * Closes the connection immediately, must only be called by the reactor thread of the connection.
+     */
     private void closeConnection(SocketChannel socketChannel) throws IOException{
+        SocketAddress remoteAdr = socketChannel.socket().getRemoteSocketAddress();
+        ClientData client = clients.get(remoteAdr);
         socketChannel.close();
-        socketChannel.keyFor(selector).cancel();
+        if (client instanceof Connection) {
+            SelectionKey key = socketChannel.keyFor(((Connection) client).reactor.selector);
+            if (key != null)
+                key.cancel();
+        }
+        removeConnection(socketChannel, remoteAdr);
     }
 
     /**
@@ -378,12 +886,24 @@ public abstract class NioNetwork implements Runnable {
      */
     public void close() throws IOException{
         if (serverChannel != null) {
+            SelectionKey key = serverChannel.keyFor(mainReactor.selector);
+            if (key != null)
+                key.cancel();
             serverChannel.close();
-            serverChannel.keyFor(selector).cancel();
+        }
+        for (ClientData client : clients.values()) {
+            client.getWriteQueue().clear();
+            try {
+                client.getSocketChannel().close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Unable to close connection", e);
+            }
         }
         clients.clear();
-        pendingChanges.clear();
-        pendingWriteData.clear();
-        selector.close();
+        mainReactor.close();
+        for (Reactor reactor : reactors) {
+            if (reactor != mainReactor)
+                reactor.close();
+        }
     }
 }
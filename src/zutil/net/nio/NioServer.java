@@ -51,7 +51,20 @@ public class NioServer extends NioNetwork{
      * @param	port	the port to listen to
      */
     public NioServer(InetAddress address, int port) throws IOException {
-        super(new InetSocketAddress(address, port));
+        this(address, port, 1);
+    }
+
+    /**
+     * Creates a NioServer object which listens to a specific address and handles
+     * the connections with multiple threads, new connections are accepted by a
+     * separate thread if more than one reactor is used.
+     *
+     * @param	address	        the address to listen to
+     * @param	port	        the port to listen to
+     * @param   reactorCount    the number of threads handling the IO of the connections
+     */
+    public NioServer(InetAddress address, int port, int reactorCount) throws IOException {
+        super(new InetSocketAddress(address, port), reactorCount);
     }
 
     protected Selector initSelector() throws IOException {
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.codec;
+
+import zutil.parser.binary.BinaryStruct;
+import zutil.parser.binary.BinaryStructInputStream;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact codec for {@link BinaryStruct} messages. As the binary format does
+ * not contain any type information each message will be prefixed with a one
+ * byte index of the message class in the list of registered classes, so both
+ * ends of the connection need to register the same classes in the same order.
+ *
+ * @author Ziver
+ */
+public class BinaryStructCodec implements MessageCodec {
+
+    private final List<Class<? extends BinaryStruct>> messageClasses;
+
+
+    /**
+     * @param   messageClasses  all message classes that will be sent or received, max 256 classes.
+     */
+    @SafeVarargs
+    public BinaryStructCodec(Class<? extends BinaryStruct>... messageClasses) {
+        if (messageClasses.length > 256)
+            throw new IllegalArgumentException("A maximum of 256 message classes are supported.");
+        this.messageClasses = new ArrayList<>(messageClasses.length);
+        for (Class<? extends BinaryStruct> messageClass : messageClasses)
+            this.messageClasses.add(messageClass);
+    }
+
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        int type = messageClasses.indexOf(message.getClass());
+        if (type < 0)
+            throw new IOException("Unregistered message class: " + message.getClass().getName());
+
+        byte[] struct = BinaryStructOutputStream.serialize((BinaryStruct) message);
+        byte[] data = new byte[struct.length + 1];
+        data[0] = (byte) type;
+        System.arraycopy(struct, 0, data, 1, struct.length);
+        return data;
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        if (length < 1)
+            throw new IOException("Empty message.");
+        int type = data[offset] & 0xFF;
+        if (type >= messageClasses.size())
+            throw new IOException("Unknown message type: " + type);
+
+        try {
+            BinaryStruct struct = messageClasses.get(type).newInstance();
+            BinaryStructInputStream.read(struct, data, offset + 1, length - 1);
+            return struct;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IOException("Unable to instantiate message class: " + messageClasses.get(type).getName(), e);
+        }
+    }
+}
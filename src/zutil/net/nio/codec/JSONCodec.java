@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.codec;
+
+import zutil.parser.json.JSONObjectInputStream;
+import zutil.parser.json.JSONObjectOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A codec that encodes messages as UTF-8 JSON. Class metadata is included
+ * in the JSON by default so that the receiver can recreate the message
+ * objects, metadata can be disabled if a root class is registered instead.
+ *
+ * @author Ziver
+ */
+public class JSONCodec implements MessageCodec {
+
+    private Class<?> rootClass;
+
+
+    public JSONCodec() { }
+
+    /**
+     * @param   rootClass   the class that all messages will be decoded to, metadata will not be included in encoded messages.
+     */
+    public JSONCodec(Class<?> rootClass) {
+        this.rootClass = rootClass;
+    }
+
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        JSONObjectOutputStream out = new JSONObjectOutputStream(buffer);
+        out.enableMetaData(rootClass == null);
+        out.writeObject(message);
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        JSONObjectInputStream in = new JSONObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        if (rootClass != null)
+            in.registerRootClass(rootClass);
+        Object message = in.readObject();
+        in.close();
+        return message;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram of latencies with exponentially sized buckets, bucket
+ * N contains the latencies between 2^N and 2^(N+1) microseconds. Recording
+ * a value is a constant time operation without any locking.
+ *
+ * @author Ziver
+ */
+public class LatencyHistogram {
+    /** The number of buckets, the last bucket contains all latencies above ~35 minutes **/
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+
+    /**
+     * Adds a latency to the histogram.
+     *
+     * @param   nanos   the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        total.add(nanos);
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the average latency in milliseconds
+     */
+    public double getMean() {
+        long n = count.sum();
+        return (n > 0 ? total.sum() / 1_000_000.0 / n : 0);
+    }
+
+    /**
+     * Returns an estimate of the given percentile, the value will be the
+     * upper bound of the bucket containing the percentile.
+     *
+     * @param   percentile  a value between 0 and 100
+     * @return the latency in milliseconds, or 0 if no latencies have been recorded
+     */
+    public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+
+        long[] snapshot = getBuckets();
+        long n = 0;
+        for (long c : snapshot)
+            n += c;
+        if (n == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long sum = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            sum += snapshot[i];
+            if (sum >= target)
+                return getBucketUpperBound(i) / 1000.0;
+        }
+        return getBucketUpperBound(snapshot.length - 1) / 1000.0;
+    }
+
+    /**
+     * @return a copy of the number of latencies in each bucket
+     */
+    public long[] getBuckets() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            snapshot[i] = buckets.get(i);
+        return snapshot;
+    }
+
+    /**
+     * @return the exclusive upper bound in microseconds of the given bucket
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return 1L << (bucket + 1);
+    }
+
+    /**
+     * Removes all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+        count.reset();
+        total.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "count=%d, mean=%.3fms, p50=%.3fms, p99=%.3fms, p999=%.3fms",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getPercentile(99.9));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import zutil.TimerWheel;
+import zutil.log.LogUtil;
+import zutil.net.nio.NioClient;
+import zutil.net.nio.NioNetwork;
+import zutil.net.nio.worker.ThreadedEventWorker;
+import zutil.net.nio.worker.WorkerEventData;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The client side of a request/response layer on top of a NioClient.
+ * <p>
+ * Every request is assigned a unique id and the response is returned through
+ * a CompletableFuture, so any number of requests can be outstanding on the same
+ * connection. Requests have a deadline after which the future fails with a
+ * {@link TimeoutException}, and cancelling the future will notify the server.
+ * <p>
+ * Requests made before the connection has been established are queued by the network.
+ * When the connection is closed all pending requests fail with a {@link IOException},
+ * as do any later requests.
+ * <p>
+ * The futures are completed by the worker thread of this client, so dependent
+ * actions that block should use the async variants of the CompletableFuture methods.
+ *
+ * @author Ziver
+ */
+public class RpcClient extends ThreadedEventWorker {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final long DEFAULT_TIMEOUT = 30_000; // 30 sec
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class PendingRequest {
+        public final long id;
+        public final CompletableFuture<Object> future = new CompletableFuture<>();
+        public final long startTime = System.nanoTime();
+        public TimerWheel.Timeout timeout;
+
+        public PendingRequest(long id) {
+            this.id = id;
+        }
+    }
+
+
+    private final NioClient network;
+    private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final TimerWheel timer = new TimerWheel("RpcClient-Timeout", 10, TimerWheel.DEFAULT_WHEEL_SIZE);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder timeoutCount = new LongAdder();
+    private volatile long defaultTimeout = DEFAULT_TIMEOUT;
+    private volatile boolean closed;
+
+
+    /**
+     * Creates a client and registers it as the default worker of the network.
+     *
+     * @param   network     the connection to the server
+     */
+    public RpcClient(NioClient network) {
+        this.network = network;
+        network.setDefaultWorker(this);
+    }
+
+
+    /**
+     * @param   timeout     the deadline in milliseconds of requests sent without an explicit timeout, 0 to disable
+     */
+    public void setDefaultTimeout(long timeout) {
+        this.defaultTimeout = timeout;
+    }
+
+    /**
+     * Sends a request with the default timeout.
+     *
+     * @see #call(Object, long)
+     */
+    public <T> CompletableFuture<T> call(Object request) {
+        return call(request, defaultTimeout);
+    }
+
+    /**
+     * Sends a request to the server.
+     *
+     * @param   request     the request object, needs to be Serializable by the network codec
+     * @param   timeout     the deadline of the request in milliseconds, 0 for no deadline
+     * @return a future that completes with the response, or fails with a {@link RpcException}
+     *         if the server could not handle the request, a {@link TimeoutException} if
+     *         no response was received before the deadline or a {@link IOException} if
+     *         the connection has been closed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> call(Object request, long timeout) {
+        PendingRequest req = new PendingRequest(nextId.incrementAndGet());
+        pending.put(req.id, req);
+        if (timeout > 0) {
+            req.timeout = timer.schedule(() -> {
+                if (req.future.completeExceptionally(new TimeoutException("No response received within " + timeout + "ms")))
+                    timeoutCount.increment();
+            }, timeout);
+        }
+        req.future.whenComplete((result, e) -> requestDone(req, e));
+        // Checked after the request has been added so that it is either failed here or by connectionClosed()
+        if (closed) {
+            req.future.completeExceptionally(new IOException("Connection has been closed."));
+            return (CompletableFuture<T>) req.future;
+        }
+
+        try {
+            network.send(new RpcMessage(RpcMessage.MessageType.REQUEST, req.id, request));
+        } catch (IOException e) {
+            req.future.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) req.future;
+    }
+
+    private void requestDone(PendingRequest req, Throwable e) {
+        pending.remove(req.id);
+        if (req.timeout != null)
+            req.timeout.cancel();
+
+        if (e == null) {
+            latency.record(System.nanoTime() - req.startTime);
+        } else if (e instanceof CancellationException || e instanceof TimeoutException) {
+            // Let the server stop working on the request
+            try {
+                network.send(new RpcMessage(RpcMessage.MessageType.CANCEL, req.id, null));
+            } catch (IOException e1) {
+                logger.log(Level.FINE, "Unable to send cancel message.", e1);
+            }
+        }
+    }
+
+    @Override
+    public void messageEvent(WorkerEventData e) {
+        if (!(e.data instanceof RpcMessage))
+            return;
+
+        RpcMessage msg = (RpcMessage) e.data;
+        PendingRequest req = pending.get(msg.getId());
+        if (req == null) {
+            logger.finest("Response received for unknown or completed request: " + msg.getId());
+            return;
+        }
+
+        switch (msg.getType()) {
+            case RESPONSE:
+                req.future.complete(msg.getData());
+                break;
+            case ERROR:
+                req.future.completeExceptionally(new RpcException(String.valueOf(msg.getData())));
+                break;
+        }
+    }
+
+
+    /**
+     * Fails all pending requests when the connection to the server has been closed.
+     */
+    @Override
+    public void connectionClosed(NioNetwork network, SocketAddress remote) {
+        closed = true;
+        failPending(new IOException("Connection to " + remote + " has been closed."));
+    }
+
+    private void failPending(IOException e) {
+        for (PendingRequest req : pending.values())
+            req.future.completeExceptionally(e);
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of requests that have passed their deadline
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return the round trip latencies of all successful requests
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Fails all pending requests and stops the client threads, the network is not closed.
+     */
+    @Override
+    public void stop() {
+        failPending(new IOException("RpcClient has been stopped."));
+        timer.stop();
+        super.stop();
+    }
+}
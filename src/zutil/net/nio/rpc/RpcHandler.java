@@ -0,0 +1,47 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import java.net.SocketAddress;
+
+/**
+ * Handles the requests received by a {@link RpcServer}.
+ *
+ * @author Ziver
+ */
+public interface RpcHandler {
+
+    /**
+     * Handles a request, the method is called concurrently by multiple threads.
+     *
+     * @param   remote      the address of the client
+     * @param   request     the request object
+     * @return the response, which needs to be Serializable. If a
+     *         {@link java.util.concurrent.CompletionStage} is returned the response will be sent when it
+     *         completes and it will be cancelled if the client cancels the request.
+     * @throws Exception if the request failed, the client will receive a {@link RpcException}
+     */
+    Object handleRequest(SocketAddress remote, Object request) throws Exception;
+}
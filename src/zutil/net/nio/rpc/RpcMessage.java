@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import zutil.net.nio.message.Message;
+
+/**
+ * A message used by {@link RpcClient} and {@link RpcServer}, the id
+ * correlates a response with the request it answers.
+ *
+ * @author Ziver
+ */
+public class RpcMessage implements Message {
+    private static final long serialVersionUID = 1L;
+
+    public enum MessageType {
+        /** A request that should be answered, the data is the request object **/
+        REQUEST,
+        /** A successful response, the data is the result **/
+        RESPONSE,
+        /** A failed request, the data is a String describing the error **/
+        ERROR,
+        /** The client is no longer interested in the response of the request **/
+        CANCEL
+    }
+
+    private MessageType type;
+    private long id;
+    private Object data;
+
+
+    public RpcMessage(MessageType type, long id, Object data) {
+        this.type = type;
+        this.id = id;
+        this.data = data;
+    }
+
+
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * @return the id of the request this message belongs to
+     */
+    public long getId() {
+        return id;
+    }
+
+    public Object getData() {
+        return data;
+    }
+}
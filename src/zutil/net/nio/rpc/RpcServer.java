@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import zutil.log.LogUtil;
+import zutil.net.nio.NioNetwork;
+import zutil.net.nio.worker.ThreadedEventWorker;
+import zutil.net.nio.worker.WorkerEventData;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The server side of the request/response layer, see {@link RpcClient}.
+ * <p>
+ * Requests are handled concurrently by the worker threads independently of
+ * which connection they were received on. Handlers returning a CompletionStage
+ * will not occupy a worker thread while the response is being computed.
+ *
+ * @author Ziver
+ */
+public class RpcServer extends ThreadedEventWorker {
+    private static final Logger logger = LogUtil.getLogger();
+
+    private final RpcHandler handler;
+    /** Asynchronous requests in progress, mapped by client and request id **/
+    private final Map<SocketAddress, Map<Long, CompletableFuture<?>>> inProgress = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+
+    /**
+     * Creates a server with one thread per processor.
+     */
+    public RpcServer(RpcHandler handler) {
+        this(handler, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param   handler         the handler of the requests, needs to be thread safe
+     * @param   threadCount     the number of threads handling requests
+     */
+    public RpcServer(RpcHandler handler, int threadCount) {
+        super(threadCount, false);
+        this.handler = handler;
+    }
+
+
+    @Override
+    public void messageEvent(WorkerEventData e) {
+        if (!(e.data instanceof RpcMessage))
+            return;
+
+        RpcMessage msg = (RpcMessage) e.data;
+        switch (msg.getType()) {
+            case REQUEST:
+                handleRequest(e.network, e.remoteAddress, msg);
+                break;
+            case CANCEL:
+                // Cancellation is best effort, the request might already be done
+                CompletableFuture<?> future = removeInProgress(e.remoteAddress, msg.getId());
+                if (future != null)
+                    future.cancel(true);
+                break;
+        }
+    }
+
+    private void handleRequest(NioNetwork network, SocketAddress remote, RpcMessage msg) {
+        long startTime = System.nanoTime();
+        Object result;
+        try {
+            result = handler.handleRequest(remote, msg.getData());
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Request handler failed.", e);
+            send(network, remote, new RpcMessage(RpcMessage.MessageType.ERROR, msg.getId(), e.toString()));
+            return;
+        }
+
+        if (result instanceof CompletionStage) {
+            CompletableFuture<?> future = ((CompletionStage<?>) result).toCompletableFuture();
+            inProgress.compute(remote, (k, requests) -> {
+                if (requests == null)
+                    requests = new ConcurrentHashMap<>();
+                requests.put(msg.getId(), future);
+                return requests;
+            });
+            future.whenComplete((asyncResult, e) -> {
+                removeInProgress(remote, msg.getId());
+                if (future.isCancelled())
+                    return;
+                latency.record(System.nanoTime() - startTime);
+                if (e != null)
+                    send(network, remote, new RpcMessage(RpcMessage.MessageType.ERROR, msg.getId(),
+                            (e.getCause() != null ? e.getCause() : e).toString()));
+                else
+                    send(network, remote, new RpcMessage(RpcMessage.MessageType.RESPONSE, msg.getId(), asyncResult));
+            });
+        } else {
+            latency.record(System.nanoTime() - startTime);
+            send(network, remote, new RpcMessage(RpcMessage.MessageType.RESPONSE, msg.getId(), result));
+        }
+    }
+
+    /**
+     * Removes a asynchronous request, the map of the client is removed with its last request.
+     *
+     * @return the future of the request or null if it was not in progress
+     */
+    private CompletableFuture<?> removeInProgress(SocketAddress remote, long id) {
+        Object[] removed = new Object[1];
+        inProgress.computeIfPresent(remote, (k, requests) -> {
+            removed[0] = requests.remove(id);
+            return (requests.isEmpty() ? null : requests);
+        });
+        return (CompletableFuture<?>) removed[0];
+    }
+
+    private void send(NioNetwork network, SocketAddress remote, RpcMessage msg) {
+        try {
+            network.send(remote, msg);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to send response to: " + remote, e);
+        }
+    }
+
+    /**
+     * Cancels all asynchronous requests from a client, this is done
+     * automatically when the connection to the client is closed.
+     */
+    public void removeClient(SocketAddress remote) {
+        Map<Long, CompletableFuture<?>> requests = inProgress.remove(remote);
+        if (requests != null) {
+            for (CompletableFuture<?> future : requests.values())
+                future.cancel(true);
+        }
+    }
+
+    @Override
+    public void connectionClosed(NioNetwork network, SocketAddress remote) {
+        removeClient(remote);
+    }
+
+    /**
+     * @return the number of clients with asynchronous requests in progress
+     */
+    public int getClientsInProgress() {
+        return inProgress.size();
+    }
+
+    /**
+     * @return the time it took to handle the requests, excluding network time
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe pool of fixed size direct ByteBuffers. Direct buffers are
+ * expensive to allocate but can be written to channels without an extra copy,
+ * so they are reused instead of being allocated for every message.
+ *
+ * @author Ziver
+ */
+public class ByteBufferPool {
+
+    private final int bufferSize;
+    private final int maxPoolSize;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger poolSize = new AtomicInteger();
+
+
+    /**
+     * @param   bufferSize      the capacity of the pooled buffers
+     * @param   maxPoolSize     the maximum number of buffers that will be kept in the pool
+     */
+    public ByteBufferPool(int bufferSize, int maxPoolSize) {
+        this.bufferSize = bufferSize;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+
+    /**
+     * Returns a cleared buffer with at least the requested capacity. Buffers larger
+     * than the pool buffer size will be allocated on the heap and not pooled.
+     *
+     * @param   minCapacity     the minimum capacity of the buffer
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize)
+            return ByteBuffer.allocate(minCapacity);
+
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        poolSize.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, buffers not allocated by the pool will be ignored.
+     * The buffer must not be used after it has been released.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+        if (poolSize.incrementAndGet() > maxPoolSize) {
+            poolSize.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+
+    /**
+     * @return the capacity of the pooled buffers
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers currently available in the pool
+     */
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+}
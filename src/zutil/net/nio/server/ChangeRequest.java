@@ -30,6 +30,7 @@ import java.nio.channels.SocketChannel;
 public class ChangeRequest {
     public static final int REGISTER = 1;
     public static final int CHANGEOPS = 2;
+    public static final int CLOSE = 3;
 
     public SocketChannel socket;
     public int type;
@@ -25,15 +25,20 @@
 package zutil.net.nio.server;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 public class ClientData {
     private SocketChannel socketChannel;
     private long lastMessageReceived;
+    private ByteBuffer readBuffer;
+    private WriteQueue writeQueue;
+    private boolean readPaused;
 
 
-    public ClientData(SocketChannel socketChannel) {
+    public ClientData(SocketChannel socketChannel, ByteBufferPool bufferPool) {
         this.socketChannel = socketChannel;
+        this.writeQueue = new WriteQueue(bufferPool);
     }
 
 
@@ -52,4 +57,34 @@ public class ClientData {
     public long getLastMessageReceived() {
         return lastMessageReceived;
     }
+
+    /**
+     * @return a buffer containing partially received data that is waiting for the rest of
+     *         a message, or null if there is no pending data. The buffer is in write mode.
+     */
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public void setReadBuffer(ByteBuffer buffer) {
+        this.readBuffer = buffer;
+    }
+
+    /**
+     * @return the queue of outbound data for this connection
+     */
+    public WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * @return true if reading has been paused because too much outbound data is queued
+     */
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    public void setReadPaused(boolean paused) {
+        this.readPaused = paused;
+    }
 }
@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * The outbound data of a single connection. Small frames are coalesced into shared
+ * pooled buffers and the queued buffers are written with a single gathering write,
+ * so many small messages will only result in a few system calls.
+ * <p>
+ * Data can be added from any thread while {@link #write(GatheringByteChannel, ByteBuffer[])}
+ * should only be called by the network thread.
+ *
+ * @author Ziver
+ */
+public class WriteQueue {
+    /** Frames up to this size will be copied into a shared buffer **/
+    public static final int COALESCE_LIMIT = 1024;
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+    private final ByteBufferPool bufferPool;
+    /** Buffers ready to be written, in read mode **/
+    private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+    /** The buffer small frames are currently coalesced into, in write mode **/
+    private ByteBuffer tail;
+    private long size;
+    private boolean flushScheduled;
+    private boolean writeBlocked;
+    private boolean closed;
+
+
+    public WriteQueue(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+
+    /**
+     * Queues a frame prefixed with a 4 byte length header.
+     *
+     * @return true if the queue needs to be flushed by the network thread,
+     *         false if a flush has already been scheduled.
+     */
+    public synchronized boolean addFrame(byte[] data, int offset, int length) {
+        if (closed)
+            return false;
+
+        if (4 + length <= COALESCE_LIMIT) {
+            ensureTail(4 + length);
+            tail.putInt(length);
+            tail.put(data, offset, length);
+        } else {
+            ensureTail(4);
+            tail.putInt(length);
+            closeTail();
+            queue.add(ByteBuffer.wrap(data, offset, length));
+        }
+        size += 4 + length;
+        return scheduleFlush();
+    }
+
+    /**
+     * Queues data as is without any framing. The array is only copied
+     * if it is small, otherwise it must not be modified until it has been sent.
+     *
+     * @return true if the queue needs to be flushed by the network thread.
+     */
+    public synchronized boolean add(byte[] data, int offset, int length) {
+        if (closed)
+            return false;
+
+        if (length <= COALESCE_LIMIT) {
+            ensureTail(length);
+            tail.put(data, offset, length);
+        } else {
+            closeTail();
+            queue.add(ByteBuffer.wrap(data, offset, length));
+        }
+        size += length;
+        return scheduleFlush();
+    }
+
+    /**
+     * Requests the connection to be closed after all currently queued data has been written.
+     *
+     * @return true if the queue needs to be flushed by the network thread.
+     */
+    public synchronized boolean addCloseMarker() {
+        if (closed)
+            return false;
+        closeTail();
+        queue.add(CLOSE_MARKER);
+        closed = true; // Data added after the marker would never be sent
+        return scheduleFlush();
+    }
+
+    private void ensureTail(int length) {
+        if (tail != null && tail.remaining() < length)
+            closeTail();
+        if (tail == null)
+            tail = bufferPool.acquire(Math.max(length, bufferPool.getBufferSize()));
+    }
+
+    private void closeTail() {
+        if (tail != null) {
+            tail.flip();
+            if (tail.hasRemaining())
+                queue.add(tail);
+            else
+                bufferPool.release(tail);
+            tail = null;
+        }
+    }
+
+    private boolean scheduleFlush() {
+        if (flushScheduled)
+            return false;
+        flushScheduled = true;
+        return true;
+    }
+
+
+    /**
+     * Writes as much of the queued data as the channel will accept.
+     *
+     * @param   channel     the channel to write to
+     * @param   gather      a array used for the gathering write, its length is the max number of buffers written at a time
+     * @return true if all data has been written, false if the channel could not accept all data
+     */
+    public synchronized boolean write(GatheringByteChannel channel, ByteBuffer[] gather) throws IOException {
+        closeTail();
+        try {
+            while (!queue.isEmpty() && queue.peek() != CLOSE_MARKER) {
+                int count = 0;
+                for (ByteBuffer buffer : queue) {
+                    if (buffer == CLOSE_MARKER || count == gather.length)
+                        break;
+                    gather[count++] = buffer;
+                }
+
+                size -= channel.write(gather, 0, count);
+                while (!queue.isEmpty() && queue.peek() != CLOSE_MARKER && !queue.peek().hasRemaining())
+                    bufferPool.release(queue.poll());
+
+                if (gather[count - 1].hasRemaining()) {
+                    // The socket buffer is full
+                    writeBlocked = true;
+                    return false;
+                }
+            }
+        } finally {
+            Arrays.fill(gather, null);
+        }
+
+        writeBlocked = false;
+        if (queue.isEmpty())
+            flushScheduled = false;
+        return true;
+    }
+
+    /**
+     * @return true if all data before a close marker has been written and the connection should be closed.
+     */
+    public synchronized boolean isCloseRequested() {
+        return queue.peek() == CLOSE_MARKER;
+    }
+
+    /**
+     * @return true if the last write could not write all data because the socket buffer was full.
+     */
+    public synchronized boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    /**
+     * @return the number of queued bytes that has not yet been written.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Releases all queued buffers, any data added after this method will be discarded.
+     */
+    public synchronized void clear() {
+        closed = true;
+        if (tail != null) {
+            bufferPool.release(tail);
+            tail = null;
+        }
+        for (ByteBuffer buffer : queue)
+            bufferPool.release(buffer);
+        queue.clear();
+        size = 0;
+    }
+}
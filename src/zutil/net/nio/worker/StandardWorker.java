@@ -24,7 +24,6 @@
 
 package zutil.net.nio.worker;
 
-import zutil.converter.Converter;
 import zutil.log.LogUtil;
 import zutil.net.nio.NioNetwork;
 import zutil.net.nio.message.EchoMessage;
@@ -33,8 +32,9 @@ import zutil.net.nio.response.ResponseHandler;
 
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 
@@ -43,9 +43,9 @@ public class StandardWorker extends ThreadedEventWorker {
 
     private NioNetwork nio;
     // Maps a responseId to a RspHandler
-    private Map<Long, ResponseHandler> rspEvents = new HashMap<>();
+    private Map<Long, ResponseHandler> rspEvents = new ConcurrentHashMap<>();
     // Different services listening on specific messages
-    private Map<Class<?>, ThreadedEventWorker> services = new HashMap<>();
+    private Map<Class<?>, ThreadedEventWorker> services = new ConcurrentHashMap<>();
 
 
 
@@ -70,19 +70,20 @@ public class StandardWorker extends ThreadedEventWorker {
                 nio.send(event.remoteAddress, event.data);
             }
             else if (event.data instanceof RequestResponseMessage &&
-                    rspEvents.get(((RequestResponseMessage)event.data).getResponseId()) != null) {
+                    rspEvents.containsKey(((RequestResponseMessage)event.data).getResponseId())) {
                 long responseId = ((RequestResponseMessage)event.data).getResponseId();
                 // Look up the handler for this channel
-                ResponseHandler handler = rspEvents.get(responseId);
+                ResponseHandler handler = rspEvents.remove(responseId);
                 // And pass the response to it
-                handler.handleResponse(event.data);
-                rspEvents.remove(responseId);
+                if (handler != null)
+                    handler.handleResponse(event.data);
                 logger.finer("Response Request Message: " +event.data);
             }
             else {
-                // Check mapped workers
-                if (services.containsKey(event.data.getClass())) {
-                    services.get(event.data.getClass()).messageEvent(event);
+                // Hand the message to the queue of the mapped service so it is handled by its own threads
+                ThreadedEventWorker service = services.get(event.data.getClass());
+                if (service != null) {
+                    service.processData(event.network, event.remoteAddress, event.data);
                 }
             }
         } catch (Exception e) {
@@ -90,6 +91,13 @@ public class StandardWorker extends ThreadedEventWorker {
         }
     }
 
+    @Override
+    public void connectionClosed(NioNetwork network, SocketAddress remote) {
+        // A service can be mapped to multiple message classes but should only be notified once
+        for (ThreadedEventWorker service : new HashSet<>(services.values()))
+            service.connectionClosed(network, remote);
+    }
+
     /**
      * Maps a Worker to a specific message
      *
@@ -120,6 +128,6 @@ public class StandardWorker extends ThreadedEventWorker {
         // Register the response handler
         rspEvents.put(message.getResponseId(), handler);
 
-        nio.send(address, Converter.toBytes(message));
+        nio.send(address, message);
     }
 }
@@ -24,25 +24,100 @@
 
 package zutil.net.nio.worker;
 
+import zutil.log.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A worker that handles its events with one or more threads. The events are drained from the
+ * queue in batches so that the threads only need to synchronize with the network once per batch.
+ * <p>
+ * With more than one thread the {@link #messageEvent(WorkerEventData)} method will be called
+ * concurrently and needs to be thread safe. If ordered then all events from the same remote address
+ * are handled by the same thread in the order they were received, otherwise any free thread will
+ * handle the next event.
+ */
 public abstract class ThreadedEventWorker extends Worker implements Runnable{
-    private Thread thread;
+    private static final Logger logger = LogUtil.getLogger();
+    /** The max number of events drained from the queue at a time **/
+    private static final int MAX_BATCH = 64;
+
+    private final Thread[] threads;
+    private final int batchSize;
+
 
+    /**
+     * Creates a worker with a single thread.
+     */
     public ThreadedEventWorker() {
-        thread = new Thread(this);
-        thread.start();
+        this(1, true);
     }
 
+    /**
+     * @param   threadCount     the number of threads handling events
+     * @param   ordered         true if events from the same remote address should be handled in order
+     */
+    public ThreadedEventWorker(int threadCount, boolean ordered) {
+        this(threadCount, ordered, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param   threadCount     the number of threads handling events
+     * @param   ordered         true if events from the same remote address should be handled in order
+     * @param   capacity        the number of buffered events after which the worker is considered to be overloaded
+     */
+    public ThreadedEventWorker(int threadCount, boolean ordered, int capacity) {
+        super((ordered ? threadCount : 1), capacity);
+        // Threads sharing a lane only take one event at a time so that the events are spread over all threads
+        batchSize = (ordered || threadCount == 1 ? MAX_BATCH : 1);
+
+        threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int lane = (ordered ? i : 0);
+            threads[i] = new Thread(() -> run(lane), getClass().getSimpleName() + "-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Handles events from the first lane in the calling thread.
+     */
     public void run() {
+        run(0);
+    }
+
+    private void run(int lane) {
+        List<WorkerEventData> batch = new ArrayList<>(batchSize);
         while (true) {
             try {
                 // Wait for data to become available
-                messageEvent(pollEvent());
-            } catch (Exception e) {
-                e.printStackTrace();
+                drainEvents(lane, batch, batchSize);
+            } catch (InterruptedException e) {
+                return;
             }
+
+            for (WorkerEventData event : batch) {
+                try {
+                    messageEvent(event);
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Unable to handle worker event.", e);
+                }
+            }
+            batch.clear();
         }
     }
 
+    /**
+     * Stops the worker threads, events already in the queue will be discarded.
+     */
+    public void stop() {
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
 
     public abstract void messageEvent(WorkerEventData e);
 }
@@ -27,41 +27,169 @@ package zutil.net.nio.worker;
 import zutil.net.nio.NioNetwork;
 
 import java.net.SocketAddress;
-import java.util.LinkedList;
-
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Base class for classes handling messages received by a {@link NioNetwork}.
+ * <p>
+ * Received events are buffered in one or more lock free queues, called lanes, so the
+ * network thread is never blocked by a worker. With more than one lane the events are
+ * distributed by the hash of the remote address, events from the same remote host are
+ * therefore always added to the same lane and will be handled in the order they were received.
+ * <p>
+ * The number of buffered events is bounded by a capacity, when it is exceeded the worker is
+ * overloaded, see {@link #isOverloaded()}, as a signal to the network to stop reading from its
+ * connections. The capacity listeners are notified when half of the capacity is free again.
+ */
 public abstract class Worker {
-    private LinkedList<WorkerEventData> queue = new LinkedList<>();
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    private final LinkedTransferQueue<WorkerEventData>[] lanes;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean overloaded = new AtomicBoolean();
+    private final List<Runnable> capacityListeners = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Creates a worker with a single lane and the default capacity.
+     */
+    public Worker() {
+        this(1, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param   lanes       the number of event queues, events from the same remote address will always use the same lane
+     * @param   capacity    the number of buffered events after which the worker is considered to be overloaded
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Worker(int lanes, int capacity) {
+        if (lanes < 1)
+            throw new IllegalArgumentException("A worker needs at least one lane.");
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be larger than zero.");
 
+        this.lanes = new LinkedTransferQueue[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new LinkedTransferQueue<>();
+        this.capacity = capacity;
+    }
 
+
+    /**
+     * Adds a event to the queue of the worker, this method will never block. If the
+     * worker is overloaded afterwards the caller should stop producing events until
+     * it is notified by a capacity listener.
+     */
     public void processData(NioNetwork server, SocketAddress remote, Object data) {
-        synchronized(queue) {
-            queue.add(new WorkerEventData(server, remote, data));
-            queue.notify();
+        WorkerEventData event = new WorkerEventData(server, remote, data);
+        lanes[getLane(remote)].add(event);
+
+        if (size.incrementAndGet() > capacity && overloaded.compareAndSet(false, true)) {
+            // The workers could have drained the lanes before the flag was set
+            if (size.get() <= capacity / 2)
+                overloaded.set(false);
         }
     }
 
+    /**
+     * Called by the network thread when a connection has been closed so that any state
+     * kept for the remote host can be released, implementations must not block.
+     * The default implementation does nothing.
+     */
+    public void connectionClosed(NioNetwork network, SocketAddress remote) { }
+
+    private int getLane(SocketAddress remote) {
+        if (lanes.length == 1 || remote == null)
+            return 0;
+        return (remote.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Registers a listener that will be called by a worker thread
+     * when a overloaded worker has free capacity again.
+     */
+    public void addCapacityListener(Runnable listener) {
+        capacityListeners.add(listener);
+    }
+
+    public void removeCapacityListener(Runnable listener) {
+        capacityListeners.remove(listener);
+    }
+
+    /**
+     * @return true if the number of buffered events has exceeded the capacity and
+     *         has not yet fallen below half of the capacity.
+     */
+    public boolean isOverloaded() {
+        return overloaded.get();
+    }
+
+    /**
+     * @return the number of buffered events in all lanes.
+     */
+    public int getQueueSize() {
+        return size.get();
+    }
+
+    protected int getLaneCount() {
+        return lanes.length;
+    }
+
 
     /**
      * @return true if there is a event in the queue
      */
     protected boolean hasEvent() {
-        return !queue.isEmpty();
+        return size.get() > 0;
     }
 
     /**
-     * Polls a event from the list or blocks until there is a event available
+     * Polls a event from the first lane or blocks until there is a event available
      *
      * @return the next event
      */
     protected WorkerEventData pollEvent() {
-        synchronized(queue) {
-            while (queue.isEmpty()) {
-                try {
-                    queue.wait();
-                } catch (InterruptedException e) {}
-            }
+        while (true) {
+            try {
+                WorkerEventData event = lanes[0].take();
+                eventsRemoved(1);
+                return event;
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    /**
+     * Moves up to max events from the given lane to the collection,
+     * blocks until at least one event is available.
+     *
+     * @param   lane    the index of the lane
+     * @param   batch   the collection the events will be added to
+     * @param   max     the max number of events to add
+     * @return the number of added events
+     * @throws InterruptedException if the thread was interrupted while waiting for a event
+     */
+    protected int drainEvents(int lane, Collection<WorkerEventData> batch, int max) throws InterruptedException {
+        LinkedTransferQueue<WorkerEventData> queue = lanes[lane];
+        int count = queue.drainTo(batch, max);
+        if (count == 0) {
+            batch.add(queue.take());
+            count = 1 + queue.drainTo(batch, max - 1);
+        }
+        eventsRemoved(count);
+        return count;
+    }
+
+    private void eventsRemoved(int count) {
+        int remaining = size.addAndGet(-count);
+        if (remaining <= capacity / 2 && overloaded.compareAndSet(true, false)) {
+            for (Runnable listener : capacityListeners)
+                listener.run();
         }
-        return queue.poll();
     }
 }
@@ -29,8 +29,10 @@ import zutil.net.nio.worker.ThreadedEventWorker;
 import zutil.net.nio.worker.WorkerEventData;
 
 import java.net.SocketAddress;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 /**
@@ -41,11 +43,23 @@ import java.util.logging.Logger;
 public class ChatService extends ThreadedEventWorker{
     private static Logger logger = LogUtil.getLogger();
 
-    private HashMap<String,LinkedList<SocketAddress>> rooms = new HashMap<>();
+    private Map<String,List<SocketAddress>> rooms = new ConcurrentHashMap<>();
     private ChatListener listener;
 
 
+    public ChatService() {
+        super();
+    }
 
+    /**
+     * Creates a chat service handling messages with multiple threads, messages
+     * from the same user are still handled in the order they were sent.
+     *
+     * @param   threadCount     the number of threads handling messages
+     */
+    public ChatService(int threadCount) {
+        super(threadCount, true);
+    }
 
 
     @Override
@@ -57,8 +71,8 @@ public class ChatService extends ThreadedEventWorker{
                 //is this a new message
                 if (chatmessage.type == ChatMessage.ChatMessageType.MESSAGE) {
                     // Is this the server
-                    if (rooms.containsKey(chatmessage.room)) {
-                        LinkedList<SocketAddress> tmpList = rooms.get(chatmessage.room);
+                    List<SocketAddress> tmpList = rooms.get(chatmessage.room);
+                    if (tmpList != null) {
 
                         // Broadcast the message
                         for (SocketAddress remote : tmpList) {
@@ -99,9 +113,8 @@ public class ChatService extends ThreadedEventWorker{
      * @param	remoteAddress	the address of the remote user
      */
     public void registerUser(String room, SocketAddress remoteAddress) {
-        addRoom(room);
         logger.fine("New Chat User: " +remoteAddress);
-        rooms.get(room).add(remoteAddress);
+        addRoom(room).add(remoteAddress);
     }
 
     /**
@@ -111,9 +124,10 @@ public class ChatService extends ThreadedEventWorker{
      * @param	remoteAddress	the address of the remote user
      */
     public void unRegisterUser(String room, SocketAddress remoteAddress) {
-        if (rooms.containsKey(room)) {
+        List<SocketAddress> users = rooms.get(room);
+        if (users != null) {
             logger.fine("Remove Chat User: " +remoteAddress);
-            rooms.get(room).remove(remoteAddress);
+            users.remove(remoteAddress);
             removeRoom(room);
         }
     }
@@ -122,12 +136,13 @@ public class ChatService extends ThreadedEventWorker{
      * Adds a room into the list
      *
      * @param room The name of the room
+     * @return the users of the room
      */
-    private void addRoom(String room) {
-        if (!rooms.containsKey(room)) {
+    private List<SocketAddress> addRoom(String room) {
+        return rooms.computeIfAbsent(room, k -> {
             logger.fine("New Chat Room: " +room);
-            rooms.put(room, new LinkedList<>());
-        }
+            return new CopyOnWriteArrayList<>();
+        });
     }
 
     /**
@@ -136,10 +151,8 @@ public class ChatService extends ThreadedEventWorker{
      * @param room The room
      */
     private void removeRoom(String room) {
-        if (rooms.get(room).isEmpty()) {
+        if (rooms.computeIfPresent(room, (k, users) -> users.isEmpty() ? null : users) == null)
             logger.fine("Remove Chat Room: " + room);
-            rooms.remove(room);
-        }
     }
 
 }
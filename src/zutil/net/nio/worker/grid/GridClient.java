@@ -24,27 +24,44 @@
 
 package zutil.net.nio.worker.grid;
 
-import zutil.io.MultiPrintStream;
+import zutil.log.LogUtil;
 import zutil.net.nio.NioClient;
 import zutil.net.nio.worker.ThreadedEventWorker;
 import zutil.net.nio.worker.WorkerEventData;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class is the client part of the grid.
  * It connects to a grid server and requests new job.
  * And then sends back the result to the server.
+ * <p>
+ * The client keeps a number of jobs prefetched so that the
+ * GridThreads don't have to wait for the server between jobs.
  *
  * @author Ziver
  */
 @SuppressWarnings({ "unchecked", "rawtypes" })
 public class GridClient extends ThreadedEventWorker {
-    private static LinkedList<GridJob> jobQueue;
+    private static final Logger logger = LogUtil.getLogger();
+
+    /** The time to wait for requested jobs before requesting them again **/
+    private static final long REQUEST_TIMEOUT = 5000; // 5 sec
+
+    private static BlockingQueue<GridJob> jobQueue;
+    /** The number of jobs that have been requested but not yet received **/
+    private static AtomicInteger pendingJobs;
+    private static int prefetchCount;
     private static GridThread thread;
     private static NioClient network;
+    private int threadCount;
 
     /**
      * Creates a new GridClient object and registers itself at the server
@@ -54,10 +71,25 @@ public class GridClient extends ThreadedEventWorker {
      * @param	network	the NioClient to use to communicate to the server
      */
     public GridClient(GridThread thread, NioClient network) {
-        jobQueue = new LinkedList<>();
+        this(thread, network, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new GridClient object and registers itself at the server
+     * and sets itself as a worker in NioClient
+     *
+     * @param	thread	    the Thread interface to run for the jobs
+     * @param	network	    the NioClient to use to communicate to the server
+     * @param   threadCount the number of GridThreads to start, the client
+     *                      will prefetch twice as many jobs from the server.
+     */
+    public GridClient(GridThread thread, NioClient network, int threadCount) {
+        jobQueue = new LinkedBlockingQueue<>();
+        pendingJobs = new AtomicInteger();
+        prefetchCount = 2 * threadCount;
         GridClient.thread = thread;
         GridClient.network = network;
-
+        this.threadCount = threadCount;
     }
 
     /**
@@ -68,7 +100,7 @@ public class GridClient extends ThreadedEventWorker {
         network.setDefaultWorker(this);
         network.send(new GridMessage(GridMessage.REGISTER));
 
-        for (int i=0; i<Runtime.getRuntime().availableProcessors(); i++) {
+        for (int i=0; i<threadCount; i++) {
             Thread t = new Thread(thread);
             t.start();
         }
@@ -85,12 +117,21 @@ public class GridClient extends ThreadedEventWorker {
                 thread.setInitData(msg.getData());
                 break;
             case GridMessage.COMP_DATA:
-                jobQueue.add(new GridJob(msg.getJobQueueID(), msg.getData()));
+                addJob(msg);
+                break;
+            case GridMessage.COMP_DATA_BATCH:
+                for (GridMessage jobMsg : (List<GridMessage>) msg.getData())
+                    addJob(jobMsg);
                 break;
             }
         }
     }
 
+    private static void addJob(GridMessage msg) {
+        pendingJobs.updateAndGet(i -> Math.max(0, i - 1));
+        jobQueue.add(new GridJob(msg.getJobQueueID(), msg.getData()));
+    }
+
     /**
      * Register whit the server that the job is done
      *
@@ -113,22 +154,47 @@ public class GridClient extends ThreadedEventWorker {
      */
     public static void jobError(int jobId) {
         try {
-            network.send(new GridMessage(GridMessage.COMP_SUCCESSFUL, jobId));
-        } catch (Exception e) {e.printStackTrace();}
+            network.send(new GridMessage(GridMessage.COMP_ERROR, jobId));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to report job error to server.", e);
+        }
     }
 
     /**
+     * Blocks until a job is available, new jobs will be requested
+     * from the server to keep the prefetch queue filled.
+     *
      * @return a new job to compute
      */
-    public static synchronized GridJob getNextJob() throws IOException{
-        if (jobQueue.isEmpty()) {
-            network.send(new GridMessage(GridMessage.NEW_DATA));
-            while (jobQueue.isEmpty()) {
-                try {Thread.sleep(100);} catch(Exception e) {}
+    public static GridJob getNextJob() throws IOException{
+        GridJob job = jobQueue.poll();
+        requestJobs();
+
+        try {
+            while (job == null) {
+                job = jobQueue.poll(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (job == null) {
+                    // The server might not have had any jobs, request them again
+                    pendingJobs.set(0);
+                    requestJobs();
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a job.", e);
         }
-        MultiPrintStream.out.println("Starting job");
-        return jobQueue.poll();
+        logger.fine("Starting job " + job.jobID);
+        return job;
     }
 
+    /**
+     * Requests enough jobs from the server to fill the prefetch queue.
+     */
+    private static synchronized void requestJobs() throws IOException {
+        int count = prefetchCount - jobQueue.size() - pendingJobs.get();
+        if (count > 0) {
+            pendingJobs.addAndGet(count);
+            network.send(new GridMessage(GridMessage.NEW_DATA, 0, count));
+        }
+    }
 }
@@ -40,7 +40,7 @@ public class GridMessage<T> implements Message {
     public static final int REGISTER = 4; //
     /** Register at the server **/
     public static final int UNREGISTER = 5; //
-    /** Request new computation data **/
+    /** Request new computation data, the data can contain the number of jobs requested as an Integer **/
     public static final int NEW_DATA = 6; //
 
     // Server type messages
@@ -48,6 +48,8 @@ public class GridMessage<T> implements Message {
     public static final int INIT_DATA = 100;
     /** Sending new dynamic data **/
     public static final int COMP_DATA = 101;
+    /** Sending multiple jobs at once, the data is a List of COMP_DATA messages **/
+    public static final int COMP_DATA_BATCH = 102;
 
 
     private int type;
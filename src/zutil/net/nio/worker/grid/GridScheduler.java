@@ -0,0 +1,311 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker.grid;
+
+import zutil.log.LogUtil;
+
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the jobs of a grid and which clients they have been leased to.
+ * <p>
+ * Jobs are leased to clients in batches, each lease has a deadline after which the job
+ * is put back in the queue and leased to another client. Jobs that fail on a client are also
+ * queued again. When there are no new jobs to hand out, jobs that have been running a lot
+ * longer than the average job are speculatively leased to a second client, the first result
+ * received is used and any later result of the same job is ignored.
+ * <p>
+ * Completed jobs are removed from the scheduler, and statistics are kept per client.
+ *
+ * @author Ziver
+ */
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class GridScheduler {
+    private static final Logger logger = LogUtil.getLogger();
+
+    public static final long DEFAULT_LEASE_TIMEOUT = 30 * 60 * 1000; // 30 min
+    /** The number of times longer than the average a job needs to run before it is re-executed **/
+    public static final double DEFAULT_SPECULATION_FACTOR = 3.0;
+
+    /**
+     * A job and the clients currently computing it.
+     */
+    private static class JobEntry {
+        public final GridJob job;
+        /** Client address mapped to lease deadline **/
+        public final Map<SocketAddress, Long> leases = new HashMap<>();
+        /** The time of the first active lease **/
+        public long leaseTime;
+        public boolean queued;
+
+        public JobEntry(GridJob job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * Job statistics of a single client.
+     */
+    public static class ClientStats {
+        private final long created = System.currentTimeMillis();
+        private long leased;
+        private long completed;
+        private long failed;
+        private long expired;
+        private long totalLatency;
+
+        /** @return the number of jobs that has been leased to the client */
+        public synchronized long getLeasedCount() { return leased; }
+        /** @return the number of jobs the client has completed first */
+        public synchronized long getCompletedCount() { return completed; }
+        public synchronized long getFailedCount() { return failed; }
+        /** @return the number of leases that have passed their deadline */
+        public synchronized long getExpiredCount() { return expired; }
+
+        /**
+         * @return the average time in milliseconds from a job being leased until its result was received.
+         */
+        public synchronized double getAverageLatency() {
+            return (completed > 0 ? (double) totalLatency / completed : 0);
+        }
+
+        /**
+         * @return the number of completed jobs per second since the client was first seen.
+         */
+        public synchronized double getThroughput() {
+            long time = System.currentTimeMillis() - created;
+            return (time > 0 ? completed * 1000.0 / time : 0);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "leased=%d, completed=%d, failed=%d, expired=%d, avgLatency=%.1fms, throughput=%.2f/s",
+                    leased, completed, failed, expired, getAverageLatency(), getThroughput());
+        }
+    }
+
+
+    private final GridJobGenerator jobGenerator;
+    private final Map<Integer, JobEntry> jobs = new HashMap<>();
+    /** Jobs waiting for a new lease, in the order they were queued **/
+    private final Deque<JobEntry> queue = new ArrayDeque<>();
+    private final Map<SocketAddress, ClientStats> clientStats = new HashMap<>();
+    private int nextJobID;
+    private boolean generatorDone;
+
+    private long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+    private double speculationFactor = DEFAULT_SPECULATION_FACTOR;
+    // Statistics of all clients, used for finding stragglers
+    private long totalCompleted;
+    private long totalLatency;
+
+
+    public GridScheduler(GridJobGenerator jobGenerator) {
+        this.jobGenerator = jobGenerator;
+    }
+
+
+    /**
+     * @param   timeout     the time in milliseconds a client has to return the result of a job
+     */
+    public synchronized void setLeaseTimeout(long timeout) {
+        if (timeout < 1)
+            throw new IllegalArgumentException("Lease timeout must be larger than zero.");
+        this.leaseTimeout = timeout;
+    }
+
+    /**
+     * @param   factor  the number of times longer than the average a job needs to
+     *                  run before it is re-executed by another client, 0 disables speculation.
+     */
+    public synchronized void setSpeculationFactor(double factor) {
+        this.speculationFactor = factor;
+    }
+
+
+    /**
+     * Leases jobs to a client. Jobs are taken from the retry queue first, then new jobs are generated
+     * and lastly jobs from slow clients are leased again. The generator is done when it returns null.
+     *
+     * @param   client  the address of the client
+     * @param   count   the max number of jobs to lease
+     * @return a list of jobs, empty if there are currently no jobs available
+     */
+    public synchronized List<GridJob> lease(SocketAddress client, int count) {
+        long now = System.currentTimeMillis();
+        List<GridJob> leased = new ArrayList<>(count);
+
+        while (leased.size() < count) {
+            JobEntry entry = queue.poll();
+            if (entry != null) {
+                entry.queued = false;
+                if (!jobs.containsKey(entry.job.jobID))
+                    continue; // Completed while waiting in the queue
+            } else if (!generatorDone) {
+                Object data = jobGenerator.generateJob();
+                if (data == null) {
+                    generatorDone = true;
+                    continue;
+                }
+                entry = new JobEntry(new GridJob(nextJobID++, data));
+                jobs.put(entry.job.jobID, entry);
+            } else {
+                entry = findStraggler(client, now);
+                if (entry == null)
+                    break;
+                logger.fine("Speculatively re-executing job " + entry.job.jobID + " on " + client);
+            }
+
+            if (entry.leases.isEmpty())
+                entry.leaseTime = now;
+            entry.leases.put(client, now + leaseTimeout);
+            entry.job.renewTimeStamp();
+            leased.add(entry.job);
+        }
+
+        getStats(client).leased += leased.size();
+        return leased;
+    }
+
+    /**
+     * @return the job that has been leased the longest if it is considered a straggler
+     *         and not already leased to the given client, null if there is no such job.
+     */
+    private JobEntry findStraggler(SocketAddress client, long now) {
+        if (speculationFactor <= 0 || totalCompleted == 0)
+            return null;
+
+        long threshold = (long) (speculationFactor * totalLatency / totalCompleted);
+        JobEntry straggler = null;
+        for (JobEntry entry : jobs.values()) {
+            if (entry.leases.size() != 1 || entry.leases.containsKey(client))
+                continue;
+            if (now - entry.leaseTime > threshold && (straggler == null || entry.leaseTime < straggler.leaseTime))
+                straggler = entry;
+        }
+        return straggler;
+    }
+
+    /**
+     * Marks a job as completed and removes it from the scheduler.
+     *
+     * @return true if this was the first result of the job, false if the job has already
+     *         been completed, e.g. by a speculative execution, and the result should be ignored.
+     */
+    public synchronized boolean complete(SocketAddress client, int jobID) {
+        JobEntry entry = jobs.remove(jobID);
+        if (entry == null)
+            return false;
+
+        Long deadline = entry.leases.get(client);
+        long latency = System.currentTimeMillis() - (deadline != null ? deadline - leaseTimeout : entry.leaseTime);
+        ClientStats stats = getStats(client);
+        stats.completed++;
+        stats.totalLatency += latency;
+        totalCompleted++;
+        totalLatency += latency;
+        return true;
+    }
+
+    /**
+     * Releases the lease of a job that failed on the client, the job will be leased again.
+     */
+    public synchronized void fail(SocketAddress client, int jobID) {
+        getStats(client).failed++;
+        JobEntry entry = jobs.get(jobID);
+        if (entry != null && entry.leases.remove(client) != null)
+            requeueIfIdle(entry);
+    }
+
+    /**
+     * Releases all leases of the client, e.g. when it has disconnected.
+     */
+    public synchronized void removeClient(SocketAddress client) {
+        for (JobEntry entry : jobs.values()) {
+            if (entry.leases.remove(client) != null)
+                requeueIfIdle(entry);
+        }
+    }
+
+    /**
+     * Queues all jobs with expired leases for a new lease, should be called periodically.
+     *
+     * @return the number of expired leases
+     */
+    public synchronized int expireLeases() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (JobEntry entry : jobs.values()) {
+            Iterator<Map.Entry<SocketAddress, Long>> it = entry.leases.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<SocketAddress, Long> lease = it.next();
+                if (lease.getValue() < now) {
+                    logger.fine("Lease of job " + entry.job.jobID + " expired for " + lease.getKey());
+                    getStats(lease.getKey()).expired++;
+                    it.remove();
+                    count++;
+                }
+            }
+            requeueIfIdle(entry);
+        }
+        return count;
+    }
+
+    private void requeueIfIdle(JobEntry entry) {
+        if (entry.leases.isEmpty() && !entry.queued) {
+            entry.queued = true;
+            // Retried jobs are handed out before new jobs
+            queue.addFirst(entry);
+        }
+    }
+
+    private ClientStats getStats(SocketAddress client) {
+        return clientStats.computeIfAbsent(client, k -> new ClientStats());
+    }
+
+
+    /**
+     * @return the number of jobs that have been generated but not completed.
+     */
+    public synchronized int getActiveJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * @return the number of jobs waiting to be leased again.
+     */
+    public synchronized int getQueuedJobCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return a copy of the statistics of all clients.
+     */
+    public synchronized Map<SocketAddress, ClientStats> getClientStats() {
+        return new HashMap<>(clientStats);
+    }
+}
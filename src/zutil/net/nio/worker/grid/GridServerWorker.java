@@ -24,39 +24,72 @@
 
 package zutil.net.nio.worker.grid;
 
+import zutil.log.LogUtil;
+import zutil.net.nio.NioNetwork;
 import zutil.net.nio.worker.ThreadedEventWorker;
 import zutil.net.nio.worker.WorkerEventData;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Implements a simple network computing server
+ * Implements a simple network computing server.
+ * <p>
+ * Jobs are leased to the clients through a {@link GridScheduler}, a client can request
+ * multiple jobs at once which will be sent as a single batch message. Jobs with expired
+ * leases are leased to other clients and only the first result of each job is forwarded
+ * to the result handler.
  *
  * @author Ziver
  */
 @SuppressWarnings({ "unchecked", "rawtypes" })
 public class GridServerWorker extends ThreadedEventWorker{
-    // Job timeout after 30 min
-    public int jobTimeout = 1000*60*30;
-    private HashMap<Integer, GridJob> jobs; // contains all the ongoing jobs
-    private Queue<GridJob> resendJobQueue; // Contains all the jobs that will be recalculated
+    private static final Logger logger = LogUtil.getLogger();
+
+    /** The max number of jobs that will be leased to a client in one request **/
+    public static final int MAX_BATCH_SIZE = 100;
+    private static final long MAINTENANCE_INTERVAL = 1000; // 1 sec
+
+    private GridScheduler scheduler;
     private GridJobGenerator jobGenerator; // The job generator
     private GridResultHandler resHandler;
-    private int nextJobID;
+    private ScheduledExecutorService maintainer;
 
 
     public GridServerWorker(GridResultHandler resHandler, GridJobGenerator jobGenerator) {
+        this(resHandler, jobGenerator, 1);
+    }
+
+    /**
+     * Creates a server handling client messages with multiple threads, the job generator
+     * and result handler needs to be thread safe if more than one thread is used.
+     *
+     * @param   threadCount     the number of threads handling messages
+     */
+    public GridServerWorker(GridResultHandler resHandler, GridJobGenerator jobGenerator, int threadCount) {
+        super(threadCount, true);
         this.resHandler = resHandler;
         this.jobGenerator = jobGenerator;
-        nextJobID = 0;
+        this.scheduler = new GridScheduler(jobGenerator);
 
-        jobs = new HashMap<>();
-        resendJobQueue = new LinkedList<>();
-        GridMaintainer maintainer = new GridMaintainer();
-        maintainer.start();
+        maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "GridServerWorker-Maintainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintainer.scheduleWithFixedDelay(() -> {
+            int expired = scheduler.expireLeases();
+            if (expired > 0)
+                logger.info(expired + " job lease(s) expired and will be leased again.");
+        }, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
 
@@ -66,43 +99,67 @@ public class GridServerWorker extends ThreadedEventWorker{
             // ignores other messages than GridMessage
             if (e.data instanceof GridMessage) {
                 GridMessage msg = (GridMessage)e.data;
-                GridJob job;
 
                 switch(msg.messageType()) {
                 case GridMessage.REGISTER:
                     e.network.send(e.remoteAddress, new GridMessage(GridMessage.INIT_DATA, 0, jobGenerator.initValues()));
                     break;
+                case GridMessage.UNREGISTER:
+                    scheduler.removeClient(e.remoteAddress);
+                    break;
                 // Sending new data to compute to the client
                 case GridMessage.NEW_DATA:
-                    if (!resendJobQueue.isEmpty()) { // checks first if there is a job for recalculation
-                        job = resendJobQueue.poll();
-                        job.renewTimeStamp();
-                    }
-                    else { // generates new job
-                        job = new GridJob(nextJobID,
-                                jobGenerator.generateJob());
-                        jobs.put(job.jobID, job);
-                        nextJobID++;
-                    }
-                    GridMessage newMsg = new GridMessage(GridMessage.COMP_DATA, job.jobID, job.job);
-                    e.network.send(e.remoteAddress, newMsg);
+                    sendJobs(e.network, e.remoteAddress, msg.getData());
                     break;
 
                     // Received computation results
                 case GridMessage.COMP_SUCCESSFUL:
-                    resHandler.resultEvent(msg.getJobQueueID(), true, msg.getData());
-                    break;
                 case GridMessage.COMP_INCORRECT:
-                    resHandler.resultEvent(msg.getJobQueueID(), false, msg.getData());
+                    // Results from speculative executions that lost the race are ignored
+                    if (scheduler.complete(e.remoteAddress, msg.getJobQueueID()))
+                        resHandler.resultEvent(msg.getJobQueueID(),
+                                msg.messageType() == GridMessage.COMP_SUCCESSFUL, msg.getData());
                     break;
                 case GridMessage.COMP_ERROR: // marks the job for recalculation
-                    job = jobs.get(msg.getJobQueueID());
-                    resendJobQueue.add(job);
+                    scheduler.fail(e.remoteAddress, msg.getJobQueueID());
                     break;
                 }
             }
         } catch (IOException e1) {
-            e1.printStackTrace();
+            logger.log(Level.WARNING, "Unable to send message to grid client: " + e.remoteAddress, e1);
+        }
+    }
+
+    /**
+     * Releases the leases of a disconnected client so that its jobs can be leased to other clients.
+     */
+    @Override
+    public void connectionClosed(NioNetwork network, SocketAddress remote) {
+        scheduler.removeClient(remote);
+    }
+
+    /**
+     * Leases jobs to a client, a single job is sent as a COMP_DATA message and
+     * multiple jobs as a COMP_DATA_BATCH message.
+     *
+     * @param   requested   the number of requested jobs, null for a single job
+     */
+    private void sendJobs(NioNetwork network, SocketAddress client, Object requested) throws IOException {
+        int count = 1;
+        if (requested instanceof Integer)
+            count = Math.max(1, Math.min(MAX_BATCH_SIZE, (Integer) requested));
+
+        List<GridJob> jobs = scheduler.lease(client, count);
+        if (jobs.isEmpty()) {
+            logger.finest("No jobs available for client: " + client);
+        } else if (jobs.size() == 1 && !(requested instanceof Integer)) {
+            GridJob job = jobs.get(0);
+            network.send(client, new GridMessage(GridMessage.COMP_DATA, job.jobID, job.job));
+        } else {
+            ArrayList<GridMessage> batch = new ArrayList<>(jobs.size());
+            for (GridJob job : jobs)
+                batch.add(new GridMessage(GridMessage.COMP_DATA, job.jobID, job.job));
+            network.send(client, new GridMessage(GridMessage.COMP_DATA_BATCH, 0, batch));
         }
     }
 
@@ -112,25 +169,26 @@ public class GridServerWorker extends ThreadedEventWorker{
      * @param	timeout		is the timeout in minutes
      */
     public void setJobTimeout(int timeout) {
-        jobTimeout = 1000*60*timeout;
+        scheduler.setLeaseTimeout(1000L*60*timeout);
     }
 
-    class GridMaintainer extends Thread{
-        /**
-         * Runs some behind the scenes stuff
-         * like job garbage collection.
-         */
-        public void run() {
-            while (true) {
-                long time = System.currentTimeMillis();
-                for (int jobID : jobs.keySet()) {
-                    if (time-jobs.get(jobID).timestamp > jobTimeout) {
-                        resendJobQueue.add(jobs.get(jobID));
-                    }
-                }
-                try {Thread.sleep(1000*60*1);} catch (Exception e) {};
-            }
-        }
+    /**
+     * @return the scheduler keeping track of all the jobs of this server
+     */
+    public GridScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the job statistics of each client that has been leased a job
+     */
+    public Map<SocketAddress, GridScheduler.ClientStats> getClientStats() {
+        return scheduler.getClientStats();
     }
-}
 
+    @Override
+    public void stop() {
+        maintainer.shutdownNow();
+        super.stop();
+    }
+}
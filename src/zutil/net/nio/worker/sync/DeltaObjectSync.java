@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker.sync;
+
+import java.util.Map;
+
+/**
+ * A object that is synchronized by {@link SyncService} with field level deltas.
+ * <p>
+ * The service reads the state of the object once every tick and only sends the
+ * fields that have changed since the state last acknowledged by each subscribed peer.
+ *
+ * @author Ziver
+ */
+public abstract class DeltaObjectSync extends ObjectSync {
+
+    public DeltaObjectSync(String id) {
+        super(id);
+    }
+
+
+    /**
+     * Returns the current state of the object. The values need to be Serializable and
+     * must not be modified after they are returned, so mutable values like arrays need to be copied.
+     *
+     * @return a map of field names and values
+     */
+    public abstract Map<String, Object> getState();
+
+    /**
+     * Applies changed fields received from a remote peer.
+     *
+     * @param   delta   a map containing only the changed fields and their new values
+     */
+    public abstract void applyDelta(Map<String, Object> delta);
+
+
+    /**
+     * Does nothing, the state is sent by the SyncService every tick.
+     */
+    @Override
+    public void sendSync() {}
+
+    /**
+     * Does nothing, deltas are applied through {@link #applyDelta(Map)}.
+     */
+    @Override
+    public void syncObject(SyncMessage message) {}
+
+    @Override
+    public void remove() {}
+}
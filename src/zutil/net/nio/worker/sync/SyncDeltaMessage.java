@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker.sync;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Contains the changed fields of all objects a peer is subscribed to, collected during one tick.
+ * <p>
+ * Field names are replaced by integer ids to keep the messages small, the ids are assigned
+ * by the sender in increasing order and each name is only sent once per connection in
+ * the {@link #fieldNames} array of the first message that uses it.
+ *
+ * @author Ziver
+ */
+public class SyncDeltaMessage extends SyncMessage {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The changed fields of a single object.
+     */
+    public static class ObjectDelta implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public String id;
+        /** The field name ids **/
+        public int[] fields;
+        public Object[] values;
+
+        public ObjectDelta(String id, int size) {
+            this.id = id;
+            this.fields = new int[size];
+            this.values = new Object[size];
+        }
+    }
+
+    /** The sequence number that should be acknowledged by the receiver **/
+    public long sequence;
+    /** New field names, the first name has the id following the last previously sent name **/
+    public String[] fieldNames;
+    public List<ObjectDelta> deltas = new ArrayList<>();
+
+
+    public SyncDeltaMessage(long sequence) {
+        super(MessageType.DELTA, null);
+        this.sequence = sequence;
+    }
+}
@@ -32,11 +32,27 @@ public class SyncMessage implements Message {
         REQUEST_ID,
         NEW,
         REMOVE,
-        SYNC
+        SYNC,
+        /** Request to receive the changes of an object **/
+        SUBSCRIBE,
+        /** Request to stop receiving the changes of an object **/
+        UNSUBSCRIBE,
+        /** Field level changes of multiple objects, see {@link SyncDeltaMessage} **/
+        DELTA,
+        /** Acknowledgement of a received delta, see {@link SyncAckMessage} **/
+        ACK
     }
 
     // type of message
     public MessageType type;
     // id of the Object
     public String id;
+
+
+    public SyncMessage() {}
+
+    public SyncMessage(MessageType type, String id) {
+        this.type = type;
+        this.id = id;
+    }
 }
@@ -25,19 +25,85 @@
 package zutil.net.nio.worker.sync;
 
 import zutil.log.LogUtil;
+import zutil.net.nio.NioNetwork;
 import zutil.net.nio.worker.ThreadedEventWorker;
 import zutil.net.nio.worker.WorkerEventData;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Synchronizes objects between network peers.
+ * <p>
+ * {@link DeltaObjectSync} objects are only sent to peers that have subscribed to them. The state
+ * of the objects is read once every tick and all changes during the tick are coalesced into a single
+ * {@link SyncDeltaMessage} per peer, containing only the fields that differ from the last state
+ * acknowledged by that peer. The bandwidth used will therefore depend on the rate of change
+ * and not on the size of the objects.
+ *
+ * @author Ziver
+ */
 public class SyncService extends ThreadedEventWorker{
     private static Logger logger = LogUtil.getLogger();
 
+    /** The max number of unacknowledged deltas kept per peer **/
+    public static final int MAX_PENDING_DELTAS = 64;
+
+    /**
+     * The synchronization state of a subscribing peer.
+     */
+    private static class PeerState {
+        public final NioNetwork network;
+        public final SocketAddress address;
+        public final Set<String> interests = new HashSet<>();
+        /** Field name dictionary for outgoing deltas **/
+        public final Map<String, Integer> fieldIds = new HashMap<>();
+        /** The last state acknowledged by the peer for each object **/
+        public final Map<String, Map<String, Object>> ackedState = new HashMap<>();
+        /** The last sent state of each object **/
+        public final Map<String, Map<String, Object>> sentState = new HashMap<>();
+        /** Sent but not acknowledged states mapped by sequence **/
+        public final TreeMap<Long, Map<String, Map<String, Object>>> pending = new TreeMap<>();
+        public long nextSequence = 1;
+
+        public PeerState(NioNetwork network, SocketAddress address) {
+            this.network = network;
+            this.address = address;
+        }
+    }
+
     // list of objects to sync
-    private HashMap<String, ObjectSync> sync = new HashMap<>();
+    private Map<String, ObjectSync> sync = new ConcurrentHashMap<>();
+    // peers subscribed to local objects
+    private Map<SocketAddress, PeerState> peers = new ConcurrentHashMap<>();
+    // field name dictionaries of incoming deltas
+    private Map<SocketAddress, List<String>> remoteFieldNames = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> tickTask;
+
 
+    public SyncService() {
+        super();
+    }
 
+    /**
+     * Creates a service handling sync messages with multiple threads, messages
+     * from the same remote host are still handled in the order they were sent.
+     *
+     * @param   threadCount     the number of threads handling messages
+     */
+    public SyncService(int threadCount) {
+        super(threadCount, true);
+    }
 
     /**
      * Adds a object to be synced
@@ -47,29 +113,283 @@ public class SyncService extends ThreadedEventWorker{
         logger.fine("New Sync object: " + os);
     }
 
+    /**
+     * Removes a local object and notifies all subscribed peers
+     */
+    public void removeSyncObject(String id) {
+        ObjectSync obj = sync.remove(id);
+        if (obj == null)
+            return;
+        obj.remove();
+
+        for (PeerState peer : peers.values()) {
+            synchronized (peer) {
+                if (!peer.interests.remove(id))
+                    continue;
+                peer.ackedState.remove(id);
+                peer.sentState.remove(id);
+            }
+            send(peer.network, peer.address, new SyncMessage(SyncMessage.MessageType.REMOVE, id));
+        }
+    }
+
+    /**
+     * Requests the changes of a remote object, the object needs
+     * to have been added locally to be able to receive the changes.
+     *
+     * @param   network     the network connected to the remote peer
+     * @param   remote      the address of the peer that owns the object
+     * @param   id          the id of the object
+     */
+    public void subscribe(NioNetwork network, SocketAddress remote, String id) throws IOException {
+        network.send(remote, new SyncMessage(SyncMessage.MessageType.SUBSCRIBE, id));
+    }
+
+    /**
+     * Stops receiving changes of a remote object.
+     */
+    public void unsubscribe(NioNetwork network, SocketAddress remote, String id) throws IOException {
+        network.send(remote, new SyncMessage(SyncMessage.MessageType.UNSUBSCRIBE, id));
+    }
+
+    /**
+     * Removes all state of a peer, this is done automatically when the connection
+     * to the peer is closed.
+     */
+    public void removePeer(SocketAddress remote) {
+        peers.remove(remote);
+        remoteFieldNames.remove(remote);
+    }
+
+    @Override
+    public void connectionClosed(NioNetwork network, SocketAddress remote) {
+        removePeer(remote);
+    }
+
+    /**
+     * @return the number of peers that are subscribed to local objects
+     */
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Sets how often deltas are sent to the subscribed peers, changes
+     * to a object during one tick are sent as a single update.
+     *
+     * @param   interval    the tick interval in milliseconds, zero or less
+     *                      disables the tick and {@link #sync()} needs to be called manually
+     */
+    public synchronized void setTickInterval(long interval) {
+        if (tickTask != null) {
+            tickTask.cancel(false);
+            tickTask = null;
+        }
+        if (interval <= 0)
+            return;
+
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "SyncService-Tick");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        tickTask = timer.scheduleAtFixedRate(() -> {
+            try {
+                sync();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Unable to sync objects.", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void messageEvent(WorkerEventData event) {
         if (event.data instanceof SyncMessage) {
             SyncMessage syncMessage = (SyncMessage)event.data;
-            if (syncMessage.type == SyncMessage.MessageType.SYNC) {
-                ObjectSync obj = sync.get(syncMessage.id);
-                if (obj != null) {
-                    logger.finer("Syncing Message...");
-                    obj.syncObject(syncMessage);
+            switch (syncMessage.type) {
+                case SYNC: {
+                    ObjectSync obj = sync.get(syncMessage.id);
+                    if (obj != null) {
+                        logger.finer("Syncing Message...");
+                        obj.syncObject(syncMessage);
+                    }
+                    break;
                 }
+                case REMOVE: {
+                    ObjectSync obj = sync.remove(syncMessage.id);
+                    if (obj != null)
+                        obj.remove();
+                    break;
+                }
+                case SUBSCRIBE: {
+                    PeerState peer = peers.computeIfAbsent(event.remoteAddress, k -> new PeerState(event.network, k));
+                    synchronized (peer) {
+                        // A new subscription always starts with the full state
+                        peer.interests.add(syncMessage.id);
+                        peer.ackedState.remove(syncMessage.id);
+                        peer.sentState.remove(syncMessage.id);
+                    }
+                    break;
+                }
+                case UNSUBSCRIBE: {
+                    PeerState peer = peers.get(event.remoteAddress);
+                    if (peer != null) {
+                        synchronized (peer) {
+                            peer.interests.remove(syncMessage.id);
+                            peer.ackedState.remove(syncMessage.id);
+                            peer.sentState.remove(syncMessage.id);
+                        }
+                    }
+                    break;
+                }
+                case DELTA:
+                    applyDelta(event, (SyncDeltaMessage) syncMessage);
+                    break;
+                case ACK:
+                    acknowledge(event.remoteAddress, ((SyncAckMessage) syncMessage).sequence);
+                    break;
             }
-            else if (syncMessage.type == SyncMessage.MessageType.REMOVE) {
-                sync.remove(syncMessage.id).remove();
+        }
+    }
+
+    private void applyDelta(WorkerEventData event, SyncDeltaMessage msg) {
+        List<String> names = remoteFieldNames.computeIfAbsent(event.remoteAddress, k -> new ArrayList<>());
+        if (msg.fieldNames != null)
+            names.addAll(Arrays.asList(msg.fieldNames));
+
+        for (SyncDeltaMessage.ObjectDelta delta : msg.deltas) {
+            ObjectSync obj = sync.get(delta.id);
+            if (!(obj instanceof DeltaObjectSync))
+                continue;
+
+            Map<String, Object> fields = new HashMap<>();
+            for (int i = 0; i < delta.fields.length; i++)
+                fields.put(names.get(delta.fields[i]), delta.values[i]);
+            ((DeltaObjectSync) obj).applyDelta(fields);
+        }
+        send(event.network, event.remoteAddress, new SyncAckMessage(msg.sequence));
+    }
+
+    private void acknowledge(SocketAddress remote, long sequence) {
+        PeerState peer = peers.get(remote);
+        if (peer == null)
+            return;
+
+        synchronized (peer) {
+            // Later states overwrite earlier ones as the map is ordered by sequence
+            Map<Long, Map<String, Map<String, Object>>> acked = peer.pending.headMap(sequence, true);
+            for (Map<String, Map<String, Object>> states : acked.values()) {
+                for (Map.Entry<String, Map<String, Object>> entry : states.entrySet()) {
+                    if (peer.interests.contains(entry.getKey()))
+                        peer.ackedState.put(entry.getKey(), entry.getValue());
+                }
             }
+            acked.clear();
         }
     }
 
     /**
-     * Syncs all the objects whit the server
+     * Syncs all the objects whit the server, and sends the changes
+     * of all delta synchronized objects to the subscribed peers.
      */
     public void sync() {
-        for (String id : sync.keySet()) {
-            sync.get(id).sendSync();
+        Map<String, Map<String, Object>> states = new HashMap<>();
+        for (ObjectSync obj : sync.values()) {
+            if (obj instanceof DeltaObjectSync)
+                states.put(obj.id, new HashMap<>(((DeltaObjectSync) obj).getState()));
+            else
+                obj.sendSync();
+        }
+
+        for (PeerState peer : peers.values()) {
+            // Send while holding the lock so that field names are defined in order
+            synchronized (peer) {
+                SyncDeltaMessage msg = createDelta(peer, states);
+                if (msg != null)
+                    send(peer.network, peer.address, msg);
+            }
+        }
+    }
+
+    /**
+     * @return a message with the fields that differ from the acknowledged state of the
+     *         peer or null if nothing has changed since the last sent message.
+     */
+    private SyncDeltaMessage createDelta(PeerState peer, Map<String, Map<String, Object>> states) {
+        synchronized (peer) {
+            SyncDeltaMessage msg = new SyncDeltaMessage(peer.nextSequence);
+            List<String> newNames = new ArrayList<>();
+            Map<String, Map<String, Object>> sent = new HashMap<>();
+
+            for (String id : peer.interests) {
+                Map<String, Object> state = states.get(id);
+                // Skip if the previous message with the same state has not been acknowledged yet
+                if (state == null || state.equals(peer.sentState.get(id)))
+                    continue;
+
+                // Fields that differ from the last sent state are also included so that
+                // the peer ends up with the current state even if a field was reverted
+                Map<String, Object> acked = peer.ackedState.getOrDefault(id, Collections.emptyMap());
+                Map<String, Object> lastSent = peer.sentState.getOrDefault(id, acked);
+                List<String> changed = new ArrayList<>();
+                for (Map.Entry<String, Object> field : state.entrySet()) {
+                    if (isChanged(acked, field) || isChanged(lastSent, field))
+                        changed.add(field.getKey());
+                }
+                peer.sentState.put(id, state);
+                if (changed.isEmpty())
+                    continue;
+
+                SyncDeltaMessage.ObjectDelta delta = new SyncDeltaMessage.ObjectDelta(id, changed.size());
+                for (int i = 0; i < changed.size(); i++) {
+                    String name = changed.get(i);
+                    Integer fieldId = peer.fieldIds.get(name);
+                    if (fieldId == null) {
+                        fieldId = peer.fieldIds.size();
+                        peer.fieldIds.put(name, fieldId);
+                        newNames.add(name);
+                    }
+                    delta.fields[i] = fieldId;
+                    delta.values[i] = state.get(name);
+                }
+                msg.deltas.add(delta);
+                sent.put(id, state);
+            }
+
+            if (msg.deltas.isEmpty())
+                return null;
+            if (!newNames.isEmpty())
+                msg.fieldNames = newNames.toArray(new String[0]);
+            peer.pending.put(msg.sequence, sent);
+            peer.nextSequence++;
+            // Forget the oldest states of a peer that is not acknowledging, later
+            // deltas are still complete as they are based on the acknowledged state
+            while (peer.pending.size() > MAX_PENDING_DELTAS)
+                peer.pending.pollFirstEntry();
+            return msg;
+        }
+    }
+
+    private static boolean isChanged(Map<String, Object> base, Map.Entry<String, Object> field) {
+        return !base.containsKey(field.getKey()) || !Objects.deepEquals(base.get(field.getKey()), field.getValue());
+    }
+
+    private void send(NioNetwork network, SocketAddress address, SyncMessage msg) {
+        try {
+            network.send(address, msg);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to send sync message to: " + address, e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (timer != null)
+                timer.shutdownNow();
         }
+        super.stop();
     }
 }
@@ -24,6 +24,8 @@
 
 package zutil.net.threaded;
 
+import zutil.log.CounterManager;
+import zutil.log.CounterManager.Counter;
 import zutil.log.LogUtil;
 
 import javax.net.ServerSocketFactory;
@@ -33,27 +35,46 @@ import javax.net.ssl.SSLServerSocketFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.*;
 import java.security.cert.X509Certificate;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
- * A simple network server that handles TCP communication
+ * A simple network server that handles TCP communication.
+ * <p>
+ * Each accepted connection is handled by a {@link ThreadedTCPNetworkServerThread}
+ * executed by a configurable Executor, by default a unbounded cached thread pool.
+ * The number of connections can be limited with {@link #setMaxConnections(int)} and
+ * {@link #setThreadPool(int, int)}, connections above the limit will be handed to
+ * {@link #rejectConnection(Socket)} instead of being queued. The number of active,
+ * queued and rejected connections are also published through {@link CounterManager}.
  *
  * @author Ziver
  */
 public abstract class ThreadedTCPNetworkServer extends Thread {
     private static final Logger logger = LogUtil.getLogger();
 
-    private Executor executor = Executors.newCachedThreadPool();
+    private ExecutorService executor = Executors.newCachedThreadPool();
     private final int port;
     private ServerSocketFactory serverSocketFactory;
+    private boolean socketChannelsEnabled = false;
+
+    private int maxConnections = -1;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private Counter activeCounter;
+    private Counter queuedCounter;
+    private Counter rejectedCounter;
 
     /**
      * Creates a new instance of the sever.
@@ -151,20 +172,131 @@ public abstract class ThreadedTCPNetworkServer extends Thread {
         return port;
     }
 
+
+    /**
+     * Sets the executor that will run the connection threads. Tasks rejected by
+     * the executor will cause the connection to be rejected with {@link #rejectConnection(Socket)}.
+     * NOTE: needs to be set before the server is started.
+     *
+     * @param   executor    the executor that will handle new connections
+     */
+    public void setExecutor(ExecutorService executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor cannot be null.");
+        this.executor = executor;
+    }
+
+    /**
+     * Limits the number of threads handling connections, connections
+     * above the limit will be queued until the queue is full after which
+     * new connections will be rejected.
+     * NOTE: needs to be set before the server is started.
+     *
+     * @param   maxThreads  the max number of threads handling connections at the same time
+     * @param   queueSize   the max number of connections waiting for a thread
+     */
+    public void setThreadPool(int maxThreads, int queueSize) {
+        setExecutor(new ThreadPoolExecutor(
+                maxThreads, maxThreads,
+                60, TimeUnit.SECONDS,
+                (queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>()),
+                new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    /**
+     * Will use a new virtual thread for each connection if the JVM supports
+     * virtual threads (Java 21 or newer), otherwise the current executor is kept.
+     * NOTE: needs to be set before the server is started.
+     *
+     * @return true if virtual threads will be used, false if they are not supported.
+     */
+    public boolean enableVirtualThreads() {
+        try {
+            // Use reflection as we do not require Java 21
+            setExecutor((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+            return true;
+        } catch (ReflectiveOperationException e) {
+            logger.fine("Virtual threads are not supported by this JVM.");
+            return false;
+        }
+    }
+
+    /**
+     * Accept plain TCP connections through a ServerSocketChannel so that the accepted
+     * sockets will have an associated SocketChannel, which allows zero-copy transfers.
+     * This has no effect on SSL servers.
+     * NOTE: before Java 13 the streams of a channel socket share a lock, a thread blocked
+     * on reading will then block all writes, so this should only be enabled by protocols
+     * that read and write on the same thread. Needs to be set before the server is started.
+     *
+     * @param   enable  true if accepted sockets should have an associated SocketChannel
+     */
+    protected void enableSocketChannels(boolean enable) {
+        this.socketChannelsEnabled = enable;
+    }
+
+    /**
+     * Sets the max number of active and queued connections, connections above
+     * this limit will be rejected with {@link #rejectConnection(Socket)}.
+     *
+     * @param   maxConnections  the max number of connections, zero or negative value for unlimited
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return the number of connections that are currently being handled by a thread
+     */
+    public int getActiveConnectionCount() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @return the number of accepted connections that are waiting for a thread
+     */
+    public int getQueuedConnectionCount() {
+        return queuedConnections.get();
+    }
+
+    /**
+     * @return the total number of connections that have been rejected since the server was started
+     */
+    public long getRejectedConnectionCount() {
+        return rejectedConnections.get();
+    }
+
     public void run() {
         ServerSocket serverSocket = null;
 
         try {
-            serverSocket = serverSocketFactory.createServerSocket(port);
+            serverSocket = createServerSocket();
 
             logger.info("Accepting TCP Connections on port: " + port);
+            activeCounter = CounterManager.getCounter(getClass(), "ActiveConnections");
+            queuedCounter = CounterManager.getCounter(getClass(), "QueuedConnections");
+            rejectedCounter = CounterManager.getCounter(getClass(), "RejectedConnections");
 
             while (true) {
                 Socket connectionSocket = serverSocket.accept();
+
+                if (maxConnections > 0 && activeConnections.get() + queuedConnections.get() >= maxConnections) {
+                    handleRejection(connectionSocket);
+                    continue;
+                }
+
                 ThreadedTCPNetworkServerThread thread = getThreadInstance(connectionSocket);
 
                 if (thread != null) {
-                    executor.execute(thread);
+                    queuedConnections.incrementAndGet();
+                    queuedCounter.increment();
+                    try {
+                        executor.execute(new ConnectionTask(thread));
+                    } catch (RejectedExecutionException e) {
+                        queuedConnections.decrementAndGet();
+                        queuedCounter.decrement();
+                        handleRejection(connectionSocket);
+                    }
                 } else {
                     logger.severe("Unable to instantiate ThreadedTCPNetworkServerThread, closing connection!");
                     connectionSocket.close();
@@ -182,6 +314,50 @@ public abstract class ThreadedTCPNetworkServer extends Thread {
         }
     }
 
+    /**
+     * Creates the listening socket with the server socket factory, or through a
+     * ServerSocketChannel if socket channels have been enabled for a plain TCP server.
+     *
+     * @see #enableSocketChannels(boolean)
+     */
+    private ServerSocket createServerSocket() throws IOException {
+        if (!socketChannelsEnabled || serverSocketFactory instanceof SSLServerSocketFactory)
+            return serverSocketFactory.createServerSocket(port);
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        return serverChannel.socket();
+    }
+
+    private void handleRejection(Socket socket) {
+        rejectedConnections.incrementAndGet();
+        rejectedCounter.increment();
+        logger.fine("Server is overloaded, rejecting connection from: " + socket.getInetAddress());
+
+        try {
+            rejectConnection(socket);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Error while rejecting connection", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+    /**
+     * Called by the accepting thread when a connection is rejected because
+     * the server is overloaded. The default implementation does nothing but
+     * subclasses can send a protocol specific error message to the client.
+     * The socket will be closed after this method returns, so implementations
+     * should not block.
+     *
+     * @param   socket  the rejected connection
+     */
+    protected void rejectConnection(Socket socket) throws IOException { }
+
     /**
      * This method returns a new instance of the ThreadedTCPNetworkServerThread
      * that will handle the newly made connection, if a null value is returned
@@ -199,4 +375,30 @@ public abstract class ThreadedTCPNetworkServer extends Thread {
     public void close() {
         this.interrupt();
     }
+
+
+    /**
+     * Wrapper that keeps track of the queued and active connection counts.
+     */
+    private class ConnectionTask implements Runnable {
+        private final ThreadedTCPNetworkServerThread thread;
+
+        public ConnectionTask(ThreadedTCPNetworkServerThread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public void run() {
+            queuedConnections.decrementAndGet();
+            queuedCounter.decrement();
+            activeConnections.incrementAndGet();
+            activeCounter.increment();
+            try {
+                thread.run();
+            } finally {
+                activeConnections.decrementAndGet();
+                activeCounter.decrement();
+            }
+        }
+    }
 }
@@ -29,6 +29,7 @@ import zutil.io.StringOutputStream;
 import zutil.net.http.HttpHeader;
 import zutil.net.http.HttpPage;
 import zutil.net.http.HttpPrintStream;
+import zutil.net.http.HttpRouter;
 import zutil.net.ws.WSInterface;
 import zutil.net.ws.WSMethodDef;
 import zutil.net.ws.WSParameterDef;
@@ -63,8 +64,10 @@ public class RESTHttpPage implements HttpPage {
                         Map<String, String> cookie,
                         Map<String, String> request) throws IOException {
         try {
+            // If the page has been mounted on a wildcard route then the method name is the wildcard part of the path
+            String targetMethod = headers.getPathParameter(HttpRouter.WILDCARD_PARAM);
             out.println(
-                    execute(headers.getRequestURL(), request));
+                    execute((targetMethod != null ? targetMethod : headers.getRequestURL()), request));
         } catch (Throwable throwable) {
             throw new IOException(throwable);
         }
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class TimerWheelTest {
+
+    private TimerWheel timer = new TimerWheel("TimerWheelTest", 10, 8);
+
+    @After
+    public void stop() {
+        timer.stop();
+    }
+
+
+    @Test
+    public void execute() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timer.schedule(latch::countDown, 50);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test
+    public void multipleRounds() throws InterruptedException {
+        // 8 slots of 10ms, so a 250ms delay will need multiple rounds
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timer.schedule(latch::countDown, 250);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 250);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = timer.schedule(count::incrementAndGet, 30);
+        timer.schedule(latch::countDown, 60);
+        timeout.cancel();
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(0, count.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void manyTimeouts() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(10_000);
+        for (int i = 0; i < 10_000; i++)
+            timer.schedule(latch::countDown, i % 100);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, timer.getPendingCount());
+    }
+}
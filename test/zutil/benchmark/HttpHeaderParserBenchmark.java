@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.benchmark;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import org.junit.Rule;
+import org.junit.Test;
+import zutil.io.IOUtil;
+import zutil.net.http.HttpHeader;
+import zutil.net.http.HttpHeaderParser;
+import zutil.parser.URLDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the byte based HttpHeaderParser with the previous
+ * String and regex based parsing of a typical browser request.
+ */
+public class HttpHeaderParserBenchmark {
+    public static final int TEST_EXECUTIONS = 200000;
+
+    @Rule
+    public BenchmarkRule benchmarkRun = new BenchmarkRule();
+
+    private static final byte[] REQUEST = (
+            "GET /static/js/main.js?version=12&lang=en HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "Connection: keep-alive\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/86.0 Safari/537.36\r\n" +
+            "Accept: */*\r\n" +
+            "Referer: http://www.example.com/index.html\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Accept-Language: en-US,en;q=0.9\r\n" +
+            "Cookie: session_id=1234; theme=dark\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+
+    @Test
+    public void byteParser() throws IOException {
+        for (int i=0; i<TEST_EXECUTIONS; i++) {
+            HttpHeader header = new HttpHeaderParser(new ByteArrayInputStream(REQUEST)).read();
+            assertEquals("1234", header.getCookie("session_id"));
+        }
+    }
+
+    @Test
+    public void byteArrayParser() {
+        for (int i=0; i<TEST_EXECUTIONS; i++) {
+            HttpHeader header = HttpHeaderParser.parse(REQUEST, 0, REQUEST.length);
+            assertEquals("1234", header.getCookie("session_id"));
+        }
+    }
+
+    @Test
+    public void stringParser() throws IOException {
+        for (int i=0; i<TEST_EXECUTIONS; i++) {
+            Map<String, String> cookies = StringHeaderParser.read(new ByteArrayInputStream(REQUEST));
+            assertEquals("1234", cookies.get("session_id"));
+        }
+    }
+
+
+    /**
+     * The previous line and String based implementation of HttpHeaderParser
+     */
+    private static class StringHeaderParser {
+        private static final Pattern PATTERN_COLON = Pattern.compile(":");
+        private static final Pattern PATTERN_EQUAL = Pattern.compile("=");
+        private static final Pattern PATTERN_AND = Pattern.compile("&");
+
+        public static Map<String, String> read(InputStream in) throws IOException {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            Map<String, String> urlAttributes = new HashMap<>();
+            Map<String, String> cookies = new HashMap<>();
+
+            // Status line
+            String[] lineArr = IOUtil.readLine(in).split(" ", 3);
+            Float.parseFloat(lineArr[2].substring(lineArr[2].indexOf('/')+1));
+            String url = lineArr[1];
+            int paramStartIndex = url.indexOf('?');
+            if (paramStartIndex >= 0) {
+                String[] data = PATTERN_AND.split(URLDecoder.decode(url.substring(paramStartIndex + 1)));
+                for (String element : data) {
+                    String[] tmp = PATTERN_EQUAL.split(element, 2);
+                    urlAttributes.put(tmp[0].trim(), (tmp.length > 1 ? tmp[1] : "").trim());
+                }
+                url.substring(0, paramStartIndex).trim();
+            }
+
+            // Header lines
+            String line;
+            while ((line = IOUtil.readLine(in)) != null && !line.isEmpty()) {
+                String[] data = PATTERN_COLON.split(line, 2);
+                headers.put(data[0].trim().toUpperCase(), (data.length > 1 ? data[1] : "").trim());
+            }
+
+            // Cookies
+            for (String cookie : headers.get("COOKIE").split(";")) {
+                String[] tmpStr = PATTERN_EQUAL.split(cookie, 2);
+                cookies.put(tmpStr[0].trim(), (tmpStr.length > 1 ? tmpStr[1] : "").trim());
+            }
+            return cookies;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http;
+
+import org.junit.Test;
+import zutil.io.IOUtil;
+import zutil.io.StringInputStream;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class HttpBodyInputStreamTest {
+
+    @Test
+    public void fixedLength() throws IOException {
+        StringInputStream in = new StringInputStream("hello world");
+        HttpBodyInputStream body = new HttpBodyInputStream(in, 5);
+
+        assertEquals("hello", IOUtil.readContentAsString(body));
+        assertEquals(-1, body.read());
+        assertEquals(' ', in.read());
+    }
+
+    @Test
+    public void fixedLengthClose() throws IOException {
+        StringInputStream in = new StringInputStream("hello world");
+        HttpBodyInputStream body = new HttpBodyInputStream(in, 6);
+
+        assertEquals('h', body.read());
+        body.close();
+        assertEquals("world", IOUtil.readContentAsString(in));
+    }
+
+    @Test
+    public void chunked() throws IOException {
+        StringInputStream in = new StringInputStream(
+                "5\r\nhello\r\n" +
+                "6;ext=1\r\n world\r\n" +
+                "0\r\n" +
+                "Trailer: value\r\n" +
+                "\r\n" +
+                "next");
+        HttpBodyInputStream body = new HttpBodyInputStream(in);
+
+        assertEquals("hello world", IOUtil.readContentAsString(body));
+        assertEquals(-1, body.read());
+        assertEquals("next", IOUtil.readContentAsString(in));
+    }
+
+    @Test
+    public void chunkedClose() throws IOException {
+        StringInputStream in = new StringInputStream(
+                "5\r\nhello\r\n" +
+                "0\r\n\r\n" +
+                "next");
+        HttpBodyInputStream body = new HttpBodyInputStream(in);
+
+        body.close();
+        assertEquals("next", IOUtil.readContentAsString(in));
+    }
+}
@@ -26,7 +26,9 @@ package zutil.net.http;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.*;
 
@@ -83,4 +85,92 @@ public class HttpHeaderParserTest {
         assertEquals(404, header.getResponseStatusCode(), 0f);
         assertEquals("File not found Special", header.getResponseStatusString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void headerLines() throws IOException {
+        HttpHeaderParser parser = new HttpHeaderParser(
+                "GET / HTTP/1.1\r\n" +
+                "Host:  example.com \r\n" +
+                "content-length: 10\r\n" +
+                "X-Custom: a\r\n" +
+                "X-Custom: b\r\n" +
+                "X-Empty\r\n" +
+                "\r\n");
+        HttpHeader header = parser.read();
+
+        assertEquals("example.com", header.getHeader("Host"));
+        assertEquals("10", header.getHeader(HttpHeader.HEADER_CONTENT_LENGTH));
+        assertEquals("10", header.getHeader("CONTENT-LENGTH"));
+        assertEquals("b", header.getHeader("x-custom"));
+        assertEquals("", header.getHeader("X-Empty"));
+        assertTrue(header.containsHeader("X-Empty"));
+        assertFalse(header.containsHeader("X-Missing"));
+        assertNull(header.getHeader("X-Missing"));
+    }
+
+    @Test
+    public void headerOverride() throws IOException {
+        HttpHeader header = new HttpHeaderParser(
+                "GET / HTTP/1.1\nX-Custom: a\nX-Other: c\n\n").read();
+
+        header.setHeader("X-Custom", "b");
+        assertEquals("b", header.getHeader("X-Custom"));
+        assertEquals("c", header.getHeader("X-Other"));
+        assertEquals(2, header.getHeaderMap().size());
+        assertEquals("b", header.getHeaderMap().get("X-CUSTOM"));
+    }
+
+    @Test
+    public void cookies() throws IOException {
+        HttpHeader header = new HttpHeaderParser(
+                "GET / HTTP/1.1\r\nCookie: session_id=1; name=\"test\"\r\n\r\n").read();
+
+        assertEquals("1", header.getCookie("session_id"));
+        assertEquals("test", header.getCookie("name"));
+        assertFalse(header.containsCookie("other"));
+    }
+
+    @Test
+    public void urlParameters() throws IOException {
+        HttpHeader header = new HttpHeaderParser(
+                "GET /page?a=1&b=hello+world&c=%26%3D&d&=e HTTP/1.1").read();
+
+        assertEquals("/page", header.getRequestURL());
+        assertEquals("1", header.getURLAttribute("a"));
+        assertEquals("hello world", header.getURLAttribute("b"));
+        assertEquals("&=", header.getURLAttribute("c"));
+        assertEquals("", header.getURLAttribute("d"));
+        assertEquals("e", header.getURLAttribute(""));
+    }
+
+    @Test
+    public void streamPosition() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream((
+                "POST /a HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody" +
+                "GET /b HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        HttpHeaderParser parser = new HttpHeaderParser(in);
+
+        HttpHeader header = parser.read();
+        assertEquals("/a", header.getRequestURL());
+        byte[] body = new byte[4];
+        assertEquals(4, header.getInputStream().read(body));
+        assertEquals("body", new String(body, StandardCharsets.ISO_8859_1));
+
+        header = parser.read();
+        assertEquals("GET", header.getRequestType());
+        assertEquals("/b", header.getRequestURL());
+        assertNull(parser.read());
+    }
+
+    @Test
+    public void parseByteArray() {
+        byte[] data = "xxGET /a HTTP/1.1\r\nHost: b\r\n\r\nyy".getBytes(StandardCharsets.ISO_8859_1);
+        HttpHeader header = HttpHeaderParser.parse(data, 2, data.length - 4);
+
+        assertEquals("GET", header.getRequestType());
+        assertEquals("/a", header.getRequestURL());
+        assertEquals(1.1f, header.getProtocolVersion(), 0);
+        assertEquals("b", header.getHeader("Host"));
+        assertNull(HttpHeaderParser.parse(data, 0, 0));
+    }
+}
@@ -25,9 +25,15 @@
 package zutil.net.http;
 
 import org.junit.Test;
+import zutil.io.IOUtil;
 import zutil.io.StringOutputStream;
 import zutil.net.http.HttpPrintStream.HttpMessageType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
 import static org.junit.Assert.*;
 
 public class HttpPrintStreamTest {
@@ -191,6 +197,177 @@ public class HttpPrintStreamTest {
     }
 
 
+    @Test
+    public void chunkedEncoding() {
+        StringOutputStream out = new StringOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.setProtocolVersion(1.1f);
+        httpOut.enableChunkedEncoding(true);
+
+        httpOut.print("hello");
+        httpOut.print(" world");
+        httpOut.close();
+        assertEquals(
+                "HTTP/1.1 200 OK" + System.lineSeparator() +
+                        "Transfer-Encoding: chunked" + System.lineSeparator() +
+                        System.lineSeparator() +
+                        "5\r\nhello\r\n" +
+                        "6\r\n world\r\n" +
+                        "0\r\n\r\n",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void chunkedEncodingWithContentLength() {
+        StringOutputStream out = new StringOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.setProtocolVersion(1.1f);
+        httpOut.enableChunkedEncoding(true);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "5");
+
+        httpOut.print("hello");
+        httpOut.close();
+        assertEquals(
+                "HTTP/1.1 200 OK" + System.lineSeparator() +
+                        "Content-Length: 5" + System.lineSeparator() +
+                        System.lineSeparator() +
+                        "hello",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void headResponse() {
+        StringOutputStream out = new StringOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.setProtocolVersion(1.1f);
+        httpOut.enableChunkedEncoding(true);
+        httpOut.setRequestMethod("HEAD");
+
+        httpOut.print("hello");
+        httpOut.write('!');
+        httpOut.close();
+        assertEquals(
+                "HTTP/1.1 200 OK" + System.lineSeparator() +
+                        "Transfer-Encoding: chunked" + System.lineSeparator() +
+                        System.lineSeparator(),
+                out.toString()
+        );
+    }
+
+
+    @Test
+    public void selectContentEncoding() {
+        assertNull(HttpPrintStream.selectContentEncoding(null));
+        assertNull(HttpPrintStream.selectContentEncoding("identity"));
+        assertEquals("gzip", HttpPrintStream.selectContentEncoding("gzip, deflate, br"));
+        assertEquals("deflate", HttpPrintStream.selectContentEncoding("deflate"));
+        assertEquals("deflate", HttpPrintStream.selectContentEncoding("gzip;q=0.5, deflate"));
+        assertNull(HttpPrintStream.selectContentEncoding("gzip;q=0"));
+        assertEquals("gzip", HttpPrintStream.selectContentEncoding("*"));
+    }
+
+    @Test
+    public void isMimeTypeMatching() {
+        assertTrue(HttpPrintStream.isMimeTypeMatching("text/html; charset=utf-8", HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES));
+        assertTrue(HttpPrintStream.isMimeTypeMatching("application/json", HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES));
+        assertFalse(HttpPrintStream.isMimeTypeMatching("image/png", HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES));
+        assertFalse(HttpPrintStream.isMimeTypeMatching(null, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES));
+    }
+
+    @Test
+    public void compression() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.enableCompression("gzip", 0, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_TYPE, "text/plain");
+
+        httpOut.print("hello world");
+        httpOut.close();
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        HttpHeader header = new HttpHeaderParser(in).read();
+        assertEquals("gzip", header.getHeader(HttpHeader.HEADER_CONTENT_ENCODING));
+        assertEquals("hello world", IOUtil.readContentAsString(new GZIPInputStream(in)));
+    }
+
+    @Test
+    public void compressionBelowMinSize() {
+        StringOutputStream out = new StringOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.enableCompression("gzip", 100, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_TYPE, "text/plain");
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_LENGTH, "5");
+
+        httpOut.print("hello");
+        httpOut.close();
+        assertEquals(
+                "HTTP/1.0 200 OK" + System.lineSeparator() +
+                        "Content-Length: 5" + System.lineSeparator() +
+                        "Content-Type: text/plain" + System.lineSeparator() +
+                        System.lineSeparator() +
+                        "hello",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void compressionBelowMinSizeWithoutContentLength() {
+        StringOutputStream out = new StringOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.setProtocolVersion(1.1f);
+        httpOut.enableChunkedEncoding(true);
+        httpOut.enableCompression("gzip", 100, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_TYPE, "text/plain");
+
+        httpOut.print("hello");
+        httpOut.close();
+        assertEquals(
+                "HTTP/1.1 200 OK" + System.lineSeparator() +
+                        "Content-Length: 5" + System.lineSeparator() +
+                        "Content-Type: text/plain" + System.lineSeparator() +
+                        System.lineSeparator() +
+                        "hello",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void compressionAboveMinSizeWithoutContentLength() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.enableCompression("gzip", 10, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_TYPE, "text/plain");
+
+        httpOut.print("hello");
+        httpOut.print(" world");
+        httpOut.close();
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        HttpHeader header = new HttpHeaderParser(in).read();
+        assertEquals("gzip", header.getHeader(HttpHeader.HEADER_CONTENT_ENCODING));
+        assertEquals("hello world", IOUtil.readContentAsString(new GZIPInputStream(in)));
+    }
+
+    @Test
+    public void compressionHeaders() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpPrintStream httpOut = new HttpPrintStream(out);
+        httpOut.enableCompression("gzip", 0, HttpPrintStream.DEFAULT_COMPRESSION_MIME_TYPES);
+        httpOut.setHeader(HttpHeader.HEADER_CONTENT_TYPE, "text/plain");
+        httpOut.setHeader(HttpHeader.HEADER_ETAG, "\"1234\"");
+        httpOut.setHeader(HttpHeader.HEADER_VARY, "Cookie");
+
+        httpOut.print("hello world");
+        httpOut.close();
+
+        HttpHeader header = new HttpHeaderParser(new ByteArrayInputStream(out.toByteArray())).read();
+        assertEquals("\"1234-gzip\"", header.getHeader(HttpHeader.HEADER_ETAG));
+        assertEquals("Cookie, Accept-Encoding", header.getHeader(HttpHeader.HEADER_VARY));
+    }
+
+
     // TODO @Test
     public void enableBuffering() {
 
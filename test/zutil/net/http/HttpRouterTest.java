@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HttpRouterTest {
+
+    private static class TestPage implements HttpPage {
+        @Override
+        public void respond(HttpPrintStream out, HttpHeader headers, Map<String, Object> session,
+                            Map<String, String> cookie, Map<String, String> request) {}
+    }
+
+
+    @Test
+    public void staticRoute() {
+        HttpRouter router = new HttpRouter();
+        HttpPage root = new TestPage();
+        HttpPage page = new TestPage();
+        router.addRoute("/", root);
+        router.addRoute("/a/b", page);
+
+        assertSame(root, router.route("GET", "/").getPage());
+        assertSame(page, router.route("GET", "/a/b").getPage());
+        assertNull(router.route("GET", "/a"));
+        assertNull(router.route("GET", "/a/b/c"));
+        assertNull(router.route("GET", "/a/b/"));
+    }
+
+    @Test
+    public void parameterRoute() {
+        HttpRouter router = new HttpRouter();
+        HttpPage user = new TestPage();
+        HttpPage userItem = new TestPage();
+        router.addRoute("/users/{id}", user);
+        router.addRoute("/users/{id}/items/{item}", userItem);
+
+        HttpRouter.RouteMatch match = router.route("GET", "/users/42");
+        assertSame(user, match.getPage());
+        assertEquals("42", match.getPathParameters().get("id"));
+
+        match = router.route("GET", "/users/42/items/7");
+        assertSame(userItem, match.getPage());
+        assertEquals("42", match.getPathParameters().get("id"));
+        assertEquals("7", match.getPathParameters().get("item"));
+
+        assertNull(router.route("GET", "/users/"));
+    }
+
+    @Test
+    public void wildcardRoute() {
+        HttpRouter router = new HttpRouter();
+        HttpPage files = new TestPage();
+        HttpPage named = new TestPage();
+        router.addRoute("/static/*", files);
+        router.addRoute("/docs/{path*}", named);
+
+        HttpRouter.RouteMatch match = router.route("GET", "/static/css/main.css");
+        assertSame(files, match.getPage());
+        assertEquals("css/main.css", match.getPathParameters().get(HttpRouter.WILDCARD_PARAM));
+        assertEquals("", router.route("GET", "/static/").getPathParameters().get(HttpRouter.WILDCARD_PARAM));
+        assertNull(router.route("GET", "/static"));
+
+        assertEquals("a/b", router.route("GET", "/docs/a/b").getPathParameters().get("path"));
+    }
+
+    @Test
+    public void precedence() {
+        HttpRouter router = new HttpRouter();
+        HttpPage staticPage = new TestPage();
+        HttpPage paramPage = new TestPage();
+        HttpPage wildcardPage = new TestPage();
+        router.addRoute("/users/me", staticPage);
+        router.addRoute("/users/{id}/info", paramPage);
+        router.addRoute("/*", wildcardPage);
+
+        assertSame(staticPage, router.route("GET", "/users/me").getPage());
+        assertSame(paramPage, router.route("GET", "/users/me/info").getPage());
+        assertSame(wildcardPage, router.route("GET", "/users/me/other").getPage());
+        assertSame(wildcardPage, router.route("GET", "/").getPage());
+    }
+
+    @Test
+    public void methodRoute() {
+        HttpRouter router = new HttpRouter();
+        HttpPage get = new TestPage();
+        HttpPage post = new TestPage();
+        router.addRoute("GET", "/item", get);
+        router.addRoute("post", "/item", post);
+
+        assertSame(get, router.route("GET", "/item").getPage());
+        assertSame(get, router.route("HEAD", "/item").getPage());
+        assertSame(post, router.route("POST", "/item").getPage());
+
+        HttpRouter.RouteMatch match = router.route("DELETE", "/item");
+        assertNull(match.getPage());
+        assertTrue(match.getAllowedMethods().contains("GET"));
+        assertTrue(match.getAllowedMethods().contains("POST"));
+    }
+
+    @Test
+    public void removeRoute() {
+        HttpRouter router = new HttpRouter();
+        router.addRoute("/users/{id}", new TestPage());
+        router.addRoute("/static/*", new TestPage());
+
+        router.removeRoute("/users/{id}");
+        router.removeRoute("/static/*");
+        assertNull(router.route("GET", "/users/1"));
+        assertNull(router.route("GET", "/static/a"));
+    }
+
+    @Test
+    public void addRoutes() {
+        HttpRouter router = new HttpRouter();
+        HttpPage page = new TestPage();
+        router.addRoute("GET", "/users/{id}", page);
+        router.addRoute("/static/{path*}", page);
+
+        HttpRouter copy = new HttpRouter();
+        copy.addRoutes(router);
+        assertEquals("1", copy.route("GET", "/users/1").getPathParameters().get("id"));
+        assertNull(copy.route("POST", "/users/1").getPage());
+        assertEquals("a", copy.route("GET", "/static/a").getPathParameters().get("path"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void conflictingParameterName() {
+        HttpRouter router = new HttpRouter();
+        router.addRoute("/users/{id}", new TestPage());
+        router.addRoute("/users/{name}", new TestPage());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.page;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class HttpFileContentCacheTest {
+
+    private File dir;
+
+    @Before
+    public void init() throws IOException {
+        dir = Files.createTempDirectory("HttpFileContentCacheTest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    public void get() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(100);
+        File file = createFile("a", 10);
+
+        byte[] content = cache.get(file);
+        assertEquals(10, content.length);
+        assertSame(content, cache.get(file));
+        assertEquals(10, cache.getSize());
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void tooLargeFile() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(100, 10);
+        File file = createFile("a", 11);
+
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(30);
+        File a = createFile("a", 10);
+        File b = createFile("b", 10);
+        File c = createFile("c", 10);
+        File d = createFile("d", 10);
+
+        cache.get(a);
+        cache.get(b);
+        cache.get(c);
+        cache.get(a); // a is now most recently used
+        cache.get(d);
+
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertTrue(cache.contains(d));
+        assertEquals(30, cache.getSize());
+    }
+
+    @Test
+    public void invalidateOnModification() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(100);
+        File file = createFile("a", 10);
+
+        byte[] content = cache.get(file);
+        createFile("a", 20);
+        file.setLastModified(file.lastModified() + 2000);
+
+        byte[] newContent = cache.get(file);
+        assertNotSame(content, newContent);
+        assertEquals(20, newContent.length);
+        assertEquals(20, cache.getSize());
+    }
+
+    @Test
+    public void gzipSharesBudget() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(10_000);
+        File file = createFile("a", 5000);
+
+        byte[] plain = cache.get(file);
+        byte[] gzip = cache.getGzip(file);
+        assertTrue(gzip.length < plain.length);
+        assertSame(gzip, cache.getGzip(file));
+        assertSame(plain, cache.get(file));
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(plain.length + gzip.length, cache.getSize());
+
+        // The entry including both variants is evicted as a whole
+        File b = createFile("b", 5000);
+        cache.get(b);
+        assertFalse(cache.contains(file));
+        assertEquals(5000, cache.getSize());
+    }
+
+    @Test
+    public void invalidate() throws IOException {
+        HttpFileContentCache cache = new HttpFileContentCache(100);
+        File file = createFile("a", 10);
+
+        cache.get(file);
+        cache.invalidate(file);
+        assertFalse(cache.contains(file));
+        assertEquals(0, cache.getSize());
+    }
+
+
+    private File createFile(String name, int size) throws IOException {
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+}
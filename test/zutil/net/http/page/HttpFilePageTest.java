@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.page;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class HttpFilePageTest {
+
+    @Test
+    public void parseRange() {
+        assertArrayEquals(new long[]{0, 499}, HttpFilePage.parseRange("bytes=0-499", 1000));
+        assertArrayEquals(new long[]{500, 999}, HttpFilePage.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999}, HttpFilePage.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, HttpFilePage.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[]{500, 999}, HttpFilePage.parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void parseRangeUnsatisfiable() {
+        assertArrayEquals(new long[]{1000, 1000}, HttpFilePage.parseRange("bytes=1000-", 1000));
+        assertArrayEquals(new long[]{1000, 1000}, HttpFilePage.parseRange("bytes=2000-3000", 1000));
+        assertArrayEquals(new long[]{1000, 1000}, HttpFilePage.parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void parseRangeIgnored() {
+        assertNull(HttpFilePage.parseRange(null, 1000));
+        assertNull(HttpFilePage.parseRange("items=0-10", 1000));
+        assertNull(HttpFilePage.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(HttpFilePage.parseRange("bytes=10-5", 1000));
+        assertNull(HttpFilePage.parseRange("bytes=a-b", 1000));
+    }
+}
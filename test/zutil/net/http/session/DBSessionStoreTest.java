@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+import org.junit.Test;
+import zutil.db.DBConnection;
+
+import static org.junit.Assert.*;
+
+public class DBSessionStoreTest {
+
+    @Test
+    public void persistSession() throws Exception {
+        DBConnection db = new DBConnection(DBConnection.DBMS.SQLite, ":memory:");
+        HttpSessionManager manager = new HttpSessionManager(new DBSessionStore(db), 10000);
+
+        HttpSession session = manager.getSession(null, null);
+        session.put("key", "value");
+        session.put("number", 42);
+        manager.release(session);
+
+        // Simulate a server restart with a new store on the same database
+        HttpSessionManager manager2 = new HttpSessionManager(new DBSessionStore(db), 10000);
+        HttpSession session2 = manager2.getSession(session.getId(), null);
+        assertTrue(session2.isBound());
+        assertNotSame(session, session2);
+        assertEquals("value", session2.get("key"));
+        assertEquals(42, session2.get("number"));
+    }
+
+    @Test
+    public void removeExpired() throws Exception {
+        DBConnection db = new DBConnection(DBConnection.DBMS.SQLite, ":memory:");
+        HttpSessionManager manager = new HttpSessionManager(new DBSessionStore(db), 10000);
+
+        HttpSession session = manager.getSession(null, null);
+        session.put("key", "value");
+        manager.release(session);
+
+        DBSessionStore store = new DBSessionStore(db);
+        store.removeExpired(System.currentTimeMillis() + 1);
+        assertNull(store.load(session.getId()));
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        DBConnection db = new DBConnection(DBConnection.DBMS.SQLite, ":memory:");
+        DBSessionStore store = new DBSessionStore(db);
+        HttpSessionManager manager = new HttpSessionManager(store, 10000);
+
+        HttpSession session = manager.getSession(null, null);
+        session.put("key", "value");
+        manager.invalidate(session);
+        assertNull(new DBSessionStore(db).load(session.getId()));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.http.session;
+
+import org.junit.Test;
+import zutil.io.StringOutputStream;
+import zutil.net.http.HttpPrintStream;
+
+import static org.junit.Assert.*;
+
+public class HttpSessionManagerTest {
+
+    @Test
+    public void lazyCreation() {
+        InMemorySessionStore store = new InMemorySessionStore();
+        HttpSessionManager manager = new HttpSessionManager(store, 1000);
+        StringOutputStream buff = new StringOutputStream();
+        HttpPrintStream out = new HttpPrintStream(buff);
+
+        HttpSession session = manager.getSession(null, out);
+        assertFalse(session.isBound());
+        assertNull(session.get("key"));
+        assertEquals(0, store.size());
+
+        session.put("key", "value");
+        assertTrue(session.isBound());
+        assertEquals(1, store.size());
+
+        out.close();
+        assertTrue(buff.toString().contains("Set-Cookie: " + HttpSessionManager.SESSION_COOKIE + "=" + session.getId()));
+    }
+
+    @Test
+    public void existingSession() {
+        HttpSessionManager manager = new HttpSessionManager(new InMemorySessionStore(), 1000);
+
+        HttpSession session = manager.getSession(null, null);
+        session.put("key", "value");
+        manager.release(session);
+
+        HttpSession session2 = manager.getSession(session.getId(), null);
+        assertSame(session, session2);
+        assertEquals("value", session2.get("key"));
+
+        assertFalse(manager.getSession("unknown", null).isBound());
+    }
+
+    @Test
+    public void expiredSession() throws InterruptedException {
+        InMemorySessionStore store = new InMemorySessionStore();
+        HttpSessionManager manager = new HttpSessionManager(store, 50);
+
+        HttpSession session = manager.getSession(null, null);
+        session.put("key", "value");
+        Thread.sleep(100);
+
+        assertFalse(manager.getSession(session.getId(), null).isBound());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void garbageCollect() throws InterruptedException {
+        InMemorySessionStore store = new InMemorySessionStore();
+        HttpSessionManager manager = new HttpSessionManager(store, 50);
+
+        HttpSession session1 = manager.getSession(null, null);
+        session1.put("key", "value");
+        HttpSession session2 = manager.getSession(null, null);
+        session2.put("key", "value");
+        assertEquals(2, store.size());
+        assertEquals(0, manager.garbageCollect());
+
+        Thread.sleep(150);
+        assertEquals(2, manager.garbageCollect());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void generateId() {
+        String id = HttpSessionManager.generateId();
+        assertEquals(32, id.length());
+        assertTrue(id.matches("[0-9a-f]+"));
+        assertNotEquals(id, HttpSessionManager.generateId());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.Test;
+import zutil.net.mqtt.MqttBrokerTest.MqttConnectionThreadMock;
+import zutil.net.mqtt.packet.*;
+import zutil.net.mqtt.packet.MqttPacketSubscribe.MqttSubscribePayload;
+import zutil.net.mqtt.packet.MqttPacketUnsubscribe.MqttUnsubscribePayload;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MqttBrokerMetricsTest {
+
+    /**
+     * Mock that counts the sent packets in the broker metrics like a real connection.
+     */
+    private static class CountingConnectionMock extends MqttConnectionThreadMock {
+        protected CountingConnectionMock(MqttBroker b) {
+            super(b);
+        }
+
+        @Override
+        public void sendPacket(MqttPacketHeader packet) {
+            super.sendPacket(packet);
+            packetSent(packet);
+        }
+
+        @Override
+        protected void sendPackets(List<MqttPacketHeader> packets) {
+            super.sendPackets(packets);
+            for (MqttPacketHeader packet : packets)
+                packetSent(packet);
+        }
+    }
+
+    private static MqttBroker createBroker() throws IOException {
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(Runnable::run);
+        return broker;
+    }
+
+    private static void connect(MqttConnectionThreadMock thread, String clientId) throws IOException {
+        MqttPacketConnect connectPacket = new MqttPacketConnect();
+        connectPacket.clientIdentifier = clientId;
+        connectPacket.flagCleanSession = true;
+        connectPacket.protocolLevel = MqttBroker.MQTT_PROTOCOL_VERSION;
+        thread.handleConnect(connectPacket);
+    }
+
+    private static void subscribe(MqttConnectionThreadMock thread, String topic) throws IOException {
+        MqttPacketSubscribe subscribePacket = new MqttPacketSubscribe();
+        subscribePacket.payloads.add(new MqttSubscribePayload());
+        subscribePacket.payloads.get(0).topicFilter = topic;
+        thread.handlePacket(subscribePacket);
+    }
+
+    private static MqttPacketPublish createPublish(String topic, byte[] payload) {
+        MqttPacketPublish publish = new MqttPacketPublish();
+        publish.topicName = topic;
+        publish.payload = payload;
+        return publish;
+    }
+
+
+    @Test
+    public void connectionCount() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttBrokerMetrics metrics = broker.getMetrics();
+        MqttConnectionThreadMock thread1 = new MqttConnectionThreadMock(broker);
+        MqttConnectionThreadMock thread2 = new MqttConnectionThreadMock(broker);
+
+        connect(thread1, "client1");
+        connect(thread2, "client2");
+        assertEquals(2, metrics.getConnectedClients());
+        assertEquals(2, metrics.getMaxConnectedClients());
+        assertEquals(2, metrics.getTotalConnections());
+
+        thread1.connectionClosed();
+        thread1.connectionClosed();
+        assertEquals(1, metrics.getConnectedClients());
+        assertEquals(2, metrics.getMaxConnectedClients());
+        assertEquals(2, metrics.getTotalConnections());
+    }
+
+    @Test
+    public void subscriptionCount() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttBrokerMetrics metrics = broker.getMetrics();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "client");
+
+        subscribe(thread, "topic1");
+        subscribe(thread, "topic2");
+        subscribe(thread, "topic2"); // Duplicate
+        assertEquals(2, metrics.getSubscriptionCount());
+
+        MqttPacketUnsubscribe unsubscribePacket = new MqttPacketUnsubscribe();
+        unsubscribePacket.payloads.add(new MqttUnsubscribePayload());
+        unsubscribePacket.payloads.get(0).topicFilter = "topic1";
+        thread.handlePacket(unsubscribePacket);
+        assertEquals(1, metrics.getSubscriptionCount());
+
+        thread.connectionClosed();
+        assertEquals(0, metrics.getSubscriptionCount());
+    }
+
+    @Test
+    public void messageCount() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttBrokerMetrics metrics = broker.getMetrics();
+        CountingConnectionMock publisher = new CountingConnectionMock(broker);
+        CountingConnectionMock subscriber = new CountingConnectionMock(broker);
+        connect(publisher, "publisher");
+        connect(subscriber, "subscriber");
+        subscribe(subscriber, "topic");
+
+        assertEquals(3, metrics.getMessagesReceived());
+        assertEquals(3, metrics.getMessagesSent()); // CONNACK, CONNACK, SUBACK
+        assertEquals(0, metrics.getPublishReceived());
+        long bytesSent = metrics.getBytesSent();
+
+        publisher.handlePacket(createPublish("topic", new byte[100]));
+
+        assertEquals(4, metrics.getMessagesReceived());
+        assertEquals(1, metrics.getPublishReceived());
+        assertEquals(4, metrics.getMessagesSent());
+        assertEquals(1, metrics.getPublishSent());
+        // Fixed header + topic length + topic + payload
+        assertEquals(2 + 2 + 5 + 100, metrics.getBytesSent() - bytesSent);
+        assertTrue(metrics.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void droppedMessages() throws IOException {
+        MqttBroker broker = createBroker();
+        broker.setOutboundQueueSize(1);
+        // A executor that never delivers
+        broker.setDeliveryExecutor(task -> {});
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "client");
+        subscribe(thread, "topic");
+
+        broker.publish("topic", "1");
+        broker.publish("topic", "2");
+        broker.publish("topic", "3");
+
+        assertEquals(2, broker.getMetrics().getPublishDropped());
+        assertEquals(2, broker.getDroppedMessageCount());
+        assertEquals(1, broker.getMetrics().getQueuedMessageCount());
+    }
+
+    @Test
+    public void topicRates() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttBrokerMetrics metrics = broker.getMetrics();
+        metrics.setMaxTrackedTopics(2);
+
+        broker.publish("topic1", "data");
+        broker.publish("topic1", "data");
+        broker.publish("topic2", "data");
+        broker.publish("topic3", "data"); // Over the limit
+        broker.publish("$SYS/test", "data");
+        metrics.updateLoad();
+
+        Map<String, Double> rates = metrics.getTopicMessageRates();
+        assertEquals(2, rates.size());
+        assertTrue(rates.get("topic1") > rates.get("topic2"));
+        assertTrue(rates.get("topic2") > 0);
+        assertFalse(rates.containsKey("topic3"));
+        assertFalse(rates.containsKey("$SYS/test"));
+    }
+
+    @Test
+    public void sysTopics() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "client");
+
+        Map<String, String> published = new HashMap<>();
+        broker.subscribe(MqttBrokerMetrics.SYS_TOPIC_PREFIX + "#",
+                (topic, data) -> published.put(topic, new String(data, StandardCharsets.UTF_8)));
+
+        broker.publishSysTopics();
+        assertEquals("1", published.get("$SYS/broker/clients/connected"));
+        assertEquals("1", published.get("$SYS/broker/subscriptions/count"));
+        assertTrue(published.containsKey("$SYS/broker/uptime"));
+        assertTrue(published.containsKey("$SYS/broker/load/messages/received/1min"));
+        assertNotNull(broker.getRetainedMessageStore().get("$SYS/broker/clients/connected"));
+
+        // Only changed values should be republished
+        published.clear();
+        thread.connectionClosed();
+        broker.publishSysTopics();
+        assertEquals("0", published.get("$SYS/broker/clients/connected"));
+        assertFalse(published.containsKey("$SYS/broker/clients/maximum"));
+
+        // Wildcard subscriptions should not receive $SYS topics
+        MqttConnectionThreadMock wildcard = new MqttConnectionThreadMock(broker);
+        connect(wildcard, "wildcard");
+        wildcard.sentPackets.clear();
+        subscribe(wildcard, "#");
+        assertEquals(1, wildcard.sentPackets.size()); // Only SUBACK
+    }
+
+    @Test
+    public void jmx() throws Exception {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "client");
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MqttBroker.class.getName() + ":type=Metrics,name=jmxTest");
+        broker.getMetrics().registerMBean("jmxTest");
+        try {
+            assertEquals(1, mbs.getAttribute(name, "ConnectedClients"));
+            assertEquals(1L, mbs.getAttribute(name, "TotalConnections"));
+        } finally {
+            broker.getMetrics().unregisterMBean();
+        }
+        assertFalse(mbs.isRegistered(name));
+    }
+}
@@ -31,7 +31,9 @@ import zutil.net.mqtt.packet.MqttPacketSubscribe.MqttSubscribePayload;
 import zutil.net.mqtt.packet.MqttPacketUnsubscribe.MqttUnsubscribePayload;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -50,6 +52,45 @@ public class MqttBrokerTest {
         public void sendPacket(MqttPacketHeader packet) {
             sentPackets.add(packet);
         }
+
+        @Override
+        protected void sendPackets(List<MqttPacketHeader> packets) {
+            sentPackets.addAll(packets);
+        }
+    }
+
+    private static void subscribe(MqttConnectionThread thread, String topic) throws IOException {
+        subscribe(thread, topic, 0);
+    }
+
+    private static void subscribe(MqttConnectionThread thread, String topic, int qos) throws IOException {
+        MqttPacketSubscribe subscribePacket = new MqttPacketSubscribe();
+        subscribePacket.payloads.add(new MqttSubscribePayload());
+        subscribePacket.payloads.get(0).topicFilter = topic;
+        subscribePacket.payloads.get(0).qos = qos;
+        thread.handlePacket(subscribePacket);
+    }
+
+    private static void connect(MqttConnectionThread thread, String clientId, boolean cleanSession) throws IOException {
+        MqttPacketConnect connectPacket = new MqttPacketConnect();
+        connectPacket.clientIdentifier = clientId;
+        connectPacket.flagCleanSession = cleanSession;
+        thread.handleConnect(connectPacket);
+    }
+
+    private static MqttBroker createBroker() throws IOException {
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(Runnable::run);
+        return broker;
+    }
+
+    private static MqttPacketPublish createPublish(String topic, int qos, int packetId) {
+        MqttPacketPublish publish = new MqttPacketPublish();
+        publish.topicName = topic;
+        publish.payload = new byte[]{1};
+        publish.packetId = packetId;
+        publish.setFlagQoS(qos);
+        return publish;
     }
 
     //**************** Test Cases **************************
@@ -144,6 +185,340 @@ public class MqttBrokerTest {
         assertEquals((byte) 42, recievedPayload[0]);
     }
 
+    @Test
+    public void publishWildcard() throws IOException {
+        final LinkedList<String> receivedTopics = new LinkedList<>();
+        MqttSubscriptionListener subscriber = (topic, data) -> receivedTopics.add(topic);
+
+        MqttBroker broker = new MqttBroker();
+        broker.subscribe("home/+/temp", subscriber);
+        broker.subscribe("home/#", subscriber);
+
+        broker.publish("home/kitchen/temp", new byte[]{1});
+        broker.publish("home/kitchen/light", new byte[]{1});
+        broker.publish("office/kitchen/temp", new byte[]{1});
+
+        assertEquals(2, receivedTopics.size());
+        assertEquals("home/kitchen/temp", receivedTopics.get(0));
+        assertEquals("home/kitchen/light", receivedTopics.get(1));
+
+        broker.unsubscribe(subscriber);
+        broker.publish("home/kitchen/temp", new byte[]{1});
+        assertEquals(2, receivedTopics.size());
+    }
+
+    @Test
+    public void subscribeInvalidFilter() throws IOException {
+        MqttBroker broker = new MqttBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        MqttPacketSubscribe subscribePacket = new MqttPacketSubscribe();
+        subscribePacket.payloads.add(new MqttSubscribePayload());
+        subscribePacket.payloads.get(0).topicFilter = "home/#/temp";
+
+        thread.handlePacket(subscribePacket);
+
+        MqttPacketSubscribeAck responsePacket = (MqttPacketSubscribeAck) thread.sentPackets.poll();
+        assertEquals(MqttPacketSubscribeAck.MqttSubscribeAckPayload.RETCODE_FAILURE, responsePacket.payloads.get(0).returnCode);
+    }
+
+    @Test
+    public void publishToClient() throws IOException {
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(Runnable::run);
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "home/+");
+        thread.sentPackets.clear();
+
+        broker.publish("home/kitchen", new byte[]{42});
+
+        MqttPacketPublish packet = (MqttPacketPublish) thread.sentPackets.poll();
+        assertEquals("home/kitchen", packet.topicName);
+        assertArrayEquals(new byte[]{42}, packet.payload);
+        assertNull(thread.sentPackets.poll());
+    }
+
+    @Test
+    public void slowConsumerDropNewest() throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(tasks::add);
+        broker.setOutboundQueueSize(2);
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic");
+        thread.sentPackets.clear();
+
+        for (byte i = 0; i < 5; i++)
+            broker.publish("topic", new byte[]{i});
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        assertEquals(2, thread.sentPackets.size());
+        assertEquals(0, ((MqttPacketPublish) thread.sentPackets.get(0)).payload[0]);
+        assertEquals(1, ((MqttPacketPublish) thread.sentPackets.get(1)).payload[0]);
+        assertEquals(3, broker.getDroppedMessageCount());
+    }
+
+    @Test
+    public void slowConsumerDropOldest() throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(tasks::add);
+        broker.setOutboundQueueSize(2);
+        broker.setSlowConsumerPolicy(MqttBroker.SlowConsumerPolicy.DROP_OLDEST);
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic");
+        thread.sentPackets.clear();
+
+        for (byte i = 0; i < 5; i++)
+            broker.publish("topic", new byte[]{i});
+        tasks.get(0).run();
+
+        assertEquals(2, thread.sentPackets.size());
+        assertEquals(3, ((MqttPacketPublish) thread.sentPackets.get(0)).payload[0]);
+        assertEquals(4, ((MqttPacketPublish) thread.sentPackets.get(1)).payload[0]);
+        assertEquals(3, broker.getDroppedMessageCount());
+    }
+
+    @Test
+    public void slowConsumerDisconnect() throws IOException {
+        MqttBroker broker = new MqttBroker();
+        broker.setDeliveryExecutor(task -> {});
+        broker.setOutboundQueueSize(2);
+        broker.setSlowConsumerPolicy(MqttBroker.SlowConsumerPolicy.DISCONNECT);
+        MqttConnectionThreadMock slowThread = new MqttConnectionThreadMock(broker);
+        subscribe(slowThread, "topic");
+
+        for (byte i = 0; i < 3; i++)
+            broker.publish("topic", new byte[]{i});
+
+        assertTrue(slowThread.isDisconnected());
+    }
+
+    @Test
+    public void publishQoS1FromClient() throws IOException {
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(createBroker());
+
+        thread.handlePacket(createPublish("topic", 1, 5));
+
+        MqttPacketPublishAck ack = (MqttPacketPublishAck) thread.sentPackets.poll();
+        assertEquals(5, ack.packetId);
+    }
+
+    @Test
+    public void publishQoS2FromClient() throws IOException {
+        final List<String> received = new ArrayList<>();
+        MqttBroker broker = createBroker();
+        broker.subscribe("topic", (topic, data) -> received.add(topic));
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+
+        thread.handlePacket(createPublish("topic", 2, 7));
+        thread.handlePacket(createPublish("topic", 2, 7)); // Duplicate
+
+        assertEquals(1, received.size());
+        assertEquals(7, ((MqttPacketPublishRec) thread.sentPackets.poll()).packetId);
+        assertEquals(7, ((MqttPacketPublishRec) thread.sentPackets.poll()).packetId);
+
+        MqttPacketPublishRel rel = new MqttPacketPublishRel();
+        rel.packetId = 7;
+        thread.handlePacket(rel);
+        assertEquals(7, ((MqttPacketPublishComp) thread.sentPackets.poll()).packetId);
+
+        // Same packet id can now be reused
+        thread.handlePacket(createPublish("topic", 2, 7));
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void deliverQoS1() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic", 1);
+        thread.sentPackets.clear();
+
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 1, false));
+
+        MqttPacketPublish publish = (MqttPacketPublish) thread.sentPackets.poll();
+        assertEquals(1, publish.getFlagQoS());
+        assertNotEquals(0, publish.packetId);
+        assertEquals(1, thread.getSession().getInFlightCount());
+
+        MqttPacketPublishAck ack = new MqttPacketPublishAck();
+        ack.packetId = publish.packetId;
+        thread.handlePacket(ack);
+        assertEquals(0, thread.getSession().getInFlightCount());
+    }
+
+    @Test
+    public void deliverQoS2() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic", 2);
+        thread.sentPackets.clear();
+
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 2, false));
+        MqttPacketPublish publish = (MqttPacketPublish) thread.sentPackets.poll();
+        assertEquals(2, publish.getFlagQoS());
+
+        MqttPacketPublishRec rec = new MqttPacketPublishRec();
+        rec.packetId = publish.packetId;
+        thread.handlePacket(rec);
+        assertEquals(publish.packetId, ((MqttPacketPublishRel) thread.sentPackets.poll()).packetId);
+        assertEquals(1, thread.getSession().getInFlightCount());
+
+        MqttPacketPublishComp comp = new MqttPacketPublishComp();
+        comp.packetId = publish.packetId;
+        thread.handlePacket(comp);
+        assertEquals(0, thread.getSession().getInFlightCount());
+    }
+
+    @Test
+    public void deliverQoSDowngrade() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic", 0);
+        thread.sentPackets.clear();
+
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 2, false));
+
+        assertEquals(0, ((MqttPacketPublish) thread.sentPackets.poll()).getFlagQoS());
+        assertEquals(0, thread.getSession().getInFlightCount());
+    }
+
+    @Test
+    public void retainedMessage() throws IOException {
+        MqttBroker broker = createBroker();
+        broker.publish(new MqttMessage("home/kitchen/temp", new byte[]{21}, 1, true));
+        broker.publish(new MqttMessage("home/garage/temp", new byte[]{10}, 0, true));
+        broker.publish(new MqttMessage("home/garage/light", new byte[]{1}, 0, false));
+
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "home/+/temp", 1);
+
+        assertEquals(MqttPacketSubscribeAck.class, thread.sentPackets.poll().getClass());
+        assertEquals(2, thread.sentPackets.size());
+        for (MqttPacketHeader header : thread.sentPackets) {
+            MqttPacketPublish packet = (MqttPacketPublish) header;
+            assertTrue(packet.getFlagRetain());
+            assertEquals(packet.topicName.equals("home/kitchen/temp") ? 1 : 0, packet.getFlagQoS());
+        }
+        assertEquals(1, thread.getSession().getInFlightCount());
+        thread.sentPackets.clear();
+
+        // Live messages should not have the retain flag
+        broker.publish(new MqttMessage("home/garage/temp", new byte[]{11}, 0, true));
+        MqttPacketPublish packet = (MqttPacketPublish) thread.sentPackets.poll();
+        assertFalse(packet.getFlagRetain());
+        assertArrayEquals(new byte[]{11}, broker.getRetainedMessageStore().get("home/garage/temp").getPayload());
+    }
+
+    @Test
+    public void retainedMessageRemove() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock publisher = new MqttConnectionThreadMock(broker);
+        MqttPacketPublish publish = createPublish("topic", 0, 0);
+        publish.setFlagRetain(true);
+        publisher.handlePacket(publish);
+        assertNotNull(broker.getRetainedMessageStore().get("topic"));
+
+        publish.payload = new byte[0];
+        publisher.handlePacket(publish);
+        assertNull(broker.getRetainedMessageStore().get("topic"));
+
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "#");
+        assertEquals(MqttPacketSubscribeAck.class, thread.sentPackets.poll().getClass());
+        assertNull(thread.sentPackets.poll());
+    }
+
+    @Test
+    public void inFlightWindow() throws IOException {
+        MqttBroker broker = createBroker();
+        broker.setMaxInFlightMessages(2);
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic", 1);
+        thread.sentPackets.clear();
+
+        for (byte i = 0; i < 5; i++)
+            broker.publish(new MqttMessage("topic", new byte[]{i}, 1, false));
+        assertEquals(2, thread.sentPackets.size());
+
+        MqttPacketPublishAck ack = new MqttPacketPublishAck();
+        ack.packetId = ((MqttPacketPublish) thread.sentPackets.poll()).packetId;
+        thread.handlePacket(ack);
+
+        assertEquals(2, thread.sentPackets.size());
+        assertEquals(1, ((MqttPacketPublish) thread.sentPackets.get(0)).payload[0]);
+        assertEquals(2, ((MqttPacketPublish) thread.sentPackets.get(1)).payload[0]);
+    }
+
+    @Test
+    public void retryInFlight() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        subscribe(thread, "topic", 1);
+        thread.sentPackets.clear();
+
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 1, false));
+        MqttPacketPublish publish = (MqttPacketPublish) thread.sentPackets.poll();
+        assertFalse(publish.getFlagDup());
+
+        thread.getSession().retryInFlight(System.currentTimeMillis() + 1000, 1000);
+        MqttPacketPublish retry = (MqttPacketPublish) thread.sentPackets.poll();
+        assertTrue(retry.getFlagDup());
+        assertEquals(publish.packetId, retry.packetId);
+    }
+
+    @Test
+    public void persistentSession() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "device1", false);
+        assertFalse(((MqttPacketConnectAck) thread.sentPackets.poll()).flagSessionPresent);
+        subscribe(thread, "topic", 1);
+        broker.disconnectSession(thread.getSession(), thread);
+
+        // Publish while offline
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 1, false));
+        broker.publish(new MqttMessage("topic", new byte[]{2}, 0, false)); // Not stored
+        broker.publish(new MqttMessage("topic", new byte[]{3}, 1, false));
+        assertEquals(2, broker.getMessageStore().size("device1"));
+
+        // Reconnect
+        MqttConnectionThreadMock thread2 = new MqttConnectionThreadMock(broker);
+        connect(thread2, "device1", false);
+        assertTrue(((MqttPacketConnectAck) thread2.sentPackets.poll()).flagSessionPresent);
+        assertEquals(1, ((MqttPacketPublish) thread2.sentPackets.poll()).payload[0]);
+        assertEquals(3, ((MqttPacketPublish) thread2.sentPackets.poll()).payload[0]);
+        assertEquals(0, broker.getMessageStore().size("device1"));
+    }
+
+    @Test
+    public void cleanSessionDiscardsState() throws IOException {
+        MqttBroker broker = createBroker();
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(broker);
+        connect(thread, "device1", false);
+        subscribe(thread, "topic", 1);
+        broker.disconnectSession(thread.getSession(), thread);
+        broker.publish(new MqttMessage("topic", new byte[]{1}, 1, false));
+
+        MqttConnectionThreadMock thread2 = new MqttConnectionThreadMock(broker);
+        connect(thread2, "device1", true);
+        assertFalse(((MqttPacketConnectAck) thread2.sentPackets.poll()).flagSessionPresent);
+        assertNull(thread2.sentPackets.poll());
+        assertEquals(-1, broker.getSubscriberCount("topic"));
+        assertEquals(0, broker.getMessageStore().size("device1"));
+    }
+
+    @Test
+    public void persistentSessionWithoutClientId() throws IOException {
+        MqttConnectionThreadMock thread = new MqttConnectionThreadMock(createBroker());
+        connect(thread, "", false);
+
+        MqttPacketConnectAck ack = (MqttPacketConnectAck) thread.sentPackets.poll();
+        assertEquals(MqttPacketConnectAck.RETCODE_IDENTIFIER_REJECT, ack.returnCode);
+        assertTrue(thread.isDisconnected());
+    }
+
     @Test
     public void unsubscribeEmpty() throws IOException {
         MqttBroker broker = new MqttBroker();
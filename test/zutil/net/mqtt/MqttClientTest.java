@@ -0,0 +1,206 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+
+public class MqttClientTest {
+
+    private MqttBroker broker;
+    private MqttNioBroker nioBroker;
+    private int port;
+    private MqttClient client;
+
+
+    @Before
+    public void init() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        broker = new MqttBroker(port);
+        nioBroker = new MqttNioBroker(broker, 2);
+        client = new MqttClient("localhost", port, "testClient");
+        client.setReconnectDelay(50, 200);
+    }
+
+    @After
+    public void close() throws IOException {
+        client.close();
+        nioBroker.close();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > timeout)
+                fail("Timeout waiting for condition");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Closes the connection of the client from the broker side.
+     */
+    private void dropConnection() throws Exception {
+        waitFor(() -> broker.getSession("testClient") != null && broker.getSession("testClient").getConnection() != null);
+        broker.getSession("testClient").getConnection().close();
+        waitFor(() -> !client.isConnected());
+    }
+
+
+    @Test
+    public void connect() throws Exception {
+        client.connect();
+        assertTrue(client.isConnected());
+        waitFor(() -> broker.getSession("testClient") != null && broker.getSession("testClient").isConnected());
+
+        client.close();
+        assertFalse(client.isConnected());
+        waitFor(() -> broker.getSession("testClient") == null);
+    }
+
+    @Test(expected = IOException.class)
+    public void connectRefused() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        client = new MqttClient("localhost", closedPort, "testClient");
+        client.connect();
+    }
+
+    @Test
+    public void publish() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        broker.subscribe("test/#", (topic, data) -> received.add(topic + "=" + new String(data, StandardCharsets.UTF_8)));
+        client.connect();
+
+        await(client.publish("test/qos0", "0"));
+        await(client.publish("test/qos1", "1".getBytes(), 1, false));
+        await(client.publish("test/qos2", "2".getBytes(), 2, false));
+
+        assertEquals("test/qos0=0", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("test/qos1=1", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("test/qos2=2", received.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void pipelinedPublish() throws Exception {
+        int count = 2000;
+        List<String> received = new CopyOnWriteArrayList<>();
+        broker.subscribe("pipeline", (topic, data) -> received.add(new String(data, StandardCharsets.UTF_8)));
+        client.setMaxInFlightMessages(10);
+        client.connect();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            futures.add(client.publish("pipeline", String.valueOf(i).getBytes(), 1, false));
+        assertTrue(client.getInFlightCount() <= 10);
+
+        await(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(String.valueOf(i), received.get(i));
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        client.connect();
+
+        assertEquals(1, (int) await(client.subscribe("sensor/+", 1, (topic, data) -> received.add(topic))));
+        broker.publish("sensor/temp", "20");
+        broker.publish("other", "20");
+        broker.publish(new MqttMessage("sensor/humidity", new byte[]{1}, 2, false));
+        assertEquals("sensor/temp", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("sensor/humidity", received.poll(5, TimeUnit.SECONDS));
+
+        await(client.unsubscribe("sensor/+"));
+        assertTrue(broker.getSubscriberCount("sensor/+") <= 0);
+        broker.publish("sensor/temp", "20");
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        client.connect();
+        await(client.subscribe("sensor", 0, (topic, data) -> received.add(new String(data, StandardCharsets.UTF_8))));
+
+        dropConnection();
+
+        // Publish while offline
+        BlockingQueue<String> published = new LinkedBlockingQueue<>();
+        broker.subscribe("offline", (topic, data) -> published.add(new String(data, StandardCharsets.UTF_8)));
+        CompletableFuture<Void> future = client.publish("offline", "buffered".getBytes(), 1, false);
+
+        await(future);
+        assertTrue(client.isConnected());
+        assertEquals("buffered", published.poll(5, TimeUnit.SECONDS));
+
+        // The subscription should have been restored
+        waitFor(() -> broker.getSubscriberCount("sensor") == 1);
+        broker.publish("sensor", "after");
+        assertEquals("after", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void bufferFull() throws Exception {
+        client.setBufferSize(1);
+        client.setMaxInFlightMessages(1);
+        client.setReconnectDelay(10_000, 10_000);
+        client.connect();
+        dropConnection();
+
+        CompletableFuture<Void> future = client.publish("test", "1".getBytes(), 1, false);
+        assertFalse(future.isDone());
+        try {
+            await(client.publish("test", "1".getBytes(), 1, false));
+            fail("Expected buffer full exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        client.close();
+        assertTrue(future.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.Test;
+import zutil.db.DBConnection;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class MqttMessageStoreTest {
+
+    private static void testStore(MqttMessageStore store) {
+        assertEquals(0, store.size("client1"));
+        assertTrue(store.poll("client1", 10).isEmpty());
+
+        for (byte i = 0; i < 5; i++)
+            store.add("client1", new MqttMessage("topic/" + i, new byte[]{i}, 1 + i % 2, i == 0));
+        store.add("client2", new MqttMessage("other", new byte[]{42}, 1, false));
+        assertEquals(5, store.size("client1"));
+        assertEquals(1, store.size("client2"));
+
+        List<MqttMessage> messages = store.poll("client1", 3);
+        assertEquals(3, messages.size());
+        assertEquals("topic/0", messages.get(0).getTopic());
+        assertArrayEquals(new byte[]{0}, messages.get(0).getPayload());
+        assertEquals(1, messages.get(0).getQoS());
+        assertTrue(messages.get(0).isRetain());
+        assertEquals("topic/1", messages.get(1).getTopic());
+        assertEquals(2, messages.get(1).getQoS());
+        assertFalse(messages.get(1).isRetain());
+        assertEquals("topic/2", messages.get(2).getTopic());
+        assertEquals(2, store.size("client1"));
+
+        messages = store.poll("client1", 10);
+        assertEquals(2, messages.size());
+        assertEquals("topic/3", messages.get(0).getTopic());
+        assertEquals(0, store.size("client1"));
+
+        store.remove("client2");
+        assertEquals(0, store.size("client2"));
+    }
+
+    @Test
+    public void memoryStore() {
+        testStore(new MqttMemoryMessageStore());
+    }
+
+    @Test
+    public void memoryStoreLimit() {
+        MqttMessageStore store = new MqttMemoryMessageStore(2);
+        for (byte i = 0; i < 3; i++)
+            store.add("client1", new MqttMessage("topic", new byte[]{i}, 1, false));
+
+        List<MqttMessage> messages = store.poll("client1", 10);
+        assertEquals(2, messages.size());
+        assertArrayEquals(new byte[]{1}, messages.get(0).getPayload());
+    }
+
+    @Test
+    public void dbStore() throws Exception {
+        try (DBConnection db = new DBConnection(DBConnection.DBMS.SQLite, ":memory:")) {
+            testStore(new MqttDBMessageStore(db));
+        }
+    }
+}
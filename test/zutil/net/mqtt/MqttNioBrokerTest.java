@@ -0,0 +1,196 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zutil.net.mqtt.packet.*;
+import zutil.parser.binary.BinaryStructInputStream;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+
+public class MqttNioBrokerTest {
+
+    private MqttBroker broker;
+    private MqttNioBroker nioBroker;
+    private int port;
+
+
+    private class TestClient {
+        private final Socket socket;
+        private final BinaryStructInputStream in;
+        private final BinaryStructOutputStream out;
+
+        public TestClient() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(5000);
+            in = new BinaryStructInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BinaryStructOutputStream(socket.getOutputStream());
+        }
+
+        public MqttPacketConnectAck connect(String clientId, int keepAlive) throws IOException {
+            MqttPacketConnect connect = new MqttPacketConnect();
+            connect.protocolLevel = MqttBroker.MQTT_PROTOCOL_VERSION;
+            connect.flagCleanSession = true;
+            connect.clientIdentifier = clientId;
+            connect.keepAlive = keepAlive;
+            send(connect);
+            return (MqttPacketConnectAck) read();
+        }
+
+        public void send(MqttPacketHeader packet) throws IOException {
+            MqttPacket.write(out, packet);
+            out.flush();
+        }
+
+        public MqttPacketHeader read() throws IOException {
+            return MqttPacket.read(in);
+        }
+
+        public boolean isClosedByServer() {
+            try {
+                return socket.getInputStream().read() < 0;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+
+    @Before
+    public void init() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        broker = new MqttBroker(port);
+        nioBroker = new MqttNioBroker(broker, 2);
+    }
+
+    @After
+    public void close() throws IOException {
+        nioBroker.close();
+    }
+
+
+    @Test
+    public void connect() throws IOException {
+        TestClient client = new TestClient();
+        MqttPacketConnectAck connectAck = client.connect("client1", 0);
+        assertEquals(MqttPacketConnectAck.RETCODE_OK, connectAck.returnCode);
+
+        client.send(new MqttPacketPingReq());
+        assertEquals(MqttPacketPingResp.class, client.read().getClass());
+
+        client.send(new MqttPacketDisconnect());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @Test
+    public void publishSubscribe() throws IOException {
+        TestClient subscriber = new TestClient();
+        subscriber.connect("subscriber", 0);
+        MqttPacketSubscribe subscribe = new MqttPacketSubscribe();
+        subscribe.packetId = 1;
+        subscribe.payloads.add(new MqttPacketSubscribe.MqttSubscribePayload());
+        subscribe.payloads.get(0).topicFilter = "home/#";
+        subscriber.send(subscribe);
+        assertEquals(MqttPacketSubscribeAck.class, subscriber.read().getClass());
+
+        TestClient publisher = new TestClient();
+        publisher.connect("publisher", 0);
+        for (int i = 0; i < 10; i++) {
+            MqttPacketPublish publish = new MqttPacketPublish();
+            publish.topicName = "home/sensor" + i;
+            publish.payload = new byte[200 * i];
+            publisher.send(publish);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            MqttPacketPublish publish = (MqttPacketPublish) subscriber.read();
+            assertEquals("home/sensor" + i, publish.topicName);
+            assertEquals(200 * i, publish.payload.length);
+        }
+        subscriber.close();
+        publisher.close();
+    }
+
+    @Test
+    public void keepAliveTimeout() throws IOException {
+        TestClient client = new TestClient();
+        client.connect("client1", 1);
+
+        long start = System.currentTimeMillis();
+        assertTrue(client.isClosedByServer());
+        // One and a half keep-alive period
+        assertTrue(System.currentTimeMillis() - start >= 1400);
+    }
+
+    @Test
+    public void connectTimeout() throws IOException {
+        nioBroker.setConnectTimeout(500);
+        TestClient client = new TestClient();
+
+        assertTrue(client.isClosedByServer());
+    }
+
+    @Test
+    public void willMessageOnTimeout() throws IOException, InterruptedException {
+        TestClient client = new TestClient();
+        MqttPacketConnect connect = new MqttPacketConnect();
+        connect.protocolLevel = MqttBroker.MQTT_PROTOCOL_VERSION;
+        connect.flagCleanSession = true;
+        connect.clientIdentifier = "client1";
+        connect.keepAlive = 1;
+        connect.flagWillFlag = true;
+        connect.willTopic = "status";
+        connect.willPayload = new byte[]{0};
+        client.send(connect);
+        client.read();
+
+        final byte[][] received = new byte[1][];
+        broker.subscribe("status", (topic, data) -> received[0] = data);
+        assertTrue(client.isClosedByServer());
+
+        for (int i = 0; i < 100 && received[0] == null; i++)
+            Thread.sleep(10);
+        assertArrayEquals(new byte[]{0}, received[0]);
+    }
+}
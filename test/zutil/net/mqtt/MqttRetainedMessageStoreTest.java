@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.Test;
+import zutil.db.DBConnection;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+
+public class MqttRetainedMessageStoreTest {
+
+    private static Set<String> matchTopics(MqttRetainedMessageStore store, String filter) {
+        Set<String> topics = new HashSet<>();
+        for (MqttMessage message : store.match(filter))
+            topics.add(message.getTopic());
+        return topics;
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values)
+            set.add(value);
+        return set;
+    }
+
+    private static MqttMessage retained(String topic, int payload) {
+        return new MqttMessage(topic, new byte[]{(byte) payload}, 0, true);
+    }
+
+
+    @Test
+    public void putAndGet() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore();
+        store.put(retained("home/kitchen", 1));
+        assertArrayEquals(new byte[]{1}, store.get("home/kitchen").getPayload());
+        assertNull(store.get("home"));
+
+        store.put(retained("home/kitchen", 2));
+        assertArrayEquals(new byte[]{2}, store.get("home/kitchen").getPayload());
+        assertEquals(1, store.getMessageCount());
+    }
+
+    @Test
+    public void emptyPayloadRemoves() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore();
+        store.put(retained("home/kitchen", 1));
+        store.put(new MqttMessage("home/kitchen", new byte[0], 0, true));
+
+        assertNull(store.get("home/kitchen"));
+        assertEquals(0, store.getMessageCount());
+        assertEquals(0, store.getSize());
+        assertTrue(store.match("#").isEmpty());
+    }
+
+    @Test
+    public void match() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore();
+        store.put(retained("home", 1));
+        store.put(retained("home/kitchen/temp", 1));
+        store.put(retained("home/kitchen/light", 1));
+        store.put(retained("home/garage/temp", 1));
+        store.put(retained("office/temp", 1));
+        store.put(retained("$SYS/uptime", 1));
+
+        assertEquals(set("home/kitchen/temp"), matchTopics(store, "home/kitchen/temp"));
+        assertEquals(set("home/kitchen/temp", "home/garage/temp"), matchTopics(store, "home/+/temp"));
+        assertEquals(set("home", "home/kitchen/temp", "home/kitchen/light", "home/garage/temp"), matchTopics(store, "home/#"));
+        assertEquals(set("home/kitchen/temp", "home/garage/temp"), matchTopics(store, "+/+/temp"));
+        assertEquals(set("office/temp"), matchTopics(store, "+/temp"));
+        assertEquals(set("home", "home/kitchen/temp", "home/kitchen/light", "home/garage/temp", "office/temp"), matchTopics(store, "#"));
+        assertEquals(set("$SYS/uptime"), matchTopics(store, "$SYS/#"));
+        assertEquals(set(), matchTopics(store, "home/+"));
+    }
+
+    @Test
+    public void removePrunesTree() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore();
+        store.put(retained("a/b/c", 1));
+        store.put(retained("a", 2));
+        store.remove("a/b/c");
+
+        assertEquals(set("a"), matchTopics(store, "#"));
+        assertEquals(set(), matchTopics(store, "a/+"));
+        store.remove("a");
+        assertEquals(0, store.getMessageCount());
+    }
+
+    @Test
+    public void evictByCount() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore(2, Long.MAX_VALUE);
+        store.put(retained("topic1", 1));
+        store.put(retained("topic2", 2));
+        store.put(retained("topic1", 3)); // Update moves topic1 last
+        store.put(retained("topic3", 4));
+
+        assertEquals(2, store.getMessageCount());
+        assertNull(store.get("topic2"));
+        assertNotNull(store.get("topic1"));
+        assertNotNull(store.get("topic3"));
+        assertEquals(set("topic1", "topic3"), matchTopics(store, "#"));
+    }
+
+    @Test
+    public void evictBySize() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore(100, 250);
+        for (int i = 0; i < 5; i++)
+            store.put(new MqttMessage("t" + i, new byte[100], 0, true));
+
+        assertTrue(store.getSize() <= 250);
+        assertEquals(2, store.getMessageCount());
+        assertEquals(set("t3", "t4"), matchTopics(store, "+"));
+
+        // Larger than the whole store
+        store.put(new MqttMessage("large", new byte[300], 0, true));
+        assertNull(store.get("large"));
+        assertEquals(2, store.getMessageCount());
+    }
+
+    @Test
+    public void dbStore() throws Exception {
+        try (DBConnection db = new DBConnection(DBConnection.DBMS.SQLite, ":memory:")) {
+            MqttRetainedMessageStore store = new MqttRetainedMessageStore(db, 3, Long.MAX_VALUE);
+            store.put(new MqttMessage("home/kitchen", new byte[]{1}, 1, true));
+            store.put(retained("home/garage", 2));
+            store.put(retained("home/garage", 3));
+            store.put(retained("home/office", 4));
+            store.put(retained("home/other", 5)); // Evicts home/kitchen
+            store.remove("home/other");
+            store.flush();
+
+            MqttRetainedMessageStore loaded = new MqttRetainedMessageStore(db, 10, Long.MAX_VALUE);
+            assertEquals(set("home/garage", "home/office"), matchTopics(loaded, "home/+"));
+            assertArrayEquals(new byte[]{3}, loaded.get("home/garage").getPayload());
+            assertTrue(loaded.get("home/garage").isRetain());
+
+            loaded.clear();
+            loaded.flush();
+            assertEquals(0, new MqttRetainedMessageStore(db, 10, Long.MAX_VALUE).getMessageCount());
+        }
+    }
+
+    @Test
+    public void manyTopics() {
+        MqttRetainedMessageStore store = new MqttRetainedMessageStore();
+        for (int i = 0; i < 50_000; i++)
+            store.put(retained("sensor/" + (i % 100) + "/" + i, 1));
+
+        assertEquals(50_000, store.getMessageCount());
+        List<MqttMessage> result = store.match("sensor/42/+");
+        assertEquals(500, result.size());
+        assertEquals(50_000, store.match("sensor/#").size());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+
+public class MqttTopicTreeTest {
+
+    @Test
+    public void exactMatch() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("home/kitchen/temp", "s1");
+
+        assertEquals(Collections.singleton("s1"), tree.match("home/kitchen/temp"));
+        assertTrue(tree.match("home/kitchen").isEmpty());
+        assertTrue(tree.match("home/kitchen/temp/2").isEmpty());
+        assertTrue(tree.match("home/bedroom/temp").isEmpty());
+    }
+
+    @Test
+    public void singleLevelWildcard() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("home/+/temp", "s1");
+        tree.add("+/+/+", "s2");
+
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), tree.match("home/kitchen/temp"));
+        assertEquals(Collections.singleton("s2"), tree.match("home/kitchen/light"));
+        assertTrue(tree.match("home/temp").isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), tree.match("home//temp"));
+    }
+
+    @Test
+    public void multiLevelWildcard() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("home/#", "s1");
+        tree.add("#", "s2");
+
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), tree.match("home/kitchen/temp"));
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), tree.match("home"));
+        assertEquals(Collections.singleton("s2"), tree.match("office"));
+    }
+
+    @Test
+    public void systemTopics() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("#", "s1");
+        tree.add("+/broker/uptime", "s2");
+        tree.add("$SYS/#", "s3");
+
+        assertEquals(Collections.singleton("s3"), tree.match("$SYS/broker/uptime"));
+    }
+
+    @Test
+    public void duplicateSubscriber() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        assertTrue(tree.add("home/#", "s1"));
+        assertFalse(tree.add("home/#", "s1"));
+        tree.add("home/+", "s1");
+
+        assertEquals(Collections.singleton("s1"), tree.match("home/kitchen"));
+        assertEquals(1, tree.getSubscriberCount("home/#"));
+    }
+
+    @Test
+    public void cacheInvalidation() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("home/kitchen", "s1");
+        assertEquals(Collections.singleton("s1"), tree.match("home/kitchen"));
+
+        tree.add("home/+", "s2");
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), tree.match("home/kitchen"));
+
+        tree.remove("home/kitchen", "s1");
+        assertEquals(Collections.singleton("s2"), tree.match("home/kitchen"));
+
+        tree.remove("home/+", "s2");
+        assertTrue(tree.match("home/kitchen").isEmpty());
+    }
+
+    @Test
+    public void removeAll() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("a/b", "s1");
+        tree.add("a/+", "s1");
+        tree.add("#", "s1");
+        tree.add("a/b", "s2");
+
+        assertEquals(new HashSet<>(Arrays.asList("a/b", "a/+", "#")), new HashSet<>(tree.removeAll("s1")));
+        assertEquals(Collections.singleton("s2"), tree.match("a/b"));
+        assertEquals(-1, tree.getSubscriberCount("a/+"));
+        assertEquals(1, tree.getSubscriberCount("a/b"));
+    }
+
+    @Test
+    public void getSubscriptions() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.add("a/b", "s1");
+        tree.add("a/#", "s1");
+        tree.add("a/b", "s2");
+
+        assertEquals(new HashSet<>(Arrays.asList("a/b", "a/#")), tree.getSubscriptions("s1"));
+        tree.remove("a/#", "s1");
+        assertEquals(Collections.singleton("a/b"), tree.getSubscriptions("s1"));
+        tree.removeAll("s1");
+        assertTrue(tree.getSubscriptions("s1").isEmpty());
+        assertEquals(Collections.singleton("a/b"), tree.getSubscriptions("s2"));
+    }
+
+    @Test
+    public void concurrentModification() throws InterruptedException {
+        MqttTopicTree<Integer> tree = new MqttTopicTree<>();
+        String[] filters = {"a", "a/b", "a/b/c", "a/+/c", "a/#", "+/b", "#"};
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int subscriber = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    String filter = filters[i % filters.length];
+                    tree.add(filter, subscriber);
+                    tree.match("a/b/c");
+                    if (i % 3 == 0)
+                        tree.removeAll(subscriber);
+                    else
+                        tree.remove(filter, subscriber);
+                }
+                tree.add("a/b/c", subscriber);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(8, tree.getSubscriberCount("a/b/c"));
+        assertEquals(8, tree.match("a/b/c").size());
+        for (int t = 0; t < 8; t++)
+            tree.removeAll(t);
+        assertEquals(-1, tree.getSubscriberCount("a/b/c"));
+        assertTrue(tree.match("a/b/c").isEmpty());
+    }
+
+    @Test
+    public void concurrentMatch() throws InterruptedException {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    tree.match("a/b");
+                    tree.match("a/c");
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        try {
+            for (int i = 0; i < 20_000; i++) {
+                String filter = (i % 2 == 0 ? "a/b" : "a/+");
+                tree.add(filter, "s1");
+                assertEquals(Collections.singleton("s1"), tree.match("a/b"));
+                tree.remove(filter, "s1");
+                assertTrue(tree.match("a/b").isEmpty());
+            }
+        } finally {
+            running.set(false);
+            for (Thread thread : threads)
+                thread.join();
+        }
+    }
+
+    @Test
+    public void subscriberCount() {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        assertEquals(-1, tree.getSubscriberCount("a/b"));
+        tree.add("a/b/c", "s1");
+        assertEquals(-1, tree.getSubscriberCount("a/b"));
+        assertEquals(1, tree.getSubscriberCount("a/b/c"));
+        tree.remove("a/b/c", "s1");
+        assertEquals(-1, tree.getSubscriberCount("a/b/c"));
+    }
+
+    @Test
+    public void validTopicFilter() {
+        assertTrue(MqttTopicTree.isValidTopicFilter("a/b"));
+        assertTrue(MqttTopicTree.isValidTopicFilter("#"));
+        assertTrue(MqttTopicTree.isValidTopicFilter("a/+/#"));
+        assertTrue(MqttTopicTree.isValidTopicFilter("+"));
+        assertTrue(MqttTopicTree.isValidTopicFilter("/"));
+        assertFalse(MqttTopicTree.isValidTopicFilter(""));
+        assertFalse(MqttTopicTree.isValidTopicFilter("a/#/b"));
+        assertFalse(MqttTopicTree.isValidTopicFilter("a#"));
+        assertFalse(MqttTopicTree.isValidTopicFilter("a/b+"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addInvalidFilter() {
+        new MqttTopicTree<String>().add("a/#/b", "s1");
+    }
+
+    @Test
+    public void matches() {
+        assertTrue(MqttTopicTree.matches("a/b", "a/b"));
+        assertTrue(MqttTopicTree.matches("a/+", "a/b"));
+        assertTrue(MqttTopicTree.matches("a/#", "a"));
+        assertTrue(MqttTopicTree.matches("#", "a/b/c"));
+        assertFalse(MqttTopicTree.matches("a/+", "a"));
+        assertFalse(MqttTopicTree.matches("a/b", "a/b/c"));
+        assertFalse(MqttTopicTree.matches("#", "$SYS/a"));
+        assertTrue(MqttTopicTree.matches("$SYS/#", "$SYS/a"));
+    }
+}
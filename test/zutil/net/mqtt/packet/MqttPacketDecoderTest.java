@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt.packet;
+
+import org.junit.Test;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+
+public class MqttPacketDecoderTest {
+
+    private static byte[] encode(MqttPacketHeader... packets) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        BinaryStructOutputStream out = new BinaryStructOutputStream(buffer);
+        for (MqttPacketHeader packet : packets)
+            MqttPacket.write(out, packet);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static MqttPacketPublish createPublish(String topic, int payloadSize) {
+        MqttPacketPublish packet = new MqttPacketPublish();
+        packet.topicName = topic;
+        packet.payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            packet.payload[i] = (byte) i;
+        return packet;
+    }
+
+
+    @Test
+    public void singlePacket() throws IOException {
+        MqttPacketDecoder decoder = new MqttPacketDecoder();
+        ByteBuffer data = ByteBuffer.wrap(encode(new MqttPacketPingReq()));
+
+        assertEquals(MqttPacketPingReq.class, decoder.decode(data).getClass());
+        assertNull(decoder.decode(data));
+        assertFalse(decoder.hasPartialPacket());
+    }
+
+    @Test
+    public void multiplePackets() throws IOException {
+        MqttPacketDecoder decoder = new MqttPacketDecoder();
+        ByteBuffer data = ByteBuffer.wrap(encode(
+                createPublish("a", 3), new MqttPacketPingReq(), createPublish("b", 0)));
+
+        assertEquals("a", ((MqttPacketPublish) decoder.decode(data)).topicName);
+        assertEquals(MqttPacketPingReq.class, decoder.decode(data).getClass());
+        assertEquals("b", ((MqttPacketPublish) decoder.decode(data)).topicName);
+        assertNull(decoder.decode(data));
+    }
+
+    @Test
+    public void splitPacket() throws IOException {
+        // A payload larger than 127 bytes requires a two byte remaining length
+        byte[] data = encode(createPublish("topic", 300), createPublish("topic2", 20_000));
+        MqttPacketDecoder decoder = new MqttPacketDecoder();
+
+        MqttPacketPublish first = null;
+        MqttPacketPublish second = null;
+        for (byte b : data) {
+            MqttPacketHeader packet = decoder.decode(ByteBuffer.wrap(new byte[]{b}));
+            if (packet == null)
+                continue;
+            if (first == null)
+                first = (MqttPacketPublish) packet;
+            else
+                second = (MqttPacketPublish) packet;
+        }
+
+        assertEquals("topic", first.topicName);
+        assertArrayEquals(createPublish("topic", 300).payload, first.payload);
+        assertEquals("topic2", second.topicName);
+        assertArrayEquals(createPublish("topic2", 20_000).payload, second.payload);
+        assertFalse(decoder.hasPartialPacket());
+    }
+
+    @Test
+    public void partialPacket() throws IOException {
+        byte[] data = encode(createPublish("topic", 10));
+        MqttPacketDecoder decoder = new MqttPacketDecoder();
+
+        assertNull(decoder.decode(ByteBuffer.wrap(data, 0, 5)));
+        assertTrue(decoder.hasPartialPacket());
+        assertEquals("topic", ((MqttPacketPublish) decoder.decode(ByteBuffer.wrap(data, 5, data.length - 5))).topicName);
+    }
+
+    @Test(expected = IOException.class)
+    public void packetTooLarge() throws IOException {
+        new MqttPacketDecoder(100).decode(ByteBuffer.wrap(encode(createPublish("topic", 200))));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedRemainingLength() throws IOException {
+        new MqttPacketDecoder().decode(ByteBuffer.wrap(
+                new byte[]{0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01}));
+    }
+}
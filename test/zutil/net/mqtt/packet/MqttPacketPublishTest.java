@@ -83,4 +83,57 @@ public class MqttPacketPublishTest {
         MqttPacket.write(binOut, obj);
         assertArrayEquals(Converter.toBytes(data), buffer.toByteArray());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void decodeQoS() throws IOException {
+        char[] data = new char[]{
+                // Fixed Header
+                0b0011_1101, // Packet Type(4) + DUP(1) + QoS(2) + Retain(1)
+                0xFF & 7, // Variable Header + Payload Length
+                // Variable Header
+                0b0000_0000, // length
+                0xFF & 2,    // length
+                'a',         // Topic Name
+                'b',         // Topic Name
+                0x00, 0x05,  // Packet Identifier
+                // Payload
+                0x2A,
+        };
+
+        MqttPacketPublish obj = (MqttPacketPublish) MqttPacket.read(
+                new BinaryStructInputStream(new ByteArrayInputStream(Converter.toBytes(data))));
+
+        assertTrue(obj.getFlagDup());
+        assertEquals(2, obj.getFlagQoS());
+        assertTrue(obj.getFlagRetain());
+        assertEquals(5, obj.packetId);
+        assertArrayEquals(new byte[]{0x2A}, obj.payload);
+    }
+
+    @Test
+    public void encodeQoS() throws IOException {
+        char[] data = new char[]{
+                // Fixed Header
+                0b0011_1010, // Packet Type(4) + DUP(1) + QoS(2) + Retain(1)
+                0xFF & 6, // Variable Header + Payload Length
+                // Variable Header
+                0b0000_0000, // length
+                0xFF & 2,    // length
+                'a',         // Topic Name
+                'b',         // Topic Name
+                0x00, 0x05,  // Packet Identifier
+                // Payload
+        };
+
+        MqttPacketPublish obj = new MqttPacketPublish();
+        obj.topicName = "ab";
+        obj.packetId = 5;
+        obj.setFlagQoS(1);
+        obj.setFlagDup(true);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        BinaryStructOutputStream binOut = new BinaryStructOutputStream(buffer);
+        MqttPacket.write(binOut, obj);
+        assertArrayEquals(Converter.toBytes(data), buffer.toByteArray());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.mqtt.packet;
+
+import org.junit.Test;
+import zutil.net.mqtt.MqttMessage;
+import zutil.parser.binary.BinaryStructInputStream;
+import zutil.parser.binary.BinaryStructOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+
+public class MqttPublishFrameTest {
+
+    private static byte[] encode(MqttPacketPublish packet) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        BinaryStructOutputStream out = new BinaryStructOutputStream(buffer);
+        MqttPacket.write(out, packet);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void assertSameEncoding(String topic, int payloadSize, int qos, boolean dup, boolean retain) throws IOException {
+        MqttPacketPublish packet = new MqttPacketPublish();
+        packet.topicName = topic;
+        packet.payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            packet.payload[i] = (byte) i;
+        packet.packetId = (qos > 0 ? 0x1234 : 0);
+        packet.setFlagQoS(qos);
+        packet.setFlagDup(dup);
+        packet.setFlagRetain(retain);
+        byte[] expected = encode(packet);
+
+        packet.encodedFrame = new MqttPublishFrame(topic, packet.payload);
+        byte[] actual = encode(packet);
+        assertArrayEquals(expected, actual);
+
+        MqttPacketPublish decoded = (MqttPacketPublish) MqttPacket.read(
+                new BinaryStructInputStream(new ByteArrayInputStream(actual)));
+        assertEquals(topic, decoded.topicName);
+        assertEquals(packet.packetId, decoded.packetId);
+        assertEquals(qos, decoded.getFlagQoS());
+        assertEquals(dup, decoded.getFlagDup());
+        assertEquals(retain, decoded.getFlagRetain());
+        assertArrayEquals(packet.payload, decoded.payload);
+    }
+
+
+    @Test
+    public void encodeQoS0() throws IOException {
+        assertSameEncoding("a/b", 0, 0, false, false);
+        assertSameEncoding("a/b", 10, 0, false, true);
+    }
+
+    @Test
+    public void encodeQoS() throws IOException {
+        assertSameEncoding("a/b", 10, 1, false, false);
+        assertSameEncoding("a/b", 10, 2, true, true);
+    }
+
+    @Test
+    public void encodeLarge() throws IOException {
+        assertSameEncoding("topic", 200, 0, false, false);
+        assertSameEncoding("topic", 20_000, 1, false, false);
+        assertSameEncoding("topic", 3_000_000, 2, false, false);
+    }
+
+    @Test
+    public void encodeUtf8Topic() throws IOException {
+        assertSameEncoding("hem/kök/temperatur", 5, 1, false, false);
+    }
+
+    @Test
+    public void sharedFrame() throws IOException {
+        MqttPublishFrame frame = new MqttPublishFrame("topic", new byte[]{1, 2, 3});
+        byte[] qos0 = frame.getFrame(0);
+        byte[] qos1 = frame.getFrame(1);
+
+        // Frames are only encoded once and never modified by a delivery
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.write(out, 0b1011, 42);
+        assertSame(qos0, frame.getFrame(0));
+        assertSame(qos1, frame.getFrame(2));
+        assertEquals(0, qos1[qos1.length - 5]);
+        assertEquals(0, qos1[qos1.length - 4]);
+
+        // A QoS 0 delivery without flags can use the whole frame
+        assertEquals(0, frame.writeHeader(new ByteArrayOutputStream(), 0, 0));
+    }
+
+    @Test
+    public void messageCopiesShareFrame() {
+        MqttMessage message = new MqttMessage("topic", new byte[]{1}, 2, true);
+        assertSame(message.getFrame(), message.withQoS(1).getFrame());
+        assertSame(message.getFrame(), message.withRetain(false).withQoS(0).getFrame());
+    }
+}
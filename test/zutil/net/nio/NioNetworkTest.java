@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zutil.net.nio.worker.ThreadedEventWorker;
+import zutil.net.nio.worker.Worker;
+import zutil.net.nio.worker.WorkerEventData;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class NioNetworkTest {
+
+    private NioServer server;
+    private NioClient client;
+    private BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+
+
+    @Before
+    public void init() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new NioServer(port);
+        server.setDefaultWorker(new Worker() {
+            @Override
+            public void processData(NioNetwork network, SocketAddress remote, Object data) {
+                received.add(data);
+            }
+        });
+        // The tests do not wait for the connection, data sent while connecting is queued
+        client = new NioClient(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @After
+    public void close() throws IOException {
+        client.close();
+        server.close();
+    }
+
+
+    @Test
+    public void largeMessage() throws IOException, InterruptedException {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        client.send(client.getRemoteAddress(), (Object) data);
+
+        assertArrayEquals(data, (byte[]) received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manySmallMessages() throws IOException, InterruptedException {
+        for (int i = 0; i < 1000; i++)
+            client.send(client.getRemoteAddress(), "message" + i);
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals("message" + i, received.poll(5, TimeUnit.SECONDS));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void mixedMessageSizes() throws IOException, InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            client.send(client.getRemoteAddress(), (Object) new byte[i * 997]);
+            client.send(client.getRemoteAddress(), "small" + i);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i * 997, ((byte[]) received.poll(5, TimeUnit.SECONDS)).length);
+            assertEquals("small" + i, received.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void connectionRefused() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        CountDownLatch closed = new CountDownLatch(1);
+        NioClient refused = new NioClient(InetAddress.getLoopbackAddress(), port) {
+            @Override
+            protected void connectionClosed(SocketAddress remoteAddress) {
+                closed.countDown();
+            }
+        };
+        try {
+            refused.send(refused.getRemoteAddress(), "message");
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, refused.getQueuedWriteBytes(refused.getRemoteAddress()));
+        } finally {
+            refused.close();
+        }
+    }
+
+    @Test
+    public void multipleReactors() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        BlockingQueue<Object> serverReceived = new LinkedBlockingQueue<>();
+        NioServer multiServer = new NioServer(null, port, 4);
+        multiServer.setReactorSelection(NioNetwork.ReactorSelection.LEAST_LOADED);
+        multiServer.setDefaultWorker(new Worker() {
+            @Override
+            public void processData(NioNetwork network, SocketAddress remote, Object data) {
+                threads.add(Thread.currentThread().getName());
+                serverReceived.add(data);
+            }
+        });
+        assertEquals(4, multiServer.getReactorCount());
+
+        List<NioClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                clients.add(new NioClient(InetAddress.getLoopbackAddress(), port));
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                for (int j = 0; j < 100; j++)
+                    clients.get(i).send(clients.get(i).getRemoteAddress(), i + ":" + j);
+            }
+
+            Set<Object> messages = new HashSet<>();
+            for (int i = 0; i < 800; i++) {
+                Object msg = serverReceived.poll(5, TimeUnit.SECONDS);
+                assertNotNull(msg);
+                messages.add(msg);
+            }
+            assertEquals(800, messages.size());
+            assertEquals(4, threads.size());
+        } finally {
+            for (NioClient c : clients)
+                c.close();
+            multiServer.close();
+        }
+    }
+
+    @Test
+    public void writeQueueDrained() throws IOException, InterruptedException {
+        client.setWriteHighWaterMark(1024);
+        for (int i = 0; i < 1000; i++)
+            client.send(client.getRemoteAddress(), "message" + i);
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals("message" + i, received.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, client.getQueuedWriteBytes(client.getRemoteAddress()));
+        assertTrue(client.isWritable(client.getRemoteAddress()));
+    }
+
+    @Test
+    public void slowWorker() throws IOException, InterruptedException {
+        // A worker that is overloaded by the messages, the network should pause reading instead of buffering
+        ThreadedEventWorker worker = new ThreadedEventWorker(1, true, 20) {
+            @Override
+            public void messageEvent(WorkerEventData e) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ignored) {}
+                received.add(e.data);
+            }
+        };
+        server.setDefaultWorker(worker);
+
+        for (int i = 0; i < 500; i++)
+            client.send(client.getRemoteAddress(), "message" + i);
+
+        for (int i = 0; i < 500; i++)
+            assertEquals("message" + i, received.poll(5, TimeUnit.SECONDS));
+        assertFalse(worker.isOverloaded());
+        worker.stop();
+    }
+}
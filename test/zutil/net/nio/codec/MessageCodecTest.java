@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.codec;
+
+import org.junit.Test;
+import zutil.parser.binary.BinaryStruct;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+public class MessageCodecTest {
+
+    public static class TestStructA implements BinaryStruct {
+        @BinaryField(index=1, length=32)
+        public int value;
+    }
+    public static class TestStructB implements BinaryStruct {
+        @BinaryField(index=1, length=8)
+        public byte value;
+    }
+
+    public static class TestMessage {
+        public String text;
+        public int number;
+    }
+
+
+    @Test
+    public void javaSerialization() throws IOException {
+        MessageCodec codec = new JavaSerializationCodec();
+        byte[] data = codec.encode("test message");
+
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 5, data.length);
+        assertEquals("test message", codec.decode(padded, 5, data.length));
+    }
+
+    @Test
+    public void binaryStruct() throws IOException {
+        MessageCodec codec = new BinaryStructCodec(TestStructA.class, TestStructB.class);
+
+        TestStructB structB = new TestStructB();
+        structB.value = 42;
+        byte[] data = codec.encode(structB);
+        assertArrayEquals(new byte[]{1, 42}, data);
+        assertEquals(42, ((TestStructB) codec.decode(data, 0, data.length)).value);
+
+        TestStructA structA = new TestStructA();
+        structA.value = 0x01020304;
+        data = codec.encode(structA);
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4}, data);
+        assertEquals(0x01020304, ((TestStructA) codec.decode(data, 0, data.length)).value);
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryStructUnregistered() throws IOException {
+        new BinaryStructCodec(TestStructA.class).encode(new TestStructB());
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryStructUnknownType() throws IOException {
+        new BinaryStructCodec(TestStructA.class).decode(new byte[]{5, 0}, 0, 2);
+    }
+
+    @Test
+    public void json() throws IOException {
+        TestMessage msg = new TestMessage();
+        msg.text = "hello";
+        msg.number = 5;
+
+        MessageCodec codec = new JSONCodec();
+        byte[] data = codec.encode(msg);
+        TestMessage decoded = (TestMessage) codec.decode(data, 0, data.length);
+        assertEquals("hello", decoded.text);
+        assertEquals(5, decoded.number);
+
+        codec = new JSONCodec(TestMessage.class);
+        data = codec.encode(msg);
+        assertFalse(new String(data).contains("@class"));
+        decoded = (TestMessage) codec.decode(data, 0, data.length);
+        assertEquals("hello", decoded.text);
+    }
+}
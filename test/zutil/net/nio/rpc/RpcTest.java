@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.rpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zutil.net.nio.NioClient;
+import zutil.net.nio.NioServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+
+public class RpcTest {
+
+    private NioServer server;
+    private NioClient client;
+    private RpcServer rpcServer;
+    private RpcClient rpcClient;
+    private CompletableFuture<Object> blockedRequest = new CompletableFuture<>();
+
+
+    @Before
+    public void init() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new NioServer(port);
+        rpcServer = new RpcServer((remote, request) -> {
+            if ("error".equals(request))
+                throw new IllegalStateException("Request failed");
+            if ("block".equals(request))
+                return blockedRequest;
+            if ("async".equals(request))
+                return CompletableFuture.supplyAsync(() -> "async response");
+            return "echo:" + request;
+        }, 4);
+        server.setDefaultWorker(rpcServer);
+
+        client = new NioClient(InetAddress.getLoopbackAddress(), port);
+        rpcClient = new RpcClient(client);
+    }
+
+    @After
+    public void close() throws IOException {
+        rpcClient.stop();
+        rpcServer.stop();
+        client.close();
+        server.close();
+    }
+
+
+    @Test
+    public void call() throws Exception {
+        assertEquals("echo:test", rpcClient.call("test").get(5, TimeUnit.SECONDS));
+        assertEquals("async response", rpcClient.call("async").get(5, TimeUnit.SECONDS));
+        assertEquals(0, rpcClient.getPendingCount());
+    }
+
+    @Test
+    public void concurrentCalls() throws Exception {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            futures.add(rpcClient.call(i));
+
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals("echo:" + i, futures.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(0, rpcClient.getPendingCount());
+        assertTrue(rpcClient.getLatencyHistogram().getCount() >= 2000);
+        assertTrue(rpcServer.getLatencyHistogram().getCount() >= 2000);
+    }
+
+    @Test
+    public void error() throws Exception {
+        try {
+            rpcClient.call("error").get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+            assertTrue(e.getCause().getMessage().contains("Request failed"));
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        try {
+            rpcClient.call("block", 100).get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, rpcClient.getTimeoutCount());
+        assertEquals(0, rpcClient.getPendingCount());
+
+        // The server should be notified
+        for (int i = 0; i < 100 && !blockedRequest.isCancelled(); i++)
+            Thread.sleep(10);
+        assertTrue(blockedRequest.isCancelled());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        CompletableFuture<Object> future = rpcClient.call("block", 0);
+        Thread.sleep(100);
+        assertEquals(1, rpcClient.getPendingCount());
+
+        future.cancel(true);
+        assertEquals(0, rpcClient.getPendingCount());
+        for (int i = 0; i < 100 && !blockedRequest.isCancelled(); i++)
+            Thread.sleep(10);
+        assertTrue(blockedRequest.isCancelled());
+        for (int i = 0; i < 100 && rpcServer.getClientsInProgress() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, rpcServer.getClientsInProgress());
+    }
+
+    @Test
+    public void clientDisconnect() throws Exception {
+        rpcClient.call("block", 0);
+        for (int i = 0; i < 100 && rpcServer.getClientsInProgress() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, rpcServer.getClientsInProgress());
+
+        client.close();
+        for (int i = 0; i < 100 && !blockedRequest.isCancelled(); i++)
+            Thread.sleep(10);
+        assertTrue(blockedRequest.isCancelled());
+        assertEquals(0, rpcServer.getClientsInProgress());
+    }
+
+    @Test
+    public void serverDisconnect() throws Exception {
+        CompletableFuture<Object> future = rpcClient.call("block", 0);
+        Thread.sleep(100);
+
+        server.close();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, rpcClient.getPendingCount());
+
+        try {
+            rpcClient.call("test").get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.*;
+
+
+public class WriteQueueTest {
+
+    /**
+     * A channel that accepts a limited number of bytes per write call
+     */
+    private static class LimitedChannel implements GatheringByteChannel {
+        public final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        public int limit = Integer.MAX_VALUE;
+        public int writeCalls;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writeCalls++;
+            long written = 0;
+            for (int i = offset; i < offset + length && written < limit; i++) {
+                while (srcs[i].hasRemaining() && written < limit) {
+                    out.write(srcs[i].get());
+                    written++;
+                }
+            }
+            return written;
+        }
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        @Override
+        public void close() {}
+    }
+
+
+    private ByteBufferPool pool = new ByteBufferPool(64, 10);
+    private ByteBuffer[] gather = new ByteBuffer[16];
+
+
+    @Test
+    public void coalesceSmallFrames() throws Exception {
+        WriteQueue queue = new WriteQueue(pool);
+        assertTrue(queue.addFrame(new byte[]{1, 2}, 0, 2));
+        assertFalse("Flush already scheduled", queue.addFrame(new byte[]{3}, 0, 1));
+        assertEquals(11, queue.size());
+
+        LimitedChannel channel = new LimitedChannel();
+        assertTrue(queue.write(channel, gather));
+        assertEquals(1, channel.writeCalls);
+        assertArrayEquals(new byte[]{0,0,0,2, 1,2, 0,0,0,1, 3}, channel.out.toByteArray());
+        assertEquals(0, queue.size());
+        assertTrue("New flush needed", queue.add(new byte[]{4}, 0, 1));
+    }
+
+    @Test
+    public void gatheringWrite() throws Exception {
+        WriteQueue queue = new WriteQueue(pool);
+        byte[] large = new byte[2000];
+        large[1999] = 9;
+        for (int i = 0; i < 5; i++) {
+            queue.add(new byte[]{(byte) i}, 0, 1);
+            queue.add(large, 0, large.length);
+        }
+
+        LimitedChannel channel = new LimitedChannel();
+        assertTrue(queue.write(channel, gather));
+        assertEquals(1, channel.writeCalls);
+        assertEquals(5 * 2001, channel.out.size());
+        assertEquals(9, channel.out.toByteArray()[2000]);
+    }
+
+    @Test
+    public void blockedWrite() throws Exception {
+        WriteQueue queue = new WriteQueue(pool);
+        for (int i = 0; i < 100; i++)
+            queue.add(new byte[]{(byte) i}, 0, 1);
+
+        LimitedChannel channel = new LimitedChannel();
+        channel.limit = 30;
+        assertFalse(queue.write(channel, gather));
+        assertTrue(queue.isWriteBlocked());
+        assertEquals(70, queue.size());
+        assertFalse("Flush still pending", queue.add(new byte[]{100}, 0, 1));
+
+        channel.limit = Integer.MAX_VALUE;
+        assertTrue(queue.write(channel, gather));
+        assertFalse(queue.isWriteBlocked());
+        byte[] out = channel.out.toByteArray();
+        assertEquals(101, out.length);
+        for (int i = 0; i < out.length; i++)
+            assertEquals(i, out[i]);
+    }
+
+    @Test
+    public void closeMarker() throws Exception {
+        WriteQueue queue = new WriteQueue(pool);
+        queue.add(new byte[]{1}, 0, 1);
+        queue.addCloseMarker();
+        assertFalse(queue.add(new byte[]{2}, 0, 1));
+
+        LimitedChannel channel = new LimitedChannel();
+        assertTrue(queue.write(channel, gather));
+        assertTrue(queue.isCloseRequested());
+        assertArrayEquals(new byte[]{1}, channel.out.toByteArray());
+    }
+
+    @Test
+    public void clear() {
+        WriteQueue queue = new WriteQueue(pool);
+        queue.add(new byte[]{1}, 0, 1);
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertFalse(queue.add(new byte[]{2}, 0, 1));
+        assertEquals(0, queue.size());
+    }
+}
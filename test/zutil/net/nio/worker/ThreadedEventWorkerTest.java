@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class ThreadedEventWorkerTest {
+
+    private static class RecordingWorker extends ThreadedEventWorker {
+        public final Map<SocketAddress, List<Object>> received = new ConcurrentHashMap<>();
+        public final Set<String> threads = ConcurrentHashMap.newKeySet();
+        public final AtomicInteger count = new AtomicInteger();
+
+        public RecordingWorker(int threadCount, boolean ordered) {
+            super(threadCount, ordered);
+        }
+
+        @Override
+        public void messageEvent(WorkerEventData e) {
+            threads.add(Thread.currentThread().getName());
+            received.computeIfAbsent(e.remoteAddress, k -> Collections.synchronizedList(new ArrayList<>())).add(e.data);
+            count.incrementAndGet();
+        }
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > timeout)
+                fail("Timeout waiting for condition");
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void orderedPerAddress() throws Exception {
+        RecordingWorker worker = new RecordingWorker(4, true);
+        List<SocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            addresses.add(new InetSocketAddress("127.0.0.1", 10_000 + i));
+
+        for (int i = 0; i < 1000; i++) {
+            for (SocketAddress address : addresses)
+                worker.processData(null, address, i);
+        }
+
+        waitFor(() -> worker.count.get() == 16_000);
+        for (SocketAddress address : addresses) {
+            List<Object> events = worker.received.get(address);
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, events.get(i));
+        }
+        assertTrue(worker.threads.size() > 1);
+        assertFalse(worker.hasEvent());
+        worker.stop();
+    }
+
+    @Test
+    public void unordered() throws Exception {
+        CountDownLatch started = new CountDownLatch(3);
+        ThreadedEventWorker worker = new ThreadedEventWorker(3, false) {
+            @Override
+            public void messageEvent(WorkerEventData e) {
+                started.countDown();
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {}
+            }
+        };
+
+        // Events from the same address should be handled concurrently by all threads
+        SocketAddress address = new InetSocketAddress("127.0.0.1", 10_000);
+        for (int i = 0; i < 3; i++)
+            worker.processData(null, address, i);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        worker.stop();
+    }
+
+    @Test
+    public void overloaded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        ThreadedEventWorker worker = new ThreadedEventWorker(1, true, 10) {
+            @Override
+            public void messageEvent(WorkerEventData e) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {}
+                handled.incrementAndGet();
+            }
+        };
+        CountDownLatch resumed = new CountDownLatch(1);
+        worker.addCapacityListener(resumed::countDown);
+
+        for (int i = 0; i < 10; i++)
+            worker.processData(null, null, i);
+        assertFalse(worker.isOverloaded());
+        for (int i = 0; i < 10; i++)
+            worker.processData(null, null, i);
+        assertTrue(worker.isOverloaded());
+
+        release.countDown();
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        waitFor(() -> handled.get() == 20);
+        assertFalse(worker.isOverloaded());
+        assertEquals(0, worker.getQueueSize());
+        worker.stop();
+    }
+}
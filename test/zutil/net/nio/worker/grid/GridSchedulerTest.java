@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker.grid;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class GridSchedulerTest {
+    private static final SocketAddress CLIENT1 = new InetSocketAddress("127.0.0.1", 1001);
+    private static final SocketAddress CLIENT2 = new InetSocketAddress("127.0.0.1", 1002);
+
+    private static class CountingGenerator implements GridJobGenerator<Integer> {
+        private final int limit;
+        private int next;
+
+        public CountingGenerator(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public Object initValues() {
+            return null;
+        }
+
+        @Override
+        public Integer generateJob() {
+            return (next < limit ? next++ : null);
+        }
+    }
+
+
+    @Test
+    public void batchLease() {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(5));
+
+        List<GridJob> jobs = scheduler.lease(CLIENT1, 3);
+        assertEquals(3, jobs.size());
+        assertEquals(0, jobs.get(0).job);
+        assertEquals(2, jobs.get(2).job);
+
+        jobs = scheduler.lease(CLIENT2, 3);
+        assertEquals(2, jobs.size());
+        assertEquals(5, scheduler.getActiveJobCount());
+        assertEquals(3, scheduler.getClientStats().get(CLIENT1).getLeasedCount());
+    }
+
+    @Test
+    public void completeRemovesJob() {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(2));
+        List<GridJob> jobs = scheduler.lease(CLIENT1, 2);
+
+        assertTrue(scheduler.complete(CLIENT1, jobs.get(0).jobID));
+        assertFalse("Duplicate result", scheduler.complete(CLIENT1, jobs.get(0).jobID));
+        assertEquals(1, scheduler.getActiveJobCount());
+
+        assertTrue(scheduler.complete(CLIENT1, jobs.get(1).jobID));
+        assertEquals(0, scheduler.getActiveJobCount());
+        assertEquals(2, scheduler.getClientStats().get(CLIENT1).getCompletedCount());
+        assertTrue(scheduler.lease(CLIENT1, 1).isEmpty());
+    }
+
+    @Test
+    public void failedJobIsRetriedFirst() {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(10));
+        GridJob job = scheduler.lease(CLIENT1, 1).get(0);
+
+        scheduler.fail(CLIENT1, job.jobID);
+        assertEquals(1, scheduler.getQueuedJobCount());
+
+        List<GridJob> jobs = scheduler.lease(CLIENT2, 2);
+        assertEquals(job.jobID, jobs.get(0).jobID);
+        assertEquals(1, jobs.get(1).job);
+        assertEquals(1, scheduler.getClientStats().get(CLIENT1).getFailedCount());
+    }
+
+    @Test
+    public void expiredLease() throws InterruptedException {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(1));
+        scheduler.setLeaseTimeout(10);
+        GridJob job = scheduler.lease(CLIENT1, 1).get(0);
+
+        assertEquals(0, scheduler.expireLeases());
+        Thread.sleep(50);
+        assertEquals(1, scheduler.expireLeases());
+        assertEquals(1, scheduler.getClientStats().get(CLIENT1).getExpiredCount());
+
+        List<GridJob> jobs = scheduler.lease(CLIENT2, 1);
+        assertEquals(job.jobID, jobs.get(0).jobID);
+        // The late result of the first client is still accepted
+        assertTrue(scheduler.complete(CLIENT1, job.jobID));
+        assertFalse(scheduler.complete(CLIENT2, job.jobID));
+    }
+
+    @Test
+    public void removedClient() {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(2));
+        scheduler.lease(CLIENT1, 2);
+
+        scheduler.removeClient(CLIENT1);
+        assertEquals(2, scheduler.getQueuedJobCount());
+        assertEquals(2, scheduler.lease(CLIENT2, 5).size());
+    }
+
+    @Test
+    public void speculativeExecution() throws InterruptedException {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(2));
+        scheduler.setSpeculationFactor(2);
+        List<GridJob> jobs = scheduler.lease(CLIENT1, 2);
+        Thread.sleep(20);
+        scheduler.complete(CLIENT1, jobs.get(0).jobID);
+
+        // The remaining job is not a straggler yet
+        assertTrue(scheduler.lease(CLIENT2, 1).isEmpty());
+        Thread.sleep(100);
+        List<GridJob> speculative = scheduler.lease(CLIENT2, 2);
+        assertEquals(1, speculative.size());
+        assertEquals(jobs.get(1).jobID, speculative.get(0).jobID);
+        // Only leased to one extra client
+        assertTrue(scheduler.lease(CLIENT2, 1).isEmpty());
+
+        assertTrue(scheduler.complete(CLIENT2, jobs.get(1).jobID));
+        assertFalse(scheduler.complete(CLIENT1, jobs.get(1).jobID));
+    }
+
+    @Test
+    public void speculationDisabled() throws InterruptedException {
+        GridScheduler scheduler = new GridScheduler(new CountingGenerator(2));
+        scheduler.setSpeculationFactor(0);
+        List<GridJob> jobs = scheduler.lease(CLIENT1, 2);
+        scheduler.complete(CLIENT1, jobs.get(0).jobID);
+        Thread.sleep(20);
+
+        assertTrue(scheduler.lease(CLIENT2, 1).isEmpty());
+    }
+}
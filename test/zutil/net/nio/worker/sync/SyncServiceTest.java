@@ -0,0 +1,225 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Ziver Koc
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package zutil.net.nio.worker.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zutil.net.nio.NioClient;
+import zutil.net.nio.NioServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class SyncServiceTest {
+
+    private static class MapObjectSync extends DeltaObjectSync {
+        public final Map<String, Object> fields = new ConcurrentHashMap<>();
+        public final BlockingQueue<Map<String, Object>> deltas = new LinkedBlockingQueue<>();
+
+        public MapObjectSync(String id) {
+            super(id);
+        }
+
+        @Override
+        public Map<String, Object> getState() {
+            return new HashMap<>(fields);
+        }
+
+        @Override
+        public void applyDelta(Map<String, Object> delta) {
+            fields.putAll(delta);
+            deltas.add(delta);
+        }
+    }
+
+
+    private NioServer server;
+    private NioClient client;
+    private SyncService serverSync;
+    private SyncService clientSync;
+    private MapObjectSync source;
+    private MapObjectSync replica;
+
+
+    @Before
+    public void init() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new NioServer(port);
+        serverSync = new SyncService();
+        server.setDefaultWorker(serverSync);
+        client = new NioClient(InetAddress.getLoopbackAddress(), port);
+        clientSync = new SyncService();
+        client.setDefaultWorker(clientSync);
+
+        source = new MapObjectSync("obj");
+        source.fields.put("x", 1);
+        source.fields.put("y", 2);
+        source.fields.put("name", "test");
+        serverSync.addSyncObject(source);
+        replica = new MapObjectSync("obj");
+        clientSync.addSyncObject(replica);
+    }
+
+    @After
+    public void close() throws IOException {
+        serverSync.stop();
+        clientSync.stop();
+        client.close();
+        server.close();
+    }
+
+    /**
+     * Subscribes to the object and syncs until the subscription has reached the server
+     *
+     * @return the first received delta
+     */
+    private Map<String, Object> subscribe() throws IOException, InterruptedException {
+        clientSync.subscribe(client, client.getRemoteAddress(), "obj");
+        for (int i = 0; i < 50; i++) {
+            serverSync.sync();
+            Map<String, Object> delta = replica.deltas.poll(100, TimeUnit.MILLISECONDS);
+            if (delta != null) {
+                Thread.sleep(200); // wait for acknowledgement
+                return delta;
+            }
+        }
+        fail("Subscription not received");
+        return null;
+    }
+
+
+    @Test
+    public void fullStateOnSubscribe() throws IOException, InterruptedException {
+        Map<String, Object> delta = subscribe();
+        assertEquals(source.fields, delta);
+        assertEquals(source.fields, replica.fields);
+    }
+
+    @Test
+    public void onlyChangedFields() throws IOException, InterruptedException {
+        subscribe();
+
+        source.fields.put("y", 3);
+        serverSync.sync();
+        Map<String, Object> delta = replica.deltas.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, delta.size());
+        assertEquals(3, delta.get("y"));
+        assertEquals(source.fields, replica.fields);
+
+        // Nothing changed
+        Thread.sleep(200);
+        serverSync.sync();
+        assertNull(replica.deltas.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void revertedField() throws IOException, InterruptedException {
+        subscribe();
+
+        // Change and revert without waiting for acknowledgements
+        source.fields.put("x", 10);
+        serverSync.sync();
+        source.fields.put("x", 1);
+        serverSync.sync();
+
+        assertNotNull(replica.deltas.poll(5, TimeUnit.SECONDS));
+        assertNotNull(replica.deltas.poll(5, TimeUnit.SECONDS));
+        assertEquals(source.fields, replica.fields);
+    }
+
+    @Test
+    public void notSubscribed() throws IOException, InterruptedException {
+        MapObjectSync other = new MapObjectSync("other");
+        other.fields.put("x", 1);
+        serverSync.addSyncObject(other);
+        MapObjectSync otherReplica = new MapObjectSync("other");
+        clientSync.addSyncObject(otherReplica);
+        subscribe();
+
+        serverSync.sync();
+        assertNull(otherReplica.deltas.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unsubscribe() throws IOException, InterruptedException {
+        subscribe();
+        clientSync.unsubscribe(client, client.getRemoteAddress(), "obj");
+        Thread.sleep(200);
+
+        source.fields.put("x", 5);
+        serverSync.sync();
+        assertNull(replica.deltas.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void tickCoalescesChanges() throws IOException, InterruptedException {
+        subscribe();
+
+        serverSync.setTickInterval(500);
+        for (int i = 0; i < 100; i++)
+            source.fields.put("x", i);
+
+        Map<String, Object> delta = replica.deltas.poll(5, TimeUnit.SECONDS);
+        assertEquals(99, delta.get("x"));
+        assertNull(replica.deltas.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removeObject() throws IOException, InterruptedException {
+        subscribe();
+        serverSync.removeSyncObject("obj");
+        Thread.sleep(200);
+
+        source.fields.put("x", 5);
+        serverSync.sync();
+        assertNull(replica.deltas.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removePeerOnDisconnect() throws IOException, InterruptedException {
+        subscribe();
+        assertEquals(1, serverSync.getPeerCount());
+
+        client.close();
+        for (int i = 0; i < 50 && serverSync.getPeerCount() > 0; i++)
+            Thread.sleep(100);
+        assertEquals(0, serverSync.getPeerCount());
+    }
+}